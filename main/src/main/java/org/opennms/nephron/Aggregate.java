@@ -33,13 +33,13 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Objects;
 
-import org.apache.beam.sdk.coders.AtomicCoder;
 import org.apache.beam.sdk.coders.BooleanCoder;
 import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CustomCoder;
 import org.apache.beam.sdk.coders.DefaultCoder;
-import org.apache.beam.sdk.coders.NullableCoder;
-import org.apache.beam.sdk.coders.StringUtf8Coder;
 import org.apache.beam.sdk.coders.VarLongCoder;
+import org.opennms.nephron.coders.DictionaryStringCoder;
+import org.opennms.nephron.coders.StringDictionary;
 
 import com.google.common.base.Strings;
 
@@ -62,16 +62,28 @@ public class Aggregate {
     private final boolean congestionEncountered;
     private final boolean nonEcnCapableTransport;
 
+    // indicates that the byte counts were extrapolated from a sample of the flows because of load shedding
+    private final boolean estimated;
+
     public Aggregate(long bytesIn, long bytesOut, String hostname, String hostname2, boolean ce, boolean nonEct) {
+        this(bytesIn, bytesOut, hostname, hostname2, ce, nonEct, false);
+    }
+
+    public Aggregate(long bytesIn, long bytesOut, String hostname, String hostname2, boolean ce, boolean nonEct, boolean estimated) {
         this.bytesIn = bytesIn;
         this.bytesOut = bytesOut;
         this.hostname = hostname;
         this.hostname2 = hostname2;
         this.congestionEncountered = ce;
         this.nonEcnCapableTransport = nonEct;
+        this.estimated = estimated;
     }
 
     public Aggregate(long bytesIn, long bytesOut, String hostname, String hostname2, Integer ecn) {
+        this(bytesIn, bytesOut, hostname, hostname2, ecn, false);
+    }
+
+    public Aggregate(long bytesIn, long bytesOut, String hostname, String hostname2, Integer ecn, boolean estimated) {
         this.bytesIn = bytesIn;
         this.bytesOut = bytesOut;
         this.hostname = hostname;
@@ -83,26 +95,37 @@ public class Aggregate {
             this.congestionEncountered = false;
             this.nonEcnCapableTransport = true;
         }
+        this.estimated = estimated;
     }
 
     /**
      * Returns a copy of this aggregate with {@code hostname} set to the given value and {@code hostname2} being {@code null}.
      */
     public Aggregate withHostname(String hostname) {
-        return new Aggregate(bytesIn, bytesOut, hostname, null, congestionEncountered, nonEcnCapableTransport);
+        return new Aggregate(bytesIn, bytesOut, hostname, null, congestionEncountered, nonEcnCapableTransport, estimated);
     }
 
     public static Aggregate merge(final Aggregate a, final Aggregate b) {
         return new Aggregate(a.bytesIn + b.bytesIn, a.bytesOut + b.bytesOut,
-                // make "hostname merging" deterministic by picking the lexicographic smaller one in case
-                // that both aggregations have hostname being set
-                Strings.isNullOrEmpty(a.hostname) ? b.hostname : Strings.isNullOrEmpty(b.hostname) || a.hostname.compareTo(b.hostname) < 0 ? a.hostname : b.hostname,
-                Strings.isNullOrEmpty(a.hostname2) ? b.hostname2 : Strings.isNullOrEmpty(b.hostname2) || a.hostname2.compareTo(b.hostname2) < 0 ? a.hostname2 : b.hostname2,
+                mergeHostname(a.hostname, b.hostname),
+                mergeHostname(a.hostname2, b.hostname2),
                 a.congestionEncountered || b.congestionEncountered,
-                a.nonEcnCapableTransport || b.nonEcnCapableTransport
+                a.nonEcnCapableTransport || b.nonEcnCapableTransport,
+                a.estimated || b.estimated
         );
     }
 
+    /**
+     * Makes "hostname merging" deterministic by picking the lexicographic smaller one in case that both hostnames are
+     * set.
+     */
+    static String mergeHostname(String a, String b) {
+        if (a == b) {
+            return a;
+        }
+        return Strings.isNullOrEmpty(a) ? b : Strings.isNullOrEmpty(b) || a.compareTo(b) < 0 ? a : b;
+    }
+
     public long getBytesIn() {
         return bytesIn;
     }
@@ -131,6 +154,10 @@ public class Aggregate {
         return nonEcnCapableTransport;
     }
 
+    public boolean isEstimated() {
+        return estimated;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -140,13 +167,14 @@ public class Aggregate {
                bytesOut == flowBytes.bytesOut &&
                congestionEncountered == flowBytes.congestionEncountered &&
                nonEcnCapableTransport == flowBytes.nonEcnCapableTransport &&
+               estimated == flowBytes.estimated &&
                Objects.equals(hostname, flowBytes.hostname) &&
                Objects.equals(hostname2, flowBytes.hostname2);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(bytesIn, bytesOut, hostname, hostname2, congestionEncountered, nonEcnCapableTransport);
+        return Objects.hash(bytesIn, bytesOut, hostname, hostname2, congestionEncountered, nonEcnCapableTransport, estimated);
     }
 
     @Override
@@ -157,14 +185,26 @@ public class Aggregate {
                ", hostname='" + hostname + '\'' +
                ", congestionEncountered=" + congestionEncountered +
                ", nonEcnCapableTransport=" + nonEcnCapableTransport +
+               ", estimated=" + estimated +
                '}';
     }
 
-    public static class AggregateCoder extends AtomicCoder<Aggregate> {
+    /**
+     * Encodes aggregates; host names are encoded by the given string dictionary.
+     */
+    public static class AggregateCoder extends CustomCoder<Aggregate> {
         private final Coder<Long> LONG_CODER = VarLongCoder.of();
-        private final Coder<String> STRING_CODER = NullableCoder.of(StringUtf8Coder.of());
+        private final DictionaryStringCoder STRING_CODER;
         private final Coder<Boolean> BOOLEAN_CODER = BooleanCoder.of();
 
+        public AggregateCoder() {
+            this(StringDictionary.EMPTY);
+        }
+
+        public AggregateCoder(StringDictionary dictionary) {
+            STRING_CODER = DictionaryStringCoder.of(dictionary);
+        }
+
         @Override
         public void encode(Aggregate value, OutputStream outStream) throws IOException {
             LONG_CODER.encode(value.bytesIn, outStream);
@@ -173,6 +213,7 @@ public class Aggregate {
             STRING_CODER.encode(value.hostname2, outStream);
             BOOLEAN_CODER.encode(value.congestionEncountered, outStream);
             BOOLEAN_CODER.encode(value.nonEcnCapableTransport, outStream);
+            BOOLEAN_CODER.encode(value.estimated, outStream);
         }
 
         @Override
@@ -183,13 +224,28 @@ public class Aggregate {
                     STRING_CODER.decode(inStream),
                     STRING_CODER.decode(inStream),
                     BOOLEAN_CODER.decode(inStream),
+                    BOOLEAN_CODER.decode(inStream),
                     BOOLEAN_CODER.decode(inStream)
             );
         }
 
+        @Override
+        public void verifyDeterministic() {
+        }
+
         @Override
         public boolean consistentWithEquals() {
             return true;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof AggregateCoder && ((AggregateCoder) o).STRING_CODER.equals(STRING_CODER);
+        }
+
+        @Override
+        public int hashCode() {
+            return STRING_CODER.hashCode();
+        }
     }
 }
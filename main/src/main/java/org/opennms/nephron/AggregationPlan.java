@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+/**
+ * Lists the compound key types that are written to each sink.
+ *
+ * The pipeline calculates the union of the types of all enabled sinks only; stages that are required for other types
+ * only are not created. Enabled sinks that are not listed in a plan receive all types. If no plan is configured or if
+ * no sink is enabled then all types are calculated and written to all sinks.
+ *
+ * Plans are given in the form {@code <sink>=<type>,...;<sink>=<type>,...}. Plans are validated when they are parsed:
+ * the parent type of each topK type must be listed for the same sink because topK summaries are queried together with
+ * the totals of their parents. The EXPORTER type is not calculated and can not be listed.
+ */
+public class AggregationPlan {
+
+    public enum Sink {
+        ELASTIC, KAFKA, CORTEX
+    }
+
+    private static final Splitter.MapSplitter SINK_SPLITTER = Splitter.on(';').trimResults().omitEmptyStrings().withKeyValueSeparator('=');
+    private static final Splitter TYPE_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    /**
+     * All types that are calculated by the pipeline.
+     */
+    public static final Set<CompoundKeyType> ALL_TYPES = Collections.unmodifiableSet(EnumSet.complementOf(EnumSet.of(CompoundKeyType.EXPORTER)));
+
+    private final Map<Sink, Set<CompoundKeyType>> typesBySink;
+    private final Set<CompoundKeyType> calculatedTypes;
+
+    /**
+     * @param typesBySink the types of the listed sinks
+     * @param enabledSinks the sinks that are enabled; enabled sinks that are not listed receive all types
+     */
+    public AggregationPlan(Map<Sink, Set<CompoundKeyType>> typesBySink, Set<Sink> enabledSinks) {
+        typesBySink.forEach(AggregationPlan::validate);
+        this.typesBySink = new EnumMap<>(Sink.class);
+        typesBySink.forEach((sink, types) -> this.typesBySink.put(sink, Collections.unmodifiableSet(EnumSet.copyOf(types))));
+        Set<CompoundKeyType> calculated = EnumSet.noneOf(CompoundKeyType.class);
+        if (enabledSinks.isEmpty() || !typesBySink.keySet().containsAll(enabledSinks)) {
+            calculated.addAll(ALL_TYPES);
+        } else {
+            enabledSinks.forEach(sink -> calculated.addAll(typesBySink.get(sink)));
+        }
+        this.calculatedTypes = Collections.unmodifiableSet(calculated);
+    }
+
+    public static AggregationPlan of(NephronOptions options) {
+        Set<Sink> enabledSinks = EnumSet.noneOf(Sink.class);
+        if (!Strings.isNullOrEmpty(options.getElasticUrl())) {
+            enabledSinks.add(Sink.ELASTIC);
+        }
+        if (!Strings.isNullOrEmpty(options.getFlowDestTopic())) {
+            enabledSinks.add(Sink.KAFKA);
+        }
+        if (!Strings.isNullOrEmpty(options.getCortexWriteUrl())) {
+            enabledSinks.add(Sink.CORTEX);
+        }
+        return new AggregationPlan(parse(options.getAggregationPlan()), enabledSinks);
+    }
+
+    /**
+     * Parses the types per sink given in the form {@code <sink>=<type>,...;<sink>=<type>,...}.
+     */
+    public static Map<Sink, Set<CompoundKeyType>> parse(String plan) {
+        Map<Sink, Set<CompoundKeyType>> res = new EnumMap<>(Sink.class);
+        if (!Strings.isNullOrEmpty(plan)) {
+            SINK_SPLITTER.split(plan).forEach((sink, types) -> {
+                Set<CompoundKeyType> set = EnumSet.noneOf(CompoundKeyType.class);
+                TYPE_SPLITTER.split(types).forEach(type -> set.add(CompoundKeyType.valueOf(type)));
+                res.put(Sink.valueOf(sink.trim().toUpperCase(Locale.ROOT)), set);
+            });
+        }
+        return res;
+    }
+
+    private static void validate(Sink sink, Set<CompoundKeyType> types) {
+        if (types.isEmpty()) {
+            throw new IllegalArgumentException("invalid aggregation plan - no types listed for sink: " + sink);
+        }
+        for (CompoundKeyType type : types) {
+            if (!ALL_TYPES.contains(type)) {
+                throw new IllegalArgumentException("invalid aggregation plan - type is not calculated: " + type + "; sink: " + sink);
+            }
+            if (!type.isTotalNotTopK() && !types.contains(type.getParent())) {
+                throw new IllegalArgumentException("invalid aggregation plan - topK type requires its parent total: " + type + "; parent: " + type.getParent() + "; sink: " + sink);
+            }
+        }
+    }
+
+    /**
+     * Returns the types that are calculated, i.e. the union of the types of all enabled sinks.
+     */
+    public Set<CompoundKeyType> getCalculatedTypes() {
+        return calculatedTypes;
+    }
+
+    /**
+     * Returns the types that are written to the given sink.
+     */
+    public Set<CompoundKeyType> getTypes(Sink sink) {
+        return typesBySink.getOrDefault(sink, calculatedTypes);
+    }
+
+    /**
+     * Checks if the given sink receives a subset of the calculated types only, i.e. if its summaries must be filtered.
+     */
+    public boolean isSelective(Sink sink) {
+        return !getTypes(sink).equals(calculatedTypes);
+    }
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.util.List;
+
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CoderRegistry;
+import org.apache.beam.sdk.metrics.Gauge;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.values.KV;
+
+/**
+ * Approximates the topK entries of pairs of compound keys and aggregates by a {@link SpaceSaving} summary of bounded
+ * capacity.
+ *
+ * In contrast to {@link org.apache.beam.sdk.transforms.Top}, the input pairs need not be summed per key in advance.
+ * The memory used per outer key is bounded by the capacity of the summary. The maximum error bound of the returned
+ * entries is published as a gauge.
+ */
+public class ApproximateTopK extends Combine.CombineFn<KV<CompoundKey, Aggregate>, SpaceSaving, List<KV<CompoundKey, Aggregate>>> {
+
+    private final int capacity;
+    private final int k;
+    private final Gauge maxError;
+
+    /**
+     * @param capacity the number of keys that are monitored per outer key; must not be less than k
+     * @param k count for the topK calculation
+     * @param transformPrefix prefix of the name of the gauge for the error bounds
+     */
+    public ApproximateTopK(int capacity, int k, String transformPrefix) {
+        if (capacity < k) {
+            throw new IllegalArgumentException("capacity must not be less than k - capacity: " + capacity + "; k: " + k);
+        }
+        this.capacity = capacity;
+        this.k = k;
+        this.maxError = Metrics.gauge("flows", transformPrefix + "top_k_max_error");
+    }
+
+    @Override
+    public SpaceSaving createAccumulator() {
+        return new SpaceSaving(capacity);
+    }
+
+    @Override
+    public SpaceSaving addInput(SpaceSaving acc, KV<CompoundKey, Aggregate> input) {
+        acc.add(input.getKey(), input.getValue());
+        return acc;
+    }
+
+    @Override
+    public SpaceSaving mergeAccumulators(Iterable<SpaceSaving> accumulators) {
+        SpaceSaving res = null;
+        for (SpaceSaving acc : accumulators) {
+            if (res == null) {
+                res = acc;
+            } else {
+                res.merge(acc);
+            }
+        }
+        return res != null ? res : createAccumulator();
+    }
+
+    @Override
+    public List<KV<CompoundKey, Aggregate>> extractOutput(SpaceSaving acc) {
+        List<KV<CompoundKey, Aggregate>> res = acc.topK(k);
+        long max = 0;
+        for (KV<CompoundKey, Aggregate> kv : res) {
+            max = Math.max(max, acc.getError(kv.getKey()));
+        }
+        maxError.set(max);
+        return res;
+    }
+
+    @Override
+    public Coder<SpaceSaving> getAccumulatorCoder(CoderRegistry registry, Coder<KV<CompoundKey, Aggregate>> inputCoder) {
+        return new SpaceSaving.SpaceSavingCoder();
+    }
+}
@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.coders.VarLongCoder;
+import org.apache.beam.sdk.io.FileIO;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.Reshuffle;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.joda.time.Instant;
+import org.opennms.nephron.coders.KafkaInputFlowDeserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.protobuf.CodedInputStream;
+
+/**
+ * Bounded pipeline that reprocesses historic flows.
+ *
+ * Flows are either read from a range of a Kafka topic or from files of length delimited serialized flow documents
+ * (as written by {@code FlowDocument.writeDelimitedTo}). The input is bounded. Runners execute the pipeline in batch
+ * mode, so grouping is done by sorting rather than by timers and per-key streaming state. The same aggregations
+ * as in the streaming pipeline are calculated and written into the configured sinks.
+ *
+ * Kafka ranges are selected by offsets or by record timestamps. They are split into chunks that are read in parallel.
+ * Dead letters are counted and logged but are not written into a dead letter sink.
+ */
+public class Backfill {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Backfill.class);
+
+    // Reshuffle is deprecated but still the only way to rebalance the file and offset range splits across workers
+    @SuppressWarnings("deprecation")
+    public static org.apache.beam.sdk.Pipeline create(BackfillOptions options) {
+        org.apache.beam.sdk.Pipeline p = org.apache.beam.sdk.Pipeline.create(options);
+        Pipeline.registerCoders(p);
+
+        Map<String, Object> kafkaConsumerConfig = Pipeline.kafkaConsumerConfig(options);
+        kafkaConsumerConfig.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, options.getBootstrapServers());
+
+        PCollection<Flow> flows;
+        if (!Strings.isNullOrEmpty(options.getBackfillFiles())) {
+            flows = p.apply(FileIO.match().filepattern(options.getBackfillFiles()))
+                    .apply(FileIO.readMatches())
+                    .apply(Reshuffle.viaRandomKey())
+                    .apply("read_files", ParDo.of(new ReadFlowFileFn(kafkaConsumerConfig)));
+        } else {
+            List<KV<Integer, KV<Long, Long>>> ranges = split(kafkaOffsetRanges(options, kafkaConsumerConfig), options.getBackfillChunkSize());
+            LOG.info("backfill from Kafka - topic: {}; chunks: {}", options.getFlowSourceTopic(), ranges.size());
+            flows = p.apply(Create.of(ranges).withCoder(KvCoder.of(VarIntCoder.of(), KvCoder.of(VarLongCoder.of(), VarLongCoder.of()))))
+                    .apply(Reshuffle.viaRandomKey())
+                    .apply("read_kafka", ParDo.of(new ReadKafkaRangeFn(options.getFlowSourceTopic(), kafkaConsumerConfig)));
+        }
+
+        Pipeline.processFlows(options, flows);
+        return p;
+    }
+
+    public static void main(String[] args) {
+        PipelineOptionsFactory.register(BackfillOptions.class);
+        final BackfillOptions options =
+                PipelineOptionsFactory.fromArgs(args).withValidation().as(BackfillOptions.class);
+        // all input is available -> there is no need to combine panes
+        options.setCatchUpDriftThresholdMs(0);
+        // the drift of historic flows does not indicate an overload
+        options.setLoadSheddingDriftThresholdMs(0);
+        create(options).run().waitUntilFinish();
+    }
+
+    /**
+     * Parses offset ranges of the form {@code <partition>:<start offset>-<end offset>,...}.
+     *
+     * @return a list of partition / (start offset, end offset) pairs
+     */
+    static List<KV<Integer, KV<Long, Long>>> parseOffsetRanges(String offsetRanges) {
+        List<KV<Integer, KV<Long, Long>>> res = new ArrayList<>();
+        for (String range : Splitter.on(',').trimResults().omitEmptyStrings().split(offsetRanges)) {
+            int colon = range.indexOf(':');
+            int dash = range.indexOf('-', colon);
+            if (colon < 0 || dash < 0) {
+                throw new IllegalArgumentException("invalid offset range: " + range);
+            }
+            res.add(KV.of(
+                    Integer.parseInt(range.substring(0, colon).trim()),
+                    KV.of(Long.parseLong(range.substring(colon + 1, dash).trim()), Long.parseLong(range.substring(dash + 1).trim()))
+            ));
+        }
+        return res;
+    }
+
+    /**
+     * Splits the given offset ranges into chunks of the given maximum size. Empty ranges are dropped.
+     */
+    static List<KV<Integer, KV<Long, Long>>> split(List<KV<Integer, KV<Long, Long>>> ranges, long chunkSize) {
+        List<KV<Integer, KV<Long, Long>>> res = new ArrayList<>();
+        for (KV<Integer, KV<Long, Long>> range : ranges) {
+            long end = range.getValue().getValue();
+            for (long start = range.getValue().getKey(); start < end; start += chunkSize) {
+                res.add(KV.of(range.getKey(), KV.of(start, Math.min(start + chunkSize, end))));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Determines the offset ranges that are read from Kafka.
+     *
+     * Either the offset ranges that are given explicitly are used or the offset ranges are determined for all
+     * partitions by the configured time range.
+     */
+    private static List<KV<Integer, KV<Long, Long>>> kafkaOffsetRanges(BackfillOptions options, Map<String, Object> kafkaConsumerConfig) {
+        if (!Strings.isNullOrEmpty(options.getBackfillOffsetRanges())) {
+            return parseOffsetRanges(options.getBackfillOffsetRanges());
+        }
+        try (KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<>(kafkaConsumerConfig, new ByteArrayDeserializer(), new ByteArrayDeserializer())) {
+            List<TopicPartition> partitions = consumer.partitionsFor(options.getFlowSourceTopic()).stream()
+                    .map(PartitionInfo::partition)
+                    .map(partition -> new TopicPartition(options.getFlowSourceTopic(), partition))
+                    .collect(Collectors.toList());
+            Map<TopicPartition, Long> beginning = consumer.beginningOffsets(partitions);
+            Map<TopicPartition, Long> end = consumer.endOffsets(partitions);
+            Map<TopicPartition, OffsetAndTimestamp> startByTime = offsetsForTime(consumer, partitions, options.getBackfillStartMs());
+            Map<TopicPartition, OffsetAndTimestamp> endByTime = offsetsForTime(consumer, partitions, options.getBackfillEndMs());
+
+            List<KV<Integer, KV<Long, Long>>> res = new ArrayList<>();
+            for (TopicPartition tp : partitions) {
+                // offsetsForTimes returns null for partitions that have no records at or after the given time
+                long startOffset = options.getBackfillStartMs() < 0 ? beginning.get(tp) :
+                                   startByTime.get(tp) != null ? startByTime.get(tp).offset() : end.get(tp);
+                long endOffset = options.getBackfillEndMs() < 0 || endByTime.get(tp) == null ? end.get(tp) : endByTime.get(tp).offset();
+                res.add(KV.of(tp.partition(), KV.of(startOffset, endOffset)));
+            }
+            return res;
+        }
+    }
+
+    private static Map<TopicPartition, OffsetAndTimestamp> offsetsForTime(KafkaConsumer<?, ?> consumer, List<TopicPartition> partitions, long timestamp) {
+        if (timestamp < 0) {
+            return Map.of();
+        }
+        Map<TopicPartition, Long> query = partitions.stream().collect(Collectors.toMap(tp -> tp, tp -> timestamp));
+        return consumer.offsetsForTimes(query);
+    }
+
+    /**
+     * Outputs regular flows with their lastSwitched timestamp. Filtered flows and dead letters are dropped.
+     */
+    private static abstract class ReadFn<T> extends DoFn<T, Flow> {
+
+        private final Counter flowsRead = Metrics.counter("flows", "from_backfill");
+        private final Counter flowsFiltered = Metrics.counter("flows", "from_backfill_filtered");
+        private final Counter deadLetters = Metrics.counter("flows", "from_backfill_dead_letters");
+
+        protected final Map<String, Object> kafkaConsumerConfig;
+        protected transient KafkaInputFlowDeserializer deserializer;
+
+        protected ReadFn(Map<String, Object> kafkaConsumerConfig) {
+            this.kafkaConsumerConfig = kafkaConsumerConfig;
+        }
+
+        @Setup
+        public void setup() {
+            deserializer = new KafkaInputFlowDeserializer();
+            deserializer.configure(kafkaConsumerConfig, false);
+        }
+
+        protected void output(Flow flow, OutputReceiver<Flow> out) {
+            if (flow.isFiltered()) {
+                flowsFiltered.inc();
+            } else if (flow.isDeadLetter()) {
+                deadLetters.inc();
+                Pipeline.RATE_LIMITED_LOG.warn("Rejected input record - reason: {}", flow.getDeadLetterReason());
+            } else {
+                flowsRead.inc();
+                out.outputWithTimestamp(flow, Instant.ofEpochMilli(flow.lastSwitched));
+            }
+        }
+    }
+
+    /**
+     * Reads the records of a partition / (start offset, end offset) chunk of the flow topic.
+     */
+    private static class ReadKafkaRangeFn extends ReadFn<KV<Integer, KV<Long, Long>>> {
+
+        private static final java.time.Duration POLL_TIMEOUT = java.time.Duration.ofSeconds(1);
+
+        private final String topic;
+
+        public ReadKafkaRangeFn(String topic, Map<String, Object> kafkaConsumerConfig) {
+            super(kafkaConsumerConfig);
+            this.topic = topic;
+        }
+
+        @ProcessElement
+        public void processElement(@Element KV<Integer, KV<Long, Long>> range, OutputReceiver<Flow> out) {
+            TopicPartition tp = new TopicPartition(topic, range.getKey());
+            long start = range.getValue().getKey();
+            long end = range.getValue().getValue();
+            Map<String, Object> config = new HashMap<>(kafkaConsumerConfig);
+            config.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+            try (KafkaConsumer<byte[], Flow> consumer = new KafkaConsumer<>(config, new ByteArrayDeserializer(), deserializer)) {
+                readRange(consumer, tp, start, end, POLL_TIMEOUT, flow -> output(flow, out));
+            }
+        }
+    }
+
+    /**
+     * Reads the records of the given partition in the given offset range.
+     *
+     * The end offset is clamped to the end of the log. In addition, reading stops if a poll returns no records and the
+     * position reached the end of the log. Otherwise offsets that never materialize (e.g. because the range was given
+     * explicitly or the log was truncated) would keep polling forever.
+     */
+    static void readRange(
+            Consumer<byte[], Flow> consumer,
+            TopicPartition tp,
+            long start,
+            long end,
+            java.time.Duration pollTimeout,
+            java.util.function.Consumer<Flow> output
+    ) {
+        consumer.assign(List.of(tp));
+        long limit = Math.min(end, consumer.endOffsets(List.of(tp)).get(tp));
+        consumer.seek(tp, start);
+        while (consumer.position(tp) < limit) {
+            ConsumerRecords<byte[], Flow> records = consumer.poll(pollTimeout);
+            if (records.isEmpty() && consumer.position(tp) >= consumer.endOffsets(List.of(tp)).get(tp)) {
+                return;
+            }
+            for (ConsumerRecord<byte[], Flow> record : records.records(tp)) {
+                if (record.offset() >= limit) {
+                    return;
+                }
+                output.accept(record.value());
+            }
+        }
+    }
+
+    /**
+     * Reads files of length delimited serialized flow documents.
+     */
+    private static class ReadFlowFileFn extends ReadFn<FileIO.ReadableFile> {
+
+        public ReadFlowFileFn(Map<String, Object> kafkaConsumerConfig) {
+            super(kafkaConsumerConfig);
+        }
+
+        @ProcessElement
+        public void processElement(@Element FileIO.ReadableFile file, OutputReceiver<Flow> out) throws IOException {
+            try (InputStream is = Channels.newInputStream(file.open())) {
+                CodedInputStream in = CodedInputStream.newInstance(is);
+                while (!in.isAtEnd()) {
+                    byte[] data = in.readByteArray();
+                    // the size limit applies to the total number of bytes read since the last reset
+                    in.resetSizeCounter();
+                    output(deserializer.deserialize(null, data), out);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import org.apache.beam.sdk.options.Default;
+import org.apache.beam.sdk.options.Description;
+
+public interface BackfillOptions extends NephronOptions {
+
+    @Description("File pattern of files that contain length delimited serialized flow documents. " +
+                 "If set, flows are read from these files instead of Kafka. Compressed files are supported.")
+    String getBackfillFiles();
+
+    void setBackfillFiles(String value);
+
+    @Description("Start of the time range of Kafka records that are read (inclusive; epoch milliseconds). " +
+                 "Records are selected by their Kafka timestamps.")
+    @Default.Long(-1)
+    long getBackfillStartMs();
+
+    void setBackfillStartMs(long value);
+
+    @Description("End of the time range of Kafka records that are read (exclusive; epoch milliseconds). " +
+                 "The range reaches up to the current end of each partition if not set.")
+    @Default.Long(-1)
+    long getBackfillEndMs();
+
+    void setBackfillEndMs(long value);
+
+    @Description("Offset ranges of Kafka partitions that are read. The value is a comma separated list of " +
+                 "<partition>:<start offset>-<end offset> entries (start inclusive, end exclusive). " +
+                 "Overrides the time range; only the listed partitions are read.")
+    String getBackfillOffsetRanges();
+
+    void setBackfillOffsetRanges(String value);
+
+    @Description("Max number of Kafka records that are read by a single task. Offset ranges are split into chunks of this size.")
+    @Default.Long(1_000_000)
+    long getBackfillChunkSize();
+
+    void setBackfillChunkSize(long value);
+
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.values.KV;
+import org.joda.time.Instant;
+import org.opennms.nephron.network.IpAddr;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * Limits the number of distinct conversation or host keys per exporter interface and window.
+ *
+ * The hashes of the keys seen for each exporter interface and window are tracked in a set that is bounded by the
+ * given limit. Once the limit is reached, keys that are not yet in that set are folded into a single overflow key per
+ * interface and tos whose addresses are {@link IpAddr#OVERFLOW} and whose strings are {@value IpAddr#OVERFLOW_TEXT}.
+ * Bytes are never dropped, i.e. the sums of the overflow keys make up for the folded keys. A single exporter that
+ * sees a port scan or a DDoS therefore can not blow up the state of the following combine stages.
+ *
+ * Keys are tracked by each instance of this DoFn separately, i.e. the number of distinct keys per interface and window
+ * that reach the combine stages is bounded by the limit times the number of parallel instances of the guard. The
+ * total number of tracked keys of an instance is bounded as well: if it is exceeded then the windows that end first
+ * are evicted. Windows that are evicted and see further elements are tracked again from scratch.
+ *
+ * The number of folded elements is counted per stage and per exporter interface
+ * ({@code <stage>_overflow_<nodeId>_<ifIndex>}).
+ */
+public class CardinalityGuard extends DoFn<KV<CompoundKey, Aggregate>, KV<CompoundKey, Aggregate>> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CardinalityGuard.class);
+
+    // bounds the number of key hashes that are tracked over all windows and interfaces
+    static final int MAX_TRACKED_KEYS = 1_000_000;
+
+    private final int limit;
+    private final int maxTrackedKeys;
+    private final String stage;
+    private final Counter overflow;
+    private final Counter evictedWindows;
+
+    // tracked key hashes by window end, window, and exporter interface
+    private transient TreeMap<Instant, Map<BoundedWindow, Long2ObjectOpenHashMap<LongOpenHashSet>>> tracked;
+    private transient long trackedKeys;
+    private transient Long2ObjectOpenHashMap<Counter> overflowByInterface;
+
+    /**
+     * @param limit the maximum number of distinct keys per exporter interface and window
+     * @param stage names the metrics of this guard
+     */
+    public CardinalityGuard(int limit, String stage) {
+        this(limit, stage, MAX_TRACKED_KEYS);
+    }
+
+    CardinalityGuard(int limit, String stage, int maxTrackedKeys) {
+        this.limit = limit;
+        this.maxTrackedKeys = maxTrackedKeys;
+        this.stage = stage;
+        this.overflow = Metrics.counter("flows", stage + "_overflow");
+        this.evictedWindows = Metrics.counter("flows", stage + "_evicted_windows");
+    }
+
+    @Setup
+    public void setup() {
+        tracked = new TreeMap<>();
+        trackedKeys = 0;
+        overflowByInterface = new Long2ObjectOpenHashMap<>();
+    }
+
+    @ProcessElement
+    public void processElement(@Element KV<CompoundKey, Aggregate> kv, BoundedWindow window, OutputReceiver<KV<CompoundKey, Aggregate>> out) {
+        CompoundKeyData data = kv.getKey().getData();
+        long itf = (long) data.nodeId << 32 | (data.ifIndex & 0xffffffffL);
+        LongOpenHashSet keys = trackedKeys(window, itf);
+        long hash = kv.getKey().hash64();
+        if (keys != null && keys.contains(hash)) {
+            out.output(kv);
+            return;
+        }
+        if (keys == null || keys.size() < limit) {
+            if (trackedKeys >= maxTrackedKeys) {
+                evict();
+            }
+            tracked.computeIfAbsent(window.maxTimestamp(), t -> new HashMap<>())
+                    .computeIfAbsent(window, w -> new Long2ObjectOpenHashMap<>())
+                    .computeIfAbsent(itf, i -> new LongOpenHashSet())
+                    .add(hash);
+            trackedKeys++;
+            out.output(kv);
+            return;
+        }
+        Counter counter = overflowByInterface.get(itf);
+        if (counter == null) {
+            LOG.warn("cardinality limit reached - stage: {}; nodeId: {}; ifIndex: {}; limit: {}", stage, data.nodeId, data.ifIndex, limit);
+            counter = Metrics.counter("flows", stage + "_overflow_" + data.nodeId + "_" + data.ifIndex);
+            overflowByInterface.put(itf, counter);
+        }
+        counter.inc();
+        overflow.inc();
+        out.output(KV.of(overflowKey(kv.getKey()), kv.getValue().withHostname(null)));
+    }
+
+    private LongOpenHashSet trackedKeys(BoundedWindow window, long itf) {
+        Map<BoundedWindow, Long2ObjectOpenHashMap<LongOpenHashSet>> byWindow = tracked.get(window.maxTimestamp());
+        Long2ObjectOpenHashMap<LongOpenHashSet> byInterface = byWindow != null ? byWindow.get(window) : null;
+        return byInterface != null ? byInterface.get(itf) : null;
+    }
+
+    /**
+     * Evicts the windows that end first until at most three quarters of the tracked keys remain. Windows that end
+     * first are the first to be fired; late elements of these windows are rare.
+     */
+    private void evict() {
+        long evicted = 0;
+        while (trackedKeys > maxTrackedKeys * 3L / 4 && !tracked.isEmpty()) {
+            for (Long2ObjectOpenHashMap<LongOpenHashSet> byInterface : tracked.pollFirstEntry().getValue().values()) {
+                for (LongOpenHashSet keys : byInterface.values()) {
+                    trackedKeys -= keys.size();
+                }
+                evicted++;
+            }
+        }
+        evictedWindows.inc(evicted);
+    }
+
+    /**
+     * Returns the overflow key that the given conversation or host key is folded into. The overflow key keeps the
+     * exporter, interface, and tos of the given key.
+     */
+    static CompoundKey overflowKey(CompoundKey key) {
+        CompoundKeyData.Builder builder = new CompoundKeyData.Builder(key.getData());
+        builder.location = IpAddr.OVERFLOW_TEXT;
+        builder.protocol = null;
+        builder.address = IpAddr.OVERFLOW;
+        builder.largerAddress = IpAddr.OVERFLOW;
+        builder.application = IpAddr.OVERFLOW_TEXT;
+        return new CompoundKey(key.type, builder.build());
+    }
+
+    public static boolean isOverflowKey(CompoundKey key) {
+        IpAddr address = key.getData().address;
+        return address != null && address.isOverflow();
+    }
+}
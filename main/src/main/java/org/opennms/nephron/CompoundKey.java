@@ -28,18 +28,30 @@
 
 package org.opennms.nephron;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
-import org.apache.beam.sdk.coders.AtomicCoder;
-import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CustomCoder;
 import org.apache.beam.sdk.coders.DefaultCoder;
-import org.apache.beam.sdk.coders.NullableCoder;
-import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.util.VarInt;
+import org.opennms.nephron.coders.DictionaryStringCoder;
+import org.opennms.nephron.coders.StringDictionary;
 import org.opennms.nephron.cortex.TimeSeriesBuilder;
 import org.opennms.nephron.elastic.FlowSummary;
 
+import com.google.common.io.ByteStreams;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
 /**
  * Represents a compound key.
  *
@@ -50,12 +62,34 @@ import org.opennms.nephron.elastic.FlowSummary;
  * of the {@code CompoundKeyData} class can be shared between different compound key instances because the equality check
  * and hashCode calculation does only consider the fields that correspond to the dimension that are used in the
  * referencing key.
+ *
+ * Equality and hashing are based on the packed representation of a key: a byte array that contains the ordinal of the
+ * key type followed by the encoded fields of the dimensions of that type. The packed representation and its 64 bit
+ * hash are calculated once per key and do not depend on a string dictionary. Keys are encoded by writing their packed
+ * representation; decoded keys unpack their data only when it is accessed. Coders with a string dictionary encode the
+ * fields of keys instead (cf. {@link CompoundKeyCoder}).
+ *
+ * Keys are ordered by their type and then by the fields of the dimensions of their type. Comparisons do not render
+ * strings; grouped-by strings are only rendered at output time.
  */
 @DefaultCoder(CompoundKey.CompoundKeyCoder.class)
-public class CompoundKey {
+public class CompoundKey implements Comparable<CompoundKey> {
+
+    private static final CompoundKeyType[] TYPES = CompoundKeyType.values();
+
+    private static final ThreadLocal<ByteArrayOutputStream> PACK_BUFFER = ThreadLocal.withInitial(ByteArrayOutputStream::new);
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
 
     public final CompoundKeyType type;
-    public final CompoundKeyData data;
+
+    // at least one of data and packed is set; the other one is derived lazily
+    private CompoundKeyData data;
+    private byte[] packed;
+    private long hash;
+    private boolean hashed;
 
     /**
      * Constructs a CompoundKey.
@@ -65,10 +99,68 @@ public class CompoundKey {
         this.data = data;
     }
 
+    private CompoundKey(byte[] packed) {
+        this.type = TYPES[packed[0]];
+        this.packed = packed;
+    }
+
     public CompoundKeyType getType() {
         return type;
     }
 
+    public CompoundKeyData getData() {
+        if (data == null) {
+            try {
+                ByteArrayInputStream is = new ByteArrayInputStream(packed, 1, packed.length - 1);
+                data = type.decode(is);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Returns the packed representation of this key. The returned array must not be modified.
+     */
+    byte[] packed() {
+        if (packed == null) {
+            ByteArrayOutputStream os = PACK_BUFFER.get();
+            os.reset();
+            os.write(type.ordinal());
+            try {
+                type.encode(data, os);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            packed = os.toByteArray();
+        }
+        return packed;
+    }
+
+    /**
+     * Returns a 64 bit hash of the packed representation of this key.
+     */
+    public long hash64() {
+        if (!hashed) {
+            hash = hash(packed());
+            hashed = true;
+        }
+        return hash;
+    }
+
+    static long hash(byte[] bytes) {
+        long h = bytes.length * GOLDEN_RATIO;
+        int i = 0;
+        for (; i + Long.BYTES <= bytes.length; i += Long.BYTES) {
+            h = (h ^ HashCommon.mix((long) LONGS.get(bytes, i))) * GOLDEN_RATIO;
+        }
+        for (; i < bytes.length; i++) {
+            h = (h ^ bytes[i]) * GOLDEN_RATIO;
+        }
+        return HashCommon.mix(h);
+    }
+
     /**
      * Build the parent, or "outer" key for the current key.
      *
@@ -85,19 +177,19 @@ public class CompoundKey {
      * that are required by the target type.
      */
     public CompoundKey cast(CompoundKeyType targetType) {
-        return new CompoundKey(targetType, data);
+        return new CompoundKey(targetType, getData());
     }
 
     public String groupedByKey() {
-        return type.groupedByKey(data);
+        return type.groupedByKey(getData());
     }
 
     public void populate(FlowSummary flow) {
-        type.populate(data, flow);
+        type.populate(getData(), flow);
     }
 
     public void populate(TimeSeriesBuilder builder) {
-        type.populate(data, builder);
+        type.populate(getData(), builder);
     }
 
     /**
@@ -110,7 +202,7 @@ public class CompoundKey {
     public boolean isCompleteConversationKey() {
         RefType[] parts = type.getParts();
         int l = parts.length;
-        return parts[l - 1].isCompleteConversationRef(data);
+        return parts[l - 1].isCompleteConversationRef(getData());
     }
 
     @Override
@@ -122,27 +214,28 @@ public class CompoundKey {
             return false;
         }
         CompoundKey that = (CompoundKey) o;
-        if (type != that.type) {
+        if (type != that.type || hash64() != that.hash64()) {
             return false;
         }
-        // only the part of the data is considered that is related to one of the RefTypes of this key
-        for (RefType refType: type.getParts()) {
-            if (!refType.equals(data, that.data)) {
-                return false;
-            }
-        }
-        return true;
+        // the packed representation contains only the part of the data that is related to one of the RefTypes of this key
+        return Arrays.equals(packed(), that.packed());
     }
 
     @Override
     public int hashCode() {
-        int hash = 17;
-        hash = hash * 31 + type.hashCode();
-        // only the part of the data is considered that is related to one of the RefTypes of this key
-        for (RefType refType: type.getParts()) {
-            hash = hash * 31 + refType.hashCode(data);
+        long h = hash64();
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public int compareTo(CompoundKey o) {
+        if (this == o) {
+            return 0;
         }
-        return hash;
+        if (type != o.type) {
+            return Integer.compare(type.ordinal(), o.type.ordinal());
+        }
+        return type.compare(getData(), o.getData());
     }
 
     @Override
@@ -151,22 +244,59 @@ public class CompoundKey {
     }
 
     public String asString() {
-        return type.groupedByKey(data);
+        return type.groupedByKey(getData());
     }
 
-    private final static Coder<Integer> INT_CODER = NullableCoder.of(VarIntCoder.of());
+    /**
+     * Encodes keys by their packed representation. If a string dictionary is given then keys are encoded by their type
+     * and fields instead and strings of their fields are encoded by the dictionary. Packed representations and
+     * therefore the equality of keys do not depend on the dictionary.
+     */
+    public static class CompoundKeyCoder extends CustomCoder<CompoundKey> {
+        private final DictionaryStringCoder strings;
+
+        public CompoundKeyCoder() {
+            this(StringDictionary.EMPTY);
+        }
+
+        public CompoundKeyCoder(StringDictionary dictionary) {
+            this.strings = DictionaryStringCoder.of(dictionary);
+        }
+
+        private boolean isPacked() {
+            return strings.getDictionary().size() == 0;
+        }
 
-    public static class CompoundKeyCoder extends AtomicCoder<CompoundKey> {
         @Override
         public void encode(CompoundKey value, OutputStream outStream) throws IOException {
-            INT_CODER.encode(value.getType().ordinal(), outStream);
-            value.type.encode(value.data, outStream);
+            if (isPacked()) {
+                byte[] packed = value.packed();
+                VarInt.encode(packed.length, outStream);
+                outStream.write(packed);
+            } else {
+                outStream.write(value.type.ordinal());
+                value.type.encode(value.getData(), outStream, strings);
+            }
         }
 
         @Override
         public CompoundKey decode(InputStream inStream) throws IOException {
-            CompoundKeyType type = CompoundKeyType.values()[INT_CODER.decode(inStream)];
-            return type.decode(inStream);
+            if (isPacked()) {
+                byte[] packed = new byte[VarInt.decodeInt(inStream)];
+                ByteStreams.readFully(inStream, packed);
+                return new CompoundKey(packed);
+            } else {
+                int ordinal = inStream.read();
+                if (ordinal < 0) {
+                    throw new EOFException();
+                }
+                CompoundKeyType type = TYPES[ordinal];
+                return new CompoundKey(type, type.decode(inStream, strings));
+            }
+        }
+
+        @Override
+        public void verifyDeterministic() {
         }
 
         @Override
@@ -174,5 +304,29 @@ public class CompoundKey {
             return true;
         }
 
+        @Override
+        public boolean isRegisterByteSizeObserverCheap(CompoundKey value) {
+            return isPacked();
+        }
+
+        @Override
+        protected long getEncodedElementByteSize(CompoundKey value) throws Exception {
+            if (isPacked()) {
+                int length = value.packed().length;
+                return VarInt.getLength(length) + length;
+            } else {
+                return super.getEncodedElementByteSize(value);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CompoundKeyCoder && ((CompoundKeyCoder) o).strings.equals(strings);
+        }
+
+        @Override
+        public int hashCode() {
+            return strings.hashCode();
+        }
     }
 }
@@ -28,15 +28,13 @@
 
 package org.opennms.nephron;
 
-import com.google.gson.Gson;
+import org.opennms.nephron.network.IpAddr;
 
 /**
  * Contains fields for all possible kinds of {@link CompoundKeyType}s.
  */
 public class CompoundKeyData {
 
-    private static Gson GSON = new Gson();
-
     public final String foreignSource;
     public final String foreignId;
     public final int nodeId;
@@ -47,11 +45,11 @@ public class CompoundKeyData {
 
     public final String application;
 
-    public final String address;
+    public final IpAddr address;
 
     public final String location;
     public final Integer protocol;
-    public final String largerAddress;
+    public final IpAddr largerAddress;
 
     public CompoundKeyData(Builder builder) {
         this.foreignSource = builder.foreignSource;
@@ -67,19 +65,32 @@ public class CompoundKeyData {
     }
 
     public String getConversationKey() {
-        StringBuilder sb = new StringBuilder();
-        sb.append('[')
-                .append(GSON.toJson(location))
-                .append(',')
-                .append(protocol)
-                .append(',')
-                .append(GSON.toJson(address))
-                .append(',')
-                .append(GSON.toJson(largerAddress))
-                .append(',')
-                .append(GSON.toJson(application))
-                .append(']');
-        return sb.toString();
+        return KeyRenderer.get().conversationKey(this);
+    }
+
+    /**
+     * Appends the conversation key, i.e. a JSON array of the location, the protocol, the addresses, and the
+     * application.
+     */
+    void appendConversationKey(StringBuilder sb) {
+        sb.append('[');
+        KeyRenderer.appendJsonString(location, sb);
+        sb.append(',').append(protocol).append(',');
+        appendJsonAddress(address, sb);
+        sb.append(',');
+        appendJsonAddress(largerAddress, sb);
+        sb.append(',');
+        KeyRenderer.appendJsonString(application, sb);
+        sb.append(']');
+    }
+
+    private static void appendJsonAddress(IpAddr address, StringBuilder sb) {
+        if (address == null) {
+            sb.append("null");
+        } else {
+            // textual addresses contain no characters that need to be escaped
+            address.appendTo(sb.append('"')).append('"');
+        }
     }
 
     public static class Builder {
@@ -93,11 +104,11 @@ public class CompoundKeyData {
 
         public String application;
 
-        public String address;
+        public IpAddr address;
 
         public String location;
         public Integer protocol;
-        public String largerAddress;
+        public IpAddr largerAddress;
 
         public Builder() {}
 
@@ -114,7 +125,7 @@ public class CompoundKeyData {
             this.largerAddress = data.largerAddress;
         }
 
-        public Builder withAddress(String address) {
+        public Builder withAddress(IpAddr address) {
             this.address = address;
             return this;
         }
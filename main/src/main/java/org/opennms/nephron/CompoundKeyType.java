@@ -38,11 +38,18 @@ import static org.opennms.nephron.RefType.INTERFACE_PART;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.Function;
 
 import org.apache.beam.repackaged.core.org.apache.commons.lang3.ArrayUtils;
+import org.apache.beam.sdk.coders.Coder;
+import org.opennms.nephron.coders.DictionaryStringCoder;
 import org.opennms.nephron.cortex.TimeSeriesBuilder;
 import org.opennms.nephron.elastic.FlowSummary;
-import org.opennms.netmgt.flows.persistence.model.FlowDocument;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
 
 /**
  * Describes compound keys.
@@ -67,6 +74,8 @@ public enum CompoundKeyType {
     EXPORTER_INTERFACE_TOS_CONVERSATION(false, EXPORTER_INTERFACE_TOS, CONVERSATION_PART),
     EXPORTER_INTERFACE_TOS_HOST(false, EXPORTER_INTERFACE_TOS, HOST_PART);
 
+    private static final Splitter.MapSplitter SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator(':');
+
     private final boolean totalNotTopK;
     private final CompoundKeyType parent;
     private final RefType[] parts;
@@ -89,21 +98,55 @@ public enum CompoundKeyType {
         return parts;
     }
 
-    CompoundKey decode(InputStream is) throws IOException {
+    /**
+     * Parses integer values per type given in the form {@code <compound key type>:<value>,...}.
+     */
+    public static Map<CompoundKeyType, Integer> parseIntegers(String values) {
+        return parse(values, Integer::parseInt);
+    }
+
+    /**
+     * Parses long values per type given in the form {@code <compound key type>:<value>,...}.
+     */
+    public static Map<CompoundKeyType, Long> parseLongs(String values) {
+        return parse(values, Long::parseLong);
+    }
+
+    private static <T> Map<CompoundKeyType, T> parse(String values, Function<String, T> parseValue) {
+        Map<CompoundKeyType, T> res = new EnumMap<>(CompoundKeyType.class);
+        if (!Strings.isNullOrEmpty(values)) {
+            SPLITTER.split(values).forEach((type, value) -> res.put(CompoundKeyType.valueOf(type.trim()), parseValue.apply(value.trim())));
+        }
+        return res;
+    }
+
+    CompoundKeyData decode(InputStream is) throws IOException {
+        return decode(is, DictionaryStringCoder.of());
+    }
+
+    CompoundKeyData decode(InputStream is, Coder<String> strings) throws IOException {
         CompoundKeyData.Builder builder = new CompoundKeyData.Builder();
         for (RefType refType: parts) {
-            refType.decode(builder, is);
+            refType.decode(builder, is, strings);
         }
-        return new CompoundKey(this, builder.build());
+        return builder.build();
     }
 
+    /**
+     * Encodes the fields of the dimensions of this type. Strings are encoded in full, i.e. the encoding does not depend
+     * on a string dictionary.
+     */
     void encode(CompoundKeyData data, OutputStream os) throws IOException {
+        encode(data, os, DictionaryStringCoder.of());
+    }
+
+    void encode(CompoundKeyData data, OutputStream os, Coder<String> strings) throws IOException {
         for (RefType refType: parts) {
-            refType.encode(data, os);
+            refType.encode(data, os, strings);
         }
     }
 
-    public CompoundKey create(FlowDocument flow) throws MissingFieldsException {
+    public CompoundKey create(Flow flow) throws MissingFieldsException {
         CompoundKeyData.Builder builder = new CompoundKeyData.Builder();
         for (RefType refType: parts) {
             refType.create(builder, flow);
@@ -162,12 +205,24 @@ public enum CompoundKeyType {
     }
 
     String groupedByKey(CompoundKeyData data) {
-        StringBuilder sb = new StringBuilder();
+        return KeyRenderer.get().groupedByKey(this, data);
+    }
+
+    void appendGroupedByKey(CompoundKeyData data, StringBuilder sb) {
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) sb.append('-');
+            parts[i].groupedByKey(data, sb);
+        }
+    }
+
+    int compare(CompoundKeyData d1, CompoundKeyData d2) {
         for (RefType refType: parts) {
-            if (sb.length() > 0) sb.append('-');
-            refType.groupedByKey(data, sb);
+            int c = refType.compare(d1, d2);
+            if (c != 0) {
+                return c;
+            }
         }
-        return sb.toString();
+        return 0;
     }
 
 }
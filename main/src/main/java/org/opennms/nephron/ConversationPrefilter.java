@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.TupleTag;
+import org.joda.time.Instant;
+
+/**
+ * Sums conversations within bundles and forwards only the largest conversations of each interface and tos as
+ * candidates for the topK calculation of conversations.
+ *
+ * The threshold for candidates is determined per bundle, window, and interface/tos: it is the sum of the n-th largest
+ * conversation. Conversations below that threshold are not forwarded. Instead, they are projected into application
+ * and host aggregates that are rolled up within the bundle and output into the {@link #BY_APP} and {@link #BY_HOST}
+ * outputs. Therefore applications, hosts, and all totals remain exact. The sums of conversations may miss the bytes of
+ * bundles in which they were below the threshold. That error is limited by always forwarding the conversations that
+ * were recently forwarded by the same instance.
+ */
+public class ConversationPrefilter extends DoFn<KV<CompoundKey, Aggregate>, KV<CompoundKey, Aggregate>> {
+
+    public static final TupleTag<KV<CompoundKey, Aggregate>> CANDIDATES = new TupleTag<KV<CompoundKey, Aggregate>>(){};
+    public static final TupleTag<KV<CompoundKey, Aggregate>> BY_APP = new TupleTag<KV<CompoundKey, Aggregate>>(){};
+    public static final TupleTag<KV<CompoundKey, Aggregate>> BY_HOST = new TupleTag<KV<CompoundKey, Aggregate>>(){};
+
+    private static final SumAggregates SUM = new SumAggregates();
+
+    private static final Comparator<Map.Entry<CompoundKey, Sum>> BY_BYTES_DESCENDING =
+            Comparator.comparingLong((Map.Entry<CompoundKey, Sum> e) -> e.getValue().acc.getBytes()).reversed();
+
+    // bounds the number of conversations that are remembered as recently forwarded
+    static final int MAX_RECENT_CANDIDATES = 100_000;
+
+    private final Counter candidates = Metrics.counter("flows", "conv_prefilter_candidates");
+    private final Counter rolledUp = Metrics.counter("flows", "conv_prefilter_rolled_up");
+
+    private final int candidatesPerKey;
+
+    private transient Map<BoundedWindow, Map<CompoundKey, Sum>> sums;
+    private transient Map<CompoundKey, Boolean> recentCandidates;
+
+    private static class Sum {
+        private final SumAggregates.Accumulator acc = SUM.createAccumulator();
+        // the earliest timestamp of the summed elements; used as the timestamp of the output
+        private Instant timestamp;
+
+        private void add(Aggregate aggregate, Instant timestamp) {
+            SUM.addInput(acc, aggregate);
+            if (this.timestamp == null || timestamp.isBefore(this.timestamp)) {
+                this.timestamp = timestamp;
+            }
+        }
+    }
+
+    /**
+     * @param candidatesPerKey the number of conversations per interface and tos that are forwarded in each bundle
+     */
+    public ConversationPrefilter(int candidatesPerKey) {
+        this.candidatesPerKey = candidatesPerKey;
+    }
+
+    @Setup
+    public void setup() {
+        recentCandidates = new LinkedHashMap<CompoundKey, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CompoundKey, Boolean> eldest) {
+                return size() > MAX_RECENT_CANDIDATES;
+            }
+        };
+    }
+
+    @StartBundle
+    public void startBundle() {
+        sums = new HashMap<>();
+    }
+
+    @ProcessElement
+    public void processElement(@Element KV<CompoundKey, Aggregate> kv, @Timestamp Instant timestamp, BoundedWindow window) {
+        sums.computeIfAbsent(window, w -> new HashMap<>())
+                .computeIfAbsent(kv.getKey(), k -> new Sum())
+                .add(kv.getValue(), timestamp);
+    }
+
+    @FinishBundle
+    public void finishBundle(FinishBundleContext c) {
+        long forwarded = 0;
+        long notForwarded = 0;
+        for (Map.Entry<BoundedWindow, Map<CompoundKey, Sum>> windowSums : sums.entrySet()) {
+            BoundedWindow window = windowSums.getKey();
+            Map<CompoundKey, List<Map.Entry<CompoundKey, Sum>>> byOuterKey = new HashMap<>();
+            for (Map.Entry<CompoundKey, Sum> e : windowSums.getValue().entrySet()) {
+                byOuterKey.computeIfAbsent(e.getKey().getOuterKey(), k -> new ArrayList<>()).add(e);
+            }
+            Map<CompoundKey, Sum> byApp = new HashMap<>();
+            Map<CompoundKey, Sum> byHost = new HashMap<>();
+            for (List<Map.Entry<CompoundKey, Sum>> conversations : byOuterKey.values()) {
+                if (conversations.size() > candidatesPerKey) {
+                    conversations.sort(BY_BYTES_DESCENDING);
+                }
+                for (int i = 0; i < conversations.size(); i++) {
+                    CompoundKey key = conversations.get(i).getKey();
+                    Sum sum = conversations.get(i).getValue();
+                    Aggregate aggregate = SUM.extractOutput(sum.acc);
+                    if (i < candidatesPerKey || recentCandidates.containsKey(key)) {
+                        recentCandidates.put(key, Boolean.TRUE);
+                        c.output(CANDIDATES, KV.of(key, aggregate), sum.timestamp, window);
+                        forwarded++;
+                    } else {
+                        Pipeline.ProjConvWithTos.project(KV.of(key, aggregate),
+                                kv -> rollUp(byApp, kv, sum.timestamp),
+                                kv -> rollUp(byHost, kv, sum.timestamp));
+                        notForwarded++;
+                    }
+                }
+            }
+            output(c, BY_APP, byApp, window);
+            output(c, BY_HOST, byHost, window);
+        }
+        sums = null;
+        if (forwarded > 0) {
+            candidates.inc(forwarded);
+        }
+        if (notForwarded > 0) {
+            rolledUp.inc(notForwarded);
+        }
+    }
+
+    private static void rollUp(Map<CompoundKey, Sum> sums, KV<CompoundKey, Aggregate> kv, Instant timestamp) {
+        sums.computeIfAbsent(kv.getKey(), k -> new Sum()).add(kv.getValue(), timestamp);
+    }
+
+    private static void output(FinishBundleContext c, TupleTag<KV<CompoundKey, Aggregate>> tag, Map<CompoundKey, Sum> sums, BoundedWindow window) {
+        for (Map.Entry<CompoundKey, Sum> e : sums.entrySet()) {
+            c.output(tag, KV.of(e.getKey(), SUM.extractOutput(e.getValue().acc)), e.getValue().timestamp, window);
+        }
+    }
+}
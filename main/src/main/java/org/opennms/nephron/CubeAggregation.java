@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE;
+import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE_APPLICATION;
+import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE_CONVERSATION;
+import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE_HOST;
+import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE_TOS;
+import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE_TOS_APPLICATION;
+import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE_TOS_HOST;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.apache.beam.sdk.coders.AtomicCoder;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CoderRegistry;
+import org.apache.beam.sdk.coders.MapCoder;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.Values;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+
+/**
+ * Calculates all flow summaries of an exporter interface in a single combine step.
+ *
+ * Alternative to the DAG of combine and topK transforms that is built by
+ * {@link Pipeline.CalculateFlowStatistics}: conversation aggregates are keyed by their exporter interface and summed
+ * into a per window map of conversations. When a pane fires, the application, host, tos, and interface sums and all
+ * topK selections are derived locally from that map. The output consists of the same keys and aggregates as the
+ * output of the DAG.
+ *
+ * Conversation aggregates are shuffled only once. In exchange, all conversations of an exporter interface must fit
+ * into the accumulator of a single key.
+ */
+public class CubeAggregation extends PTransform<PCollection<KV<CompoundKey, Aggregate>>, PCollection<KV<CompoundKey, Aggregate>>> {
+
+    private final int topK;
+    private final HotKeyFanout hotKeyFanout;
+
+    /**
+     * @param hotKeyFanout the hot key fanout of the combine stage; may be {@code null}
+     */
+    public CubeAggregation(int topK, HotKeyFanout hotKeyFanout) {
+        this.topK = topK;
+        this.hotKeyFanout = hotKeyFanout;
+    }
+
+    @Override
+    public PCollection<KV<CompoundKey, Aggregate>> expand(PCollection<KV<CompoundKey, Aggregate>> input) {
+        Combine.PerKey<CompoundKey, KV<CompoundKey, Aggregate>, List<KV<CompoundKey, Aggregate>>> combine = Combine.perKey(new CubeFn(topK));
+        return input
+                .apply("cube_key_by_interface", ParDo.of(new DoFn<KV<CompoundKey, Aggregate>, KV<CompoundKey, KV<CompoundKey, Aggregate>>>() {
+                    @ProcessElement
+                    public void processElement(@Element KV<CompoundKey, Aggregate> el, OutputReceiver<KV<CompoundKey, KV<CompoundKey, Aggregate>>> out) {
+                        out.output(KV.of(el.getKey().cast(EXPORTER_INTERFACE), el));
+                    }
+                }))
+                .apply("cube_combine", hotKeyFanout != null ? combine.withHotKeyFanout(hotKeyFanout.forStage("cube")) : combine)
+                .apply("cube_values", Values.create())
+                .apply("cube_flatten", ParDo.of(new DoFn<List<KV<CompoundKey, Aggregate>>, KV<CompoundKey, Aggregate>>() {
+                    @ProcessElement
+                    public void processElement(@Element List<KV<CompoundKey, Aggregate>> summaries, OutputReceiver<KV<CompoundKey, Aggregate>> out) {
+                        for (KV<CompoundKey, Aggregate> summary : summaries) {
+                            out.output(summary);
+                        }
+                    }
+                }));
+    }
+
+    /**
+     * Accumulates the sums of keys with tos of an exporter interface, e.g. its conversations.
+     */
+    public static class Cube {
+        final Map<CompoundKey, SumAggregates.Accumulator> sums;
+
+        public Cube() {
+            this(new HashMap<>());
+        }
+
+        private Cube(Map<CompoundKey, SumAggregates.Accumulator> sums) {
+            this.sums = sums;
+        }
+    }
+
+    public static class CubeFn extends Combine.CombineFn<KV<CompoundKey, Aggregate>, Cube, List<KV<CompoundKey, Aggregate>>> {
+
+        private static final SumAggregates SUM = new SumAggregates();
+
+        private final int topK;
+
+        public CubeFn(int topK) {
+            this.topK = topK;
+        }
+
+        @Override
+        public Cube createAccumulator() {
+            return new Cube();
+        }
+
+        @Override
+        public Cube addInput(Cube cube, KV<CompoundKey, Aggregate> input) {
+            SUM.addInput(cube.sums.computeIfAbsent(input.getKey(), k -> SUM.createAccumulator()), input.getValue());
+            return cube;
+        }
+
+        @Override
+        public Cube mergeAccumulators(Iterable<Cube> cubes) {
+            Cube res = null;
+            for (Cube cube : cubes) {
+                if (res == null) {
+                    res = cube;
+                } else {
+                    Map<CompoundKey, SumAggregates.Accumulator> target = res.sums;
+                    cube.sums.forEach((key, acc) -> {
+                        SumAggregates.Accumulator existing = target.putIfAbsent(key, acc);
+                        if (existing != null) {
+                            SumAggregates.mergeInto(existing, acc);
+                        }
+                    });
+                }
+            }
+            return res != null ? res : createAccumulator();
+        }
+
+        @Override
+        public List<KV<CompoundKey, Aggregate>> extractOutput(Cube cube) {
+            Map<CompoundKey, Aggregate> conv = extract(cube.sums);
+
+            // project conversations into applications and hosts (cf. Pipeline.ProjConvWithTos)
+            Map<CompoundKey, SumAggregates.Accumulator> appAccs = new HashMap<>();
+            Map<CompoundKey, SumAggregates.Accumulator> hostAccs = new HashMap<>();
+            conv.forEach((key, a) -> {
+                add(appAccs, key.cast(EXPORTER_INTERFACE_TOS_APPLICATION), a.withHostname(null));
+                add(hostAccs, key.cast(EXPORTER_INTERFACE_TOS_HOST), a.withHostname(a.getHostname()));
+                CompoundKey hostKey2 = new CompoundKey(
+                        EXPORTER_INTERFACE_TOS_HOST,
+                        new CompoundKeyData.Builder(key.getData()).withAddress(key.getData().largerAddress).build()
+                );
+                add(hostAccs, hostKey2, a.withHostname(a.getHostname2()));
+            });
+            Map<CompoundKey, Aggregate> app = extract(appAccs);
+            Map<CompoundKey, Aggregate> host = extract(hostAccs);
+
+            Map<CompoundKey, Aggregate> convWithoutTos = sumBy(conv, EXPORTER_INTERFACE_CONVERSATION);
+            Map<CompoundKey, Aggregate> appWithoutTos = sumBy(app, EXPORTER_INTERFACE_APPLICATION);
+            Map<CompoundKey, Aggregate> hostWithoutTos = sumBy(host, EXPORTER_INTERFACE_HOST);
+
+            // the parent totals are derived from the applications (cf. Pipeline.aggregateParentTotal)
+            Map<CompoundKey, Aggregate> tos = sumBy(app, EXPORTER_INTERFACE_TOS);
+            Map<CompoundKey, Aggregate> itf = sumBy(tos, EXPORTER_INTERFACE);
+
+            List<KV<CompoundKey, Aggregate>> res = new ArrayList<>();
+            itf.forEach((k, v) -> res.add(KV.of(k, v)));
+            tos.forEach((k, v) -> res.add(KV.of(k, v)));
+            addTopK(res, app, topK, k -> true);
+            addTopK(res, appWithoutTos, topK, k -> true);
+            addTopK(res, host, topK, k -> true);
+            addTopK(res, hostWithoutTos, topK, k -> true);
+            addTopK(res, conv, topK, CompoundKey::isCompleteConversationKey);
+            addTopK(res, convWithoutTos, topK, CompoundKey::isCompleteConversationKey);
+            return res;
+        }
+
+        @Override
+        public Coder<Cube> getAccumulatorCoder(CoderRegistry registry, Coder<KV<CompoundKey, Aggregate>> inputCoder) {
+            return new CubeCoder();
+        }
+
+        static void add(Map<CompoundKey, SumAggregates.Accumulator> accs, CompoundKey key, Aggregate aggregate) {
+            SUM.addInput(accs.computeIfAbsent(key, k -> SUM.createAccumulator()), aggregate);
+        }
+
+        static Map<CompoundKey, Aggregate> extract(Map<CompoundKey, SumAggregates.Accumulator> accs) {
+            Map<CompoundKey, Aggregate> res = new HashMap<>(accs.size());
+            accs.forEach((key, acc) -> res.put(key, SUM.extractOutput(acc)));
+            return res;
+        }
+
+        static Map<CompoundKey, Aggregate> sumBy(Map<CompoundKey, Aggregate> sums, CompoundKeyType type) {
+            Map<CompoundKey, SumAggregates.Accumulator> accs = new HashMap<>();
+            sums.forEach((key, a) -> add(accs, key.cast(type), a));
+            return extract(accs);
+        }
+
+        /**
+         * Adds the topK entries of the given sums for each of their outer keys (cf. Pipeline.aggregateSumAndTopK).
+         */
+        static void addTopK(List<KV<CompoundKey, Aggregate>> res, Map<CompoundKey, Aggregate> sums, int topK, Predicate<CompoundKey> includeKeyInTopK) {
+            Map<CompoundKey, List<KV<CompoundKey, Aggregate>>> byOuterKey = new HashMap<>();
+            sums.forEach((key, a) -> {
+                if (includeKeyInTopK.test(key)) {
+                    byOuterKey.computeIfAbsent(key.getOuterKey(), k -> new ArrayList<>()).add(KV.of(key, a));
+                }
+            });
+            Pipeline.FlowBytesValueComparator comparator = new Pipeline.FlowBytesValueComparator();
+            for (List<KV<CompoundKey, Aggregate>> candidates : byOuterKey.values()) {
+                candidates.sort(Collections.reverseOrder(comparator));
+                res.addAll(candidates.subList(0, Math.min(topK, candidates.size())));
+            }
+        }
+    }
+
+    public static class CubeCoder extends AtomicCoder<Cube> {
+        private static final Coder<Map<CompoundKey, SumAggregates.Accumulator>> MAP_CODER =
+                MapCoder.of(new CompoundKey.CompoundKeyCoder(), new SumAggregates.AccumulatorCoder());
+
+        @Override
+        public void encode(Cube value, OutputStream outStream) throws IOException {
+            MAP_CODER.encode(value.sums, outStream);
+        }
+
+        @Override
+        public Cube decode(InputStream inStream) throws IOException {
+            return new Cube(new HashMap<>(MAP_CODER.decode(inStream)));
+        }
+    }
+}
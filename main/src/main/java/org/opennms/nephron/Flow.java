@@ -0,0 +1,583 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.apache.beam.sdk.coders.AtomicCoder;
+import org.apache.beam.sdk.coders.ByteArrayCoder;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.DefaultCoder;
+import org.apache.beam.sdk.coders.DoubleCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.util.VarInt;
+import org.opennms.nephron.coders.IpAddrCoder;
+import org.opennms.nephron.network.IpAddr;
+import org.opennms.netmgt.flows.persistence.model.Direction;
+import org.opennms.netmgt.flows.persistence.model.FlowDocument;
+import org.opennms.netmgt.flows.persistence.model.NodeInfo;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * Compact flow record that carries the fields of a {@link FlowDocument} that are used for aggregation.
+ *
+ * Timestamps, byte counts, and codes are stored as primitives. The source and destination addresses are parsed into
+ * binary addresses and pre-ordered numerically into the "smaller" address and the larger address as required by
+ * conversation keys. Flows are converted into flow records during ingestion; all following stages operate on flow
+ * records.
+ *
+ * String fields are kept as UTF-8 encoded {@link ByteString}s that may be views on the buffer a flow record was
+ * decoded from. They are decoded lazily when their string value is accessed for the first time.
+ *
+ * Records that could not be decoded or that lack required fields are represented by "dead letter" flows. Dead letter
+ * flows carry the raw record and the reason for their rejection; all other fields have default values.
+ */
+@DefaultCoder(Flow.FlowCoder.class)
+public class Flow {
+
+    /**
+     * Indicates that an optional int value (protocol, dscp, ecn) is not present.
+     */
+    public static final int ABSENT = -1;
+
+    /**
+     * The rejection reason of flows that were dropped by the input filter.
+     */
+    public static final String FILTERED_REASON = "filtered";
+
+    /**
+     * Sentinel for records that were dropped by the input filter.
+     *
+     * Filtered records are represented as dead letters without their raw record. They are dropped during ingestion.
+     */
+    public static final Flow FILTERED = deadLetter(FILTERED_REASON, new byte[0]);
+
+    public final long numBytes;
+    public final long firstSwitched;
+    public final long deltaSwitched;
+    public final long lastSwitched;
+    // indicates that deltaSwitched was missing and has been set to firstSwitched
+    public final boolean deltaSwitchedDefaulted;
+
+    // 0 if not present
+    public final double samplingInterval;
+    // the number of flows this flow stands for after load shedding; 1 if no flows were shed
+    public final int sheddingRate;
+
+    public final boolean ingress;
+    // the input ifIndex for ingress flows and the output ifIndex for egress flows
+    public final int ifIndex;
+
+    public final boolean hasExporterNode;
+    public final int nodeId;
+
+    public final int protocol;
+    public final int dscp;
+    public final int ecn;
+
+    // indicates if the source address of the flow is the larger address
+    public final boolean srcIsLarger;
+
+    // `address` is the "smaller" address and `largerAddress` the larger one (cf. RefType.CONVERSATION_PART)
+    public final IpAddr address;
+    public final IpAddr largerAddress;
+
+    private final ByteString foreignSource;
+    private final ByteString foreignId;
+    private final ByteString location;
+    private final ByteString application;
+    // `hostname` and `hostname2` are the host names of `address` and `largerAddress`
+    private final ByteString hostname;
+    private final ByteString hostname2;
+
+    // the rejection reason and the raw record of dead letters; null for regular flows
+    private final String deadLetterReason;
+    private final byte[] deadLetterRecord;
+
+    // lazily decoded string values; racy initialization is fine because strings are immutable
+    private String foreignSourceString;
+    private String foreignIdString;
+    private String locationString;
+    private String applicationString;
+    private String hostnameString;
+    private String hostname2String;
+
+    private Flow(long numBytes, long firstSwitched, long deltaSwitched, long lastSwitched, boolean deltaSwitchedDefaulted,
+                 double samplingInterval, int sheddingRate, boolean ingress, int ifIndex, boolean hasExporterNode, int nodeId,
+                 int protocol, int dscp, int ecn, boolean srcIsLarger,
+                 ByteString foreignSource, ByteString foreignId, ByteString location, ByteString application,
+                 IpAddr address, IpAddr largerAddress, ByteString hostname, ByteString hostname2,
+                 String deadLetterReason, byte[] deadLetterRecord) {
+        this.numBytes = numBytes;
+        this.firstSwitched = firstSwitched;
+        this.deltaSwitched = deltaSwitched;
+        this.lastSwitched = lastSwitched;
+        this.deltaSwitchedDefaulted = deltaSwitchedDefaulted;
+        this.samplingInterval = samplingInterval;
+        this.sheddingRate = sheddingRate;
+        this.ingress = ingress;
+        this.ifIndex = ifIndex;
+        this.hasExporterNode = hasExporterNode;
+        this.nodeId = nodeId;
+        this.protocol = protocol;
+        this.dscp = dscp;
+        this.ecn = ecn;
+        this.srcIsLarger = srcIsLarger;
+        this.foreignSource = foreignSource;
+        this.foreignId = foreignId;
+        this.location = location;
+        this.application = application;
+        this.address = address;
+        this.largerAddress = largerAddress;
+        this.hostname = hostname;
+        this.hostname2 = hostname2;
+        this.deadLetterReason = deadLetterReason;
+        this.deadLetterRecord = deadLetterRecord;
+    }
+
+    public static Flow of(FlowDocument flow) {
+        Builder builder = new Builder();
+        builder.numBytes = flow.getNumBytes().getValue();
+        builder.firstSwitched = flow.getFirstSwitched().getValue();
+        builder.hasDeltaSwitched = flow.hasDeltaSwitched();
+        builder.deltaSwitched = flow.getDeltaSwitched().getValue();
+        builder.lastSwitched = flow.getLastSwitched().getValue();
+        builder.samplingInterval = flow.getSamplingInterval().getValue();
+        builder.ingress = Direction.INGRESS.equals(flow.getDirection());
+        builder.inputIfIndex = flow.getInputSnmpIfindex().getValue();
+        builder.outputIfIndex = flow.getOutputSnmpIfindex().getValue();
+        if (flow.hasExporterNode()) {
+            NodeInfo exporterNode = flow.getExporterNode();
+            builder.hasExporterNode = true;
+            builder.nodeId = exporterNode.getNodeId();
+            builder.foreignSource = exporterNode.getForeignSourceBytes();
+            builder.foreignId = exporterNode.getForeginIdBytes();
+        }
+        builder.location = flow.getLocationBytes();
+        builder.application = flow.getApplicationBytes();
+        builder.protocol = flow.hasProtocol() ? flow.getProtocol().getValue() : ABSENT;
+        builder.dscp = flow.hasDscp() ? flow.getDscp().getValue() : ABSENT;
+        builder.ecn = flow.hasEcn() ? flow.getEcn().getValue() : ABSENT;
+        builder.srcAddress = flow.getSrcAddressBytes();
+        builder.dstAddress = flow.getDstAddressBytes();
+        builder.srcHostname = flow.getSrcHostnameBytes();
+        builder.dstHostname = flow.getDstHostnameBytes();
+        return builder.build();
+    }
+
+    /**
+     * Creates a dead letter flow for a record that was rejected during ingestion.
+     *
+     * @param reason a short, low cardinality identifier of the reason for the rejection
+     * @param record the raw record
+     */
+    public static Flow deadLetter(String reason, byte[] record) {
+        return new Flow(0, 0, 0, 0, false, 0, 1, true, 0, false, 0, ABSENT, ABSENT, ABSENT, false,
+                ByteString.EMPTY, ByteString.EMPTY, ByteString.EMPTY, ByteString.EMPTY,
+                IpAddr.ABSENT, IpAddr.ABSENT, ByteString.EMPTY, ByteString.EMPTY,
+                Objects.requireNonNull(reason), Objects.requireNonNull(record));
+    }
+
+    /**
+     * Returns a copy of this flow that stands for the given number of flows.
+     *
+     * Used by load shedding: a flow that was kept while {@code sheddingRate - 1} similar flows were dropped carries
+     * the shedding rate such that its bytes can be extrapolated.
+     */
+    public Flow withSheddingRate(int sheddingRate) {
+        return new Flow(numBytes, firstSwitched, deltaSwitched, lastSwitched, deltaSwitchedDefaulted,
+                samplingInterval, sheddingRate, ingress, ifIndex, hasExporterNode, nodeId,
+                protocol, dscp, ecn, srcIsLarger,
+                foreignSource, foreignId, location, application,
+                address, largerAddress, hostname, hostname2,
+                deadLetterReason, deadLetterRecord);
+    }
+
+    /**
+     * Returns a well mixed hash of the exporter, the interface, the conversation, and the start of this flow.
+     *
+     * The hash is deterministic, i.e. the same flow yields the same hash when it is processed again.
+     */
+    public int sheddingHash() {
+        int h = nodeId;
+        h = 31 * h + ifIndex;
+        h = 31 * h + address.hashCode();
+        h = 31 * h + largerAddress.hashCode();
+        h = 31 * h + Long.hashCode(firstSwitched);
+        h = 31 * h + Long.hashCode(lastSwitched);
+        // finalization step of murmur3
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public boolean isDeadLetter() {
+        return deadLetterReason != null;
+    }
+
+    public boolean isFiltered() {
+        return FILTERED_REASON.equals(deadLetterReason);
+    }
+
+    /**
+     * Returns the reason why this flow was rejected or {@code null} if this flow is not a dead letter.
+     */
+    public String getDeadLetterReason() {
+        return deadLetterReason;
+    }
+
+    /**
+     * Returns the raw record of a dead letter or {@code null} if this flow is not a dead letter.
+     */
+    public byte[] getDeadLetterRecord() {
+        return deadLetterRecord;
+    }
+
+    public String getForeignSource() {
+        String s = foreignSourceString;
+        return s != null ? s : (foreignSourceString = foreignSource.toStringUtf8());
+    }
+
+    public String getForeignId() {
+        String s = foreignIdString;
+        return s != null ? s : (foreignIdString = foreignId.toStringUtf8());
+    }
+
+    public String getLocation() {
+        String s = locationString;
+        return s != null ? s : (locationString = location.toStringUtf8());
+    }
+
+    public String getApplication() {
+        String s = applicationString;
+        return s != null ? s : (applicationString = application.toStringUtf8());
+    }
+
+    /**
+     * Renders the "smaller" address of the source and destination address.
+     */
+    public String getAddress() {
+        return address.toString();
+    }
+
+    /**
+     * Renders the larger address of the source and destination address.
+     */
+    public String getLargerAddress() {
+        return largerAddress.toString();
+    }
+
+    /**
+     * Returns the host name of the "smaller" address.
+     */
+    public String getHostname() {
+        String s = hostnameString;
+        return s != null ? s : (hostnameString = hostname.toStringUtf8());
+    }
+
+    /**
+     * Returns the host name of the larger address.
+     */
+    public String getHostname2() {
+        String s = hostname2String;
+        return s != null ? s : (hostname2String = hostname2.toStringUtf8());
+    }
+
+    public String getSrcAddress() {
+        return getSrcIpAddr().toString();
+    }
+
+    public String getDstAddress() {
+        return getDstIpAddr().toString();
+    }
+
+    public IpAddr getSrcIpAddr() {
+        return srcIsLarger ? largerAddress : address;
+    }
+
+    public IpAddr getDstIpAddr() {
+        return srcIsLarger ? address : largerAddress;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Flow)) return false;
+        Flow flow = (Flow) o;
+        return numBytes == flow.numBytes &&
+               firstSwitched == flow.firstSwitched &&
+               deltaSwitched == flow.deltaSwitched &&
+               lastSwitched == flow.lastSwitched &&
+               deltaSwitchedDefaulted == flow.deltaSwitchedDefaulted &&
+               Double.compare(flow.samplingInterval, samplingInterval) == 0 &&
+               sheddingRate == flow.sheddingRate &&
+               ingress == flow.ingress &&
+               ifIndex == flow.ifIndex &&
+               hasExporterNode == flow.hasExporterNode &&
+               nodeId == flow.nodeId &&
+               protocol == flow.protocol &&
+               dscp == flow.dscp &&
+               ecn == flow.ecn &&
+               srcIsLarger == flow.srcIsLarger &&
+               Objects.equals(foreignSource, flow.foreignSource) &&
+               Objects.equals(foreignId, flow.foreignId) &&
+               Objects.equals(location, flow.location) &&
+               Objects.equals(application, flow.application) &&
+               Objects.equals(address, flow.address) &&
+               Objects.equals(largerAddress, flow.largerAddress) &&
+               Objects.equals(hostname, flow.hostname) &&
+               Objects.equals(hostname2, flow.hostname2) &&
+               Objects.equals(deadLetterReason, flow.deadLetterReason) &&
+               Arrays.equals(deadLetterRecord, flow.deadLetterRecord);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(numBytes, firstSwitched, deltaSwitched, lastSwitched, nodeId, ifIndex, address, largerAddress, application);
+    }
+
+    @Override
+    public String toString() {
+        if (isDeadLetter()) {
+            return "Flow{" +
+                   "deadLetterReason='" + deadLetterReason + '\'' +
+                   ", deadLetterRecordLength=" + deadLetterRecord.length +
+                   '}';
+        }
+        return "Flow{" +
+               "numBytes=" + numBytes +
+               ", firstSwitched=" + firstSwitched +
+               ", deltaSwitched=" + deltaSwitched +
+               ", lastSwitched=" + lastSwitched +
+               ", samplingInterval=" + samplingInterval +
+               ", sheddingRate=" + sheddingRate +
+               ", ingress=" + ingress +
+               ", ifIndex=" + ifIndex +
+               ", nodeId=" + nodeId +
+               ", foreignSource='" + getForeignSource() + '\'' +
+               ", foreignId='" + getForeignId() + '\'' +
+               ", location='" + getLocation() + '\'' +
+               ", application='" + getApplication() + '\'' +
+               ", protocol=" + protocol +
+               ", dscp=" + dscp +
+               ", ecn=" + ecn +
+               ", address='" + getAddress() + '\'' +
+               ", largerAddress='" + getLargerAddress() + '\'' +
+               '}';
+    }
+
+    /**
+     * Collects flow fields in the shape of flow documents.
+     *
+     * The builder selects the ifIndex that corresponds to the direction of the flow and parses and orders its
+     * addresses. Empty addresses are {@link IpAddr#ABSENT absent}; addresses that can not be parsed are rejected (cf.
+     * {@link IpAddr#parseStrict(ByteString)}). If deltaSwitched is missing then it is set to firstSwitched.
+     */
+    public static class Builder {
+        public long numBytes;
+        public long firstSwitched;
+        public long deltaSwitched;
+        public long lastSwitched;
+        public boolean hasDeltaSwitched;
+
+        public double samplingInterval;
+
+        public boolean ingress = true;
+        public int inputIfIndex;
+        public int outputIfIndex;
+
+        public boolean hasExporterNode;
+        public int nodeId;
+        public ByteString foreignSource = ByteString.EMPTY;
+        public ByteString foreignId = ByteString.EMPTY;
+
+        public ByteString location = ByteString.EMPTY;
+        public ByteString application = ByteString.EMPTY;
+
+        public int protocol = ABSENT;
+        public int dscp = ABSENT;
+        public int ecn = ABSENT;
+
+        public ByteString srcAddress = ByteString.EMPTY;
+        public ByteString dstAddress = ByteString.EMPTY;
+        public ByteString srcHostname = ByteString.EMPTY;
+        public ByteString dstHostname = ByteString.EMPTY;
+
+        public Flow build() {
+            IpAddr src = IpAddr.parseStrict(srcAddress);
+            IpAddr dst = IpAddr.parseStrict(dstAddress);
+            boolean srcIsLarger = src.compareTo(dst) >= 0;
+            // deltaSwitched was observed to be missing for some exporters
+            return new Flow(numBytes, firstSwitched, hasDeltaSwitched ? deltaSwitched : firstSwitched, lastSwitched,
+                    !hasDeltaSwitched, samplingInterval, 1,
+                    ingress, ingress ? inputIfIndex : outputIfIndex, hasExporterNode, nodeId,
+                    protocol, dscp, ecn, srcIsLarger,
+                    foreignSource, foreignId, location, application,
+                    srcIsLarger ? dst : src,
+                    srcIsLarger ? src : dst,
+                    srcIsLarger ? dstHostname : srcHostname,
+                    srcIsLarger ? srcHostname : dstHostname,
+                    null, null);
+        }
+    }
+
+    /**
+     * Encodes flow records using a fixed field layout.
+     *
+     * Boolean fields are packed into a single flags byte. Optional int values are shifted by one so that their
+     * absence is encoded in a single byte. Addresses are written in fixed width by the {@link IpAddrCoder}. String
+     * fields are written as raw UTF-8 bytes: their lengths are written first, followed by their concatenated bytes.
+     * When decoding, all strings share a single byte array and are not decoded until they are accessed.
+     *
+     * Dead letters are encoded by their flags byte, followed by their reason and their raw record.
+     */
+    public static class FlowCoder extends AtomicCoder<Flow> {
+        private static final Coder<Double> DOUBLE_CODER = DoubleCoder.of();
+        private static final Coder<String> STRING_CODER = StringUtf8Coder.of();
+        private static final Coder<byte[]> BYTE_ARRAY_CODER = ByteArrayCoder.of();
+        private static final Coder<IpAddr> ADDRESS_CODER = IpAddrCoder.of();
+
+        private static final int FLAG_DELTA_SWITCHED_DEFAULTED = 1;
+        private static final int FLAG_INGRESS = 1 << 1;
+        private static final int FLAG_HAS_EXPORTER_NODE = 1 << 2;
+        private static final int FLAG_SRC_IS_LARGER = 1 << 3;
+        private static final int FLAG_DEAD_LETTER = 1 << 4;
+
+        @Override
+        public void encode(Flow value, OutputStream outStream) throws IOException {
+            if (value.isDeadLetter()) {
+                outStream.write(FLAG_DEAD_LETTER);
+                STRING_CODER.encode(value.deadLetterReason, outStream);
+                BYTE_ARRAY_CODER.encode(value.deadLetterRecord, outStream);
+                return;
+            }
+            int flags = (value.deltaSwitchedDefaulted ? FLAG_DELTA_SWITCHED_DEFAULTED : 0) |
+                        (value.ingress ? FLAG_INGRESS : 0) |
+                        (value.hasExporterNode ? FLAG_HAS_EXPORTER_NODE : 0) |
+                        (value.srcIsLarger ? FLAG_SRC_IS_LARGER : 0);
+            outStream.write(flags);
+            VarInt.encode(value.numBytes, outStream);
+            VarInt.encode(value.firstSwitched, outStream);
+            VarInt.encode(value.deltaSwitched, outStream);
+            VarInt.encode(value.lastSwitched, outStream);
+            DOUBLE_CODER.encode(value.samplingInterval, outStream);
+            VarInt.encode(value.sheddingRate, outStream);
+            VarInt.encode(value.ifIndex, outStream);
+            VarInt.encode(value.nodeId, outStream);
+            VarInt.encode(value.protocol + 1, outStream);
+            VarInt.encode(value.dscp + 1, outStream);
+            VarInt.encode(value.ecn + 1, outStream);
+            ADDRESS_CODER.encode(value.address, outStream);
+            ADDRESS_CODER.encode(value.largerAddress, outStream);
+            VarInt.encode(value.foreignSource.size(), outStream);
+            VarInt.encode(value.foreignId.size(), outStream);
+            VarInt.encode(value.location.size(), outStream);
+            VarInt.encode(value.application.size(), outStream);
+            VarInt.encode(value.hostname.size(), outStream);
+            VarInt.encode(value.hostname2.size(), outStream);
+            value.foreignSource.writeTo(outStream);
+            value.foreignId.writeTo(outStream);
+            value.location.writeTo(outStream);
+            value.application.writeTo(outStream);
+            value.hostname.writeTo(outStream);
+            value.hostname2.writeTo(outStream);
+        }
+
+        @Override
+        public Flow decode(InputStream inStream) throws IOException {
+            int flags = inStream.read();
+            if (flags < 0) {
+                throw new EOFException();
+            }
+            if ((flags & FLAG_DEAD_LETTER) != 0) {
+                String reason = STRING_CODER.decode(inStream);
+                return deadLetter(reason, BYTE_ARRAY_CODER.decode(inStream));
+            }
+            long numBytes = VarInt.decodeLong(inStream);
+            long firstSwitched = VarInt.decodeLong(inStream);
+            long deltaSwitched = VarInt.decodeLong(inStream);
+            long lastSwitched = VarInt.decodeLong(inStream);
+            double samplingInterval = DOUBLE_CODER.decode(inStream);
+            int sheddingRate = VarInt.decodeInt(inStream);
+            int ifIndex = VarInt.decodeInt(inStream);
+            int nodeId = VarInt.decodeInt(inStream);
+            int protocol = VarInt.decodeInt(inStream) - 1;
+            int dscp = VarInt.decodeInt(inStream) - 1;
+            int ecn = VarInt.decodeInt(inStream) - 1;
+            IpAddr address = ADDRESS_CODER.decode(inStream);
+            IpAddr largerAddress = ADDRESS_CODER.decode(inStream);
+
+            int end0 = VarInt.decodeInt(inStream);
+            int end1 = end0 + VarInt.decodeInt(inStream);
+            int end2 = end1 + VarInt.decodeInt(inStream);
+            int end3 = end2 + VarInt.decodeInt(inStream);
+            int end4 = end3 + VarInt.decodeInt(inStream);
+            int end5 = end4 + VarInt.decodeInt(inStream);
+            byte[] bytes = new byte[end5];
+            ByteStreams.readFully(inStream, bytes);
+            ByteString strings = UnsafeByteOperations.unsafeWrap(bytes);
+
+            return new Flow(numBytes, firstSwitched, deltaSwitched, lastSwitched,
+                    (flags & FLAG_DELTA_SWITCHED_DEFAULTED) != 0,
+                    samplingInterval,
+                    sheddingRate,
+                    (flags & FLAG_INGRESS) != 0,
+                    ifIndex,
+                    (flags & FLAG_HAS_EXPORTER_NODE) != 0,
+                    nodeId, protocol, dscp, ecn,
+                    (flags & FLAG_SRC_IS_LARGER) != 0,
+                    strings.substring(0, end0),
+                    strings.substring(end0, end1),
+                    strings.substring(end1, end2),
+                    strings.substring(end2, end3),
+                    address,
+                    largerAddress,
+                    strings.substring(end3, end4),
+                    strings.substring(end4, end5),
+                    null, null
+            );
+        }
+
+        @Override
+        public boolean consistentWithEquals() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Gauge;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.SerializableFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Determines the hot key fanout of combine stages.
+ *
+ * Keys whose elements are combined on a single worker can become a bottleneck, e.g. the exporter interface keys of
+ * large core routers. With a fanout greater than one, elements are first combined in intermediate shards of their
+ * key before the partial results are combined (cf. {@link org.apache.beam.sdk.transforms.Combine.PerKey#withHotKeyFanout}).
+ *
+ * The fanout can be configured per {@link CompoundKeyType}. For all other types it is chosen adaptively: the elements
+ * of each key are counted in time slices and the fanout of a key is its rate in the previous slice divided by the
+ * given number of elements per second and shard, capped by the given maximum. The maximum rate of a key is published
+ * as a gauge per stage and the hottest key is logged at the end of each slice. Keys with a fanout greater than one are
+ * counted per stage and slice, in total and per key type and exporter interface.
+ */
+public class HotKeyFanout implements SerializableFunction<CompoundKey, Integer> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HotKeyFanout.class);
+
+    static final long SLICE_MS = 10_000;
+
+    // bounds the memory used for counting per slice; keys that are first seen after that limit are not counted
+    static final int MAX_COUNTED_KEYS = 100_000;
+
+    // bounds the number of per interface counters; hot keys of further interfaces are only counted in total
+    static final int MAX_HOT_KEY_COUNTERS = 1_000;
+
+    private final EnumMap<CompoundKeyType, Integer> configured;
+    private final long elementsPerSecondPerShard;
+    private final int maxFanout;
+    private final String stage;
+
+    private transient Map<CompoundKey, long[]> counts;
+    private transient Map<CompoundKey, Integer> fanouts;
+    private transient long sliceStart;
+    private transient Gauge maxRate;
+    private transient Counter hotKeys;
+    private transient Map<String, Counter> hotKeysByInterface;
+
+    public HotKeyFanout(Map<CompoundKeyType, Integer> configured, long elementsPerSecondPerShard, int maxFanout, String stage) {
+        this.configured = configured.isEmpty() ? new EnumMap<>(CompoundKeyType.class) : new EnumMap<>(configured);
+        this.elementsPerSecondPerShard = elementsPerSecondPerShard;
+        this.maxFanout = maxFanout;
+        this.stage = stage;
+    }
+
+    /**
+     * Returns a hot key fanout function for the given options or {@code null} if neither fanouts are configured nor
+     * an adaptive fanout is enabled.
+     */
+    public static HotKeyFanout of(NephronOptions options) {
+        Map<CompoundKeyType, Integer> configured = CompoundKeyType.parseIntegers(options.getHotKeyFanout());
+        if (configured.isEmpty() && options.getHotKeyFanoutElementsPerSecond() <= 0) {
+            return null;
+        }
+        return new HotKeyFanout(configured, options.getHotKeyFanoutElementsPerSecond(), options.getMaxHotKeyFanout(), "");
+    }
+
+    /**
+     * Returns a copy of this function that publishes its metrics for the given stage.
+     */
+    public HotKeyFanout forStage(String stage) {
+        return new HotKeyFanout(configured, elementsPerSecondPerShard, maxFanout, stage);
+    }
+
+    @Override
+    public Integer apply(CompoundKey key) {
+        Integer fanout = configured.get(key.type);
+        if (fanout != null) {
+            return fanout;
+        }
+        if (elementsPerSecondPerShard <= 0) {
+            return 1;
+        }
+        return observe(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Counts an element of the given key and returns its current fanout.
+     */
+    int observe(CompoundKey key, long now) {
+        if (counts == null) {
+            counts = new HashMap<>();
+            fanouts = new HashMap<>();
+            sliceStart = now;
+        } else if (now - sliceStart >= SLICE_MS) {
+            endSlice(now);
+        }
+        long[] count = counts.get(key);
+        if (count != null) {
+            count[0]++;
+        } else if (counts.size() < MAX_COUNTED_KEYS) {
+            counts.put(key, new long[] { 1 });
+        }
+        return fanouts.getOrDefault(key, 1);
+    }
+
+    private void endSlice(long now) {
+        double seconds = (now - sliceStart) / 1000.0;
+        fanouts.clear();
+        CompoundKey hottest = null;
+        long max = 0;
+        for (Map.Entry<CompoundKey, long[]> e : counts.entrySet()) {
+            long count = e.getValue()[0];
+            if (count > max) {
+                max = count;
+                hottest = e.getKey();
+            }
+            int fanout = (int) Math.min(maxFanout, Math.ceil(count / seconds / elementsPerSecondPerShard));
+            if (fanout > 1) {
+                fanouts.put(e.getKey(), fanout);
+                countHotKey(e.getKey());
+            }
+        }
+        long maxPerSecond = (long) (max / seconds);
+        if (maxRate == null) {
+            maxRate = Metrics.gauge("flows", "combine_max_key_rate_" + stage);
+        }
+        maxRate.set(maxPerSecond);
+        if (hottest != null) {
+            LOG.debug("hottest key - stage: {}; key: {}; elements per second: {}; hot keys: {}", stage, hottest, maxPerSecond, fanouts.size());
+        }
+        counts.clear();
+        sliceStart = now;
+    }
+
+    private void countHotKey(CompoundKey key) {
+        if (hotKeys == null) {
+            hotKeys = Metrics.counter("flows", "combine_hot_keys_" + stage);
+            hotKeysByInterface = new HashMap<>();
+        }
+        hotKeys.inc();
+        CompoundKeyData data = key.getData();
+        String name = "combine_hot_keys_" + stage + "_" + key.type.name().toLowerCase() + "_" + data.nodeId + "_" + data.ifIndex;
+        Counter counter = hotKeysByInterface.get(name);
+        if (counter == null) {
+            if (hotKeysByInterface.size() >= MAX_HOT_KEY_COUNTERS) {
+                return;
+            }
+            counter = Metrics.counter("flows", name);
+            hotKeysByInterface.put(name, counter);
+        }
+        counter.inc();
+    }
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+import org.apache.beam.sdk.io.kafka.KafkaRecord;
+import org.apache.beam.sdk.io.kafka.TimestampPolicy;
+import org.apache.beam.sdk.metrics.Gauge;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.SerializableFunction;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.kafka.common.TopicPartition;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+/**
+ * Timestamp policy with limited delay that advances the watermark of idle partitions by processing time.
+ *
+ * Like {@link org.apache.beam.sdk.io.kafka.CustomTimestampPolicyWithLimitedDelay} the watermark trails the maximum
+ * observed event timestamp by the given max delay. A partition is considered idle if no records were read from it for
+ * the given idle timeout and it has no backlog. The watermark of an idle partition is advanced to the current time
+ * minus the max delay. This also holds for partitions that never received any records. Otherwise a single quiet
+ * partition would hold back the watermark of the whole pipeline.
+ *
+ * Records for which the timestamp function returns {@link BoundedWindow#TIMESTAMP_MIN_VALUE} carry no event time
+ * (e.g. dead letters and records dropped by the input filter). They are assigned the current watermark of the
+ * partition, do not advance it, and do not count as activity. A partition that only carries such records becomes idle.
+ *
+ * The watermark never moves backwards. The lag of the watermark behind the current time and the idle state are
+ * published as per-partition gauges.
+ */
+public class IdleAwareTimestampPolicy<K, V> extends TimestampPolicy<K, V> {
+
+    private final SerializableFunction<KafkaRecord<K, V>, Instant> timestampFunction;
+    private final long maxDelayMs;
+    private final long idleTimeoutMs;
+    private final LongSupplier clock;
+
+    private final Gauge watermarkLag;
+    private final Gauge idle;
+
+    private long maxEventTimestamp;
+    private long watermark;
+
+    // the number of records is checked when the watermark is determined
+    // -> avoids reading the clock for each record
+    private long records;
+    private long recordsAtLastCheck;
+    private long lastActivity;
+
+    public IdleAwareTimestampPolicy(
+            TopicPartition tp,
+            SerializableFunction<KafkaRecord<K, V>, Instant> timestampFunction,
+            Duration maxDelay,
+            Duration idleTimeout,
+            Optional<Instant> previousWatermark
+    ) {
+        this(tp, timestampFunction, maxDelay, idleTimeout, previousWatermark, System::currentTimeMillis);
+    }
+
+    IdleAwareTimestampPolicy(
+            TopicPartition tp,
+            SerializableFunction<KafkaRecord<K, V>, Instant> timestampFunction,
+            Duration maxDelay,
+            Duration idleTimeout,
+            Optional<Instant> previousWatermark,
+            LongSupplier clock
+    ) {
+        this.timestampFunction = timestampFunction;
+        this.maxDelayMs = maxDelay.getMillis();
+        this.idleTimeoutMs = idleTimeout.getMillis();
+        this.clock = clock;
+        String partition = tp.topic() + "_" + tp.partition();
+        this.watermarkLag = Metrics.gauge("flows", "watermark_lag_" + partition);
+        this.idle = Metrics.gauge("flows", "idle_" + partition);
+        // the watermark before reading any record is the previous watermark
+        this.watermark = previousWatermark.orElse(BoundedWindow.TIMESTAMP_MIN_VALUE).getMillis();
+        this.maxEventTimestamp = watermark + maxDelayMs;
+        this.lastActivity = clock.getAsLong();
+    }
+
+    @Override
+    public Instant getTimestampForRecord(PartitionContext ctx, KafkaRecord<K, V> record) {
+        Instant ts = timestampFunction.apply(record);
+        if (!ts.isAfter(BoundedWindow.TIMESTAMP_MIN_VALUE)) {
+            return new Instant(watermark);
+        }
+        if (ts.getMillis() > maxEventTimestamp) {
+            maxEventTimestamp = ts.getMillis();
+        }
+        records++;
+        return ts;
+    }
+
+    @Override
+    public Instant getWatermark(PartitionContext ctx) {
+        long now = clock.getAsLong();
+        if (records != recordsAtLastCheck) {
+            recordsAtLastCheck = records;
+            lastActivity = now;
+        }
+        boolean isIdle = idleTimeoutMs > 0 && now - lastActivity >= idleTimeoutMs && ctx.getMessageBacklog() <= 0;
+        long wm;
+        if (maxEventTimestamp > now || isIdle) {
+            wm = now - maxDelayMs;
+        } else {
+            wm = maxEventTimestamp - maxDelayMs;
+        }
+        if (wm > watermark) {
+            watermark = wm;
+        }
+        watermarkLag.set(now - watermark);
+        idle.set(isIdle ? 1 : 0);
+        return new Instant(watermark);
+    }
+}
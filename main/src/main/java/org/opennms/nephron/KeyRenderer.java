@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+/**
+ * Renders grouped-by strings and conversation keys of compound keys into a reusable buffer.
+ *
+ * Keys are rendered at output time only; comparisons of keys do not render strings (cf. {@link CompoundKey#compareTo}).
+ * Each thread reuses a single buffer such that rendering allocates nothing but the resulting string. Strings are
+ * escaped in the same way as by Gson with its default, HTML safe settings.
+ */
+public final class KeyRenderer {
+
+    private static final ThreadLocal<KeyRenderer> RENDERER = ThreadLocal.withInitial(KeyRenderer::new);
+
+    private static final int INITIAL_CAPACITY = 128;
+
+    // buffers that grew beyond this capacity are not retained
+    private static final int MAX_RETAINED_CAPACITY = 4096;
+
+    private static final String[] REPLACEMENT_CHARS = new String[128];
+
+    static {
+        for (int i = 0; i <= 0x1f; i++) {
+            REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+        }
+        REPLACEMENT_CHARS['"'] = "\\\"";
+        REPLACEMENT_CHARS['\\'] = "\\\\";
+        REPLACEMENT_CHARS['\t'] = "\\t";
+        REPLACEMENT_CHARS['\b'] = "\\b";
+        REPLACEMENT_CHARS['\n'] = "\\n";
+        REPLACEMENT_CHARS['\r'] = "\\r";
+        REPLACEMENT_CHARS['\f'] = "\\f";
+        REPLACEMENT_CHARS['<'] = "\\u003c";
+        REPLACEMENT_CHARS['>'] = "\\u003e";
+        REPLACEMENT_CHARS['&'] = "\\u0026";
+        REPLACEMENT_CHARS['='] = "\\u003d";
+        REPLACEMENT_CHARS['\''] = "\\u0027";
+    }
+
+    private StringBuilder sb = new StringBuilder(INITIAL_CAPACITY);
+
+    private KeyRenderer() {}
+
+    /**
+     * Returns the renderer of the current thread.
+     */
+    public static KeyRenderer get() {
+        return RENDERER.get();
+    }
+
+    public String groupedByKey(CompoundKeyType type, CompoundKeyData data) {
+        StringBuilder sb = reset();
+        type.appendGroupedByKey(data, sb);
+        return sb.toString();
+    }
+
+    public String conversationKey(CompoundKeyData data) {
+        StringBuilder sb = reset();
+        data.appendConversationKey(sb);
+        return sb.toString();
+    }
+
+    private StringBuilder reset() {
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+            sb = new StringBuilder(INITIAL_CAPACITY);
+        } else {
+            sb.setLength(0);
+        }
+        return sb;
+    }
+
+    /**
+     * Appends the given string as a JSON string literal or {@code null}.
+     */
+    public static void appendJsonString(String s, StringBuilder sb) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        int last = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            String replacement;
+            if (c < 128) {
+                replacement = REPLACEMENT_CHARS[c];
+                if (replacement == null) {
+                    continue;
+                }
+            } else if (c == '\u2028') {
+                replacement = "\\u2028";
+            } else if (c == '\u2029') {
+                replacement = "\\u2029";
+            } else {
+                continue;
+            }
+            sb.append(s, last, i).append(replacement);
+            last = i + 1;
+        }
+        sb.append(s, last, length).append('"');
+    }
+
+}
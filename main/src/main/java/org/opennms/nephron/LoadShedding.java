@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Gauge;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+
+/**
+ * Sheds load by sampling flows while the pipeline falls behind its input.
+ *
+ * The drift between the current time and the lastSwitched timestamp of processed flows is tracked. If the drift
+ * exceeds the given threshold then only a sample of the flows is kept. The shedding rate is a power of two that
+ * doubles whenever the drift doubles, up to the given maximum. Flows are selected by a deterministic hash over their
+ * exporter, interface, conversation, and timestamps, i.e. each exporter is sampled evenly and flows that are
+ * processed again get the same decision. The sample kept at a higher rate is a subset of the sample kept at a lower
+ * rate.
+ *
+ * Kept flows carry the shedding rate. Their bytes are scaled by that rate when they are aggregated such that byte
+ * totals stay unbiased; the resulting aggregates are marked as estimated.
+ */
+public class LoadShedding extends DoFn<Flow, Flow> {
+
+    private final Counter flowsShed = Metrics.counter("flows", "shed");
+    private final Gauge sheddingRateGauge = Metrics.gauge("flows", "shedding_rate");
+
+    private final long driftThresholdMs;
+    private final int maxSheddingRate;
+
+    // the shedding rate is determined at the end of each bundle and applies to the following bundle
+    private int sheddingRate = 1;
+
+    private long shed;
+    private long lastSwitched;
+
+    public LoadShedding(long driftThresholdMs, int maxSheddingRate) {
+        if (driftThresholdMs <= 0) {
+            throw new IllegalArgumentException("drift threshold must be positive - driftThresholdMs: " + driftThresholdMs);
+        }
+        if (maxSheddingRate < 1) {
+            throw new IllegalArgumentException("max shedding rate must be positive - maxSheddingRate: " + maxSheddingRate);
+        }
+        this.driftThresholdMs = driftThresholdMs;
+        this.maxSheddingRate = Integer.highestOneBit(maxSheddingRate);
+    }
+
+    @StartBundle
+    public void startBundle() {
+        shed = 0;
+        lastSwitched = 0;
+    }
+
+    @ProcessElement
+    public void processElement(@Element Flow flow, OutputReceiver<Flow> out) {
+        lastSwitched = flow.lastSwitched;
+        if (sheddingRate == 1) {
+            out.output(flow);
+        } else if (keep(flow, sheddingRate)) {
+            out.output(flow.withSheddingRate(sheddingRate));
+        } else {
+            shed++;
+        }
+    }
+
+    @FinishBundle
+    public void finishBundle() {
+        if (shed > 0) {
+            flowsShed.inc(shed);
+        }
+        if (lastSwitched != 0) {
+            sheddingRate = sheddingRate(System.currentTimeMillis() - lastSwitched, driftThresholdMs, maxSheddingRate);
+            sheddingRateGauge.set(sheddingRate);
+        }
+    }
+
+    /**
+     * Determines the shedding rate for the given drift.
+     *
+     * @param maxSheddingRate a power of two
+     * @return 1 if the drift does not exceed the threshold; otherwise a power of two that is at least 2
+     */
+    static int sheddingRate(long driftMs, long driftThresholdMs, int maxSheddingRate) {
+        if (driftMs <= driftThresholdMs) {
+            return 1;
+        }
+        long ratio = driftMs / driftThresholdMs;
+        if (ratio >= maxSheddingRate) {
+            return maxSheddingRate;
+        }
+        return (int) Math.min(Long.highestOneBit(ratio) << 1, maxSheddingRate);
+    }
+
+    static boolean keep(Flow flow, int sheddingRate) {
+        return (flow.sheddingHash() & (sheddingRate - 1)) == 0;
+    }
+}
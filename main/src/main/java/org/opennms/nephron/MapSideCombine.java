@@ -0,0 +1,325 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Gauge;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.values.KV;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.opennms.nephron.coders.DictionaryStringCoder;
+
+/**
+ * Combines the aggregates of equal keys that fall into the same window before they are shuffled.
+ *
+ * Must be applied before windows are assigned: the window of an element is derived from its timestamp and the node id
+ * of its key (cf. {@link UnalignedFixedWindows}). Elements are summed in an open-addressing hash table that is kept
+ * off-heap. The table is keyed by the window number and the encoded compound key and host names and stores the byte
+ * counts, the ECN flags, and the earliest timestamp of each entry as primitives. Aggregates with different host names
+ * are not combined.
+ *
+ * The table is flushed when a bundle finishes or when its memory budget is exhausted. Each entry is output with the
+ * earliest timestamp of the elements it combines, i.e. in the window of these elements.
+ */
+public class MapSideCombine extends DoFn<KV<CompoundKey, Aggregate>, KV<CompoundKey, Aggregate>> {
+
+    private static final Coder<CompoundKey> KEY_CODER = new CompoundKey.CompoundKeyCoder();
+    private static final Coder<String> HOSTNAME_CODER = DictionaryStringCoder.of();
+
+    // slot layout: key hash (int), key offset in the arena (int), key length (int; 0 for empty slots), flags (int),
+    // window number (long), bytes in (long), bytes out (long), earliest timestamp (long)
+    static final int SLOT_BYTES = 48;
+    private static final int HASH = 0;
+    private static final int KEY_OFFSET = 4;
+    private static final int KEY_LENGTH = 8;
+    private static final int FLAGS = 12;
+    private static final int WINDOW_NUMBER = 16;
+    private static final int BYTES_IN = 24;
+    private static final int BYTES_OUT = 32;
+    private static final int TIMESTAMP = 40;
+
+    // the largest power of two of slots that fit into a single buffer
+    static final int MAX_CAPACITY = Integer.highestOneBit(Integer.MAX_VALUE / SLOT_BYTES);
+
+    private static final int FLAG_CONGESTION_ENCOUNTERED = 1;
+    private static final int FLAG_NON_ECN_CAPABLE_TRANSPORT = 1 << 1;
+    private static final int FLAG_ESTIMATED = 1 << 2;
+
+    private final Counter elementsIn = Metrics.counter("flows", "map_side_combine_in");
+    private final Counter elementsOut = Metrics.counter("flows", "map_side_combine_out");
+    private final Gauge flushSize = Metrics.gauge("flows", "map_side_combine_flush_size");
+    private final Gauge combineRatio = Metrics.gauge("flows", "map_side_combine_ratio_percent");
+
+    private final long windowSizeMs;
+    private final long memoryBudget;
+
+    private transient ByteBuffer slots;
+    private transient ByteBuffer arena;
+    private transient int capacity;
+    private transient int maxEntries;
+    // indexes of the occupied slots in insertion order
+    private transient int[] occupied;
+    private transient int entries;
+    private transient int arenaUsed;
+    private transient Scratch scratch;
+
+    // the window all buffered elements belong to
+    private transient BoundedWindow window;
+    private transient long in;
+    private transient long out;
+
+    /**
+     * Exposes its buffer such that encoded keys are hashed and compared without copying them.
+     */
+    private static class Scratch extends ByteArrayOutputStream {
+        private byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * @param memoryBudget the number of bytes of off-heap memory used by the table
+     */
+    public MapSideCombine(Duration fixedWindowSize, long memoryBudget) {
+        this.windowSizeMs = fixedWindowSize.getMillis();
+        this.memoryBudget = memoryBudget;
+    }
+
+    @Setup
+    public void setup() {
+        capacity = capacity(memoryBudget);
+        maxEntries = capacity / 2;
+        long slotsBytes = (long) capacity * SLOT_BYTES;
+        slots = ByteBuffer.allocateDirect(Math.toIntExact(slotsBytes));
+        arena = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, Math.max(1024, memoryBudget - slotsBytes)));
+        occupied = new int[maxEntries];
+        scratch = new Scratch();
+    }
+
+    /**
+     * Determines the number of slots for the given memory budget: a power of two that fits into a single buffer.
+     */
+    static int capacity(long memoryBudget) {
+        // use half of the budget for slots with a load factor of 0.5 and the other half for keys
+        return Integer.highestOneBit((int) Math.min(MAX_CAPACITY, Math.max(2, memoryBudget / 2 / SLOT_BYTES)));
+    }
+
+    @StartBundle
+    public void startBundle() {
+        window = null;
+        in = 0;
+        out = 0;
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c, BoundedWindow window) {
+        in++;
+        KV<CompoundKey, Aggregate> kv = c.element();
+        if (this.window == null) {
+            this.window = window;
+        } else if (!this.window.equals(window)) {
+            // elements are expected to be in a single (the global) window; only that window is buffered
+            c.output(kv);
+            out++;
+            return;
+        }
+        // keys are created from flows at this stage -> their data is at hand and need not be unpacked
+        long windowNumber = UnalignedFixedWindows.windowNumber(kv.getKey().getData().nodeId, windowSizeMs, c.timestamp().getMillis());
+        encode(kv);
+        if (!add(windowNumber, kv.getValue(), c.timestamp().getMillis())) {
+            flush((e, t) -> c.outputWithTimestamp(e, t));
+            if (!add(windowNumber, kv.getValue(), c.timestamp().getMillis())) {
+                c.output(kv);
+                out++;
+            }
+        }
+    }
+
+    @FinishBundle
+    public void finishBundle(FinishBundleContext c) {
+        flush((e, t) -> c.output(e, t, window));
+        if (in > 0) {
+            elementsIn.inc(in);
+            elementsOut.inc(out);
+            combineRatio.set(in * 100 / Math.max(1, out));
+        }
+    }
+
+    /**
+     * Elements are output with the earliest timestamp of the elements they combine that may be before the timestamp
+     * of the element that triggers a flush. The windows of the output elements are the same as if the combined
+     * elements were output unchanged.
+     */
+    @Override
+    @SuppressWarnings("deprecation") // the skew can not be configured otherwise
+    public Duration getAllowedTimestampSkew() {
+        return Duration.millis(Long.MAX_VALUE);
+    }
+
+    /**
+     * Encodes the key and host names of the given element into the scratch buffer.
+     */
+    private void encode(KV<CompoundKey, Aggregate> kv) {
+        scratch.reset();
+        try {
+            KEY_CODER.encode(kv.getKey(), scratch);
+            HOSTNAME_CODER.encode(kv.getValue().getHostname(), scratch);
+            HOSTNAME_CODER.encode(kv.getValue().getHostname2(), scratch);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int hash(byte[] key, int length, long windowNumber) {
+        int h = Long.hashCode(windowNumber);
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + key[i];
+        }
+        // murmur3 fmix32
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Adds the given aggregate to the table. The encoded key is taken from the scratch buffer and copied into the
+     * arena if it is not contained yet.
+     *
+     * @return false if the table is full
+     */
+    private boolean add(long windowNumber, Aggregate aggregate, long timestamp) {
+        byte[] key = scratch.buffer();
+        int length = scratch.size();
+        int hash = hash(key, length, windowNumber);
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        int pos;
+        while (slots.getInt((pos = slot * SLOT_BYTES) + KEY_LENGTH) != 0) {
+            if (slots.getInt(pos + HASH) == hash && slots.getLong(pos + WINDOW_NUMBER) == windowNumber && keyEquals(pos, key, length)) {
+                slots.putLong(pos + BYTES_IN, slots.getLong(pos + BYTES_IN) + aggregate.getBytesIn());
+                slots.putLong(pos + BYTES_OUT, slots.getLong(pos + BYTES_OUT) + aggregate.getBytesOut());
+                slots.putInt(pos + FLAGS, slots.getInt(pos + FLAGS) | flags(aggregate));
+                if (timestamp < slots.getLong(pos + TIMESTAMP)) {
+                    slots.putLong(pos + TIMESTAMP, timestamp);
+                }
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (entries == maxEntries || arena.capacity() - arenaUsed < length) {
+            return false;
+        }
+        arena.position(arenaUsed);
+        arena.put(key, 0, length);
+        slots.putInt(pos + HASH, hash);
+        slots.putInt(pos + KEY_OFFSET, arenaUsed);
+        slots.putInt(pos + KEY_LENGTH, length);
+        slots.putInt(pos + FLAGS, flags(aggregate));
+        slots.putLong(pos + WINDOW_NUMBER, windowNumber);
+        slots.putLong(pos + BYTES_IN, aggregate.getBytesIn());
+        slots.putLong(pos + BYTES_OUT, aggregate.getBytesOut());
+        slots.putLong(pos + TIMESTAMP, timestamp);
+        arenaUsed += length;
+        occupied[entries++] = slot;
+        return true;
+    }
+
+    private boolean keyEquals(int pos, byte[] key, int length) {
+        if (slots.getInt(pos + KEY_LENGTH) != length) {
+            return false;
+        }
+        int offset = slots.getInt(pos + KEY_OFFSET);
+        for (int i = 0; i < length; i++) {
+            if (arena.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int flags(Aggregate aggregate) {
+        return (aggregate.isCongestionEncountered() ? FLAG_CONGESTION_ENCOUNTERED : 0) |
+               (aggregate.isNonEcnCapableTransport() ? FLAG_NON_ECN_CAPABLE_TRANSPORT : 0) |
+               (aggregate.isEstimated() ? FLAG_ESTIMATED : 0);
+    }
+
+    private void flush(BiConsumer<KV<CompoundKey, Aggregate>, Instant> output) {
+        if (entries == 0) {
+            return;
+        }
+        byte[] key = new byte[0];
+        for (int i = 0; i < entries; i++) {
+            int pos = occupied[i] * SLOT_BYTES;
+            int length = slots.getInt(pos + KEY_LENGTH);
+            if (key.length < length) {
+                key = new byte[length];
+            }
+            arena.position(slots.getInt(pos + KEY_OFFSET));
+            arena.get(key, 0, length);
+            int flags = slots.getInt(pos + FLAGS);
+            KV<CompoundKey, Aggregate> kv;
+            try {
+                ByteArrayInputStream is = new ByteArrayInputStream(key, 0, length);
+                CompoundKey compoundKey = KEY_CODER.decode(is);
+                Aggregate aggregate = new Aggregate(
+                        slots.getLong(pos + BYTES_IN),
+                        slots.getLong(pos + BYTES_OUT),
+                        HOSTNAME_CODER.decode(is),
+                        HOSTNAME_CODER.decode(is),
+                        (flags & FLAG_CONGESTION_ENCOUNTERED) != 0,
+                        (flags & FLAG_NON_ECN_CAPABLE_TRANSPORT) != 0,
+                        (flags & FLAG_ESTIMATED) != 0
+                );
+                kv = KV.of(compoundKey, aggregate);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            output.accept(kv, new Instant(slots.getLong(pos + TIMESTAMP)));
+            slots.putInt(pos + KEY_LENGTH, 0);
+        }
+        flushSize.set(entries);
+        out += entries;
+        entries = 0;
+        arenaUsed = 0;
+    }
+}
@@ -28,21 +28,19 @@
 
 package org.opennms.nephron;
 
-import org.opennms.netmgt.flows.persistence.model.FlowDocument;
-
 /**
  * Thrown when we are unable to derive a {@link CompoundKey} from
- * a {@link FlowDocument} due to one or more missing fields.
+ * a {@link Flow} due to one or more missing fields.
  */
 public class MissingFieldsException extends Exception {
-    private final FlowDocument flow;
+    private final Flow flow;
 
-    public MissingFieldsException(String field, FlowDocument flow) {
+    public MissingFieldsException(String field, Flow flow) {
         super("Property not populated on flow: " + field);
         this.flow = flow;
     }
 
-    public FlowDocument getFlow() {
+    public Flow getFlow() {
         return flow;
     }
 }
@@ -75,6 +75,35 @@ public interface NephronOptions extends PipelineOptions, CortexOptions {
 
     void setFixedWindowSizeMs(long value);
 
+    @Description("Window sizes in milliseconds per compound key type in the form <type>:<size>,... Types without a configured " +
+                 "size use the fixed window size. Sizes must be multiples of the fixed window size. " +
+                 "E.g. EXPORTER_INTERFACE_CONVERSATION:60000,EXPORTER_INTERFACE_TOS_CONVERSATION:60000")
+    String getWindowSizesMs();
+
+    void setWindowSizesMs(String value);
+
+    @Description("Window sizes in milliseconds of rollup tiers that are derived from the flow summaries of the fixed windows. " +
+                 "Each size must be a multiple of the window sizes of all compound key types. Rollup tiers are written to all sinks tagged " +
+                 "with their resolution. Elasticsearch indices and Kafka topics of tiers are suffixed by their resolution " +
+                 "(e.g. netflow_agg_1h); Cortex samples carry a resolution label. E.g. 300000,3600000")
+    String getRollupWindowSizesMs();
+
+    void setRollupWindowSizesMs(String value);
+
+    @Description("Compound key types that are written to each sink in the form <sink>=<type>,...;<sink>=<type>,... Sinks are " +
+                 "elastic, kafka, and cortex. Only the types of enabled sinks are calculated; enabled sinks that are not listed " +
+                 "receive all types. TopK types require their parent total. " +
+                 "E.g. elastic=EXPORTER_INTERFACE,EXPORTER_INTERFACE_APPLICATION;cortex=EXPORTER_INTERFACE")
+    String getAggregationPlan();
+
+    void setAggregationPlan(String value);
+
+    @Description("Path of a file with strings that repeat often in keys, e.g. foreign sources, locations, and application " +
+                 "names; one string per line. These strings are encoded by their index in the dictionary.")
+    String getStringDictionaryFile();
+
+    void setStringDictionaryFile(String value);
+
     @Description("Top K")
     @Default.Integer(10)
     int getTopK();
@@ -117,6 +146,13 @@ public interface NephronOptions extends PipelineOptions, CortexOptions {
 
     void setDefaultMaxInputDelayMs(long value);
 
+    @Description("Amount of time in milliseconds after which a Kafka partition that does not receive flows is considered idle. " +
+                 "The watermark of idle partitions is advanced by processing time. Idle detection is disabled if set to zero.")
+    @Default.Long(60 * 1000L) // 1 minute
+    long getInputIdleTimeoutMs();
+
+    void setInputIdleTimeoutMs(long value);
+
     @Description("Max amount of time a flow is expected to last (last_switched - delta_switched). " +
                  "Flows that last longer than this duration will be ignored and a warning will be logged.")
     @Default.Long(15 * 60 * 1000L) // 15 minutes
@@ -150,6 +186,121 @@ public interface NephronOptions extends PipelineOptions, CortexOptions {
     long getSummaryAccumulationDelayMs();
     void setSummaryAccumulationDelayMs(long value);
 
+    @Description("Drift in milliseconds above which the pipeline switches into catch-up mode. The drift is the amount of time " +
+                 "the end of windows lags behind the current time when their early or on-time panes are output. In catch-up mode " +
+                 "early and late panes of flow summaries are held back: early panes are output together with the on-time pane and " +
+                 "late panes when their window expires. Flow summaries that are output in catch-up mode are written to Elasticsearch " +
+                 "and Cortex in larger batches (cf. catchUpElasticMaxBatchSize, catchUpCortexMaxBatchSize, and catchUpCortexMaxBatchBytes). " +
+                 "Catch-up mode is disabled if set to zero.")
+    @Default.Long(15 * 60 * 1000L) // 15 minutes
+    long getCatchUpDriftThresholdMs();
+
+    void setCatchUpDriftThresholdMs(long value);
+
+    @Description("Interval in milliseconds in which held back flow summaries check if their worker returned to normal mode. " +
+                 "Held back flow summaries are output once the worker is in normal mode again.")
+    @Default.Long(10 * 1000L) // 10 seconds
+    long getCatchUpFlushIntervalMs();
+
+    void setCatchUpFlushIntervalMs(long value);
+
+    @Description("Max number of documents in Elasticsearch bulk requests for flow summaries that are output in catch-up mode.")
+    @Default.Long(10000)
+    long getCatchUpElasticMaxBatchSize();
+
+    void setCatchUpElasticMaxBatchSize(long value);
+
+    @Description("The maximum number of batched Cortex samples for flow summaries that are output in catch-up mode.")
+    @Default.Integer(100000)
+    int getCatchUpCortexMaxBatchSize();
+
+    void setCatchUpCortexMaxBatchSize(int value);
+
+    @Description("The maximum number of bytes sent in one Cortex batch for flow summaries that are output in catch-up mode.")
+    @Default.Integer(4 * 1024 * 1024)
+    int getCatchUpCortexMaxBatchBytes();
+
+    void setCatchUpCortexMaxBatchBytes(int value);
+
+    @Description("Calculates all flow summaries of an exporter interface in a single combine step instead of a DAG of " +
+                 "combine and topK steps. Requires that the conversations of an exporter interface in a window fit into memory.")
+    @Default.Boolean(false)
+    boolean getCubeAggregation();
+
+    void setCubeAggregation(boolean value);
+
+    @Description("Calculates the topKs with and without tos of conversations, applications, and hosts in a single combine " +
+                 "step per exporter interface instead of three combine steps. Saves two shuffles per summary type but requires " +
+                 "that the sums with tos of an exporter interface in a window fit into memory. Not supported with cube aggregation, " +
+                 "which already calculates all topKs of an exporter interface in a single combine step.")
+    @Default.Boolean(false)
+    boolean getPerInterfaceTopK();
+
+    void setPerInterfaceTopK(boolean value);
+
+    @Description("Capacities of the Space-Saving summaries that approximate topK entries per compound key type in the form " +
+                 "<type>:<capacity>,... Supports conversation and host types. TopK entries are calculated exactly for all other types. " +
+                 "E.g. EXPORTER_INTERFACE_TOS_CONVERSATION:1000,EXPORTER_INTERFACE_CONVERSATION:1000. Not supported with cube aggregation.")
+    String getApproximateTopK();
+
+    void setApproximateTopK(String value);
+
+    @Description("Off-heap memory in megabytes per worker thread that is used to combine the aggregates of equal " +
+                 "keys before they are shuffled. Aggregates are not combined before the shuffle if set to zero.")
+    @Default.Integer(0)
+    int getMapSideCombineMemoryMb();
+
+    void setMapSideCombineMemoryMb(int value);
+
+    @Description("Number of conversations per interface and tos that are forwarded as topK candidates from each bundle. " +
+                 "Smaller conversations are rolled up into application and host aggregates before they are shuffled. " +
+                 "Conversations are not prefiltered if set to zero. Not supported with cube aggregation.")
+    @Default.Integer(0)
+    int getConversationPrefilterCandidates();
+
+    void setConversationPrefilterCandidates(int value);
+
+    @Description("Maximum number of distinct conversation and host keys per exporter interface and window that are tracked " +
+                 "by each parallel instance of the guarding stage. Further keys are folded into an __overflow key per interface and tos; byte totals stay exact. " +
+                 "Keys are not limited if set to zero. Not supported with cube aggregation.")
+    @Default.Integer(0)
+    int getCardinalityLimit();
+
+    void setCardinalityLimit(int value);
+
+    @Description("Hot key fanouts of combine stages per compound key type in the form <type>:<fanout>,... " +
+                 "E.g. EXPORTER_INTERFACE:8,EXPORTER_INTERFACE_TOS:4")
+    String getHotKeyFanout();
+
+    void setHotKeyFanout(String value);
+
+    @Description("Number of elements per second a single shard of a combined key is expected to handle. Determines the " +
+                 "fanout of keys whose type has no configured fanout from their observed rate. Adaptive fanout is disabled if set to zero.")
+    @Default.Long(0)
+    long getHotKeyFanoutElementsPerSecond();
+
+    void setHotKeyFanoutElementsPerSecond(long value);
+
+    @Description("Maximum adaptive hot key fanout.")
+    @Default.Integer(16)
+    int getMaxHotKeyFanout();
+
+    void setMaxHotKeyFanout(int value);
+
+    @Description("Drift in milliseconds above which the pipeline sheds load by sampling flows. The drift is the amount of " +
+                 "time the lastSwitched timestamps of ingested flows lag behind the current time. The bytes of kept flows are " +
+                 "extrapolated and the affected summaries are marked as estimated. Load shedding is disabled if set to zero.")
+    @Default.Long(0)
+    long getLoadSheddingDriftThresholdMs();
+
+    void setLoadSheddingDriftThresholdMs(long value);
+
+    @Description("Maximum number of flows that are represented by a single kept flow during load shedding. Rounded down to a power of two.")
+    @Default.Integer(16)
+    int getMaxLoadSheddingRate();
+
+    void setMaxLoadSheddingRate(int value);
+
     @Description("Elasticsearch Connection Timeout in milliseconds")
     @Default.Integer(30 * 1000) // 30 seconds
     int getElasticConnectTimeout();
@@ -174,9 +325,79 @@ public interface NephronOptions extends PipelineOptions, CortexOptions {
 
     void setElasticRetryDuration(long value);
 
+    @Description("Max number of documents in Elasticsearch bulk requests. Bundles with more documents are written in several requests.")
+    @Default.Long(1000)
+    long getElasticMaxBatchSize();
+
+    void setElasticMaxBatchSize(long value);
+
     @Description("Path to Kafka client properties file")
     String getKafkaClientProperties();
 
     void setKafkaClientProperties(String kafkaClientProperties);
 
+    @Description("Decode only those fields of input flows that are used for aggregation. All other fields are skipped.")
+    @Default.Boolean(false)
+    boolean getProjectedFlowDecoding();
+
+    void setProjectedFlowDecoding(boolean value);
+
+    @Description("Destination topic for dead letters, i.e. input records that can not be decoded or that lack required fields. " +
+                 "Dead letters are written with their rejection reason as key and the raw record as value.")
+    String getDeadLetterTopic();
+
+    void setDeadLetterTopic(String value);
+
+    @Description("Path prefix of files that dead letters are written to. Files are written per minute. " +
+                 "Each line contains the rejection reason and the Base64 encoded raw record separated by a tab.")
+    String getDeadLetterPath();
+
+    void setDeadLetterPath(String value);
+
+    @Description("Max number of dead letters per second that are written by each worker. Additional dead letters are only counted.")
+    @Default.Integer(100)
+    int getMaxDeadLettersPerSecond();
+
+    void setMaxDeadLettersPerSecond(int value);
+
+    @Description("Comma separated list of allowed exporter node ids. Only flows with one of these exporter node ids are processed. Flows are filtered before they are decoded.")
+    String getInputAllowedNodeIds();
+
+    void setInputAllowedNodeIds(String value);
+
+    @Description("Comma separated list of denied exporter node ids. Flows with one of these exporter node ids are dropped.")
+    String getInputDeniedNodeIds();
+
+    void setInputDeniedNodeIds(String value);
+
+    @Description("Comma separated list of allowed exporter foreign sources. Only flows with one of these exporter foreign sources are processed.")
+    String getInputAllowedForeignSources();
+
+    void setInputAllowedForeignSources(String value);
+
+    @Description("Comma separated list of denied exporter foreign sources. Flows with one of these exporter foreign sources are dropped.")
+    String getInputDeniedForeignSources();
+
+    void setInputDeniedForeignSources(String value);
+
+    @Description("Comma separated list of allowed locations. Only flows with one of these locations are processed.")
+    String getInputAllowedLocations();
+
+    void setInputAllowedLocations(String value);
+
+    @Description("Comma separated list of denied locations. Flows with one of these locations are dropped.")
+    String getInputDeniedLocations();
+
+    void setInputDeniedLocations(String value);
+
+    @Description("Comma separated list of allowed ifIndexes. Only flows with one of these ifIndexes are processed. The input ifIndex is considered for ingress flows and the output ifIndex for egress flows.")
+    String getInputAllowedIfIndexes();
+
+    void setInputAllowedIfIndexes(String value);
+
+    @Description("Comma separated list of denied ifIndexes. Flows with one of these ifIndexes are dropped.")
+    String getInputDeniedIfIndexes();
+
+    void setInputDeniedIfIndexes(String value);
+
 }
@@ -31,18 +31,27 @@ package org.opennms.nephron;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 import org.apache.beam.repackaged.core.org.apache.commons.lang3.StringUtils;
 import org.apache.beam.sdk.coders.CoderRegistry;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.io.TextIO;
 import org.apache.beam.sdk.io.elasticsearch.ElasticsearchIO;
-import org.apache.beam.sdk.io.kafka.CustomTimestampPolicyWithLimitedDelay;
 import org.apache.beam.sdk.io.kafka.KafkaIO;
 import org.apache.beam.sdk.io.kafka.KafkaRecord;
 import org.apache.beam.sdk.io.kafka.TimestampPolicyFactory;
@@ -53,6 +62,7 @@ import org.apache.beam.sdk.transforms.Combine;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.Filter;
 import org.apache.beam.sdk.transforms.Flatten;
+import org.apache.beam.sdk.transforms.MapElements;
 import org.apache.beam.sdk.transforms.PTransform;
 import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.transforms.SerializableFunction;
@@ -60,25 +70,34 @@ import org.apache.beam.sdk.transforms.Top;
 import org.apache.beam.sdk.transforms.Values;
 import org.apache.beam.sdk.transforms.windowing.AfterProcessingTime;
 import org.apache.beam.sdk.transforms.windowing.AfterWatermark;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.FixedWindows;
 import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
 import org.apache.beam.sdk.transforms.windowing.TimestampCombiner;
 import org.apache.beam.sdk.transforms.windowing.Window;
+import org.apache.beam.sdk.transforms.windowing.WindowFn;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PBegin;
 import org.apache.beam.sdk.values.PCollection;
 import org.apache.beam.sdk.values.PCollectionList;
 import org.apache.beam.sdk.values.PCollectionTuple;
 import org.apache.beam.sdk.values.PDone;
+import org.apache.beam.sdk.values.POutput;
 import org.apache.beam.sdk.values.TupleTag;
 import org.apache.beam.sdk.values.TupleTagList;
+import org.apache.beam.sdk.values.TypeDescriptors;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.joda.time.Duration;
 import org.joda.time.Instant;
 import org.opennms.nephron.coders.FlowDocumentProtobufCoder;
+import org.opennms.nephron.coders.InputFilter;
 import org.opennms.nephron.coders.KafkaInputFlowDeserializer;
+import org.opennms.nephron.coders.StringDictionary;
 import org.opennms.nephron.cortex.CortexIo;
+import org.opennms.nephron.util.CatchUpGate;
 import org.opennms.nephron.util.PaneAccumulator;
 import org.opennms.nephron.cortex.TimeSeriesBuilder;
 import org.opennms.nephron.elastic.AggregationType;
@@ -87,7 +106,6 @@ import org.opennms.nephron.elastic.IndexStrategy;
 import org.opennms.nephron.network.IPAddress;
 import org.opennms.nephron.network.IpValue;
 import org.opennms.nephron.network.StringValue;
-import org.opennms.netmgt.flows.persistence.model.Direction;
 import org.opennms.netmgt.flows.persistence.model.FlowDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -118,8 +136,11 @@ public class Pipeline {
      */
     public static org.apache.beam.sdk.Pipeline create(NephronOptions options) {
         Objects.requireNonNull(options);
-        TimestampPolicyFactory<byte[], FlowDocument> timestampPolicyFactory =
-                getKafkaInputTimestampPolicyFactory(Duration.millis(options.getDefaultMaxInputDelayMs()));
+        TimestampPolicyFactory<byte[], Flow> timestampPolicyFactory =
+                getKafkaInputTimestampPolicyFactory(
+                        Duration.millis(options.getDefaultMaxInputDelayMs()),
+                        Duration.millis(options.getInputIdleTimeoutMs())
+                );
         return create(options, timestampPolicyFactory);
     }
 
@@ -128,32 +149,152 @@ public class Pipeline {
      */
     public static org.apache.beam.sdk.Pipeline create(
             NephronOptions options,
-            TimestampPolicyFactory<byte[], FlowDocument> timestampPolicyFactory
+            TimestampPolicyFactory<byte[], Flow> timestampPolicyFactory
     ) {
         Objects.requireNonNull(options);
         org.apache.beam.sdk.Pipeline p = org.apache.beam.sdk.Pipeline.create(options);
         registerCoders(p);
 
-        Map<String, Object> kafkaConsumerConfig = loadKafkaClientProperties(options);
+        Map<String, Object> kafkaConsumerConfig = kafkaConsumerConfig(options);
+        PCollection<Flow> streamOfFlows = p.apply(new ReadFromKafka(options.getBootstrapServers(),
+                options.getFlowSourceTopic(), kafkaConsumerConfig, timestampPolicyFactory,
+                options.getMaxDeadLettersPerSecond(), deadLetterSink(options)));
 
-        kafkaConsumerConfig.put(ConsumerConfig.GROUP_ID_CONFIG, options.getGroupId());
-        // Auto-commit should be disabled when checkpointing is on:
-        // the state in the checkpoints are used to derive the offsets instead
-        kafkaConsumerConfig.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, options.getAutoCommit());
-        PCollection<FlowDocument> streamOfFlows = p.apply(new ReadFromKafka(options.getBootstrapServers(),
-                options.getFlowSourceTopic(), kafkaConsumerConfig, timestampPolicyFactory));
+        processFlows(options, streamOfFlows);
+
+        return p;
+    }
+
+    /**
+     * Calculates flow summaries for the given flows and attaches the configured sinks.
+     *
+     * The given flows must carry their lastSwitched timestamp as element timestamp.
+     */
+    public static void processFlows(NephronOptions options, PCollection<Flow> flows) {
+        flows = shedLoadIfNecessary(options, flows);
 
         // Calculate the flow summary statistics
-        PCollection<KV<CompoundKey, Aggregate>> flowSummaries = streamOfFlows.apply(new CalculateFlowStatistics(options));
+        CalculateFlowStatistics calculateFlowStatistics = new CalculateFlowStatistics(options);
+        PCollectionList<KV<CompoundKey, Aggregate>> calculated = calculateFlowStatistics.yieldsDifferentWindowSizes()
+                ? flows.apply(calculateFlowStatistics.perWindowSize())
+                : PCollectionList.of(flows.apply(calculateFlowStatistics));
+
+        // flow summaries of different window sizes can not be flattened -> sinks are attached to each window size
+        // -> the transforms of additional window sizes are scoped by a composite transform to keep their names unique
+        writeFlowSummaries(options, calculated.get(0));
+        for (int i = 1; i < calculated.size(); i++) {
+            calculated.get(i).apply("window_size_" + i, new WriteFlowSummaries(options));
+        }
 
-        flowSummaries = accumulateSummariesIfNecessary(options, flowSummaries);
+        // rollup tiers are derived from the calculated flow summaries and written to the same sinks
+        // -> Elasticsearch indices and Kafka topics of tiers are suffixed by their resolution
+        for (Rollup rollup : Rollup.tiers(options)) {
+            PCollection<KV<CompoundKey, Aggregate>> tier = calculated.size() == 1
+                    ? calculated.get(0).apply("rollup_" + rollup.getResolution(), rollup)
+                    : calculated.apply("rollup_" + rollup.getResolution(), rollup.ofWindowSizes());
+            attachWriteToElastic(options, tier, rollup.getResolution());
+            attachWriteToKafka(options, tier, rollup.getResolution());
+            attachWriteToCortex(options, tier, cw -> {}, rollup.getResolution());
+        }
+    }
+
+    /**
+     * Optionally accumulates and gates the given flow summaries and attaches the configured sinks.
+     */
+    private static void writeFlowSummaries(NephronOptions options, PCollection<KV<CompoundKey, Aggregate>> calculated) {
+        PCollection<KV<CompoundKey, Aggregate>> flowSummaries = accumulateSummariesIfNecessary(options, calculated);
+        if (options.getCatchUpDriftThresholdMs() != 0) {
+            // flow summaries that are output in catch-up mode are written by sinks that use larger batches
+            CatchUpGate<CompoundKey, Aggregate> catchUpGate = catchUpGate(options, flowSummaries);
+            PCollectionTuple gated = flowSummaries.apply(catchUpGate);
+            gated.get(catchUpGate.catchingUp).apply("catch_up", new WriteCatchUpFlowSummaries(options));
+            flowSummaries = gated.get(catchUpGate.normal);
+        }
 
         // optionally attach different kinds of sinks
         attachWriteToElastic(options, flowSummaries);
         attachWriteToKafka(options, flowSummaries);
         attachWriteToCortex(options, flowSummaries);
+    }
 
-        return p;
+    /**
+     * Writes the flow summaries of an additional window size (cf. {@link CalculateFlowStatistics#perWindowSize()}).
+     */
+    private static class WriteFlowSummaries extends PTransform<PCollection<KV<CompoundKey, Aggregate>>, PDone> {
+        // the options are only used while the pipeline is constructed
+        private final transient NephronOptions options;
+
+        private WriteFlowSummaries(NephronOptions options) {
+            this.options = options;
+        }
+
+        @Override
+        public PDone expand(PCollection<KV<CompoundKey, Aggregate>> input) {
+            writeFlowSummaries(options, input);
+            return PDone.in(input.getPipeline());
+        }
+    }
+
+    /**
+     * Writes the flow summaries that are output in catch-up mode. Elasticsearch and Cortex use larger batches.
+     */
+    private static class WriteCatchUpFlowSummaries extends PTransform<PCollection<KV<CompoundKey, Aggregate>>, PDone> {
+        // the options are only used while the pipeline is constructed
+        private final transient NephronOptions options;
+
+        private WriteCatchUpFlowSummaries(NephronOptions options) {
+            this.options = options;
+        }
+
+        @Override
+        public PDone expand(PCollection<KV<CompoundKey, Aggregate>> input) {
+            attachWriteToElastic(options, input, null, options.getCatchUpElasticMaxBatchSize());
+            attachWriteToKafka(options, input);
+            attachWriteToCortex(options, input, cw -> cw
+                    .withMaxBatchSize(options.getCatchUpCortexMaxBatchSize())
+                    .withMaxBatchBytes(options.getCatchUpCortexMaxBatchBytes()));
+            return PDone.in(input.getPipeline());
+        }
+    }
+
+    /**
+     * Returns the configuration of Kafka consumers that read flows.
+     */
+    static Map<String, Object> kafkaConsumerConfig(NephronOptions options) {
+        Map<String, Object> kafkaConsumerConfig = loadKafkaClientProperties(options);
+
+        kafkaConsumerConfig.put(ConsumerConfig.GROUP_ID_CONFIG, options.getGroupId());
+        // Auto-commit should be disabled when checkpointing is on:
+        // the state in the checkpoints are used to derive the offsets instead
+        kafkaConsumerConfig.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, options.getAutoCommit());
+        if (options.getProjectedFlowDecoding()) {
+            kafkaConsumerConfig.put(KafkaInputFlowDeserializer.PROJECTED_DECODING_CONFIG, true);
+        }
+        putInputFilterConfig(options, kafkaConsumerConfig);
+        return kafkaConsumerConfig;
+    }
+
+    /**
+     * Loads the configured string dictionary. The dictionary is shipped to the workers by the coders that use it.
+     */
+    public static StringDictionary stringDictionary(NephronOptions options) {
+        if (!Strings.isNullOrEmpty(options.getStringDictionaryFile())) {
+            try {
+                return StringDictionary.load(options.getStringDictionaryFile());
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading string dictionary", e);
+            }
+        } else {
+            return StringDictionary.EMPTY;
+        }
+    }
+
+    public static PCollection<Flow> shedLoadIfNecessary(NephronOptions options, PCollection<Flow> flows) {
+        if (options.getLoadSheddingDriftThresholdMs() != 0) {
+            return flows.apply("shed_load", ParDo.of(new LoadShedding(options.getLoadSheddingDriftThresholdMs(), options.getMaxLoadSheddingRate())));
+        } else {
+            return flows;
+        }
     }
 
     public static PCollection<KV<CompoundKey, Aggregate>> accumulateSummariesIfNecessary(NephronOptions options, PCollection<KV<CompoundKey, Aggregate>> flowSummaries) {
@@ -164,20 +305,52 @@ public class Pipeline {
         }
     }
 
+    /**
+     * Returns a {@link CatchUpGate} that suppresses early and late panes of flow summaries while the pipeline processes
+     * a backlog.
+     */
+    public static CatchUpGate<CompoundKey, Aggregate> catchUpGate(NephronOptions options, PCollection<KV<CompoundKey, Aggregate>> flowSummaries) {
+        KvCoder<CompoundKey, Aggregate> coder = (KvCoder<CompoundKey, Aggregate>) flowSummaries.getCoder();
+        return new CatchUpGate<>(
+                Aggregate::merge,
+                Duration.millis(options.getCatchUpDriftThresholdMs()),
+                Duration.millis(options.getCatchUpFlushIntervalMs()),
+                coder.getKeyCoder(),
+                coder.getValueCoder()
+        );
+    }
+
     public static PCollection<KV<CompoundKey, Aggregate>> accumulateFlowSummaries(
             PCollection<KV<CompoundKey, Aggregate>> input,
             Duration accumulationDelay
     ) {
+        KvCoder<CompoundKey, Aggregate> coder = (KvCoder<CompoundKey, Aggregate>) input.getCoder();
         var paneAccumulator = new PaneAccumulator<>(
                 Aggregate::merge,
                 accumulationDelay,
-                new CompoundKey.CompoundKeyCoder(),
-                new Aggregate.AggregateCoder()
+                coder.getKeyCoder(),
+                coder.getValueCoder()
         );
         return input.apply(paneAccumulator);
     }
 
-    private static Map<String, Object> loadKafkaClientProperties(NephronOptions options) {
+    private static void putInputFilterConfig(NephronOptions options, Map<String, Object> kafkaConsumerConfig) {
+        BiConsumer<String, String> put = (key, value) -> {
+            if (!Strings.isNullOrEmpty(value)) {
+                kafkaConsumerConfig.put(key, value);
+            }
+        };
+        put.accept(InputFilter.ALLOWED_NODE_IDS_CONFIG, options.getInputAllowedNodeIds());
+        put.accept(InputFilter.DENIED_NODE_IDS_CONFIG, options.getInputDeniedNodeIds());
+        put.accept(InputFilter.ALLOWED_FOREIGN_SOURCES_CONFIG, options.getInputAllowedForeignSources());
+        put.accept(InputFilter.DENIED_FOREIGN_SOURCES_CONFIG, options.getInputDeniedForeignSources());
+        put.accept(InputFilter.ALLOWED_LOCATIONS_CONFIG, options.getInputAllowedLocations());
+        put.accept(InputFilter.DENIED_LOCATIONS_CONFIG, options.getInputDeniedLocations());
+        put.accept(InputFilter.ALLOWED_IF_INDEXES_CONFIG, options.getInputAllowedIfIndexes());
+        put.accept(InputFilter.DENIED_IF_INDEXES_CONFIG, options.getInputDeniedIfIndexes());
+    }
+
+    static Map<String, Object> loadKafkaClientProperties(NephronOptions options) {
         Map<String, Object> kafkaClientProperties = new HashMap<>();
 
         if (!Strings.isNullOrEmpty(options.getKafkaClientProperties())) {
@@ -195,16 +368,56 @@ public class Pipeline {
         return kafkaClientProperties;
     }
 
+    /**
+     * Returns the configured dead letter sink or null if neither a dead letter topic nor a dead letter path is set.
+     */
+    public static PTransform<PCollection<KV<String, byte[]>>, PDone> deadLetterSink(NephronOptions options) {
+        if (!Strings.isNullOrEmpty(options.getDeadLetterTopic())) {
+            var kafkaProducerConfig = loadKafkaClientProperties(options);
+            return new WriteDeadLettersToKafka(options.getBootstrapServers(), options.getDeadLetterTopic(), kafkaProducerConfig);
+        } else if (!Strings.isNullOrEmpty(options.getDeadLetterPath())) {
+            return new WriteDeadLettersToFiles(options.getDeadLetterPath());
+        } else {
+            return null;
+        }
+    }
+
     public static void attachWriteToElastic(NephronOptions options, PCollection<KV<CompoundKey, Aggregate>> flowSummaries) {
+        attachWriteToElastic(options, flowSummaries, null);
+    }
+
+    /**
+     * @param resolution the resolution of a rollup tier; {@code null} for the flow summaries of the fixed windows
+     */
+    public static void attachWriteToElastic(NephronOptions options, PCollection<KV<CompoundKey, Aggregate>> flowSummaries, String resolution) {
+        attachWriteToElastic(options, flowSummaries, resolution, options.getElasticMaxBatchSize());
+    }
+
+    private static void attachWriteToElastic(
+            NephronOptions options,
+            PCollection<KV<CompoundKey, Aggregate>> flowSummaries,
+            String resolution,
+            long maxBatchSize
+    ) {
         if (!Strings.isNullOrEmpty(options.getElasticUrl())) {
-            flowSummaries.apply(new WriteToElasticsearch(options));
+            PCollection<KV<CompoundKey, Aggregate>> selected = selectTypes(options, AggregationPlan.Sink.ELASTIC, flowSummaries, resolution);
+            applyTagged(selected, resolution, new WriteToElasticsearch(options).withResolution(resolution).withMaxBatchSize(maxBatchSize));
         }
     }
 
     public static void attachWriteToKafka(NephronOptions options, PCollection<KV<CompoundKey, Aggregate>> flowSummaries) {
+        attachWriteToKafka(options, flowSummaries, null);
+    }
+
+    /**
+     * @param resolution the resolution of a rollup tier; {@code null} for the flow summaries of the fixed windows
+     */
+    public static void attachWriteToKafka(NephronOptions options, PCollection<KV<CompoundKey, Aggregate>> flowSummaries, String resolution) {
         if (!Strings.isNullOrEmpty(options.getFlowDestTopic())) {
             var kafkaProducerConfig = loadKafkaClientProperties(options);
-            flowSummaries.apply(new WriteToKafka(options.getBootstrapServers(), options.getFlowDestTopic(), kafkaProducerConfig));
+            PCollection<KV<CompoundKey, Aggregate>> selected = selectTypes(options, AggregationPlan.Sink.KAFKA, flowSummaries, resolution);
+            applyTagged(selected, resolution,
+                    new WriteToKafka(options.getBootstrapServers(), options.getFlowDestTopic(), kafkaProducerConfig).withResolution(resolution));
         }
     }
 
@@ -220,20 +433,36 @@ public class Pipeline {
             NephronOptions options,
             PCollection<KV<CompoundKey, Aggregate>> flowSummaries,
             Consumer<CortexIo.Write<CompoundKey, Aggregate>> additionalConfig
+    ) {
+        attachWriteToCortex(options, flowSummaries, additionalConfig, null);
+    }
+
+    /**
+     * @param resolution the resolution of a rollup tier; {@code null} for the flow summaries of the fixed windows.
+     *                   Samples of rollup tiers carry their resolution as an additional label.
+     */
+    public static void attachWriteToCortex(
+            NephronOptions options,
+            PCollection<KV<CompoundKey, Aggregate>> flowSummaries,
+            Consumer<CortexIo.Write<CompoundKey, Aggregate>> additionalConfig,
+            String resolution
     ) {
         if (cortexOutputEnabled(options)) {
+            CortexIo.BuildTimeSeries<CompoundKey, Aggregate> buildTimeSeries =
+                    (key, agg, eventTimestamp, index, builder) -> cortexOutput(key, agg, eventTimestamp, index, resolution, builder);
             CortexIo.Write<CompoundKey, Aggregate> cortexWrite;
             if (options.getCortexAccumulationDelayMs() != 0) {
+                KvCoder<CompoundKey, Aggregate> coder = (KvCoder<CompoundKey, Aggregate>) flowSummaries.getCoder();
                 cortexWrite = CortexIo.of(
                         options.getCortexWriteUrl(),
-                        Pipeline::cortexOutput,
-                        new CompoundKey.CompoundKeyCoder(),
-                        new Aggregate.AggregateCoder(),
+                        buildTimeSeries,
+                        coder.getKeyCoder(),
+                        coder.getValueCoder(),
                         Aggregate::merge,
                         Duration.millis(options.getCortexAccumulationDelayMs())
                 );
             } else {
-                cortexWrite = CortexIo.of(options.getCortexWriteUrl(), Pipeline::cortexOutput);
+                cortexWrite = CortexIo.of(options.getCortexWriteUrl(), buildTimeSeries);
             }
             cortexWrite
                     .withMaxBatchSize(options.getCortexMaxBatchSize())
@@ -242,9 +471,44 @@ public class Pipeline {
             if (!Strings.isNullOrEmpty(options.getCortexOrgId())) {
                 cortexWrite.withOrgId(options.getCortexOrgId());
             }
-            flowSummaries
-                    .apply(Filter.by(includeInCortexOutput(options)))
-                    .apply(cortexWrite);
+            PCollection<KV<CompoundKey, Aggregate>> selected = selectTypes(options, AggregationPlan.Sink.CORTEX, flowSummaries, resolution);
+            PCollection<KV<CompoundKey, Aggregate>> included = applyTagged(selected, resolution, Filter.by(includeInCortexOutput(options)));
+            applyTagged(included, resolution, cortexWrite);
+        }
+    }
+
+    /**
+     * Restricts the flow summaries that are written to the given sink to the compound key types the aggregation plan
+     * lists for that sink. The flow summaries are returned unchanged if the sink takes all calculated types.
+     */
+    private static PCollection<KV<CompoundKey, Aggregate>> selectTypes(
+            NephronOptions options,
+            AggregationPlan.Sink sink,
+            PCollection<KV<CompoundKey, Aggregate>> flowSummaries,
+            String resolution
+    ) {
+        AggregationPlan plan = AggregationPlan.of(options);
+        if (!plan.isSelective(sink)) {
+            return flowSummaries;
+        }
+        Set<CompoundKeyType> types = plan.getTypes(sink);
+        String name = sink.name().toLowerCase() + "_select_types" + (resolution == null ? "" : "_" + resolution);
+        return flowSummaries.apply(name, Filter.by(kv -> types.contains(kv.getKey().type)));
+    }
+
+    /**
+     * Applies the given transform. Transforms that are applied on rollup tiers are named by the resolution of the tier
+     * in order to keep transform names unique.
+     */
+    private static <O extends POutput> O applyTagged(
+            PCollection<KV<CompoundKey, Aggregate>> input,
+            String resolution,
+            PTransform<? super PCollection<KV<CompoundKey, Aggregate>>, O> transform
+    ) {
+        if (resolution == null) {
+            return input.apply(transform);
+        } else {
+            return input.apply(transform.getName() + "_" + resolution, transform);
         }
     }
 
@@ -301,7 +565,7 @@ public class Pipeline {
                 switch (fsd.getKey().type) {
                     case EXPORTER_INTERFACE_HOST:
                     case EXPORTER_INTERFACE_TOS_HOST:
-                        return ipValue.isInRange(fsd.getKey().data.address);
+                        return ipValue.isInRange(fsd.getKey().getData().address);
                     case EXPORTER_INTERFACE_CONVERSATION:
                     case EXPORTER_INTERFACE_TOS_CONVERSATION:
                         return false;
@@ -333,107 +597,427 @@ public class Pipeline {
             Aggregate agg,
             Instant eventTimestamp,
             int index,
+            String resolution,
             TimeSeriesBuilder builder
     ) {
         if (LOG.isTraceEnabled()) {
             LOG.trace("cortex output - eventTimestamp: {}; keyType: {}; key: {}; index: {}; in: {}; out: {}; total: {}",
                     eventTimestamp, key.type, key, index, agg.getBytesIn(), agg.getBytesOut(), agg.getBytesIn() + agg.getBytesOut());
         }
-        doCortexOutput(key, eventTimestamp, index, "in", agg.getBytesIn(), builder);
+        doCortexOutput(key, eventTimestamp, index, resolution, "in", agg.getBytesIn(), agg.isEstimated(), builder);
         builder.nextSeries();
-        doCortexOutput(key, eventTimestamp, index, "out", agg.getBytesOut(), builder);
+        doCortexOutput(key, eventTimestamp, index, resolution, "out", agg.getBytesOut(), agg.isEstimated(), builder);
     }
 
     private static void doCortexOutput(
             CompoundKey key,
             Instant eventTimestamp,
             int paneId,
+            String resolution,
             String direction,
             long bytes,
+            boolean estimated,
             TimeSeriesBuilder builder
     ) {
         builder.addLabel("pane", paneId);
         builder.addLabel("direction", direction);
+        if (estimated) {
+            // samples of estimated summaries go into separate series
+            builder.addLabel("estimated", "true");
+        }
+        if (resolution != null) {
+            builder.addLabel("resolution", resolution);
+        }
         builder.addSample(eventTimestamp.getMillis(), bytes);
         key.populate(builder);
     }
 
+    /**
+     * Registers the coders of flows, keys, and aggregates. Keys and aggregates are encoded by the string dictionary
+     * that is configured in the options of the given pipeline.
+     */
     public static void registerCoders(org.apache.beam.sdk.Pipeline p) {
         final CoderRegistry coderRegistry = p.getCoderRegistry();
+        final StringDictionary dictionary = stringDictionary(p.getOptions().as(NephronOptions.class));
         coderRegistry.registerCoderForClass(FlowDocument.class, new FlowDocumentProtobufCoder());
-        coderRegistry.registerCoderForClass(CompoundKey.class, new CompoundKey.CompoundKeyCoder());
-        coderRegistry.registerCoderForClass(Aggregate.class, new Aggregate.AggregateCoder());
+        coderRegistry.registerCoderForClass(Flow.class, new Flow.FlowCoder());
+        coderRegistry.registerCoderForClass(CompoundKey.class, new CompoundKey.CompoundKeyCoder(dictionary));
+        coderRegistry.registerCoderForClass(Aggregate.class, new Aggregate.AggregateCoder(dictionary));
     }
 
-    public static class CalculateFlowStatistics extends PTransform<PCollection<FlowDocument>, PCollection<KV<CompoundKey, Aggregate>>> {
+    public static class CalculateFlowStatistics extends PTransform<PCollection<Flow>, PCollection<KV<CompoundKey, Aggregate>>> {
         private final int topK;
-        private final PTransform<PCollection<FlowDocument>, PCollection<FlowDocument>> windowing;
-
-        public CalculateFlowStatistics(int topK, PTransform<PCollection<FlowDocument>, PCollection<FlowDocument>> windowing) {
+        private final PTransform<PCollection<Flow>, PCollection<KV<CompoundKey, Aggregate>>> windowing;
+        private final boolean cubeAggregation;
+        private HotKeyFanout hotKeyFanout;
+        private Map<CompoundKeyType, Integer> approximateTopK = Collections.emptyMap();
+        private boolean perInterfaceTopK;
+        private int conversationCandidates;
+        private int cardinalityLimit;
+        private Map<CompoundKeyType, Duration> windowSizes = Collections.emptyMap();
+        private Set<CompoundKeyType> types = AggregationPlan.ALL_TYPES;
+
+        /**
+         * @param windowing splits flows into windows and keys them by conversation with TOS
+         * @param cubeAggregation selects the {@link CubeAggregation} engine instead of the DAG of combine and topK transforms
+         */
+        public CalculateFlowStatistics(int topK, PTransform<PCollection<Flow>, PCollection<KV<CompoundKey, Aggregate>>> windowing, boolean cubeAggregation) {
             this.topK = topK;
             this.windowing = windowing;
+            this.cubeAggregation = cubeAggregation;
+        }
+
+        public CalculateFlowStatistics(int topK, PTransform<PCollection<Flow>, PCollection<KV<CompoundKey, Aggregate>>> windowing) {
+            this(topK, windowing, false);
+        }
+
+        /**
+         * Uses the fused {@link WindowedAggregates} stage with the windowing parameters of the given transform.
+         */
+        public CalculateFlowStatistics(int topK, WindowedFlows windowing, boolean cubeAggregation) {
+            this(topK, new WindowedAggregates(windowing.fixedWindowSize, windowing.maxFlowDuration,
+                    windowing.earlyProcessingDelay, windowing.lateProcessingDelay, windowing.allowedLateness), cubeAggregation);
+        }
+
+        public CalculateFlowStatistics(int topK, WindowedFlows windowing) {
+            this(topK, windowing, false);
         }
 
         public CalculateFlowStatistics(NephronOptions options) {
-            this(options.getTopK(), new WindowedFlows(options));
+            this(options.getTopK(), new WindowedAggregates(options), options.getCubeAggregation());
+            this.hotKeyFanout = HotKeyFanout.of(options);
+            this.approximateTopK = CompoundKeyType.parseIntegers(options.getApproximateTopK());
+            this.perInterfaceTopK = options.getPerInterfaceTopK();
+            this.conversationCandidates = options.getConversationPrefilterCandidates();
+            this.cardinalityLimit = options.getCardinalityLimit();
+            this.windowSizes = windowSizes(options);
+            this.types = AggregationPlan.of(options).getCalculatedTypes();
+        }
+
+        /**
+         * Returns the configured window sizes of compound key types that differ from the fixed window size.
+         */
+        public static Map<CompoundKeyType, Duration> windowSizes(NephronOptions options) {
+            Map<CompoundKeyType, Duration> res = new EnumMap<>(CompoundKeyType.class);
+            CompoundKeyType.parseLongs(options.getWindowSizesMs()).forEach((type, size) -> {
+                if (size <= 0 || size % options.getFixedWindowSizeMs() != 0) {
+                    throw new IllegalArgumentException("window size must be a multiple of the fixed window size - type: " + type + "; window size: " + size + "; fixed window size: " + options.getFixedWindowSizeMs());
+                }
+                if (size != options.getFixedWindowSizeMs()) {
+                    res.put(type, Duration.millis(size));
+                }
+            });
+            return res;
+        }
+
+        /**
+         * Sets the hot key fanout of the combine stages; no fanout is used if {@code null}.
+         */
+        public CalculateFlowStatistics withHotKeyFanout(HotKeyFanout hotKeyFanout) {
+            this.hotKeyFanout = hotKeyFanout;
+            return this;
         }
 
+        /**
+         * Sets the capacities of the Space-Saving summaries that approximate the topK entries of the given compound
+         * key types. Conversation and host types are supported; topK entries of other types are calculated exactly.
+         * Approximate topKs are not supported by cube aggregation.
+         */
+        public CalculateFlowStatistics withApproximateTopK(Map<CompoundKeyType, Integer> capacities) {
+            this.approximateTopK = capacities;
+            return this;
+        }
+
+        /**
+         * Calculates the exact topK entries with and without tos in a single combine stage per exporter interface
+         * (cf. {@link SumsAndTopKsFn}) instead of three combine stages. Not supported by cube aggregation, which
+         * already calculates all topKs of an exporter interface in a single combine stage.
+         */
+        public CalculateFlowStatistics withPerInterfaceTopK(boolean perInterfaceTopK) {
+            this.perInterfaceTopK = perInterfaceTopK;
+            return this;
+        }
+
+        /**
+         * Prefilters conversations by a {@link ConversationPrefilter} that forwards the given number of candidates per
+         * interface and tos and bundle. Conversations are not prefiltered if zero. The prefilter is not supported by cube
+         * aggregation.
+         */
+        public CalculateFlowStatistics withConversationPrefilter(int candidatesPerKey) {
+            this.conversationCandidates = candidatesPerKey;
+            return this;
+        }
+
+        /**
+         * Limits the number of distinct conversation and host keys per exporter interface and window by a
+         * {@link CardinalityGuard}. Keys are not limited if zero. The limit is not supported by cube aggregation.
+         */
+        public CalculateFlowStatistics withCardinalityLimit(int cardinalityLimit) {
+            this.cardinalityLimit = cardinalityLimit;
+            return this;
+        }
+
+        /**
+         * Sets the window sizes of compound key types. The summaries of these types are calculated in windows of the
+         * given sizes that are derived from the windows of the conversations yielded by the windowing transform. Window
+         * sizes must be multiples of the window size of that transform. All other types use the windows of the
+         * windowing transform.
+         */
+        public CalculateFlowStatistics withWindowSizes(Map<CompoundKeyType, Duration> windowSizes) {
+            this.windowSizes = windowSizes;
+            return this;
+        }
+
+        /**
+         * Sets the compound key types that are calculated. The pipeline graph is pruned such that stages that are
+         * not required for these types are not created. TopK types require their parent totals
+         * (cf. {@link AggregationPlan}).
+         */
+        public CalculateFlowStatistics withTypes(Set<CompoundKeyType> types) {
+            this.types = types;
+            return this;
+        }
+
+        private int approximateTopK(CompoundKeyType type) {
+            return approximateTopK.getOrDefault(type, 0);
+        }
+
+        /**
+         * Groups the calculated types by their window size. Types without a configured window size use the windows of
+         * the input; they are listed first under the {@code null} key if there are any.
+         */
+        private Map<Duration, Set<CompoundKeyType>> typesByWindowSize() {
+            Set<CompoundKeyType> inputWindowTypes = EnumSet.noneOf(CompoundKeyType.class);
+            inputWindowTypes.addAll(types);
+            Map<Duration, Set<CompoundKeyType>> bySize = new TreeMap<>();
+            windowSizes.forEach((type, size) -> {
+                if (inputWindowTypes.remove(type)) {
+                    bySize.computeIfAbsent(size, s -> EnumSet.noneOf(CompoundKeyType.class)).add(type);
+                }
+            });
+            Map<Duration, Set<CompoundKeyType>> res = new LinkedHashMap<>();
+            if (!inputWindowTypes.isEmpty()) {
+                res.put(null, inputWindowTypes);
+            }
+            res.putAll(bySize);
+            return res;
+        }
+
+        /**
+         * Checks if the configured window sizes yield flow summaries in windows of different sizes.
+         */
+        public boolean yieldsDifferentWindowSizes() {
+            return typesByWindowSize().size() > 1;
+        }
+
+        /**
+         * Calculates the flow summaries in a single collection. Fails if window sizes are configured that yield
+         * summaries in windows of different sizes; these summaries can not be flattened (cf. {@link #perWindowSize()}).
+         */
         @Override
-        public PCollection<KV<CompoundKey, Aggregate>> expand(PCollection<FlowDocument> input) {
-            PCollection<FlowDocument> windowedStreamOfFlows = input.apply("WindowedFlows", windowing);
+        public PCollection<KV<CompoundKey, Aggregate>> expand(PCollection<Flow> input) {
+            if (yieldsDifferentWindowSizes()) {
+                throw new IllegalStateException("flow summaries of different window sizes can not be flattened - use perWindowSize(); window sizes: " + windowSizes);
+            }
+            return expandPerWindowSize(input).get(0);
+        }
 
-            PCollection<KV<CompoundKey, Aggregate>> keyedByConvWithTos =
-                    windowedStreamOfFlows.apply("key_by_conv", ParDo.of(new KeyByConvWithTos()));
+        /**
+         * Returns a transform that calculates the flow summaries in one collection per window size. The first
+         * collection holds the summaries in the windows of the input if any types use these windows; the other
+         * collections follow in ascending order of their window sizes.
+         *
+         * Collections of different window sizes must not be flattened; sinks are attached to each of them separately.
+         */
+        public PTransform<PCollection<Flow>, PCollectionList<KV<CompoundKey, Aggregate>>> perWindowSize() {
+            return new PTransform<>("per_window_size") {
+                @Override
+                public PCollectionList<KV<CompoundKey, Aggregate>> expand(PCollection<Flow> input) {
+                    return expandPerWindowSize(input);
+                }
+            };
+        }
 
-            SumsAndTopKs conv = aggregateSumsAndTopKs("conv_", keyedByConvWithTos,
-                    CompoundKeyType.EXPORTER_INTERFACE_CONVERSATION,
-                    topK,
-                    k -> k.isCompleteConversationKey()
-            );
+        private PCollectionList<KV<CompoundKey, Aggregate>> expandPerWindowSize(PCollection<Flow> input) {
+            if (cubeAggregation && conversationCandidates > 0) {
+                throw new IllegalArgumentException("the conversation prefilter is not supported by cube aggregation");
+            }
+            if (cubeAggregation && cardinalityLimit > 0) {
+                // the cube keeps all conversations of an exporter interface and window in memory
+                throw new IllegalArgumentException("the cardinality limit is not supported by cube aggregation");
+            }
+            if (cubeAggregation && !approximateTopK.isEmpty()) {
+                throw new IllegalArgumentException("approximate topKs are not supported by cube aggregation");
+            }
+            if (cubeAggregation && perInterfaceTopK) {
+                throw new IllegalArgumentException("per interface topKs are not supported by cube aggregation");
+            }
+            PCollection<KV<CompoundKey, Aggregate>> keyedByConvWithTos = input.apply("WindowedAggregates", windowing);
+
+            // all window sizes share the single split stage
+            // -> the windows of the input nest into the coarser windows because their per node shifts are consistent
+            PCollectionList<KV<CompoundKey, Aggregate>> flowSummaries = PCollectionList.empty(input.getPipeline());
+            for (Map.Entry<Duration, Set<CompoundKeyType>> e : typesByWindowSize().entrySet()) {
+                if (e.getKey() == null) {
+                    flowSummaries = flowSummaries.and(aggregate("", keyedByConvWithTos, e.getValue()));
+                } else {
+                    String prefix = Rollup.resolution(e.getKey()) + "_";
+                    UnalignedFixedWindows<KV<CompoundKey, Aggregate>> windowFn = UnalignedFixedWindows.of(e.getKey(), kv -> kv.getKey().getData().nodeId);
+                    // triggering, allowed lateness, and timestamp combiner are kept when windows are reassigned
+                    PCollection<KV<CompoundKey, Aggregate>> rewindowed = keyedByConvWithTos
+                            .apply(prefix + "to_windows", Window.into(windowFn));
+                    flowSummaries = flowSummaries.and(aggregate(prefix, rewindowed, e.getValue()));
+                }
+            }
+            return flowSummaries;
+        }
 
-            PCollectionTuple projected =
-                    conv.withTos.sum.apply("proj_conv", ParDo.of(new ProjConvWithTos()).withOutputTags(BY_APP, TupleTagList.of(BY_HOST)));
+        /**
+         * Calculates the summaries of the given types. Stages that are not required for these types are not applied.
+         */
+        private PCollection<KV<CompoundKey, Aggregate>> aggregate(String prefix, PCollection<KV<CompoundKey, Aggregate>> keyedByConvWithTos, Set<CompoundKeyType> types) {
+            boolean allTypes = types.containsAll(AggregationPlan.ALL_TYPES);
 
-            PCollection<KV<CompoundKey, Aggregate>> keyedByAppWithTos = projected.get(BY_APP);
-            PCollection<KV<CompoundKey, Aggregate>> keyedByHostWithTos = projected.get(BY_HOST);
+            if (cubeAggregation) {
+                PCollection<KV<CompoundKey, Aggregate>> cube = keyedByConvWithTos.apply(prefix + "cube", new CubeAggregation(topK, hotKeyFanout));
+                return allTypes ? cube : cube.apply(prefix + "cube_filter", Filter.by(kv -> types.contains(kv.getKey().type)));
+            }
 
-            SumsAndTopKs app = aggregateSumsAndTopKs("app_", keyedByAppWithTos,
-                    CompoundKeyType.EXPORTER_INTERFACE_APPLICATION,
-                    topK,
-                    k -> true
-            );
+            boolean convTypes = types.contains(CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION) || types.contains(CompoundKeyType.EXPORTER_INTERFACE_CONVERSATION);
+            boolean appTypes = types.contains(CompoundKeyType.EXPORTER_INTERFACE_TOS_APPLICATION) || types.contains(CompoundKeyType.EXPORTER_INTERFACE_APPLICATION);
+            boolean hostTypes = types.contains(CompoundKeyType.EXPORTER_INTERFACE_TOS_HOST) || types.contains(CompoundKeyType.EXPORTER_INTERFACE_HOST);
+            boolean totalTypes = types.contains(CompoundKeyType.EXPORTER_INTERFACE_TOS) || types.contains(CompoundKeyType.EXPORTER_INTERFACE);
 
-            SumsAndTopKs host = aggregateSumsAndTopKs("host_", keyedByHostWithTos,
-                    CompoundKeyType.EXPORTER_INTERFACE_HOST,
-                    topK,
-                    k -> true
-            );
+            PCollectionList<KV<CompoundKey, Aggregate>> flowSummaries = PCollectionList.empty(keyedByConvWithTos.getPipeline());
+
+            PCollectionTuple prefiltered = null;
+            SumsAndTopKs conv = null;
+            if (convTypes) {
+                if (conversationCandidates > 0) {
+                    prefiltered = keyedByConvWithTos.apply(prefix + "conv_prefilter", ParDo.of(new ConversationPrefilter(conversationCandidates))
+                            .withOutputTags(ConversationPrefilter.CANDIDATES, TupleTagList.of(ConversationPrefilter.BY_APP).and(ConversationPrefilter.BY_HOST)));
+                    keyedByConvWithTos = prefiltered.get(ConversationPrefilter.CANDIDATES);
+                }
 
-            // exporter/interface and exporter/interface/tos aggregations are used as "parents" when the
-            // "include other" option is selected for topK-queries
-            // -> they must not be limited to topK but contain all cases
-            // -> all other persisted aggregations are topK aggregations
+                PCollection<KV<CompoundKey, Aggregate>> convInput = keyedByConvWithTos;
+                if (cardinalityLimit > 0) {
+                    convInput = convInput.apply(prefix + "conv_guard", ParDo.of(new CardinalityGuard(cardinalityLimit, prefix + "conv_cardinality")));
+                }
+
+                conv = aggregateSumsAndTopKs(prefix + "conv_", convInput,
+                        CompoundKeyType.EXPORTER_INTERFACE_CONVERSATION,
+                        topK,
+                        k -> k.isCompleteConversationKey(),
+                        hotKeyFanout,
+                        perInterfaceTopK,
+                        approximateTopK(CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION),
+                        approximateTopK(CompoundKeyType.EXPORTER_INTERFACE_CONVERSATION)
+                );
+                flowSummaries = addTopKs(flowSummaries, types, CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION, CompoundKeyType.EXPORTER_INTERFACE_CONVERSATION, conv);
+            }
 
-            TotalAndSummary tos = aggregateParentTotal("tos_", app.withTos.sum);
-            TotalAndSummary itf = aggregateParentTotal("itf_", tos.total);
+            SumsAndTopKs app = null;
+            if (appTypes || hostTypes) {
+                // conversations are not summed if their topK entries are approximated or if no conversation types are calculated
+                // -> project the unsummed conversations; application and host aggregates are summed anyway
+                // summed conversations may contain overflow keys if their cardinality is limited
+                // -> project the unguarded conversations such that the addresses and applications of folded keys are kept
+                // conversations that were rolled up by the prefilter are flattened with the projections
+                // -> project the unsummed candidates because inputs of a flatten must share their triggers
+                boolean projectSums = conv != null && conv.withTos.sum != null && cardinalityLimit == 0 && prefiltered == null;
+                PCollection<KV<CompoundKey, Aggregate>> convWithTos = projectSums ? conv.withTos.sum : keyedByConvWithTos;
+                PCollectionTuple projected =
+                        convWithTos.apply(prefix + "proj_conv", ParDo.of(new ProjConvWithTos()).withOutputTags(BY_APP, TupleTagList.of(BY_HOST)));
+
+                PCollection<KV<CompoundKey, Aggregate>> keyedByAppWithTos = projected.get(BY_APP);
+                PCollection<KV<CompoundKey, Aggregate>> keyedByHostWithTos = projected.get(BY_HOST);
+
+                if (prefiltered != null) {
+                    // add the conversations that were rolled up by the prefilter
+                    keyedByAppWithTos = PCollectionList.of(keyedByAppWithTos).and(prefiltered.get(ConversationPrefilter.BY_APP))
+                            .apply(prefix + "app_with_rolled_up", Flatten.pCollections());
+                    keyedByHostWithTos = PCollectionList.of(keyedByHostWithTos).and(prefiltered.get(ConversationPrefilter.BY_HOST))
+                            .apply(prefix + "host_with_rolled_up", Flatten.pCollections());
+                }
+
+                if (appTypes) {
+                    app = aggregateSumsAndTopKs(prefix + "app_", keyedByAppWithTos,
+                            CompoundKeyType.EXPORTER_INTERFACE_APPLICATION,
+                            topK,
+                            k -> true,
+                            hotKeyFanout,
+                            perInterfaceTopK,
+                            0,
+                            0
+                    );
+                    flowSummaries = addTopKs(flowSummaries, types, CompoundKeyType.EXPORTER_INTERFACE_TOS_APPLICATION, CompoundKeyType.EXPORTER_INTERFACE_APPLICATION, app);
+                }
+
+                if (hostTypes) {
+                    if (cardinalityLimit > 0) {
+                        keyedByHostWithTos = keyedByHostWithTos.apply(prefix + "host_guard", ParDo.of(new CardinalityGuard(cardinalityLimit, prefix + "host_cardinality")));
+                    }
+                    SumsAndTopKs host = aggregateSumsAndTopKs(prefix + "host_", keyedByHostWithTos,
+                            CompoundKeyType.EXPORTER_INTERFACE_HOST,
+                            topK,
+                            k -> true,
+                            hotKeyFanout,
+                            perInterfaceTopK,
+                            approximateTopK(CompoundKeyType.EXPORTER_INTERFACE_TOS_HOST),
+                            approximateTopK(CompoundKeyType.EXPORTER_INTERFACE_HOST)
+                    );
+                    flowSummaries = addTopKs(flowSummaries, types, CompoundKeyType.EXPORTER_INTERFACE_TOS_HOST, CompoundKeyType.EXPORTER_INTERFACE_HOST, host);
+                }
+            }
+
+            if (totalTypes) {
+                // exporter/interface and exporter/interface/tos aggregations are used as "parents" when the
+                // "include other" option is selected for topK-queries
+                // -> they must not be limited to topK but contain all cases
+                // -> all other persisted aggregations are topK aggregations
+                // -> derive them from the application sums if available; otherwise directly from the conversations
+
+                PCollection<KV<CompoundKey, Aggregate>> tosChild = app != null ? app.withTos.sum : keyedByConvWithTos;
+                if (app == null && prefiltered != null) {
+                    tosChild = PCollectionList.of(tosChild).and(prefiltered.get(ConversationPrefilter.BY_APP))
+                            .apply(prefix + "tos_with_rolled_up", Flatten.pCollections());
+                }
+                TotalAndSummary tos = aggregateParentTotal(prefix + "tos_", tosChild, hotKeyFanout);
+
+                if (types.contains(CompoundKeyType.EXPORTER_INTERFACE)) {
+                    TotalAndSummary itf = aggregateParentTotal(prefix + "itf_", tos.total, hotKeyFanout);
+                    flowSummaries = flowSummaries.and(itf.summary);
+                }
+                if (types.contains(CompoundKeyType.EXPORTER_INTERFACE_TOS)) {
+                    flowSummaries = flowSummaries.and(tos.summary);
+                }
+            }
 
             // Merge all the summary collections
-            PCollectionList<KV<CompoundKey, Aggregate>> flowSummaries = PCollectionList.of(itf.summary)
-                    .and(tos.summary)
-                    .and(app.withTos.topK)
-                    .and(app.withoutTos.topK)
-                    .and(host.withTos.topK)
-                    .and(host.withoutTos.topK)
-                    .and(conv.withTos.topK)
-                    .and(conv.withoutTos.topK);
-            return flowSummaries.apply(Flatten.pCollections());
+            return flowSummaries.apply(prefix + "flatten", Flatten.pCollections());
+        }
+
+        private static PCollectionList<KV<CompoundKey, Aggregate>> addTopKs(
+                PCollectionList<KV<CompoundKey, Aggregate>> flowSummaries,
+                Set<CompoundKeyType> types,
+                CompoundKeyType typeWithTos,
+                CompoundKeyType typeWithoutTos,
+                SumsAndTopKs sumsAndTopKs
+        ) {
+            if (types.contains(typeWithTos)) {
+                flowSummaries = flowSummaries.and(sumsAndTopKs.withTos.topK);
+            }
+            if (types.contains(typeWithoutTos)) {
+                flowSummaries = flowSummaries.and(sumsAndTopKs.withoutTos.topK);
+            }
+            return flowSummaries;
         }
     }
 
     private static TupleTag<KV<CompoundKey, Aggregate>> BY_HOST = new TupleTag<KV<CompoundKey, Aggregate>>(){};
     private static TupleTag<KV<CompoundKey, Aggregate>> BY_APP = new TupleTag<KV<CompoundKey, Aggregate>>(){};
 
-    public static class WindowedFlows extends PTransform<PCollection<FlowDocument>, PCollection<FlowDocument>> {
+    public static class WindowedFlows extends PTransform<PCollection<Flow>, PCollection<Flow>> {
         private final Duration fixedWindowSize;
         private final Duration maxFlowDuration;
         private final Duration earlyProcessingDelay;
@@ -459,12 +1043,69 @@ public class Pipeline {
         }
 
         @Override
-        public PCollection<FlowDocument> expand(PCollection<FlowDocument> input) {
+        public PCollection<Flow> expand(PCollection<Flow> input) {
             return input.apply("attach_timestamp", attachTimestamps(fixedWindowSize, maxFlowDuration))
                     .apply("to_windows", toWindow(fixedWindowSize, earlyProcessingDelay, lateProcessingDelay, allowedLateness));
         }
     }
 
+    /**
+     * Splits flows into the windows they overlap with and keys them by conversation with TOS in a single stage.
+     *
+     * Yields the same windowed pairs of compound keys (of type EXPORTER_INTERFACE_TOS_CONVERSATION) and aggregates as
+     * applying {@link WindowedFlows} followed by {@link KeyByConvWithTos}. In contrast to these stages, flows are not
+     * output once for each window they overlap with: windows, keys, and the bytes in each window are determined in one
+     * pass and only the resulting pairs are passed on.
+     */
+    public static class WindowedAggregates extends PTransform<PCollection<Flow>, PCollection<KV<CompoundKey, Aggregate>>> {
+        private final Duration fixedWindowSize;
+        private final Duration maxFlowDuration;
+        private final Duration earlyProcessingDelay;
+        private final Duration lateProcessingDelay;
+        private final Duration allowedLateness;
+        private long mapSideCombineMemory;
+
+        public WindowedAggregates(Duration fixedWindowSize, Duration maxFlowDuration, Duration earlyProcessingDelay, Duration lateProcessingDelay, Duration allowedLateness) {
+            this.fixedWindowSize = Objects.requireNonNull(fixedWindowSize);
+            this.maxFlowDuration = Objects.requireNonNull(maxFlowDuration);
+            this.earlyProcessingDelay = Objects.requireNonNull(earlyProcessingDelay);
+            this.lateProcessingDelay = Objects.requireNonNull(lateProcessingDelay);
+            this.allowedLateness = Objects.requireNonNull(allowedLateness);
+        }
+
+        public WindowedAggregates(NephronOptions options) {
+            this(
+                    Duration.millis(options.getFixedWindowSizeMs()),
+                    Duration.millis(options.getMaxFlowDurationMs()),
+                    Duration.millis(options.getEarlyProcessingDelayMs()),
+                    Duration.millis(options.getLateProcessingDelayMs()),
+                    Duration.millis(options.getAllowedLatenessMs())
+            );
+            this.mapSideCombineMemory = options.getMapSideCombineMemoryMb() * 1024L * 1024L;
+        }
+
+        /**
+         * Combines the aggregates of equal keys in each bundle by a {@link MapSideCombine} stage with the given memory
+         * budget in bytes. No map side combine stage is used if zero.
+         */
+        public WindowedAggregates withMapSideCombine(long memoryBudget) {
+            this.mapSideCombineMemory = memoryBudget;
+            return this;
+        }
+
+        @Override
+        public PCollection<KV<CompoundKey, Aggregate>> expand(PCollection<Flow> input) {
+            UnalignedFixedWindows<KV<CompoundKey, Aggregate>> windowFn =
+                    UnalignedFixedWindows.of(fixedWindowSize, kv -> kv.getKey().getData().nodeId);
+            PCollection<KV<CompoundKey, Aggregate>> keyed =
+                    input.apply("split_and_key", ParDo.of(new SplitAndKeyByConvWithTos(fixedWindowSize, maxFlowDuration)));
+            if (mapSideCombineMemory > 0) {
+                keyed = keyed.apply("map_side_combine", ParDo.of(new MapSideCombine(fixedWindowSize, mapSideCombineMemory)));
+            }
+            return keyed.apply("to_windows", toWindow(windowFn, earlyProcessingDelay, lateProcessingDelay, allowedLateness));
+        }
+    }
+
     public static class WriteToElasticsearch extends PTransform<PCollection<KV<CompoundKey, Aggregate>>, PDone> {
         private final String elasticIndex;
         private final IndexStrategy indexStrategy;
@@ -479,10 +1120,12 @@ public class Pipeline {
 
         private int elasticRetryCount;
         private long elasticRetryDuration;
+        private long elasticMaxBatchSize;
+        private String resolution;
 
         public WriteToElasticsearch(String elasticUrl, String elasticUser, String elasticPassword, String elasticIndex,
                                     IndexStrategy indexStrategy, int elasticConnectTimeout, int elasticSocketTimeout,
-                                    int elasticRetryCount, long elasticRetryDuration) {
+                                    int elasticRetryCount, long elasticRetryDuration, long elasticMaxBatchSize) {
             Objects.requireNonNull(elasticUrl);
             this.elasticIndex = Objects.requireNonNull(elasticIndex);
             this.indexStrategy = Objects.requireNonNull(indexStrategy);
@@ -497,23 +1140,42 @@ public class Pipeline {
             this.esConfig = thisEsConfig;
             this.elasticRetryCount = elasticRetryCount;
             this.elasticRetryDuration = elasticRetryDuration;
+            this.elasticMaxBatchSize = elasticMaxBatchSize;
         }
 
         public WriteToElasticsearch(NephronOptions options) {
             this(options.getElasticUrl(), options.getElasticUser(), options.getElasticPassword(),
                     options.getElasticFlowIndex(), options.getElasticIndexStrategy(),
                     options.getElasticConnectTimeout(), options.getElasticSocketTimeout(),
-                    options.getElasticRetryCount(), options.getElasticRetryDuration());
+                    options.getElasticRetryCount(), options.getElasticRetryDuration(), options.getElasticMaxBatchSize());
+        }
+
+        /**
+         * Sets the resolution of the written flow summaries; used for rollup tiers. Rollup tiers are written into
+         * separate indices.
+         *
+         * @see Rollup#sinkName(String, String)
+         */
+        public WriteToElasticsearch withResolution(String resolution) {
+            this.resolution = resolution;
+            return this;
+        }
+
+        public WriteToElasticsearch withMaxBatchSize(long elasticMaxBatchSize) {
+            this.elasticMaxBatchSize = elasticMaxBatchSize;
+            return this;
         }
 
         @Override
         public PDone expand(PCollection<KV<CompoundKey, Aggregate>> input) {
-            return input.apply("SerializeToJson", FLOW_SUMMARY_DATA_TO_JSON)
+            String index = Rollup.sinkName(elasticIndex, resolution);
+            return input.apply("SerializeToJson", flowSummaryDataToJson(resolution))
                     .apply("WriteToElasticsearch", ElasticsearchIO.write().withConnectionConfiguration(esConfig)
                             .withRetryConfiguration(
                                     ElasticsearchIO.RetryConfiguration.create(this.elasticRetryCount,
                                             Duration.millis(this.elasticRetryDuration))
                             )
+                            .withMaxBatchSize(elasticMaxBatchSize)
                             .withIndexFn(new ElasticsearchIO.Write.FieldValueExtractFn() {
                                 @Override
                                 public String apply(JsonNode input) {
@@ -522,7 +1184,7 @@ public class Pipeline {
                                     java.time.Instant flowTimestamp = java.time.Instant.ofEpochMilli(input.get("@timestamp").asLong());
 
                                     // Derive the index
-                                    String indexName = indexStrategy.getIndex(elasticIndex, flowTimestamp);
+                                    String indexName = indexStrategy.getIndex(index, flowTimestamp);
 
                                     // Metrics
                                     flowsToEs.inc();
@@ -534,40 +1196,76 @@ public class Pipeline {
         }
     }
 
-    public static TimestampPolicyFactory<byte[], FlowDocument> getKafkaInputTimestampPolicyFactory(Duration maxDelay) {
+    /**
+     * Returns a timestamp policy factory whose policies do not detect idle partitions.
+     */
+    public static TimestampPolicyFactory<byte[], Flow> getKafkaInputTimestampPolicyFactory(Duration maxDelay) {
+        return getKafkaInputTimestampPolicyFactory(maxDelay, Duration.ZERO);
+    }
+
+    /**
+     * Returns a timestamp policy factory whose policies advance the watermark of partitions that are idle for the
+     * given timeout. Idle detection is disabled if the timeout is zero.
+     *
+     * @see IdleAwareTimestampPolicy
+     */
+    public static TimestampPolicyFactory<byte[], Flow> getKafkaInputTimestampPolicyFactory(Duration maxDelay, Duration idleTimeout) {
         return (tp, previousWatermark) ->
-                new CustomTimestampPolicyWithLimitedDelay<>(ReadFromKafka::getTimestamp, maxDelay, previousWatermark);
+                new IdleAwareTimestampPolicy<>(tp, ReadFromKafka::getTimestamp, maxDelay, idleTimeout, previousWatermark);
     }
 
-    public static class ReadFromKafka extends PTransform<PBegin, PCollection<FlowDocument>> {
+    /**
+     * Reads flows from Kafka.
+     *
+     * Records that can not be decoded or that lack required fields are split off as dead letters. Dead letters are
+     * counted and a rate limited sample of them is written into the given dead letter sink (if any). Dead letters are
+     * keyed by their rejection reason and carry the raw record.
+     */
+    public static class ReadFromKafka extends PTransform<PBegin, PCollection<Flow>> {
+
+        public static final TupleTag<Flow> FLOWS = new TupleTag<Flow>(){};
+        public static final TupleTag<KV<String, byte[]>> DEAD_LETTERS = new TupleTag<KV<String, byte[]>>(){};
+
         private final String bootstrapServers;
         private final String topic;
         private final Map<String, Object> kafkaConsumerConfig;
 
-        private final Counter flowsFromKafka = Metrics.counter("flows", "from_kafka");
-        // a distribution would be more interesting for from_kafka_drift
-        // -> Unfortunately histograms are not supported Beam/Flink/Prometheus
-        //    (cf. https://issues.apache.org/jira/browse/BEAM-10928)
-        // -> use a gauge instead
-        private final Gauge flowsFromKafkaDrift = Metrics.gauge("flows", "from_kafka_drift");
+        private final TimestampPolicyFactory<byte[], Flow> timestampPolicyFactory;
 
-        private final TimestampPolicyFactory<byte[], FlowDocument> timestampPolicyFactory;
+        private final int maxDeadLettersPerSecond;
+        private final PTransform<PCollection<KV<String, byte[]>>, PDone> deadLetterSink;
+
+        public ReadFromKafka(
+                String bootstrapServers,
+                String topic,
+                Map<String, Object> kafkaConsumerConfig,
+                TimestampPolicyFactory<byte[], Flow> timestampPolicyFactory
+        ) {
+            this(bootstrapServers, topic, kafkaConsumerConfig, timestampPolicyFactory, 0, null);
+        }
 
+        /**
+         * @param deadLetterSink optional sink for dead letters; dead letters are only counted if null
+         */
         public ReadFromKafka(
                 String bootstrapServers,
                 String topic,
                 Map<String, Object> kafkaConsumerConfig,
-                TimestampPolicyFactory<byte[], FlowDocument> timestampPolicyFactory
+                TimestampPolicyFactory<byte[], Flow> timestampPolicyFactory,
+                int maxDeadLettersPerSecond,
+                PTransform<PCollection<KV<String, byte[]>>, PDone> deadLetterSink
         ) {
             this.bootstrapServers = Objects.requireNonNull(bootstrapServers);
             this.topic = Objects.requireNonNull(topic);
             this.kafkaConsumerConfig = Objects.requireNonNull(kafkaConsumerConfig);
             this.timestampPolicyFactory = timestampPolicyFactory;
+            this.maxDeadLettersPerSecond = maxDeadLettersPerSecond;
+            this.deadLetterSink = deadLetterSink;
         }
 
         @Override
-        public PCollection<FlowDocument> expand(PBegin input) {
-            return input.apply(KafkaIO.<byte[], FlowDocument>read()
+        public PCollection<Flow> expand(PBegin input) {
+            PCollectionTuple flowsAndDeadLetters = input.apply(KafkaIO.<byte[], Flow>read()
                     .withTopic(topic)
                     .withKeyDeserializer(ByteArrayDeserializer.class)
                     .withValueDeserializer(KafkaInputFlowDeserializer.class)
@@ -576,42 +1274,138 @@ public class Pipeline {
                     .withTimestampPolicyFactory(timestampPolicyFactory)
                     .withoutMetadata()
             )
-                    .apply("init", ParDo.of(new DoFn<KV<byte[], FlowDocument>, FlowDocument>() {
-                        @ProcessElement
-                        public void processElement(ProcessContext c) {
-                            // Add deltaSwitched if missing, was observed a few times
-                            FlowDocument flow = c.element().getValue();
-                            if (!flow.hasDeltaSwitched()) {
-                                flow = FlowDocument.newBuilder(flow)
-                                        .setDeltaSwitched(flow.getFirstSwitched())
-                                        .build();
-                            }
-                            c.output(flow);
+                    .apply("init", ParDo.of(new Init(deadLetterSink != null ? maxDeadLettersPerSecond : 0))
+                            .withOutputTags(FLOWS, TupleTagList.of(DEAD_LETTERS)));
 
-                            // Metrics
-                            flowsFromKafka.inc();
-                            flowsFromKafkaDrift.set(System.currentTimeMillis() - flow.getLastSwitched().getValue());
-                        }
-                    }));
+            if (deadLetterSink != null) {
+                flowsAndDeadLetters.get(DEAD_LETTERS).apply("dead_letters", deadLetterSink);
+            }
+            return flowsAndDeadLetters.get(FLOWS);
+        }
+
+        /**
+         * Unwraps flows, drops filtered records, splits off dead letters, and maintains ingestion metrics.
+         *
+         * Missing deltaSwitched values are already defaulted during deserialization. Metrics are accumulated in
+         * fields and published once per bundle.
+         */
+        private static class Init extends DoFn<KV<byte[], Flow>, Flow> {
+
+            private final Counter flowsFromKafka = Metrics.counter("flows", "from_kafka");
+            private final Counter flowsWithDefaultedDeltaSwitched = Metrics.counter("flows", "from_kafka_delta_switched_defaulted");
+            private final Counter flowsFiltered = Metrics.counter("flows", "from_kafka_filtered");
+            private final Counter deadLetters = Metrics.counter("flows", "from_kafka_dead_letters");
+            private final Counter deadLettersSampled = Metrics.counter("flows", "from_kafka_dead_letters_sampled");
+            // a distribution would be more interesting for from_kafka_drift
+            // -> Unfortunately histograms are not supported Beam/Flink/Prometheus
+            //    (cf. https://issues.apache.org/jira/browse/BEAM-10928)
+            // -> use a gauge instead
+            private final Gauge flowsFromKafkaDrift = Metrics.gauge("flows", "from_kafka_drift");
+
+            private final int maxDeadLettersPerSecond;
+
+            private long count;
+            private long defaulted;
+            private long filtered;
+            private long lastSwitched;
+
+            // the second (since epoch) in which dead letters were sampled last and the number of samples in that second
+            private long deadLetterSecond;
+            private int deadLettersInSecond;
+
+            public Init(int maxDeadLettersPerSecond) {
+                this.maxDeadLettersPerSecond = maxDeadLettersPerSecond;
+            }
+
+            @StartBundle
+            public void startBundle() {
+                count = 0;
+                defaulted = 0;
+                filtered = 0;
+            }
+
+            @ProcessElement
+            public void processElement(@Element KV<byte[], Flow> element, MultiOutputReceiver out) {
+                Flow flow = element.getValue();
+                if (flow.isFiltered()) {
+                    filtered++;
+                    return;
+                } else if (flow.isDeadLetter()) {
+                    processDeadLetter(flow, out);
+                    return;
+                }
+                out.get(FLOWS).output(flow);
+                count++;
+                if (flow.deltaSwitchedDefaulted) {
+                    defaulted++;
+                }
+                lastSwitched = flow.lastSwitched;
+            }
+
+            private void processDeadLetter(Flow flow, MultiOutputReceiver out) {
+                deadLetters.inc();
+                RATE_LIMITED_LOG.warn("Rejected input record - reason: {}", flow.getDeadLetterReason());
+                long second = System.currentTimeMillis() / 1000;
+                if (second != deadLetterSecond) {
+                    deadLetterSecond = second;
+                    deadLettersInSecond = 0;
+                }
+                if (deadLettersInSecond < maxDeadLettersPerSecond) {
+                    deadLettersInSecond++;
+                    deadLettersSampled.inc();
+                    out.get(DEAD_LETTERS).output(KV.of(flow.getDeadLetterReason(), flow.getDeadLetterRecord()));
+                }
+            }
+
+            @FinishBundle
+            public void finishBundle() {
+                if (count > 0) {
+                    flowsFromKafka.inc(count);
+                    flowsFromKafkaDrift.set(System.currentTimeMillis() - lastSwitched);
+                }
+                if (defaulted > 0) {
+                    flowsWithDefaultedDeltaSwitched.inc(defaulted);
+                }
+                if (filtered > 0) {
+                    flowsFiltered.inc(filtered);
+                }
+            }
         }
 
         public static long getTimestampMs(FlowDocument doc) {
             return doc.getLastSwitched().getValue();
         }
 
-        public static Instant getTimestamp(KafkaRecord<byte[], FlowDocument> record) {
-            return getTimestamp(record.getKV().getValue());
+        public static long getTimestampMs(Flow flow) {
+            return flow.lastSwitched;
+        }
+
+        /**
+         * Dead letters and filtered records have no flow timestamp. {@link BoundedWindow#TIMESTAMP_MIN_VALUE} is
+         * returned for them, i.e. they are assigned the current watermark of their partition by the
+         * {@link IdleAwareTimestampPolicy} and do not advance it. (The timestamp of their Kafka record may be far ahead
+         * of the flows in the partition.)
+         */
+        public static Instant getTimestamp(KafkaRecord<byte[], Flow> record) {
+            Flow flow = record.getKV().getValue();
+            // filtered records are represented by a dead letter sentinel
+            return flow.isDeadLetter() ? BoundedWindow.TIMESTAMP_MIN_VALUE : getTimestamp(flow);
         }
 
         public static Instant getTimestamp(FlowDocument doc) {
             return Instant.ofEpochMilli(getTimestampMs(doc));
         }
+
+        public static Instant getTimestamp(Flow flow) {
+            return Instant.ofEpochMilli(getTimestampMs(flow));
+        }
     }
 
     public static class WriteToKafka extends PTransform<PCollection<KV<CompoundKey, Aggregate>>, PDone> {
         private final String bootstrapServers;
         private final String topic;
         private final Map<String, Object> kafkaProducerConfig;
+        private String resolution;
 
         public WriteToKafka(String bootstrapServers, String topic, Map<String, Object> kafkaProducerConfig) {
             this.bootstrapServers = Objects.requireNonNull(bootstrapServers);
@@ -619,33 +1413,93 @@ public class Pipeline {
             this.kafkaProducerConfig = kafkaProducerConfig;
         }
 
+        /**
+         * Sets the resolution of the written flow summaries; used for rollup tiers. Rollup tiers are written into
+         * separate topics.
+         *
+         * @see Rollup#sinkName(String, String)
+         */
+        public WriteToKafka withResolution(String resolution) {
+            this.resolution = resolution;
+            return this;
+        }
+
         @Override
         public PDone expand(PCollection<KV<CompoundKey, Aggregate>> input) {
-            return input.apply(FLOW_SUMMARY_DATA_TO_JSON)
+            return input.apply(flowSummaryDataToJson(resolution))
                     .apply(KafkaIO.<Void, String>write()
                             .withProducerConfigUpdates(kafkaProducerConfig)
                             .withBootstrapServers(bootstrapServers) // Order matters: bootstrap server overwrite producer properties
-                            .withTopic(topic)
+                            .withTopic(Rollup.sinkName(topic, resolution))
                             .withValueSerializer(StringSerializer.class)
                             .values()
                     );
         }
     }
 
-    private static ParDo.SingleOutput<KV<CompoundKey, Aggregate>, String> FLOW_SUMMARY_DATA_TO_JSON =
-        ParDo.of(new DoFn<KV<CompoundKey, Aggregate>, String>() {
+    /**
+     * Writes dead letters into a Kafka topic using their rejection reason as key and their raw record as value.
+     */
+    public static class WriteDeadLettersToKafka extends PTransform<PCollection<KV<String, byte[]>>, PDone> {
+        private final String bootstrapServers;
+        private final String topic;
+        private final Map<String, Object> kafkaProducerConfig;
+
+        public WriteDeadLettersToKafka(String bootstrapServers, String topic, Map<String, Object> kafkaProducerConfig) {
+            this.bootstrapServers = Objects.requireNonNull(bootstrapServers);
+            this.topic = Objects.requireNonNull(topic);
+            this.kafkaProducerConfig = kafkaProducerConfig;
+        }
+
+        @Override
+        public PDone expand(PCollection<KV<String, byte[]>> input) {
+            return input.apply(KafkaIO.<String, byte[]>write()
+                    .withProducerConfigUpdates(kafkaProducerConfig)
+                    .withBootstrapServers(bootstrapServers) // Order matters: bootstrap server overwrite producer properties
+                    .withTopic(topic)
+                    .withKeySerializer(StringSerializer.class)
+                    .withValueSerializer(ByteArraySerializer.class)
+            );
+        }
+    }
+
+    /**
+     * Writes dead letters into text files. Files are written per minute; each line contains the rejection reason and
+     * the Base64 encoded raw record separated by a tab.
+     */
+    public static class WriteDeadLettersToFiles extends PTransform<PCollection<KV<String, byte[]>>, PDone> {
+        private final String pathPrefix;
+
+        public WriteDeadLettersToFiles(String pathPrefix) {
+            this.pathPrefix = Objects.requireNonNull(pathPrefix);
+        }
+
+        @Override
+        public PDone expand(PCollection<KV<String, byte[]>> input) {
+            return input
+                    .apply(Window.<KV<String, byte[]>>into(FixedWindows.of(Duration.standardMinutes(1))))
+                    .apply(MapElements.into(TypeDescriptors.strings())
+                            .via(kv -> kv.getKey() + '\t' + Base64.getEncoder().encodeToString(kv.getValue())))
+                    .apply(TextIO.write()
+                            .to(pathPrefix)
+                            .withWindowedWrites()
+                            .withNumShards(1)
+                    );
+        }
+    }
+
+    /**
+     * @param resolution the resolution that is set on the resulting flow summaries; may be {@code null}
+     */
+    private static ParDo.SingleOutput<KV<CompoundKey, Aggregate>, String> flowSummaryDataToJson(String resolution) {
+        return ParDo.of(new DoFn<KV<CompoundKey, Aggregate>, String>() {
             @ProcessElement
             public void processElement(ProcessContext c, IntervalWindow window) throws JsonProcessingException {
                 FlowSummary flowSummary = toFlowSummary(c.element(), window);
+                flowSummary.setResolution(resolution);
                 c.output(MAPPER.writeValueAsString(flowSummary));
             }
         });
-
-    static class SumBytes extends Combine.BinaryCombineFn<Aggregate> {
-        @Override
-        public Aggregate apply(Aggregate left, Aggregate right) {
-            return Aggregate.merge(left, right);
-        }
     }
 
     static class FlowBytesValueComparator implements Comparator<KV<CompoundKey, Aggregate>>, Serializable {
@@ -655,22 +1509,37 @@ public class Pipeline {
             if (res != 0) {
                 return res;
             } else {
-                // use the lexicographic order of groupedByKey as a second order criteria
+                // use the order of the keys as a second order criteria
                 // -> makes the FlowSummary ranking deterministic (eases unit tests)
                 // -> the first order criteria orders large number of bytes before lower number of bytes
-                //    whereas the second order criteria orders "smaller" strings before "larger" ones
-                return b.getKey().groupedByKey().compareTo(a.getKey().groupedByKey());
+                //    whereas the second order criteria orders "smaller" keys before "larger" ones
+                // -> keys are compared field by field; no strings are rendered
+                return b.getKey().compareTo(a.getKey());
             }
         }
     }
 
     /**
-     * Dispatches a {@link FlowDocument} to all of the windows that overlap with the flow range.
+     * Converts flow documents into {@link Flow} records.
+     *
+     * @return transform
+     */
+    public static ParDo.SingleOutput<FlowDocument, Flow> toFlows() {
+        return ParDo.of(new DoFn<FlowDocument, Flow>() {
+            @ProcessElement
+            public void processElement(ProcessContext c) {
+                c.output(Flow.of(c.element()));
+            }
+        });
+    }
+
+    /**
+     * Dispatches a {@link Flow} to all of the windows that overlap with the flow range.
      *
      * @return transform
      */
-    public static ParDo.SingleOutput<FlowDocument, FlowDocument> attachTimestamps(Duration fixedWindowSize, Duration maxFlowDuration) {
-        return ParDo.of(new DoFn<FlowDocument, FlowDocument>() {
+    public static ParDo.SingleOutput<Flow, Flow> attachTimestamps(Duration fixedWindowSize, Duration maxFlowDuration) {
+        return ParDo.of(new DoFn<Flow, Flow>() {
             final long windowSizeMs = fixedWindowSize.getMillis();
             final long maxFlowDurationMs = maxFlowDuration.getMillis();
             @ProcessElement
@@ -678,11 +1547,11 @@ public class Pipeline {
 
                 // We want to dispatch the flow to all the windows it may be a part of
                 // The flow ranges from [delta_switched, last_switched]
-                final FlowDocument flow = c.element();
+                final Flow flow = c.element();
 
-                long deltaSwitched = flow.getDeltaSwitched().getValue();
-                long lastSwitched = flow.getLastSwitched().getValue();
-                int nodeId = flow.getExporterNode().getNodeId();
+                long deltaSwitched = flow.deltaSwitched;
+                long lastSwitched = flow.lastSwitched;
+                int nodeId = flow.nodeId;
 
                 long shift = UnalignedFixedWindows.perNodeShift(nodeId, windowSizeMs);
                 if (deltaSwitched < shift) {
@@ -742,6 +1611,9 @@ public class Pipeline {
         flowSummary.setBytesTotal(flowSummary.getBytesIngress() + flowSummary.getBytesEgress());
         flowSummary.setCongestionEncountered(fsd.getValue().isCongestionEncountered());
         flowSummary.setNonEcnCapableTransport(fsd.getValue().isNonEcnCapableTransport());
+        if (fsd.getValue().isEstimated()) {
+            flowSummary.setEstimated(true);
+        }
 
         if (fsd.getKey().getType() == CompoundKeyType.EXPORTER_INTERFACE_HOST || fsd.getKey().getType() == CompoundKeyType.EXPORTER_INTERFACE_TOS_HOST) {
             flowSummary.setHostName(Strings.emptyToNull(fsd.getValue().getHostname()));
@@ -750,7 +1622,11 @@ public class Pipeline {
         return flowSummary;
     }
 
-    public static Window<FlowDocument> toWindow(Duration fixedWindowSize, Duration earlyProcessingDelay,  Duration lateProcessingDelay, Duration allowedLateness) {
+    public static Window<Flow> toWindow(Duration fixedWindowSize, Duration earlyProcessingDelay,  Duration lateProcessingDelay, Duration allowedLateness) {
+        return toWindow(UnalignedFixedWindows.of(fixedWindowSize), earlyProcessingDelay, lateProcessingDelay, allowedLateness);
+    }
+
+    public static <T> Window<T> toWindow(WindowFn<? super T, ?> windowFn, Duration earlyProcessingDelay,  Duration lateProcessingDelay, Duration allowedLateness) {
         AfterWatermark.AfterWatermarkEarlyAndLate trigger = AfterWatermark
                 // On Beam’s estimate that all the data has arrived (the watermark passes the end of the window)
                 .pastEndOfWindow()
@@ -767,7 +1643,7 @@ public class Pipeline {
                             .plusDelayOf(earlyProcessingDelay));
         }
 
-        return Window.into(UnalignedFixedWindows.of(fixedWindowSize))
+        return Window.<T>into(windowFn)
                 .withTimestampCombiner(TimestampCombiner.END_OF_WINDOW)
                 .triggering(trigger)
                 .withOnTimeBehavior(Window.OnTimeBehavior.FIRE_IF_NON_EMPTY)
@@ -779,31 +1655,22 @@ public class Pipeline {
     }
 
     /**
-     * Maps flow documents into pairs of compound keys (of type EXPORTER_INTERFACE_TOS_CONVERSATION) and aggregates.
+     * Maps flows into pairs of compound keys (of type EXPORTER_INTERFACE_TOS_CONVERSATION) and aggregates.
      * <p>
      * {@link Aggregate} values are determined for window based on the intersection of flows with their windows.
      */
-    public static class KeyByConvWithTos extends DoFn<FlowDocument, KV<CompoundKey, Aggregate>> {
+    public static class KeyByConvWithTos extends DoFn<Flow, KV<CompoundKey, Aggregate>> {
 
         private final Counter flowsWithMissingFields = Metrics.counter(Pipeline.class, "flowsWithMissingFields");
         private final Counter flowsInWindow = Metrics.counter("flows", "in_window");
 
         @ProcessElement
         public void processElement(ProcessContext c, IntervalWindow window) {
-            final FlowDocument flow = c.element();
+            final Flow flow = c.element();
             try {
                 CompoundKey key = CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION.create(flow);
-                String src = Strings.nullToEmpty(flow.getSrcAddress());
-                String dst = Strings.nullToEmpty(flow.getDstAddress());
-                String hostname, hostname2;
-                if (src.compareTo(dst) < 0) {
-                    hostname = flow.getSrcHostname();
-                    hostname2 = flow.getDstHostname();
-                } else {
-                    hostname2 = flow.getSrcHostname();
-                    hostname = flow.getDstHostname();
-                }
-                Aggregate aggregate = aggregatize(window, flow, hostname, hostname2);
+                // the hostnames of flow records are ordered in the same way as their addresses
+                Aggregate aggregate = aggregatize(window, flow, flow.getHostname(), flow.getHostname2());
                 flowsInWindow.inc();
                 c.output(KV.of(key, aggregate));
             } catch (MissingFieldsException mfe) {
@@ -813,6 +1680,91 @@ public class Pipeline {
 
     }
 
+    /**
+     * Dispatches flows to the windows that overlap with the flow range and maps them into pairs of compound keys (of
+     * type EXPORTER_INTERFACE_TOS_CONVERSATION) and aggregates.
+     * <p>
+     * Combines the logic of {@link #attachTimestamps(Duration, Duration)} and {@link KeyByConvWithTos}. The key and the
+     * host names are determined once per flow. Each pair is output with a timestamp in its window; the window itself is
+     * assigned by a subsequent {@link UnalignedFixedWindows} transform.
+     */
+    public static class SplitAndKeyByConvWithTos extends DoFn<Flow, KV<CompoundKey, Aggregate>> {
+
+        private final Counter flowsWithMissingFields = Metrics.counter(Pipeline.class, "flowsWithMissingFields");
+        private final Counter flowsInWindow = Metrics.counter("flows", "in_window");
+
+        private final long windowSizeMs;
+        private final Duration maxFlowDuration;
+
+        public SplitAndKeyByConvWithTos(Duration fixedWindowSize, Duration maxFlowDuration) {
+            this.windowSizeMs = fixedWindowSize.getMillis();
+            this.maxFlowDuration = maxFlowDuration;
+        }
+
+        @ProcessElement
+        public void processElement(ProcessContext c) {
+            final Flow flow = c.element();
+
+            long deltaSwitched = flow.deltaSwitched;
+            long lastSwitched = flow.lastSwitched;
+            int nodeId = flow.nodeId;
+
+            long shift = UnalignedFixedWindows.perNodeShift(nodeId, windowSizeMs);
+            if (deltaSwitched < shift) {
+                RATE_LIMITED_LOG.warn("Skipping output for flow whose start is too small w/ start: {}, end: {}, target timestamp: {}, current input timestamp: {}. Full flow: {}",
+                        Instant.ofEpochMilli(deltaSwitched), Instant.ofEpochMilli(lastSwitched), Instant.ofEpochMilli(deltaSwitched), c.timestamp(),
+                        flow);
+                return;
+            }
+
+            CompoundKey key;
+            try {
+                key = CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION.create(flow);
+            } catch (MissingFieldsException mfe) {
+                flowsWithMissingFields.inc();
+                return;
+            }
+            // the hostnames of flow records are ordered in the same way as their addresses
+            String hostname = flow.getHostname();
+            String hostname2 = flow.getHostname2();
+
+            long firstWindow = UnalignedFixedWindows.windowNumber(nodeId, windowSizeMs, deltaSwitched);
+            long lastWindow = UnalignedFixedWindows.windowNumber(nodeId, windowSizeMs, lastSwitched);
+            long minTimestamp = c.timestamp().getMillis() - maxFlowDuration.getMillis();
+
+            long timestamp = deltaSwitched;
+            long windowStart = UnalignedFixedWindows.windowStartForWindowNumber(nodeId, windowSizeMs, firstWindow);
+            int outputs = 0;
+            for (long window = firstWindow; window <= lastWindow; window++) {
+                if (timestamp <= minTimestamp) {
+                    RATE_LIMITED_LOG.warn("Skipping output for flow that reaches back too far w/ start: {}, end: {}, target timestamp: {}, current input timestamp: {}. Full flow: {}",
+                            Instant.ofEpochMilli(deltaSwitched), Instant.ofEpochMilli(lastSwitched), Instant.ofEpochMilli(timestamp), c.timestamp(),
+                            flow);
+                } else {
+                    Aggregate aggregate = aggregatize(windowStart, windowStart + windowSizeMs - 1, flow, hostname, hostname2);
+                    c.outputWithTimestamp(KV.of(key, aggregate), Instant.ofEpochMilli(timestamp));
+                    outputs++;
+                }
+                // ensure that the timestamp used for the last window is not larger than lastSwitched
+                if (timestamp + windowSizeMs < lastSwitched) {
+                    timestamp += windowSizeMs;
+                } else {
+                    timestamp = lastSwitched;
+                }
+                windowStart += windowSizeMs;
+            }
+            if (outputs > 0) {
+                flowsInWindow.inc(outputs);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("deprecation") // the skew can not be configured otherwise
+        public Duration getAllowedTimestampSkew() {
+            return maxFlowDuration;
+        }
+    }
+
     public static long bytesInWindow(
             long deltaSwitched,
             long lastSwitchedInclusive,
@@ -837,52 +1789,64 @@ public class Pipeline {
         return bytesAtEnd - bytesAtPreviousEnd;
     }
 
-    public static Aggregate aggregatize(final IntervalWindow window, final FlowDocument flow, final String hostname, String hostname2) {
+    public static Aggregate aggregatize(final IntervalWindow window, final Flow flow, final String hostname, String hostname2) {
+        return aggregatize(window.start().getMillis(), window.maxTimestamp().getMillis(), flow, hostname, hostname2);
+    }
+
+    public static Aggregate aggregatize(long windowStart, long windowEndInclusive, final Flow flow, final String hostname, String hostname2) {
         double multiplier = 1;
-        if (flow.hasSamplingInterval()) {
-            double samplingInterval = flow.getSamplingInterval().getValue();
-            if (samplingInterval > 0) {
-                multiplier = samplingInterval;
-            }
+        if (flow.samplingInterval > 0) {
+            multiplier = flow.samplingInterval;
         }
+        // extrapolate the bytes of flows that were kept during load shedding
+        multiplier *= flow.sheddingRate;
+        boolean estimated = flow.sheddingRate > 1;
         long bytes = bytesInWindow(
-                flow.getDeltaSwitched().getValue(),
-                flow.getLastSwitched().getValue(),
-                flow.getNumBytes().getValue() * multiplier,
-                window.start().getMillis(),
-                window.maxTimestamp().getMillis()
+                flow.deltaSwitched,
+                flow.lastSwitched,
+                flow.numBytes * multiplier,
+                windowStart,
+                windowEndInclusive
         );
+        Integer ecn = flow.ecn != Flow.ABSENT ? flow.ecn : null;
         // Track
-        return Direction.INGRESS.equals(flow.getDirection()) ?
-               new Aggregate(bytes, 0, hostname, hostname2, flow.hasEcn() ? flow.getEcn().getValue() : null) :
-               new Aggregate(0, bytes, hostname, hostname2, flow.hasEcn() ? flow.getEcn().getValue() : null);
+        return flow.ingress ?
+               new Aggregate(bytes, 0, hostname, hostname2, ecn, estimated) :
+               new Aggregate(0, bytes, hostname, hostname2, ecn, estimated);
     }
 
     public static class ProjConvWithTos extends DoFn<KV<CompoundKey, Aggregate>, KV<CompoundKey, Aggregate>> {
 
         @ProcessElement
         public void processElement(@Element KV<CompoundKey, Aggregate> kv, MultiOutputReceiver out) {
+            project(kv, out.get(BY_APP)::output, out.get(BY_HOST)::output);
+        }
+
+        /**
+         * Projects the given conversation into an application and two host aggregates.
+         */
+        static void project(KV<CompoundKey, Aggregate> kv, Consumer<KV<CompoundKey, Aggregate>> byApp, Consumer<KV<CompoundKey, Aggregate>> byHost) {
             CompoundKey convKey = kv.getKey();
             Aggregate a = kv.getValue();
             // the CompoundKeyData of a conversation key of type EXPORTER_INTERFACE_TOS_CONVERSATION
             // contains all fields that are required for a key of type EXPORTER_INTERFACE_TOS_APPLICATION
             // -> the key can be cast
             CompoundKey appKey = convKey.cast(CompoundKeyType.EXPORTER_INTERFACE_TOS_APPLICATION);
-            out.get(BY_APP).output(KV.of(appKey, a.withHostname(null)));
+            byApp.accept(KV.of(appKey, a.withHostname(null)));
             // the CompoundKeyData of a conversation key of type EXPORTER_INTERFACE_TOS_CONVERSATION
             // contains all fields that are required for a key of type EXPORTER_INTERFACE_TOS_HOST
             // -> the key can be cast
             CompoundKey hostKey1 = convKey.cast(CompoundKeyType.EXPORTER_INTERFACE_TOS_HOST);
-            out.get(BY_HOST).output(KV.of(hostKey1, a.withHostname(a.getHostname())));
+            byHost.accept(KV.of(hostKey1, a.withHostname(a.getHostname())));
             // the CompoundKeyData of a conversation key of type EXPORTER_INTERFACE_TOS_CONVERSATION
             // contains all fields that are required for a key of type EXPORTER_INTERFACE_TOS_HOST
             // and a second host address, namely the larger address of the conversation
             // -> use the larget address and construct a corresponding key
             CompoundKey hostKey2 = new CompoundKey(
                     CompoundKeyType.EXPORTER_INTERFACE_TOS_HOST,
-                    new CompoundKeyData.Builder(convKey.data).withAddress(convKey.data.largerAddress).build()
+                    new CompoundKeyData.Builder(convKey.getData()).withAddress(convKey.getData().largerAddress).build()
             );
-            out.get(BY_HOST).output(KV.of(hostKey2, a.withHostname(a.getHostname2())));
+            byHost.accept(KV.of(hostKey2, a.withHostname(a.getHostname2())));
         }
 
     }
@@ -897,6 +1861,17 @@ public class Pipeline {
     public static TotalAndSummary aggregateParentTotal(
             String transformPrefix,
             PCollection<KV<CompoundKey, Aggregate>> child
+    ) {
+        return aggregateParentTotal(transformPrefix, child, null);
+    }
+
+    /**
+     * @param hotKeyFanout the hot key fanout of the combine stage; may be {@code null}
+     */
+    public static TotalAndSummary aggregateParentTotal(
+            String transformPrefix,
+            PCollection<KV<CompoundKey, Aggregate>> child,
+            HotKeyFanout hotKeyFanout
     ) {
         PCollection<KV<CompoundKey, Aggregate>> parentTotal = child
                 .apply(transformPrefix + "group_by_outer_key", ParDo.of(new DoFn<KV<CompoundKey, Aggregate>, KV<CompoundKey, Aggregate>>() {
@@ -906,7 +1881,7 @@ public class Pipeline {
                         c.output(KV.of(el.getKey().getOuterKey(), el.getValue()));
                     }
                 }))
-                .apply(transformPrefix + "sum_bytes_by_key", Combine.perKey(new SumBytes()));
+                .apply(transformPrefix + "sum_bytes_by_key", sumPerKey(transformPrefix, hotKeyFanout));
 
         return new TotalAndSummary(parentTotal, parentTotal);
     }
@@ -929,11 +1904,37 @@ public class Pipeline {
             int k,
             SerializableFunction<CompoundKey, Boolean> includeKeyInTopK
     ) {
-        SumAndTopK withTos = aggregateSumAndTopK(transformPrefix + "with_tos_", groupedByKeyWithTos, k, includeKeyInTopK);
+        return aggregateSumsAndTopKs(transformPrefix, groupedByKeyWithTos, typeWithoutTos, k, includeKeyInTopK, null, false, 0, 0);
+    }
+
+    /**
+     * @param hotKeyFanout the hot key fanout of the combine stages; may be {@code null}
+     * @param perInterface calculates the exact topK entries with and without tos in a single combine stage per exporter
+     *                     interface; ignored if topK entries are approximated
+     * @param withTosCapacity the capacity of the summaries that approximate the topK entries with tos; the topK
+     *                        entries are calculated exactly if zero
+     * @param withoutTosCapacity the capacity of the summaries that approximate the topK entries without tos
+     */
+    public static SumsAndTopKs aggregateSumsAndTopKs(
+            String transformPrefix,
+            PCollection<KV<CompoundKey, Aggregate>> groupedByKeyWithTos,
+            CompoundKeyType typeWithoutTos,
+            int k,
+            SerializableFunction<CompoundKey, Boolean> includeKeyInTopK,
+            HotKeyFanout hotKeyFanout,
+            boolean perInterface,
+            int withTosCapacity,
+            int withoutTosCapacity
+    ) {
+        if (perInterface && withTosCapacity == 0 && withoutTosCapacity == 0) {
+            return aggregateSumsAndTopKsPerInterface(transformPrefix, groupedByKeyWithTos, typeWithoutTos, k, includeKeyInTopK, hotKeyFanout);
+        }
+
+        SumAndTopK withTos = aggregateSumAndTopK(transformPrefix + "with_tos_", groupedByKeyWithTos, k, includeKeyInTopK, hotKeyFanout, withTosCapacity);
 
         // multimap
         PCollection<KV<CompoundKey, Aggregate>> groupedByKeyWithoutTos =
-                withTos.sum.apply(
+                (withTos.sum != null ? withTos.sum : groupedByKeyWithTos).apply(
                         transformPrefix + "group_without_tos_",
                         ParDo.of(new DoFn<KV<CompoundKey, Aggregate>, KV<CompoundKey, Aggregate>>() {
                             @ProcessElement
@@ -942,11 +1943,59 @@ public class Pipeline {
                                 c.output(KV.of(el.getKey().cast(typeWithoutTos), el.getValue()));
                             }
                         }));
-        SumAndTopK withoutTos = aggregateSumAndTopK(transformPrefix + "without_tos_", groupedByKeyWithoutTos, k, includeKeyInTopK);
+        SumAndTopK withoutTos = aggregateSumAndTopK(transformPrefix + "without_tos_", groupedByKeyWithoutTos, k, includeKeyInTopK, hotKeyFanout, withoutTosCapacity);
 
         return new SumsAndTopKs(withTos, withoutTos);
     }
 
+    /**
+     * Sums the input by key and calculates the topK entries with and without tos in a single combine stage per
+     * exporter interface (cf. {@link SumsAndTopKsFn}). The sums without tos are not calculated as a separate
+     * collection, i.e. the sum collection without tos is {@code null}. In contrast to the bounded topK combines of the
+     * three stage path, the accumulators hold all sums with tos of an exporter interface and window.
+     */
+    private static SumsAndTopKs aggregateSumsAndTopKsPerInterface(
+            String transformPrefix,
+            PCollection<KV<CompoundKey, Aggregate>> groupedByKeyWithTos,
+            CompoundKeyType typeWithoutTos,
+            int k,
+            SerializableFunction<CompoundKey, Boolean> includeKeyInTopK,
+            HotKeyFanout hotKeyFanout
+    ) {
+        PCollection<KV<CompoundKey, Aggregate>> sum = groupedByKeyWithTos
+                .apply(transformPrefix + "with_tos_sum_bytes_by_key", sumPerKey(transformPrefix + "with_tos_", hotKeyFanout));
+
+        Combine.PerKey<CompoundKey, KV<CompoundKey, Aggregate>, List<KV<CompoundKey, Aggregate>>> topKs =
+                Combine.perKey(new SumsAndTopKsFn(k, typeWithoutTos, includeKeyInTopK));
+
+        TupleTag<KV<CompoundKey, Aggregate>> withTosTag = new TupleTag<KV<CompoundKey, Aggregate>>(){};
+        TupleTag<KV<CompoundKey, Aggregate>> withoutTosTag = new TupleTag<KV<CompoundKey, Aggregate>>(){};
+
+        PCollectionTuple topK = sum
+                .apply(transformPrefix + "group_by_interface",
+                        ParDo.of(new DoFn<KV<CompoundKey, Aggregate>, KV<CompoundKey, KV<CompoundKey, Aggregate>>>() {
+                            @ProcessElement
+                            public void processElement(ProcessContext c) {
+                                KV<CompoundKey, Aggregate> el = c.element();
+                                c.output(KV.of(el.getKey().cast(CompoundKeyType.EXPORTER_INTERFACE), el));
+                            }
+                        }))
+                .apply(transformPrefix + "top_k_per_interface",
+                        hotKeyFanout != null ? topKs.withHotKeyFanout(hotKeyFanout.forStage(transformPrefix + "top_k")) : topKs)
+                .apply(transformPrefix + "flatten", Values.create())
+                .apply(transformPrefix + "top_k_summary",
+                        ParDo.of(new DoFn<List<KV<CompoundKey, Aggregate>>, KV<CompoundKey, Aggregate>>() {
+                            @ProcessElement
+                            public void processElement(ProcessContext c) {
+                                for (KV<CompoundKey, Aggregate> el : c.element()) {
+                                    c.output(el.getKey().type == typeWithoutTos ? withoutTosTag : withTosTag, el);
+                                }
+                            }
+                        }).withOutputTags(withTosTag, TupleTagList.of(withoutTosTag)));
+
+        return new SumsAndTopKs(new SumAndTopK(sum, topK.get(withTosTag)), new SumAndTopK(null, topK.get(withoutTosTag)));
+    }
+
     /**
      * Reduces the input multimap collection into a collection with unique keys and the summed aggregates and
      * calculates the topK entries of these sums when selected over their parent keys.
@@ -961,10 +2010,29 @@ public class Pipeline {
             int k,
             SerializableFunction<CompoundKey, Boolean> includeKeyInTopK
     ) {
-        PCollection<KV<CompoundKey, Aggregate>> sum =
-                groupedByKey.apply(transformPrefix + "sum_bytes_by_key", Combine.perKey(new SumBytes()));
+        return aggregateSumAndTopK(transformPrefix, groupedByKey, k, includeKeyInTopK, null, 0);
+    }
+
+    /**
+     * If a capacity is given then the topK entries are approximated by {@link ApproximateTopK} summaries of that
+     * capacity per parent key. In that case the input is not summed and the returned sum collection is {@code null}.
+     *
+     * @param hotKeyFanout the hot key fanout of the combine stages; may be {@code null}
+     * @param capacity the capacity of the summaries that approximate the topK entries; the topK entries are
+     *                 calculated exactly if zero
+     */
+    public static SumAndTopK aggregateSumAndTopK(
+            String transformPrefix,
+            PCollection<KV<CompoundKey, Aggregate>> groupedByKey,
+            int k,
+            SerializableFunction<CompoundKey, Boolean> includeKeyInTopK,
+            HotKeyFanout hotKeyFanout,
+            int capacity
+    ) {
+        PCollection<KV<CompoundKey, Aggregate>> sum = capacity > 0 ? null :
+                groupedByKey.apply(transformPrefix + "sum_bytes_by_key", sumPerKey(transformPrefix, hotKeyFanout));
 
-        PCollection<KV<CompoundKey, Aggregate>> topK = sum
+        PCollection<KV<CompoundKey, KV<CompoundKey, Aggregate>>> groupedByOuterKey = (capacity > 0 ? groupedByKey : sum)
                 .apply(transformPrefix + "group_by_outer_key",
                         ParDo.of(new DoFn<KV<CompoundKey, Aggregate>, KV<CompoundKey, KV<CompoundKey, Aggregate>>>() {
                             @ProcessElement
@@ -974,8 +2042,15 @@ public class Pipeline {
                                     c.output(KV.of(el.getKey().getOuterKey(), el));
                                 }
                             }
-                        }))
-                .apply(transformPrefix + "top_k_per_key", Top.perKey(k, new FlowBytesValueComparator()))
+                        }));
+
+        PTransform<PCollection<KV<CompoundKey, KV<CompoundKey, Aggregate>>>, PCollection<KV<CompoundKey, List<KV<CompoundKey, Aggregate>>>>> topKPerKey =
+                capacity > 0
+                ? approximateTopKPerKey(transformPrefix, capacity, k, hotKeyFanout)
+                : Top.perKey(k, new FlowBytesValueComparator());
+
+        PCollection<KV<CompoundKey, Aggregate>> topK = groupedByOuterKey
+                .apply(transformPrefix + "top_k_per_key", topKPerKey)
                 .apply(transformPrefix + "flatten", Values.create())
                 .apply(transformPrefix + "top_k_summary", ParDo.of(new DoFn<List<KV<CompoundKey, Aggregate>>, KV<CompoundKey, Aggregate>>() {
                     @ProcessElement
@@ -988,6 +2063,25 @@ public class Pipeline {
         return new SumAndTopK(sum, topK);
     }
 
+    private static PTransform<PCollection<KV<CompoundKey, Aggregate>>, PCollection<KV<CompoundKey, Aggregate>>> sumPerKey(
+            String transformPrefix,
+            HotKeyFanout hotKeyFanout
+    ) {
+        Combine.PerKey<CompoundKey, Aggregate, Aggregate> sum = Combine.perKey(new SumAggregates());
+        return hotKeyFanout != null ? sum.withHotKeyFanout(hotKeyFanout.forStage(transformPrefix + "sum")) : sum;
+    }
+
+    private static PTransform<PCollection<KV<CompoundKey, KV<CompoundKey, Aggregate>>>, PCollection<KV<CompoundKey, List<KV<CompoundKey, Aggregate>>>>> approximateTopKPerKey(
+            String transformPrefix,
+            int capacity,
+            int k,
+            HotKeyFanout hotKeyFanout
+    ) {
+        Combine.PerKey<CompoundKey, KV<CompoundKey, Aggregate>, List<KV<CompoundKey, Aggregate>>> topK =
+                Combine.perKey(new ApproximateTopK(capacity, k, transformPrefix));
+        return hotKeyFanout != null ? topK.withHotKeyFanout(hotKeyFanout.forStage(transformPrefix + "top_k")) : topK;
+    }
+
     public static class TotalAndSummary {
         public final PCollection<KV<CompoundKey, Aggregate>> total;
         public final PCollection<KV<CompoundKey, Aggregate>> summary;
@@ -1000,6 +2094,8 @@ public class Pipeline {
     public static class SumAndTopK {
         // - all keys in the sum collection are unique (i.e. this is not a multimap)
         // - the sum collection is a total collection (i.e. it is not capped by a topK transform)
+        // - the sum collection is null if the topK entries are approximated or if the sums are not needed
+        //   (cf. aggregateSumsAndTopKs: sums without tos are only derived locally)
         public final PCollection<KV<CompoundKey, Aggregate>> sum;
         public final PCollection<KV<CompoundKey, Aggregate>> topK;
 
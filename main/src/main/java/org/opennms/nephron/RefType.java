@@ -31,18 +31,17 @@ package org.opennms.nephron;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Comparator;
 import java.util.Objects;
 
 import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.coders.NullableCoder;
-import org.apache.beam.sdk.coders.StringUtf8Coder;
 import org.apache.beam.sdk.coders.VarIntCoder;
+import org.opennms.nephron.coders.IpAddrCoder;
 import org.opennms.nephron.cortex.TimeSeriesBuilder;
 import org.opennms.nephron.elastic.ExporterNode;
 import org.opennms.nephron.elastic.FlowSummary;
-import org.opennms.netmgt.flows.persistence.model.Direction;
-import org.opennms.netmgt.flows.persistence.model.FlowDocument;
-import org.opennms.netmgt.flows.persistence.model.NodeInfo;
+import org.opennms.nephron.network.IpAddr;
 
 import com.google.common.base.Strings;
 
@@ -51,11 +50,14 @@ import com.google.common.base.Strings;
  */
 public abstract class RefType {
 
-    public abstract void encode(CompoundKeyData data, OutputStream os) throws IOException;
+    /**
+     * Encodes the fields of this part; strings are encoded by the given coder.
+     */
+    public abstract void encode(CompoundKeyData data, OutputStream os, Coder<String> strings) throws IOException;
 
-    public abstract void decode(CompoundKeyData.Builder builder, InputStream is) throws IOException;
+    public abstract void decode(CompoundKeyData.Builder builder, InputStream is, Coder<String> strings) throws IOException;
 
-    public abstract void create(CompoundKeyData.Builder builder, FlowDocument flow) throws MissingFieldsException;
+    public abstract void create(CompoundKeyData.Builder builder, Flow flow) throws MissingFieldsException;
 
     public abstract void populate(CompoundKeyData data, FlowSummary summary);
 
@@ -69,35 +71,44 @@ public abstract class RefType {
 
     public abstract int hashCode(CompoundKeyData d);
 
-    private final static Coder<String> STRING_CODER = NullableCoder.of(StringUtf8Coder.of());
+    /**
+     * Compares the fields of this part of the given key data. The order is consistent with {@link #equals} and does
+     * not render any strings; addresses are ordered numerically.
+     */
+    public abstract int compare(CompoundKeyData d1, CompoundKeyData d2);
+
     private final static Coder<Integer> INT_CODER = NullableCoder.of(VarIntCoder.of());
+    private final static Coder<IpAddr> ADDRESS_CODER = IpAddrCoder.of();
+
+    private final static Comparator<String> STRING_ORDER = Comparator.nullsFirst(Comparator.naturalOrder());
+    private final static Comparator<Integer> INT_ORDER = Comparator.nullsFirst(Comparator.naturalOrder());
+    private final static Comparator<IpAddr> ADDRESS_ORDER = Comparator.nullsFirst(Comparator.naturalOrder());
 
     public static final RefType EXPORTER_PART = new RefType() {
         @Override
-        public void encode(CompoundKeyData data, OutputStream os) throws IOException {
+        public void encode(CompoundKeyData data, OutputStream os, Coder<String> strings) throws IOException {
             INT_CODER.encode(data.nodeId, os);
-            STRING_CODER.encode(data.foreignSource, os);
-            STRING_CODER.encode(data.foreignId, os);
+            strings.encode(data.foreignSource, os);
+            strings.encode(data.foreignId, os);
         }
 
         @Override
-        public void decode(CompoundKeyData.Builder builder, InputStream is) throws IOException {
+        public void decode(CompoundKeyData.Builder builder, InputStream is, Coder<String> strings) throws IOException {
             builder.nodeId = INT_CODER.decode(is);
-            builder.foreignSource = STRING_CODER.decode(is);
-            builder.foreignId = STRING_CODER.decode(is);
+            builder.foreignSource = strings.decode(is);
+            builder.foreignId = strings.decode(is);
         }
 
         @Override
-        public void create(CompoundKeyData.Builder builder, FlowDocument flow) throws MissingFieldsException {
-            if (!flow.hasExporterNode()) {
+        public void create(CompoundKeyData.Builder builder, Flow flow) throws MissingFieldsException {
+            if (!flow.hasExporterNode) {
                 throw new MissingFieldsException("exporterNode", flow);
             }
-            final NodeInfo exporterNode = flow.getExporterNode();
-            builder.nodeId = exporterNode.getNodeId();
-            if (!Strings.isNullOrEmpty(exporterNode.getForeignSource())
-                && !Strings.isNullOrEmpty(exporterNode.getForeginId())) {
-                builder.foreignSource = exporterNode.getForeignSource();
-                builder.foreignId = exporterNode.getForeginId();
+            builder.nodeId = flow.nodeId;
+            if (!Strings.isNullOrEmpty(flow.getForeignSource())
+                && !Strings.isNullOrEmpty(flow.getForeignId())) {
+                builder.foreignSource = flow.getForeignSource();
+                builder.foreignId = flow.getForeignId();
             }
         }
 
@@ -138,26 +149,30 @@ public abstract class RefType {
         public int hashCode(CompoundKeyData d) {
             return Objects.hash(d.nodeId, d.foreignId, d.foreignSource);
         }
+
+        @Override
+        public int compare(CompoundKeyData d1, CompoundKeyData d2) {
+            int c = Integer.compare(d1.nodeId, d2.nodeId);
+            if (c != 0) return c;
+            c = STRING_ORDER.compare(d1.foreignSource, d2.foreignSource);
+            return c != 0 ? c : STRING_ORDER.compare(d1.foreignId, d2.foreignId);
+        }
     };
 
     public static final RefType INTERFACE_PART = new RefType() {
         @Override
-        public void encode(CompoundKeyData data, OutputStream os) throws IOException {
+        public void encode(CompoundKeyData data, OutputStream os, Coder<String> strings) throws IOException {
             INT_CODER.encode(data.ifIndex, os);
         }
 
         @Override
-        public void decode(CompoundKeyData.Builder builder, InputStream is) throws IOException {
+        public void decode(CompoundKeyData.Builder builder, InputStream is, Coder<String> strings) throws IOException {
             builder.ifIndex = INT_CODER.decode(is);
         }
 
         @Override
-        public void create(CompoundKeyData.Builder builder, FlowDocument flow) throws MissingFieldsException {
-            if (Direction.INGRESS.equals(flow.getDirection())) {
-                builder.ifIndex = flow.getInputSnmpIfindex().getValue();
-            } else {
-                builder.ifIndex = flow.getOutputSnmpIfindex().getValue();
-            }
+        public void create(CompoundKeyData.Builder builder, Flow flow) throws MissingFieldsException {
+            builder.ifIndex = flow.ifIndex;
         }
 
         @Override
@@ -189,24 +204,29 @@ public abstract class RefType {
         public int hashCode(CompoundKeyData d) {
             return d.ifIndex;
         }
+
+        @Override
+        public int compare(CompoundKeyData d1, CompoundKeyData d2) {
+            return Integer.compare(d1.ifIndex, d2.ifIndex);
+        }
     };
 
     public static int DEFAULT_CODE = 0;
 
     public static final RefType DSCP_PART = new RefType() {
         @Override
-        public void encode(CompoundKeyData data, OutputStream os) throws IOException {
+        public void encode(CompoundKeyData data, OutputStream os, Coder<String> strings) throws IOException {
             INT_CODER.encode(data.dscp, os);
         }
 
         @Override
-        public void decode(CompoundKeyData.Builder builder, InputStream is) throws IOException {
+        public void decode(CompoundKeyData.Builder builder, InputStream is, Coder<String> strings) throws IOException {
             builder.dscp = INT_CODER.decode(is);
         }
 
         @Override
-        public void create(CompoundKeyData.Builder builder, FlowDocument flow) throws MissingFieldsException {
-            builder.dscp = flow.hasDscp() ? flow.getDscp().getValue() : DEFAULT_CODE;
+        public void create(CompoundKeyData.Builder builder, Flow flow) throws MissingFieldsException {
+            builder.dscp = flow.dscp != Flow.ABSENT ? flow.dscp : DEFAULT_CODE;
         }
 
         @Override
@@ -238,21 +258,26 @@ public abstract class RefType {
         public int hashCode(CompoundKeyData d) {
             return d.dscp;
         }
+
+        @Override
+        public int compare(CompoundKeyData d1, CompoundKeyData d2) {
+            return Integer.compare(d1.dscp, d2.dscp);
+        }
     };
 
     public static final RefType APPLICATION_PART = new RefType() {
         @Override
-        public void encode(CompoundKeyData data, OutputStream os) throws IOException {
-            STRING_CODER.encode(data.application, os);
+        public void encode(CompoundKeyData data, OutputStream os, Coder<String> strings) throws IOException {
+            strings.encode(data.application, os);
         }
 
         @Override
-        public void decode(CompoundKeyData.Builder builder, InputStream is) throws IOException {
-            builder.application = STRING_CODER.decode(is);
+        public void decode(CompoundKeyData.Builder builder, InputStream is, Coder<String> strings) throws IOException {
+            builder.application = strings.decode(is);
         }
 
         @Override
-        public void create(CompoundKeyData.Builder builder, FlowDocument flow) {
+        public void create(CompoundKeyData.Builder builder, Flow flow) {
             String application = flow.getApplication();
             builder.application = Strings.isNullOrEmpty(application) ? FlowSummary.UNKNOWN_APPLICATION_NAME_KEY : application;
         }
@@ -286,41 +311,45 @@ public abstract class RefType {
         public int hashCode(CompoundKeyData data) {
             return data.application != null ? data.application.hashCode() : 0;
         }
+
+        @Override
+        public int compare(CompoundKeyData d1, CompoundKeyData d2) {
+            return STRING_ORDER.compare(d1.application, d2.application);
+        }
     };
 
     public static final RefType HOST_PART = new RefType() {
         @Override
-        public void encode(CompoundKeyData data, OutputStream os) throws IOException {
-            STRING_CODER.encode(data.address, os);
+        public void encode(CompoundKeyData data, OutputStream os, Coder<String> strings) throws IOException {
+            ADDRESS_CODER.encode(data.address, os);
         }
 
         @Override
-        public void decode(CompoundKeyData.Builder builder, InputStream is) throws IOException {
-            builder.address = STRING_CODER.decode(is);
+        public void decode(CompoundKeyData.Builder builder, InputStream is, Coder<String> strings) throws IOException {
+            builder.address = ADDRESS_CODER.decode(is);
         }
 
         @Override
-        public void create(CompoundKeyData.Builder builder, FlowDocument flow) throws MissingFieldsException {
+        public void create(CompoundKeyData.Builder builder, Flow flow) throws MissingFieldsException {
             // considers the src address only (the dst address is ignored)
             // -> the aggregation that is keyed by hosts is derived from the aggregation that is keyed by conversations
             // -> the src and dst address of flows is considered there (cf. the ProjConvWithTos transformation)
-            String src = Strings.nullToEmpty(flow.getSrcAddress());
-            builder.address = src;
+            builder.address = flow.getSrcIpAddr();
         }
 
         @Override
         public void populate(CompoundKeyData data, FlowSummary summary) {
-            summary.setHostAddress(data.address);
+            summary.setHostAddress(data.address.toString());
         }
 
         @Override
         public void populate(CompoundKeyData data, boolean exporterAndInterfaceAsLabels, TimeSeriesBuilder builder) {
-            builder.addLabel("host", data.address);
+            builder.addLabel("host", data.address.toString());
         }
 
         @Override
         public void groupedByKey(CompoundKeyData data, StringBuilder sb) {
-            sb.append(data.address);
+            data.address.appendTo(sb);
         }
 
         @Override
@@ -337,40 +366,39 @@ public abstract class RefType {
         public int hashCode(CompoundKeyData data) {
             return data.address != null ? data.address.hashCode() : 0;
         }
+
+        @Override
+        public int compare(CompoundKeyData d1, CompoundKeyData d2) {
+            return ADDRESS_ORDER.compare(d1.address, d2.address);
+        }
     };
 
     public static final RefType CONVERSATION_PART = new RefType() {
         @Override
-        public void encode(CompoundKeyData data, OutputStream os) throws IOException {
-            STRING_CODER.encode(data.location, os);
+        public void encode(CompoundKeyData data, OutputStream os, Coder<String> strings) throws IOException {
+            strings.encode(data.location, os);
             INT_CODER.encode(data.protocol, os);
-            STRING_CODER.encode(data.address, os);
-            STRING_CODER.encode(data.largerAddress, os);
-            STRING_CODER.encode(data.application, os);
+            ADDRESS_CODER.encode(data.address, os);
+            ADDRESS_CODER.encode(data.largerAddress, os);
+            strings.encode(data.application, os);
         }
 
         @Override
-        public void decode(CompoundKeyData.Builder builder, InputStream is) throws IOException {
-            builder.location = STRING_CODER.decode(is);
+        public void decode(CompoundKeyData.Builder builder, InputStream is, Coder<String> strings) throws IOException {
+            builder.location = strings.decode(is);
             builder.protocol = INT_CODER.decode(is);
-            builder.address = STRING_CODER.decode(is);
-            builder.largerAddress = STRING_CODER.decode(is);
-            builder.application = STRING_CODER.decode(is);
+            builder.address = ADDRESS_CODER.decode(is);
+            builder.largerAddress = ADDRESS_CODER.decode(is);
+            builder.application = strings.decode(is);
         }
 
         @Override
-        public void create(CompoundKeyData.Builder builder, FlowDocument flow) throws MissingFieldsException {
+        public void create(CompoundKeyData.Builder builder, Flow flow) throws MissingFieldsException {
             builder.location = flow.getLocation();
-            builder.protocol = flow.hasProtocol() ? flow.getProtocol().getValue() : null;
-            String src = Strings.nullToEmpty(flow.getSrcAddress());
-            String dst = Strings.nullToEmpty(flow.getDstAddress());
-            if (src.compareTo(dst) < 0) {
-                builder.address = src;
-                builder.largerAddress = dst;
-            } else {
-                builder.address = dst;
-                builder.largerAddress = src;
-            }
+            builder.protocol = flow.protocol != Flow.ABSENT ? flow.protocol : null;
+            // addresses of flow records are already ordered
+            builder.address = flow.address;
+            builder.largerAddress = flow.largerAddress;
             String application = flow.getApplication();
             builder.application = Strings.isNullOrEmpty(application) ? FlowSummary.UNKNOWN_APPLICATION_NAME_KEY : application;
         }
@@ -384,19 +412,23 @@ public abstract class RefType {
         public void populate(CompoundKeyData data, boolean exporterAndInterfaceAsLabels, TimeSeriesBuilder builder) {
             builder.addLabel("location", data.location);
             builder.addLabel("protocol", data.protocol);
-            builder.addLabel("host", data.address);
-            builder.addLabel("host2", data.largerAddress);
+            builder.addLabel("host", data.address.toString());
+            builder.addLabel("host2", data.largerAddress.toString());
             builder.addLabel("application", data.application);
         }
 
         @Override
         public void groupedByKey(CompoundKeyData data, StringBuilder sb) {
-            sb.append(data.getConversationKey());
+            data.appendConversationKey(sb);
         }
 
         @Override
         public boolean isCompleteConversationRef(CompoundKeyData data) {
-            return data.location != null && data.protocol != null && !Strings.isNullOrEmpty(data.address) && !Strings.isNullOrEmpty(data.largerAddress);
+            // overflow conversations (cf. CardinalityGuard) compete in the topK aggregation like any other conversation
+            if (data.address != null && data.address.isOverflow()) {
+                return true;
+            }
+            return data.location != null && data.protocol != null && isPresent(data.address) && isPresent(data.largerAddress);
         }
 
         @Override
@@ -410,6 +442,22 @@ public abstract class RefType {
         public int hashCode(CompoundKeyData data) {
             return Objects.hash(data.location, data.protocol, data.address, data.largerAddress, data.application);
         }
+
+        @Override
+        public int compare(CompoundKeyData d1, CompoundKeyData d2) {
+            int c = STRING_ORDER.compare(d1.location, d2.location);
+            if (c != 0) return c;
+            c = INT_ORDER.compare(d1.protocol, d2.protocol);
+            if (c != 0) return c;
+            c = ADDRESS_ORDER.compare(d1.address, d2.address);
+            if (c != 0) return c;
+            c = ADDRESS_ORDER.compare(d1.largerAddress, d2.largerAddress);
+            return c != 0 ? c : STRING_ORDER.compare(d1.application, d2.application);
+        }
     };
 
+    private static boolean isPresent(IpAddr address) {
+        return address != null && !address.isAbsent();
+    }
+
 }
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.transforms.Flatten;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.Partition;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionList;
+import org.joda.time.Duration;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+/**
+ * Re-windows flow summaries into the coarser windows of a rollup tier.
+ *
+ * Tier windows are unaligned fixed windows that use the same per node shift as the windows of the flow summaries.
+ * The size of a tier window must be a multiple of the size of the input windows such that each input window falls
+ * into exactly one tier window. Because panes are fired in discarding mode the panes of the input windows can simply
+ * be summed up: totals are calculated exactly.
+ *
+ * TopK summaries of a tier are derived from the sums of the topK summaries of the input windows. Keys that did not
+ * make it into the topK of an input window do not contribute their bytes of that window to the tier.
+ */
+public class Rollup extends PTransform<PCollection<KV<CompoundKey, Aggregate>>, PCollection<KV<CompoundKey, Aggregate>>> {
+
+    private static final Splitter SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    /**
+     * Returns the configured rollup tiers.
+     */
+    public static List<Rollup> tiers(NephronOptions options) {
+        List<Rollup> res = new ArrayList<>();
+        if (!Strings.isNullOrEmpty(options.getRollupWindowSizesMs())) {
+            Collection<Duration> typeWindowSizes = Pipeline.CalculateFlowStatistics.windowSizes(options).values();
+            Set<CompoundKeyType> types = AggregationPlan.of(options).getCalculatedTypes();
+            for (String size : SPLITTER.split(options.getRollupWindowSizesMs())) {
+                Duration windowSize = Duration.millis(Long.parseLong(size));
+                // the windows of all compound key types must nest into the windows of the tier
+                typeWindowSizes.forEach(typeWindowSize -> checkWindowSize(windowSize, typeWindowSize));
+                res.add(new Rollup(
+                        windowSize,
+                        Duration.millis(options.getFixedWindowSizeMs()),
+                        options.getTopK(),
+                        Duration.millis(options.getEarlyProcessingDelayMs()),
+                        Duration.millis(options.getLateProcessingDelayMs()),
+                        Duration.millis(options.getAllowedLatenessMs())
+                ).withTypes(types));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns a short textual representation of the given window size, e.g. "5m" or "1h".
+     */
+    public static String resolution(Duration windowSize) {
+        long ms = windowSize.getMillis();
+        if (ms % 3_600_000 == 0) {
+            return ms / 3_600_000 + "h";
+        } else if (ms % 60_000 == 0) {
+            return ms / 60_000 + "m";
+        } else if (ms % 1_000 == 0) {
+            return ms / 1_000 + "s";
+        } else {
+            return ms + "ms";
+        }
+    }
+
+    /**
+     * Returns the name of the Elasticsearch index or Kafka topic a rollup tier is written to, e.g. "netflow_agg_1h".
+     *
+     * Tiers are written into separate indices and topics. Otherwise consumers that sum up the flow summaries of an index
+     * or topic would count the bytes of each tier in addition to the bytes of the fixed windows.
+     *
+     * @param name the name of the index or topic of the flow summaries of the fixed windows
+     */
+    public static String sinkName(String name, String resolution) {
+        return resolution == null ? name : name + "_" + resolution;
+    }
+
+    private final Duration windowSize;
+    private final int topK;
+    private final Duration earlyProcessingDelay;
+    private final Duration lateProcessingDelay;
+    private final Duration allowedLateness;
+    private final String resolution;
+    private Set<CompoundKeyType> types = AggregationPlan.ALL_TYPES;
+
+    public Rollup(Duration windowSize, Duration inputWindowSize, int topK, Duration earlyProcessingDelay, Duration lateProcessingDelay, Duration allowedLateness) {
+        checkWindowSize(windowSize, inputWindowSize);
+        this.windowSize = windowSize;
+        this.topK = topK;
+        this.earlyProcessingDelay = Objects.requireNonNull(earlyProcessingDelay);
+        this.lateProcessingDelay = Objects.requireNonNull(lateProcessingDelay);
+        this.allowedLateness = Objects.requireNonNull(allowedLateness);
+        this.resolution = resolution(windowSize);
+    }
+
+    private static void checkWindowSize(Duration windowSize, Duration inputWindowSize) {
+        if (windowSize.getMillis() <= inputWindowSize.getMillis() || windowSize.getMillis() % inputWindowSize.getMillis() != 0) {
+            throw new IllegalArgumentException("rollup window size must be a multiple of the window size - rollup window size: " + windowSize + "; window size: " + inputWindowSize);
+        }
+    }
+
+    public String getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Sets the compound key types of the input. No stages are created for other types.
+     */
+    public Rollup withTypes(Set<CompoundKeyType> types) {
+        this.types = types;
+        return this;
+    }
+
+    private UnalignedFixedWindows<KV<CompoundKey, Aggregate>> windowFn() {
+        return UnalignedFixedWindows.of(windowSize, kv -> kv.getKey().getData().nodeId);
+    }
+
+    @Override
+    public PCollection<KV<CompoundKey, Aggregate>> expand(PCollection<KV<CompoundKey, Aggregate>> input) {
+        PCollection<KV<CompoundKey, Aggregate>> windowed = input
+                .apply("rollup_to_windows", Pipeline.toWindow(windowFn(), earlyProcessingDelay, lateProcessingDelay, allowedLateness));
+        return aggregate(windowed);
+    }
+
+    /**
+     * Returns a transform that derives this tier from flow summaries in windows of different sizes (cf.
+     * {@link Pipeline.CalculateFlowStatistics#perWindowSize()}). The summaries of each window size are assigned to
+     * the windows of this tier before they are flattened.
+     */
+    public PTransform<PCollectionList<KV<CompoundKey, Aggregate>>, PCollection<KV<CompoundKey, Aggregate>>> ofWindowSizes() {
+        return new PTransform<>() {
+            @Override
+            public PCollection<KV<CompoundKey, Aggregate>> expand(PCollectionList<KV<CompoundKey, Aggregate>> input) {
+                PCollectionList<KV<CompoundKey, Aggregate>> windowed = PCollectionList.empty(input.getPipeline());
+                for (int i = 0; i < input.size(); i++) {
+                    windowed = windowed.and(input.get(i)
+                            .apply("rollup_to_windows_" + i, Pipeline.toWindow(windowFn(), earlyProcessingDelay, lateProcessingDelay, allowedLateness)));
+                }
+                return aggregate(windowed.apply("rollup_window_sizes_flatten", Flatten.pCollections()));
+            }
+        };
+    }
+
+    private PCollection<KV<CompoundKey, Aggregate>> aggregate(PCollection<KV<CompoundKey, Aggregate>> windowed) {
+        CompoundKeyType[] types = CompoundKeyType.values();
+        PCollectionList<KV<CompoundKey, Aggregate>> byType = windowed
+                .apply("rollup_partition_by_type", Partition.of(types.length, (kv, numPartitions) -> kv.getKey().type.ordinal()));
+
+        PCollectionList<KV<CompoundKey, Aggregate>> summaries = PCollectionList.empty(windowed.getPipeline());
+        for (CompoundKeyType type : types) {
+            if (!this.types.contains(type)) {
+                continue;
+            }
+            String prefix = "rollup_" + type.name().toLowerCase() + "_";
+            PCollection<KV<CompoundKey, Aggregate>> ofType = byType.get(type.ordinal());
+            if (type.isTotalNotTopK()) {
+                summaries = summaries.and(ofType.apply(prefix + "sum", Combine.perKey(new SumAggregates())));
+            } else {
+                // topK summaries of different types share their outer keys -> select the topK for each type separately
+                summaries = summaries.and(Pipeline.aggregateSumAndTopK(prefix, ofType, topK, k -> true).topK);
+            }
+        }
+        return summaries.apply("rollup_flatten", Flatten.pCollections());
+    }
+}
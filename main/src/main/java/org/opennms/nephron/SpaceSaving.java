@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.beam.sdk.coders.AtomicCoder;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.util.VarInt;
+import org.apache.beam.sdk.values.KV;
+
+/**
+ * A mergeable Space-Saving summary of the bytes of compound keys.
+ *
+ * The summary monitors at most {@code capacity} keys. If a key that is not monitored is added to a full summary then
+ * the monitored key with the least bytes is evicted and the new key takes over its bytes as error. For each monitored
+ * key the summary keeps the aggregate that was observed since the key is monitored and the error, i.e. an upper bound
+ * of the bytes the key had before. The true bytes of a key lie in the range {@code [observed, observed + error]}.
+ * For a single summary the error is at most {@code N / capacity} where {@code N} are the added bytes; every key with
+ * more bytes is monitored.
+ *
+ * Summaries are merged by adding the counts of their keys. Keys that are missing in a full summary take the minimum
+ * count of that summary as additional error. Only the {@code capacity} keys with the highest counts are retained.
+ *
+ * Cf. Metwally et al.: Efficient Computation of Frequent and Top-k Elements in Data Streams; Agarwal et al.:
+ * Mergeable Summaries.
+ */
+public class SpaceSaving {
+
+    private static final SumAggregates SUM = new SumAggregates();
+
+    private static final Comparator<Counter> BY_COUNT_DESCENDING =
+            Comparator.comparingLong(Counter::count).reversed().thenComparing(c -> c.key);
+
+    private static class Counter {
+        private final CompoundKey key;
+        private final SumAggregates.Accumulator observed;
+        private long error;
+        // position in the heap
+        private int index;
+
+        private Counter(CompoundKey key, SumAggregates.Accumulator observed, long error) {
+            this.key = key;
+            this.observed = observed;
+            this.error = error;
+        }
+
+        private long count() {
+            return observed.getBytes() + error;
+        }
+    }
+
+    private final int capacity;
+    private final Map<CompoundKey, Counter> counters;
+    // min-heap of the counters ordered by their counts
+    private Counter[] heap;
+    private int size;
+
+    public SpaceSaving(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be strictly positive");
+        }
+        this.capacity = capacity;
+        this.counters = new HashMap<>();
+        this.heap = new Counter[Math.min(capacity, 16)];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(CompoundKey key, Aggregate aggregate) {
+        SumAggregates.Accumulator acc = SUM.addInput(SUM.createAccumulator(), aggregate);
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            SumAggregates.mergeInto(counter.observed, acc);
+            siftDown(counter.index);
+        } else if (size < capacity) {
+            counter = new Counter(key, acc, 0);
+            counters.put(key, counter);
+            if (size == heap.length) {
+                Counter[] grown = new Counter[Math.min(capacity, heap.length * 2)];
+                System.arraycopy(heap, 0, grown, 0, size);
+                heap = grown;
+            }
+            heap[size] = counter;
+            counter.index = size;
+            siftUp(size++);
+        } else {
+            Counter evicted = heap[0];
+            counters.remove(evicted.key);
+            counter = new Counter(key, acc, evicted.count());
+            counters.put(key, counter);
+            heap[0] = counter;
+            counter.index = 0;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Returns the least count of the monitored keys if the summary is full or zero otherwise. Keys that are not
+     * monitored have at most that many bytes.
+     */
+    private long minCount() {
+        return size < capacity ? 0 : heap[0].count();
+    }
+
+    /**
+     * Merges the given summary into this summary.
+     */
+    public void merge(SpaceSaving other) {
+        long minCount = minCount();
+        long otherMinCount = other.minCount();
+        for (Counter counter : counters.values()) {
+            if (!other.counters.containsKey(counter.key)) {
+                counter.error += otherMinCount;
+            }
+        }
+        List<Counter> merged = new ArrayList<>(counters.values());
+        for (int i = 0; i < other.size; i++) {
+            Counter o = other.heap[i];
+            Counter counter = counters.get(o.key);
+            if (counter != null) {
+                SumAggregates.mergeInto(counter.observed, o.observed);
+                counter.error += o.error;
+            } else {
+                SumAggregates.Accumulator acc = SUM.createAccumulator();
+                SumAggregates.mergeInto(acc, o.observed);
+                merged.add(new Counter(o.key, acc, o.error + minCount));
+            }
+        }
+        if (merged.size() > capacity) {
+            merged.sort(BY_COUNT_DESCENDING);
+            merged = merged.subList(0, capacity);
+        }
+        counters.clear();
+        heap = new Counter[Math.max(heap.length, merged.size())];
+        size = 0;
+        for (Counter counter : merged) {
+            counters.put(counter.key, counter);
+            heap[size] = counter;
+            counter.index = size++;
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * Returns the k monitored keys with the highest counts in descending order.
+     *
+     * The aggregates of the returned keys contain the observed bytes, i.e. the lower bounds of their true bytes.
+     * Aggregates of keys whose bytes may be underestimated are marked as estimated.
+     */
+    public List<KV<CompoundKey, Aggregate>> topK(int k) {
+        List<Counter> sorted = new ArrayList<>(counters.values());
+        sorted.sort(BY_COUNT_DESCENDING);
+        List<KV<CompoundKey, Aggregate>> res = new ArrayList<>(Math.min(k, sorted.size()));
+        for (Counter counter : sorted.subList(0, Math.min(k, sorted.size()))) {
+            Aggregate a = SUM.extractOutput(counter.observed);
+            if (counter.error > 0 && !a.isEstimated()) {
+                a = new Aggregate(a.getBytesIn(), a.getBytesOut(), a.getHostname(), a.getHostname2(),
+                        a.isCongestionEncountered(), a.isNonEcnCapableTransport(), true);
+            }
+            res.add(KV.of(counter.key, a));
+        }
+        return res;
+    }
+
+    /**
+     * Returns the error bound of the given key, i.e. the maximum number of bytes that the key may have in addition to
+     * its observed bytes. Returns the least count of all monitored keys for keys that are not monitored.
+     */
+    public long getError(CompoundKey key) {
+        Counter counter = counters.get(key);
+        return counter != null ? counter.error : minCount();
+    }
+
+    private void siftUp(int i) {
+        Counter counter = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent].count() <= counter.count()) {
+                break;
+            }
+            place(heap[parent], i);
+            i = parent;
+        }
+        place(counter, i);
+    }
+
+    private void siftDown(int i) {
+        Counter counter = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heap[child + 1].count() < heap[child].count()) {
+                child++;
+            }
+            if (counter.count() <= heap[child].count()) {
+                break;
+            }
+            place(heap[child], i);
+            i = child;
+        }
+        place(counter, i);
+    }
+
+    private void place(Counter counter, int i) {
+        heap[i] = counter;
+        counter.index = i;
+    }
+
+    /**
+     * Encodes the capacity followed by the monitored keys with their observed aggregates and errors.
+     */
+    public static class SpaceSavingCoder extends AtomicCoder<SpaceSaving> {
+        private static final Coder<CompoundKey> KEY_CODER = new CompoundKey.CompoundKeyCoder();
+        private static final Coder<SumAggregates.Accumulator> ACCUMULATOR_CODER = new SumAggregates.AccumulatorCoder();
+
+        @Override
+        public void encode(SpaceSaving value, OutputStream outStream) throws IOException {
+            VarInt.encode(value.capacity, outStream);
+            VarInt.encode(value.size, outStream);
+            for (int i = 0; i < value.size; i++) {
+                Counter counter = value.heap[i];
+                KEY_CODER.encode(counter.key, outStream);
+                ACCUMULATOR_CODER.encode(counter.observed, outStream);
+                VarInt.encode(counter.error, outStream);
+            }
+        }
+
+        @Override
+        public SpaceSaving decode(InputStream inStream) throws IOException {
+            SpaceSaving res = new SpaceSaving(VarInt.decodeInt(inStream));
+            int size = VarInt.decodeInt(inStream);
+            res.heap = new Counter[Math.max(res.heap.length, size)];
+            // counters are encoded in heap order -> the heap property holds
+            for (int i = 0; i < size; i++) {
+                Counter counter = new Counter(KEY_CODER.decode(inStream), ACCUMULATOR_CODER.decode(inStream), VarInt.decodeLong(inStream));
+                res.counters.put(counter.key, counter);
+                res.place(counter, i);
+            }
+            res.size = size;
+            return res;
+        }
+    }
+}
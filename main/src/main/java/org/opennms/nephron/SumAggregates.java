@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.beam.sdk.coders.AtomicCoder;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CoderRegistry;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.util.VarInt;
+
+/**
+ * Sums aggregates using a mutable accumulator.
+ *
+ * Yields the same results as folding aggregates by {@link Aggregate#merge(Aggregate, Aggregate)} but allocates a
+ * single aggregate per key instead of one aggregate per merge. Host names are only compared if an input carries a
+ * different host name instance than the accumulator.
+ */
+public class SumAggregates extends Combine.CombineFn<Aggregate, SumAggregates.Accumulator, Aggregate> {
+
+    public static class Accumulator {
+        // indicates that no input was added yet
+        private boolean empty = true;
+        private long bytesIn;
+        private long bytesOut;
+        private String hostname;
+        private String hostname2;
+        private boolean congestionEncountered;
+        private boolean nonEcnCapableTransport;
+        private boolean estimated;
+
+        private void add(long bytesIn, long bytesOut, String hostname, String hostname2, boolean ce, boolean nonEct, boolean estimated) {
+            this.bytesIn += bytesIn;
+            this.bytesOut += bytesOut;
+            if (empty) {
+                this.hostname = hostname;
+                this.hostname2 = hostname2;
+                empty = false;
+            } else {
+                this.hostname = Aggregate.mergeHostname(this.hostname, hostname);
+                this.hostname2 = Aggregate.mergeHostname(this.hostname2, hostname2);
+            }
+            this.congestionEncountered |= ce;
+            this.nonEcnCapableTransport |= nonEct;
+            this.estimated |= estimated;
+        }
+
+        long getBytes() {
+            return bytesIn + bytesOut;
+        }
+    }
+
+    /**
+     * Adds the sums of the given source accumulator to the given target accumulator.
+     */
+    static void mergeInto(Accumulator target, Accumulator source) {
+        if (!source.empty) {
+            target.add(source.bytesIn, source.bytesOut, source.hostname, source.hostname2,
+                    source.congestionEncountered, source.nonEcnCapableTransport, source.estimated);
+        }
+    }
+
+    @Override
+    public Accumulator createAccumulator() {
+        return new Accumulator();
+    }
+
+    @Override
+    public Accumulator addInput(Accumulator acc, Aggregate input) {
+        acc.add(input.getBytesIn(), input.getBytesOut(), input.getHostname(), input.getHostname2(),
+                input.isCongestionEncountered(), input.isNonEcnCapableTransport(), input.isEstimated());
+        return acc;
+    }
+
+    @Override
+    public Accumulator mergeAccumulators(Iterable<Accumulator> accumulators) {
+        Accumulator res = null;
+        for (Accumulator acc : accumulators) {
+            if (res == null) {
+                res = acc;
+            } else {
+                mergeInto(res, acc);
+            }
+        }
+        return res != null ? res : createAccumulator();
+    }
+
+    @Override
+    public Aggregate extractOutput(Accumulator acc) {
+        return new Aggregate(acc.bytesIn, acc.bytesOut, acc.hostname, acc.hostname2,
+                acc.congestionEncountered, acc.nonEcnCapableTransport, acc.estimated);
+    }
+
+    @Override
+    public Coder<Accumulator> getAccumulatorCoder(CoderRegistry registry, Coder<Aggregate> inputCoder) {
+        return new AccumulatorCoder();
+    }
+
+    /**
+     * Encodes accumulators by a flags byte followed by the byte counts and the present host names.
+     */
+    public static class AccumulatorCoder extends AtomicCoder<Accumulator> {
+        private static final Coder<String> STRING_CODER = StringUtf8Coder.of();
+
+        private static final int FLAG_EMPTY = 1;
+        private static final int FLAG_HOSTNAME = 1 << 1;
+        private static final int FLAG_HOSTNAME2 = 1 << 2;
+        private static final int FLAG_CONGESTION_ENCOUNTERED = 1 << 3;
+        private static final int FLAG_NON_ECN_CAPABLE_TRANSPORT = 1 << 4;
+        private static final int FLAG_ESTIMATED = 1 << 5;
+
+        @Override
+        public void encode(Accumulator value, OutputStream outStream) throws IOException {
+            int flags = (value.empty ? FLAG_EMPTY : 0) |
+                        (value.hostname != null ? FLAG_HOSTNAME : 0) |
+                        (value.hostname2 != null ? FLAG_HOSTNAME2 : 0) |
+                        (value.congestionEncountered ? FLAG_CONGESTION_ENCOUNTERED : 0) |
+                        (value.nonEcnCapableTransport ? FLAG_NON_ECN_CAPABLE_TRANSPORT : 0) |
+                        (value.estimated ? FLAG_ESTIMATED : 0);
+            outStream.write(flags);
+            VarInt.encode(value.bytesIn, outStream);
+            VarInt.encode(value.bytesOut, outStream);
+            if (value.hostname != null) {
+                STRING_CODER.encode(value.hostname, outStream);
+            }
+            if (value.hostname2 != null) {
+                STRING_CODER.encode(value.hostname2, outStream);
+            }
+        }
+
+        @Override
+        public Accumulator decode(InputStream inStream) throws IOException {
+            int flags = inStream.read();
+            if (flags < 0) {
+                throw new EOFException();
+            }
+            Accumulator acc = new Accumulator();
+            acc.empty = (flags & FLAG_EMPTY) != 0;
+            acc.bytesIn = VarInt.decodeLong(inStream);
+            acc.bytesOut = VarInt.decodeLong(inStream);
+            if ((flags & FLAG_HOSTNAME) != 0) {
+                acc.hostname = STRING_CODER.decode(inStream);
+            }
+            if ((flags & FLAG_HOSTNAME2) != 0) {
+                acc.hostname2 = STRING_CODER.decode(inStream);
+            }
+            acc.congestionEncountered = (flags & FLAG_CONGESTION_ENCOUNTERED) != 0;
+            acc.nonEcnCapableTransport = (flags & FLAG_NON_ECN_CAPABLE_TRANSPORT) != 0;
+            acc.estimated = (flags & FLAG_ESTIMATED) != 0;
+            return acc;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.beam.sdk.transforms.SerializableFunction;
+import org.apache.beam.sdk.values.KV;
+
+/**
+ * Calculates the topK entries with tos and without tos of the sums with tos of an exporter interface.
+ *
+ * The input consists of the sums with tos keyed by their exporter interface. The sums without tos are derived locally
+ * by casting the keys of the sums with tos. The output contains the topK entries with tos per exporter interface and
+ * tos and the topK entries without tos per exporter interface.
+ */
+public class SumsAndTopKsFn extends CubeAggregation.CubeFn {
+
+    private final int topK;
+    private final CompoundKeyType typeWithoutTos;
+    private final SerializableFunction<CompoundKey, Boolean> includeKeyInTopK;
+
+    public SumsAndTopKsFn(int topK, CompoundKeyType typeWithoutTos, SerializableFunction<CompoundKey, Boolean> includeKeyInTopK) {
+        super(topK);
+        this.topK = topK;
+        this.typeWithoutTos = typeWithoutTos;
+        this.includeKeyInTopK = includeKeyInTopK;
+    }
+
+    @Override
+    public List<KV<CompoundKey, Aggregate>> extractOutput(CubeAggregation.Cube cube) {
+        Map<CompoundKey, Aggregate> withTos = extract(cube.sums);
+        Map<CompoundKey, Aggregate> withoutTos = sumBy(withTos, typeWithoutTos);
+        List<KV<CompoundKey, Aggregate>> res = new ArrayList<>();
+        addTopK(res, withTos, topK, includeKeyInTopK::apply);
+        addTopK(res, withoutTos, topK, includeKeyInTopK::apply);
+        return res;
+    }
+}
@@ -28,6 +28,7 @@
 
 package org.opennms.nephron;
 
+import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Objects;
@@ -39,16 +40,40 @@ import org.apache.beam.sdk.transforms.windowing.WindowFn;
 import org.apache.beam.sdk.transforms.windowing.WindowMappingFn;
 import org.joda.time.Duration;
 import org.joda.time.Instant;
-import org.opennms.netmgt.flows.persistence.model.FlowDocument;
 
 import it.unimi.dsi.fastutil.HashCommon;
 
-public class UnalignedFixedWindows extends NonMergingWindowFn<FlowDocument, IntervalWindow> {
+/**
+ * Fixed windows whose start is shifted by a per node offset.
+ *
+ * Shifting windows per node spreads the firing of windows over time. The node an element belongs to is determined by
+ * a {@link NodeIdFn}.
+ */
+public class UnalignedFixedWindows<T> extends NonMergingWindowFn<T, IntervalWindow> {
+
+    /**
+     * Extracts the id of the node an element belongs to.
+     */
+    @FunctionalInterface
+    public interface NodeIdFn<T> extends Serializable {
+        int nodeId(T element);
+    }
 
-    public static UnalignedFixedWindows of(Duration size) {
-        return new UnalignedFixedWindows(size);
+    public static UnalignedFixedWindows<Flow> of(Duration size) {
+        return of(size, flow -> flow.nodeId);
     }
 
+    public static <T> UnalignedFixedWindows<T> of(Duration size, NodeIdFn<T> nodeIdFn) {
+        return new UnalignedFixedWindows<>(size, nodeIdFn);
+    }
+
+    /**
+     * Returns the shift of the windows of a node.
+     *
+     * Shifts are consistent across window sizes: if a window size is a multiple of another window size then the
+     * shifts of both sizes are congruent modulo the smaller size. Therefore the smaller windows nest into the larger
+     * windows.
+     */
     public static long perNodeShift(int nodeId, long windowSize) {
         return Math.abs(HashCommon.mix(nodeId)) % windowSize;
     }
@@ -88,16 +113,17 @@ public class UnalignedFixedWindows extends NonMergingWindowFn<FlowDocument, Inte
     }
 
     private final long size;
+    private final NodeIdFn<T> nodeIdFn;
 
-    private UnalignedFixedWindows(Duration size) {
+    private UnalignedFixedWindows(Duration size, NodeIdFn<T> nodeIdFn) {
         this.size = Objects.requireNonNull(size).getMillis();
+        this.nodeIdFn = Objects.requireNonNull(nodeIdFn);
     }
 
     @Override
     public Collection<IntervalWindow> assignWindows(final AssignContext c) throws Exception {
-        final FlowDocument flow = c.element();
         long timestamp = c.timestamp().getMillis();
-        long startMs = windowStartForTimestamp(flow.getExporterNode().getNodeId(), size, timestamp);
+        long startMs = windowStartForTimestamp(nodeIdFn.nodeId(c.element()), size, timestamp);
         Instant start = Instant.ofEpochMilli(startMs);
         IntervalWindow window = new IntervalWindow(start, start.plus(this.size));
         return Collections.singleton(window);
@@ -126,7 +152,7 @@ public class UnalignedFixedWindows extends NonMergingWindowFn<FlowDocument, Inte
         if (o == null || getClass() != o.getClass()) {
             return false;
         }
-        UnalignedFixedWindows that = (UnalignedFixedWindows) o;
+        UnalignedFixedWindows<?> that = (UnalignedFixedWindows<?>) o;
         return size == that.size;
     }
 
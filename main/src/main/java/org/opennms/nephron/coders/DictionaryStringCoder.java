@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.coders;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.beam.sdk.coders.CustomCoder;
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.util.VarInt;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Encodes nullable strings by a {@link StringDictionary}.
+ *
+ * Strings are prefixed by a variable length tag: 0 denotes null, 1 denotes a string that is encoded in full (length
+ * and UTF-8 bytes), and all larger tags denote the dictionary entry at index tag - 2. Dictionary entries are decoded
+ * without allocation into the instances held by the dictionary. Without dictionary all strings are encoded in full.
+ *
+ * Coders are equal if the versions of their dictionaries are equal.
+ */
+public class DictionaryStringCoder extends CustomCoder<String> {
+
+    private static final DictionaryStringCoder WITHOUT_DICTIONARY = new DictionaryStringCoder(StringDictionary.EMPTY);
+
+    private static final int NULL = 0;
+    private static final int INLINE = 1;
+    private static final int FIRST_INDEX = 2;
+
+    private final StringDictionary dictionary;
+
+    private DictionaryStringCoder(StringDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Returns a coder that encodes all strings in full.
+     */
+    public static DictionaryStringCoder of() {
+        return WITHOUT_DICTIONARY;
+    }
+
+    public static DictionaryStringCoder of(StringDictionary dictionary) {
+        return dictionary.size() == 0 ? WITHOUT_DICTIONARY : new DictionaryStringCoder(dictionary);
+    }
+
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    @Override
+    public void encode(String value, OutputStream outStream) throws IOException {
+        if (value == null) {
+            VarInt.encode(NULL, outStream);
+            return;
+        }
+        int index = dictionary.indexOf(value);
+        if (index >= 0) {
+            VarInt.encode(FIRST_INDEX + index, outStream);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            VarInt.encode(INLINE, outStream);
+            VarInt.encode(bytes.length, outStream);
+            outStream.write(bytes);
+        }
+    }
+
+    @Override
+    public String decode(InputStream inStream) throws IOException {
+        int tag = VarInt.decodeInt(inStream);
+        if (tag == NULL) {
+            return null;
+        } else if (tag == INLINE) {
+            byte[] bytes = new byte[VarInt.decodeInt(inStream)];
+            ByteStreams.readFully(inStream, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        } else if (tag - FIRST_INDEX < dictionary.size()) {
+            return dictionary.get(tag - FIRST_INDEX);
+        } else {
+            throw new CoderException("unknown string dictionary entry - index: " + (tag - FIRST_INDEX) + "; dictionary version: " + dictionary.getVersion());
+        }
+    }
+
+    @Override
+    public void verifyDeterministic() {
+    }
+
+    @Override
+    public boolean consistentWithEquals() {
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DictionaryStringCoder && ((DictionaryStringCoder) o).dictionary.getVersion() == dictionary.getVersion();
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(dictionary.getVersion());
+    }
+}
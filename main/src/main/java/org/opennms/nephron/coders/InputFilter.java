@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.coders;
+
+import static org.opennms.nephron.coders.ProjectingFlowDecoder.DIRECTION;
+import static org.opennms.nephron.coders.ProjectingFlowDecoder.EXPORTER_NODE;
+import static org.opennms.nephron.coders.ProjectingFlowDecoder.INPUT_SNMP_IFINDEX;
+import static org.opennms.nephron.coders.ProjectingFlowDecoder.LOCATION;
+import static org.opennms.nephron.coders.ProjectingFlowDecoder.NODE_FOREIGN_SOURCE;
+import static org.opennms.nephron.coders.ProjectingFlowDecoder.NODE_NODE_ID;
+import static org.opennms.nephron.coders.ProjectingFlowDecoder.OUTPUT_SNMP_IFINDEX;
+import static org.opennms.nephron.coders.ProjectingFlowDecoder.readUInt32Value;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.opennms.netmgt.flows.persistence.model.Direction;
+
+import com.google.common.base.Splitter;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * Filters serialized flow documents by their exporter node id, exporter foreign source, location, and ifIndex.
+ *
+ * For each of these fields an allow list and a deny list can be configured. A flow is accepted if, for each field,
+ * the allow list is empty or contains the value of the field and the deny list does not contain it. The ifIndex is
+ * the input ifIndex for ingress flows and the output ifIndex for egress flows.
+ *
+ * Only the fields that are required for filtering are read from the wire format; all other fields are skipped. In
+ * particular strings are compared as raw UTF-8 bytes without decoding them.
+ */
+public class InputFilter {
+
+    // consumer config properties; values are comma separated lists
+    public static final String ALLOWED_NODE_IDS_CONFIG = "nephron.filter.allowed.node.ids";
+    public static final String DENIED_NODE_IDS_CONFIG = "nephron.filter.denied.node.ids";
+    public static final String ALLOWED_FOREIGN_SOURCES_CONFIG = "nephron.filter.allowed.foreign.sources";
+    public static final String DENIED_FOREIGN_SOURCES_CONFIG = "nephron.filter.denied.foreign.sources";
+    public static final String ALLOWED_LOCATIONS_CONFIG = "nephron.filter.allowed.locations";
+    public static final String DENIED_LOCATIONS_CONFIG = "nephron.filter.denied.locations";
+    public static final String ALLOWED_IF_INDEXES_CONFIG = "nephron.filter.allowed.if.indexes";
+    public static final String DENIED_IF_INDEXES_CONFIG = "nephron.filter.denied.if.indexes";
+
+    private static final Splitter SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    // int lists are sorted arrays in order to avoid boxing when they are searched
+    private final int[] allowedNodeIds, deniedNodeIds;
+    private final Set<ByteString> allowedForeignSources, deniedForeignSources;
+    private final Set<ByteString> allowedLocations, deniedLocations;
+    private final int[] allowedIfIndexes, deniedIfIndexes;
+
+    private InputFilter(Map<String, ?> configs) {
+        allowedNodeIds = ints(configs, ALLOWED_NODE_IDS_CONFIG);
+        deniedNodeIds = ints(configs, DENIED_NODE_IDS_CONFIG);
+        allowedForeignSources = strings(configs, ALLOWED_FOREIGN_SOURCES_CONFIG);
+        deniedForeignSources = strings(configs, DENIED_FOREIGN_SOURCES_CONFIG);
+        allowedLocations = strings(configs, ALLOWED_LOCATIONS_CONFIG);
+        deniedLocations = strings(configs, DENIED_LOCATIONS_CONFIG);
+        allowedIfIndexes = ints(configs, ALLOWED_IF_INDEXES_CONFIG);
+        deniedIfIndexes = ints(configs, DENIED_IF_INDEXES_CONFIG);
+    }
+
+    /**
+     * Creates a filter from the given consumer config or returns null if no filter property is set.
+     */
+    public static InputFilter of(Map<String, ?> configs) {
+        InputFilter filter = new InputFilter(configs);
+        boolean empty = filter.allowedNodeIds.length == 0 && filter.deniedNodeIds.length == 0 &&
+                        filter.allowedForeignSources.isEmpty() && filter.deniedForeignSources.isEmpty() &&
+                        filter.allowedLocations.isEmpty() && filter.deniedLocations.isEmpty() &&
+                        filter.allowedIfIndexes.length == 0 && filter.deniedIfIndexes.length == 0;
+        return empty ? null : filter;
+    }
+
+    private static List<String> values(Map<String, ?> configs, String key) {
+        Object value = configs.get(key);
+        return value != null ? SPLITTER.splitToList(value.toString()) : List.of();
+    }
+
+    private static int[] ints(Map<String, ?> configs, String key) {
+        int[] ints = values(configs, key).stream().mapToInt(Integer::parseInt).toArray();
+        Arrays.sort(ints);
+        return ints;
+    }
+
+    private static Set<ByteString> strings(Map<String, ?> configs, String key) {
+        return values(configs, key).stream().map(ByteString::copyFromUtf8).collect(Collectors.toSet());
+    }
+
+    private static boolean accepts(int[] allowed, int[] denied, int value) {
+        return (allowed.length == 0 || Arrays.binarySearch(allowed, value) >= 0) && Arrays.binarySearch(denied, value) < 0;
+    }
+
+    private static boolean accepts(Set<ByteString> allowed, Set<ByteString> denied, ByteString value) {
+        return (allowed.isEmpty() || allowed.contains(value)) && !denied.contains(value);
+    }
+
+    /**
+     * Checks if the given serialized flow document is accepted by this filter.
+     */
+    public boolean accepts(byte[] data) throws IOException {
+        CodedInputStream in = UnsafeByteOperations.unsafeWrap(data).newCodedInput();
+        in.enableAliasing(true);
+
+        boolean ingress = true;
+        int inputIfIndex = 0;
+        int outputIfIndex = 0;
+        int nodeId = 0;
+        ByteString foreignSource = ByteString.EMPTY;
+        ByteString location = ByteString.EMPTY;
+
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (tag == DIRECTION) {
+                ingress = in.readEnum() == Direction.INGRESS_VALUE;
+            } else if (tag == INPUT_SNMP_IFINDEX) {
+                inputIfIndex = readUInt32Value(in);
+            } else if (tag == OUTPUT_SNMP_IFINDEX) {
+                outputIfIndex = readUInt32Value(in);
+            } else if (tag == LOCATION) {
+                location = in.readBytes();
+            } else if (tag == EXPORTER_NODE) {
+                int oldLimit = in.pushLimit(in.readRawVarint32());
+                int nodeTag;
+                while ((nodeTag = in.readTag()) != 0) {
+                    if (nodeTag == NODE_NODE_ID) {
+                        nodeId = in.readUInt32();
+                    } else if (nodeTag == NODE_FOREIGN_SOURCE) {
+                        foreignSource = in.readBytes();
+                    } else if (!in.skipField(nodeTag)) {
+                        break;
+                    }
+                }
+                in.popLimit(oldLimit);
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+
+        return accepts(allowedNodeIds, deniedNodeIds, nodeId) &&
+               accepts(allowedForeignSources, deniedForeignSources, foreignSource) &&
+               accepts(allowedLocations, deniedLocations, location) &&
+               accepts(allowedIfIndexes, deniedIfIndexes, ingress ? inputIfIndex : outputIfIndex);
+    }
+}
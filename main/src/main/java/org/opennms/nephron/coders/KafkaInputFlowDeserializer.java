@@ -28,19 +28,73 @@
 
 package org.opennms.nephron.coders;
 
+import java.io.IOException;
+import java.util.Map;
+
 import org.apache.kafka.common.serialization.Deserializer;
+import org.opennms.nephron.Flow;
+import org.opennms.nephron.network.InvalidAddressException;
 import org.opennms.netmgt.flows.persistence.model.FlowDocument;
 
-import com.google.protobuf.InvalidProtocolBufferException;
+/**
+ * Deserializes flow documents into {@link Flow} records.
+ *
+ * The deserializer does not throw on malformed records. Records that can not be decoded or that lack fields that are
+ * required for aggregation are returned as dead letters (cf. {@link Flow#deadLetter(String, byte[])}).
+ *
+ * If an {@link InputFilter} is configured then records are checked before they are decoded. Rejected records are
+ * returned as {@link Flow#FILTERED}.
+ */
+public class KafkaInputFlowDeserializer implements Deserializer<Flow> {
+
+    /**
+     * Consumer config property that enables projected decoding.
+     *
+     * If enabled only those fields of flows are decoded that are used by the pipeline.
+     *
+     * @see ProjectingFlowDecoder
+     */
+    public static final String PROJECTED_DECODING_CONFIG = "nephron.projected.decoding";
+
+    // dead letter reasons
+    public static final String EMPTY_RECORD = "empty_record";
+    public static final String UNDECODABLE = "undecodable";
+    public static final String MISSING_EXPORTER_NODE = "missing_exporter_node";
+    public static final String INVALID_ADDRESS = "invalid_address";
+
+    private static final byte[] NO_BYTES = new byte[0];
 
-public class KafkaInputFlowDeserializer implements Deserializer<FlowDocument> {
+    private boolean projectedDecoding;
+    private InputFilter filter;
 
     @Override
-    public FlowDocument deserialize(String topic, byte[] data) {
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        Object value = configs.get(PROJECTED_DECODING_CONFIG);
+        projectedDecoding = value != null && Boolean.parseBoolean(value.toString());
+        filter = InputFilter.of(configs);
+    }
+
+    @Override
+    public Flow deserialize(String topic, byte[] data) {
+        if (data == null || data.length == 0) {
+            return Flow.deadLetter(EMPTY_RECORD, NO_BYTES);
+        }
+        Flow flow;
         try {
-            return FlowDocument.parseFrom(data);
-        } catch (InvalidProtocolBufferException e) {
-            throw new RuntimeException(e);
+            if (filter != null && !filter.accepts(data)) {
+                return Flow.FILTERED;
+            }
+            flow = projectedDecoding ? ProjectingFlowDecoder.decode(data) : Flow.of(FlowDocument.parseFrom(data));
+        } catch (InvalidAddressException e) {
+            // counting the flow with an absent address would merge all unparsable addresses into a single host
+            return Flow.deadLetter(INVALID_ADDRESS, data);
+        } catch (IOException | RuntimeException e) {
+            return Flow.deadLetter(UNDECODABLE, data);
+        }
+        // all aggregations are keyed by the exporter node
+        if (!flow.hasExporterNode) {
+            return Flow.deadLetter(MISSING_EXPORTER_NODE, data);
         }
+        return flow;
     }
 }
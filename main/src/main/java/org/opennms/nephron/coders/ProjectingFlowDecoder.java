@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.coders;
+
+import static com.google.protobuf.WireFormat.WIRETYPE_FIXED64;
+import static com.google.protobuf.WireFormat.WIRETYPE_LENGTH_DELIMITED;
+import static com.google.protobuf.WireFormat.WIRETYPE_VARINT;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.opennms.nephron.Flow;
+import org.opennms.netmgt.flows.persistence.model.Direction;
+import org.opennms.netmgt.flows.persistence.model.FlowDocument;
+import org.opennms.netmgt.flows.persistence.model.NodeInfo;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * Decodes the subset of the fields of a serialized {@link FlowDocument} that is used by the pipeline into a
+ * {@link Flow} record.
+ *
+ * The decoder walks the wire format and skips all fields that are not read when keys and aggregates are derived
+ * from flows. Skipped fields are not materialized; in particular the source and destination node infos and their
+ * category lists are never decoded.
+ *
+ * String fields are not copied: the decoder reads from an immutable view on the given buffer with aliasing enabled
+ * such that the string fields of the resulting flow are {@link ByteString} views on that buffer. Strings are neither
+ * validated nor decoded until they are accessed. Callers must not modify the buffer after decoding.
+ */
+public class ProjectingFlowDecoder {
+
+    static final int NUM_BYTES = FlowDocument.NUM_BYTES_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int DIRECTION = FlowDocument.DIRECTION_FIELD_NUMBER << 3 | WIRETYPE_VARINT;
+    static final int DST_ADDRESS = FlowDocument.DST_ADDRESS_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int DST_HOSTNAME = FlowDocument.DST_HOSTNAME_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int DELTA_SWITCHED = FlowDocument.DELTA_SWITCHED_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int FIRST_SWITCHED = FlowDocument.FIRST_SWITCHED_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int LAST_SWITCHED = FlowDocument.LAST_SWITCHED_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int INPUT_SNMP_IFINDEX = FlowDocument.INPUT_SNMP_IFINDEX_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int OUTPUT_SNMP_IFINDEX = FlowDocument.OUTPUT_SNMP_IFINDEX_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int PROTOCOL = FlowDocument.PROTOCOL_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int SAMPLING_INTERVAL = FlowDocument.SAMPLING_INTERVAL_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int SRC_ADDRESS = FlowDocument.SRC_ADDRESS_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int SRC_HOSTNAME = FlowDocument.SRC_HOSTNAME_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int EXPORTER_NODE = FlowDocument.EXPORTER_NODE_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int APPLICATION = FlowDocument.APPLICATION_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int LOCATION = FlowDocument.LOCATION_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int DSCP = FlowDocument.DSCP_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int ECN = FlowDocument.ECN_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+
+    static final int NODE_FOREIGN_SOURCE = NodeInfo.FOREIGN_SOURCE_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int NODE_FOREIGN_ID = NodeInfo.FOREGIN_ID_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+    static final int NODE_NODE_ID = NodeInfo.NODE_ID_FIELD_NUMBER << 3 | WIRETYPE_VARINT;
+
+    // all wrapper types (UInt64Value, UInt32Value, DoubleValue) store their value in field number 1
+    static final int WRAPPED_VARINT = 1 << 3 | WIRETYPE_VARINT;
+    static final int WRAPPED_DOUBLE = 1 << 3 | WIRETYPE_FIXED64;
+
+    public static Flow decode(byte[] data) throws IOException {
+        return decode(UnsafeByteOperations.unsafeWrap(data));
+    }
+
+    public static Flow decode(ByteBuffer data) throws IOException {
+        return decode(UnsafeByteOperations.unsafeWrap(data));
+    }
+
+    public static Flow decode(ByteString data) throws IOException {
+        CodedInputStream in = data.newCodedInput();
+        in.enableAliasing(true);
+        return decode(in);
+    }
+
+    /**
+     * Decodes a flow from the given input stream. Strings are only read as views when aliasing is enabled on the
+     * given stream and the stream reads from an immutable buffer.
+     */
+    public static Flow decode(CodedInputStream in) throws IOException {
+        Flow.Builder builder = new Flow.Builder();
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (tag == NUM_BYTES) {
+                builder.numBytes = readUInt64Value(in);
+            } else if (tag == DIRECTION) {
+                builder.ingress = in.readEnum() == Direction.INGRESS_VALUE;
+            } else if (tag == DST_ADDRESS) {
+                builder.dstAddress = in.readBytes();
+            } else if (tag == DST_HOSTNAME) {
+                builder.dstHostname = in.readBytes();
+            } else if (tag == DELTA_SWITCHED) {
+                builder.deltaSwitched = readUInt64Value(in);
+                builder.hasDeltaSwitched = true;
+            } else if (tag == FIRST_SWITCHED) {
+                builder.firstSwitched = readUInt64Value(in);
+            } else if (tag == LAST_SWITCHED) {
+                builder.lastSwitched = readUInt64Value(in);
+            } else if (tag == INPUT_SNMP_IFINDEX) {
+                builder.inputIfIndex = readUInt32Value(in);
+            } else if (tag == OUTPUT_SNMP_IFINDEX) {
+                builder.outputIfIndex = readUInt32Value(in);
+            } else if (tag == PROTOCOL) {
+                builder.protocol = readUInt32Value(in);
+            } else if (tag == SAMPLING_INTERVAL) {
+                builder.samplingInterval = readDoubleValue(in);
+            } else if (tag == SRC_ADDRESS) {
+                builder.srcAddress = in.readBytes();
+            } else if (tag == SRC_HOSTNAME) {
+                builder.srcHostname = in.readBytes();
+            } else if (tag == EXPORTER_NODE) {
+                readNodeInfo(in, builder);
+            } else if (tag == APPLICATION) {
+                builder.application = in.readBytes();
+            } else if (tag == LOCATION) {
+                builder.location = in.readBytes();
+            } else if (tag == DSCP) {
+                builder.dscp = readUInt32Value(in);
+            } else if (tag == ECN) {
+                builder.ecn = readUInt32Value(in);
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads the node id, foreign source, and foreign id of the exporter node. Categories are skipped.
+     */
+    private static void readNodeInfo(CodedInputStream in, Flow.Builder builder) throws IOException {
+        builder.hasExporterNode = true;
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (tag == NODE_NODE_ID) {
+                builder.nodeId = in.readUInt32();
+            } else if (tag == NODE_FOREIGN_SOURCE) {
+                builder.foreignSource = in.readBytes();
+            } else if (tag == NODE_FOREIGN_ID) {
+                builder.foreignId = in.readBytes();
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+        in.popLimit(oldLimit);
+    }
+
+    private static long readUInt64Value(CodedInputStream in) throws IOException {
+        long value = 0;
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (tag == WRAPPED_VARINT) {
+                value = in.readUInt64();
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+        in.popLimit(oldLimit);
+        return value;
+    }
+
+    static int readUInt32Value(CodedInputStream in) throws IOException {
+        int value = 0;
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (tag == WRAPPED_VARINT) {
+                value = in.readUInt32();
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+        in.popLimit(oldLimit);
+        return value;
+    }
+
+    private static double readDoubleValue(CodedInputStream in) throws IOException {
+        double value = 0;
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (tag == WRAPPED_DOUBLE) {
+                value = in.readDouble();
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+        in.popLimit(oldLimit);
+        return value;
+    }
+
+}
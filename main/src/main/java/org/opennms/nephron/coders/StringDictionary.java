@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.coders;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * A static dictionary of strings that repeat often in keys and aggregates, e.g. foreign sources, locations, and
+ * application names.
+ *
+ * Strings that are contained in the dictionary are encoded by their index (cf. {@link DictionaryStringCoder}) and
+ * decoded into the single instance that is held by the dictionary. Strings that are not contained are encoded in full.
+ *
+ * The dictionary is loaded when the pipeline is constructed and is an explicit field of the coders that use it. It
+ * is shipped to the workers as part of these serialized coders. Dictionaries are versioned by a hash of their entries.
+ * Coders with dictionaries of different versions are not equal, so an encoding can not be read by a coder with a
+ * different dictionary. The version is checked when a dictionary is deserialized.
+ */
+public class StringDictionary implements Serializable {
+
+    public static final StringDictionary EMPTY = new StringDictionary(new ArrayList<>());
+
+    /**
+     * Loads a dictionary from a file that contains one entry per line. Blank lines are ignored.
+     */
+    public static StringDictionary load(String path) throws IOException {
+        List<String> entries = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            if (!Strings.isNullOrEmpty(line.trim())) {
+                entries.add(line.trim());
+            }
+        }
+        return of(entries);
+    }
+
+    public static StringDictionary of(Collection<String> entries) {
+        return new StringDictionary(new ArrayList<>(entries));
+    }
+
+    private final String[] entries;
+    private final long version;
+    private transient Map<String, Integer> indexes;
+
+    private StringDictionary(List<String> entries) {
+        this.entries = entries.stream().distinct().toArray(String[]::new);
+        this.version = version(this.entries);
+        this.indexes = indexes(this.entries);
+    }
+
+    private static long version(String[] entries) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (String entry : entries) {
+            hasher.putString(entry, StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return hasher.hash().asLong();
+    }
+
+    private static Map<String, Integer> indexes(String[] entries) {
+        Map<String, Integer> res = new HashMap<>(entries.length * 2);
+        for (int i = 0; i < entries.length; i++) {
+            res.put(entries[i], i);
+        }
+        return res;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (version(entries) != version) {
+            throw new InvalidObjectException("string dictionary does not match its version - version: " + version + "; entries: " + entries.length);
+        }
+        indexes = indexes(entries);
+    }
+
+    /**
+     * Returns the index of the given string or -1 if the string is not contained.
+     */
+    public int indexOf(String s) {
+        Integer index = indexes.get(s);
+        return index != null ? index : -1;
+    }
+
+    public String get(int index) {
+        return entries[index];
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
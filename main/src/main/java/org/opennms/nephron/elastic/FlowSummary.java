@@ -76,6 +76,15 @@ public class FlowSummary {
     @JsonProperty("non_ect")
     private Boolean nonEcnCapableTransport;
 
+    // only set if the byte counts were extrapolated because of load shedding
+    @JsonProperty("estimated")
+    private Boolean estimated;
+
+    // only set for rollup tiers; the resolution of the tier, e.g. "1h"
+    // -> tiers are written into separate indices and topics (cf. Rollup.sinkName)
+    @JsonProperty("resolution")
+    private String resolution;
+
     @JsonProperty("exporter")
     private ExporterNode exporter;
 
@@ -238,6 +247,22 @@ public class FlowSummary {
         this.nonEcnCapableTransport = nonEcnCapableTransport;
     }
 
+    public Boolean getEstimated() {
+        return estimated;
+    }
+
+    public void setEstimated(Boolean estimated) {
+        this.estimated = estimated;
+    }
+
+    public String getResolution() {
+        return resolution;
+    }
+
+    public void setResolution(String resolution) {
+        this.resolution = resolution;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -255,6 +280,8 @@ public class FlowSummary {
                 Objects.equals(dscp, that.dscp) &&
                 Objects.equals(congestionEncountered, that.congestionEncountered) &&
                 Objects.equals(nonEcnCapableTransport, that.nonEcnCapableTransport) &&
+                Objects.equals(estimated, that.estimated) &&
+                Objects.equals(resolution, that.resolution) &&
                 Objects.equals(exporter, that.exporter) &&
                 Objects.equals(ifIndex, that.ifIndex) &&
                 Objects.equals(application, that.application) &&
@@ -265,7 +292,7 @@ public class FlowSummary {
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, timestamp, rangeStartMs, rangeEndMs, groupedBy, aggregationType, bytesIngress, bytesEgress, bytesTotal, dscp, congestionEncountered, nonEcnCapableTransport, exporter, ifIndex, application, hostAddress, hostName, conversationKey);
+        return Objects.hash(id, timestamp, rangeStartMs, rangeEndMs, groupedBy, aggregationType, bytesIngress, bytesEgress, bytesTotal, dscp, congestionEncountered, nonEcnCapableTransport, estimated, resolution, exporter, ifIndex, application, hostAddress, hostName, conversationKey);
     }
 
     @Override
@@ -283,6 +310,8 @@ public class FlowSummary {
                 ", dscp=" + dscp +
                 ", congestionEncountered=" + congestionEncountered +
                 ", nonEcnCapableTransport=" + nonEcnCapableTransport +
+                ", estimated=" + estimated +
+                ", resolution='" + resolution + '\'' +
                 ", exporter=" + exporter +
                 ", ifIndex=" + ifIndex +
                 ", application='" + application + '\'' +
@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.network;
+
+import java.io.Serializable;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import com.google.common.net.InetAddresses;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+
+/**
+ * Fixed width binary representation of an IPv4 or IPv6 address.
+ *
+ * IPv4 addresses are stored as an int in the lower bits of {@code lo}; IPv6 addresses are stored as two longs. Addresses
+ * are ordered numerically; IPv4 addresses come before IPv6 addresses. IPv4-mapped IPv6 addresses are treated as IPv4
+ * addresses. Text is only rendered by {@link #toString()}, i.e. when addresses are output.
+ *
+ * Rendered addresses are canonical and may differ from the input text: IPv6 addresses are rendered in the form of
+ * RFC 5952 (lower case, zeros compressed, e.g. "2001:DB8:0:0::1" becomes "2001:db8::1") and IPv4-mapped IPv6
+ * addresses are rendered as dotted quads (e.g. "::ffff:10.0.0.1" becomes "10.0.0.1").
+ *
+ * Empty strings yield {@link #ABSENT} that is ordered before all addresses and rendered as an empty string. Unparsable
+ * strings are rejected by {@link #parseStrict(ByteString)}; {@link #parse(ByteString)} maps them to {@link #ABSENT}. The {@link #OVERFLOW} address stands for all addresses of keys that were folded into an overflow key (cf.
+ * {@link org.opennms.nephron.CardinalityGuard}); it is never parsed and rendered as {@code __overflow}.
+ */
+public final class IpAddr implements Comparable<IpAddr>, Serializable {
+
+    public static final int ABSENT_VERSION = 0;
+    public static final int OVERFLOW_VERSION = 1;
+    public static final int V4 = 4;
+    public static final int V6 = 6;
+
+    public static final IpAddr ABSENT = new IpAddr(ABSENT_VERSION, 0, 0);
+    public static final IpAddr OVERFLOW = new IpAddr(OVERFLOW_VERSION, 0, 0);
+
+    public static final String OVERFLOW_TEXT = "__overflow";
+
+    private final int version;
+    private final long hi;
+    private final long lo;
+
+    private IpAddr(int version, long hi, long lo) {
+        this.version = version;
+        this.hi = hi;
+        this.lo = lo;
+    }
+
+    public static IpAddr ofV4(int address) {
+        return new IpAddr(V4, 0, address & 0xffffffffL);
+    }
+
+    public static IpAddr ofV6(long hi, long lo) {
+        return new IpAddr(V6, hi, lo);
+    }
+
+    public static IpAddr of(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            return ofV4((bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff));
+        }
+        return ofV6(Longs.fromByteArray(bytes), Longs.fromBytes(bytes[8], bytes[9], bytes[10], bytes[11], bytes[12], bytes[13], bytes[14], bytes[15]));
+    }
+
+    public static IpAddr parse(String address) {
+        return address == null ? ABSENT : parse(ByteString.copyFromUtf8(address));
+    }
+
+    /**
+     * Parses a UTF-8 encoded textual address. Unparsable addresses yield {@link #ABSENT}.
+     */
+    public static IpAddr parse(ByteString address) {
+        try {
+            return parseStrict(address);
+        } catch (InvalidAddressException e) {
+            return ABSENT;
+        }
+    }
+
+    /**
+     * Parses a UTF-8 encoded textual address. Empty addresses yield {@link #ABSENT}.
+     *
+     * Dotted quads are parsed in place; IPv6 addresses are parsed by {@link InetAddresses#forString(String)}.
+     *
+     * @throws InvalidAddressException if the address is not empty and can not be parsed
+     */
+    public static IpAddr parseStrict(ByteString address) {
+        if (address.isEmpty()) {
+            return ABSENT;
+        }
+        IpAddr v4 = parseDottedQuad(address);
+        if (v4 != null) {
+            return v4;
+        }
+        String text = address.toStringUtf8();
+        try {
+            return of(InetAddresses.forString(text));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidAddressException(text);
+        }
+    }
+
+    private static IpAddr parseDottedQuad(ByteString s) {
+        int size = s.size();
+        int value = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < size; i++) {
+            int c = s.byteAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return null;
+                }
+            } else if (c == '.' && digits > 0 && dots < 3) {
+                value = value << 8 | octet;
+                octet = 0;
+                digits = 0;
+                dots++;
+            } else {
+                return null;
+            }
+        }
+        return dots == 3 && digits > 0 ? ofV4(value << 8 | octet) : null;
+    }
+
+    /**
+     * Returns {@link #V4}, {@link #V6}, {@link #ABSENT_VERSION}, or {@link #OVERFLOW_VERSION}.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isAbsent() {
+        return version == ABSENT_VERSION;
+    }
+
+    public boolean isOverflow() {
+        return version == OVERFLOW_VERSION;
+    }
+
+    /**
+     * Returns the IPv4 address as an int.
+     */
+    public int getV4() {
+        return (int) lo;
+    }
+
+    public long getHi() {
+        return hi;
+    }
+
+    public long getLo() {
+        return lo;
+    }
+
+    public InetAddress toInetAddress() {
+        byte[] bytes;
+        if (version == V4) {
+            bytes = new byte[] {(byte) (lo >>> 24), (byte) (lo >>> 16), (byte) (lo >>> 8), (byte) lo};
+        } else if (version == V6) {
+            bytes = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (hi >>> (56 - 8 * i));
+                bytes[8 + i] = (byte) (lo >>> (56 - 8 * i));
+            }
+        } else {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int compareTo(IpAddr o) {
+        int c = Integer.compare(version, o.version);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compareUnsigned(hi, o.hi);
+        return c != 0 ? c : Long.compareUnsigned(lo, o.lo);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof IpAddr)) return false;
+        IpAddr that = (IpAddr) o;
+        return version == that.version && hi == that.hi && lo == that.lo;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode((hi * 31 + lo) * 0x9e3779b97f4a7c15L) + version;
+    }
+
+    /**
+     * Renders the address in its canonical textual form (RFC 5952 for IPv6 addresses).
+     */
+    @Override
+    public String toString() {
+        if (version == V6) {
+            return InetAddresses.toAddrString(toInetAddress());
+        }
+        return appendTo(new StringBuilder(15)).toString();
+    }
+
+    /**
+     * Appends the textual form of this address. IPv4 addresses are appended without intermediate allocations.
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        if (version == V4) {
+            return sb.append(lo >>> 24).append('.')
+                    .append(lo >>> 16 & 0xff).append('.')
+                    .append(lo >>> 8 & 0xff).append('.')
+                    .append(lo & 0xff);
+        } else if (version == V6) {
+            return sb.append(toString());
+        } else if (version == OVERFLOW_VERSION) {
+            return sb.append(OVERFLOW_TEXT);
+        } else {
+            return sb;
+        }
+    }
+
+}
@@ -82,14 +82,39 @@ public class IpValue implements Serializable {
 
     private final List<IPAddressRange> ranges;
 
+    // the bounds of the ranges as binary addresses
+    private final IpAddr[] begins;
+    private final IpAddr[] ends;
+
     public IpValue(List<IPAddressRange> ranges) {
         this.ranges = ranges;
+        this.begins = new IpAddr[ranges.size()];
+        this.ends = new IpAddr[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            begins[i] = IpAddr.of(ranges.get(i).getBegin().toInetAddress());
+            ends[i] = IpAddr.of(ranges.get(i).getEnd().toInetAddress());
+        }
     }
 
     public boolean isInRange(final String address) {
         return ranges.stream().anyMatch(r -> r.contains(address));
     }
 
+    /**
+     * Checks if a binary address is contained in any of the ranges. The address is not converted into text.
+     */
+    public boolean isInRange(final IpAddr address) {
+        if (address == null || address.isAbsent() || address.isOverflow()) {
+            return false;
+        }
+        for (int i = 0; i < begins.length; i++) {
+            if (address.compareTo(begins[i]) >= 0 && address.compareTo(ends[i]) <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public List<IPAddressRange> getIpAddressRanges() {
         return ranges;
     }
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.util;
+
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.metrics.Gauge;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.state.StateSpec;
+import org.apache.beam.sdk.state.StateSpecs;
+import org.apache.beam.sdk.state.TimeDomain;
+import org.apache.beam.sdk.state.Timer;
+import org.apache.beam.sdk.state.TimerSpec;
+import org.apache.beam.sdk.state.TimerSpecs;
+import org.apache.beam.sdk.state.ValueState;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.SerializableBiFunction;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.PaneInfo;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionTuple;
+import org.apache.beam.sdk.values.TupleTag;
+import org.apache.beam.sdk.values.TupleTagList;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A stateful transform that passes values through while the pipeline is caught up and suppresses early and late panes
+ * while the pipeline processes a backlog.
+ *
+ * The drift of the pipeline is estimated by the difference between the current time and the end of the window of
+ * early and on-time panes, i.e. by how far the watermark lags behind. (Late panes are not considered because they
+ * belong to windows that ended long ago in any case.) The gate switches into catch-up mode when the drift exceeds the
+ * given threshold and switches back when it falls below the threshold again.
+ *
+ * Triggers are fixed when the pipeline is constructed. Therefore early and late panes are still fired upstream but
+ * they are suppressed by the gate in catch-up mode: their values are held back in state. Early values are output
+ * together with the on-time pane of their window. Late values are output when the window expires. Values of panes
+ * without timing information are always passed through.
+ *
+ * The mode is tracked by each worker separately and exposed by the "catch_up_mode" gauge (1 in catch-up mode, 0
+ * otherwise). Keys that hold back values check the mode of their worker in the given flush interval and output their
+ * values as soon as the worker returned to normal mode. Workers only change their mode when they receive early or
+ * on-time panes; values of workers that receive no such panes anymore are output when their windows expire at the
+ * latest.
+ *
+ * Values are output into two collections depending on the mode of the worker at the time of output. This allows to
+ * write values that are output in catch-up mode by sinks that are configured for throughput, e.g. with larger batches.
+ */
+public class CatchUpGate<K, V> extends PTransform<PCollection<KV<K, V>>, PCollectionTuple> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CatchUpGate.class);
+
+    /**
+     * Values that are output in normal mode.
+     */
+    public final TupleTag<KV<K, V>> normal = new TupleTag<>();
+
+    /**
+     * Values that are output in catch-up mode.
+     */
+    public final TupleTag<KV<K, V>> catchingUp = new TupleTag<>();
+
+    private final SerializableBiFunction<V, V, V> combiner;
+    private final Duration driftThreshold;
+    private final Duration flushInterval;
+    private final Coder<K> keyCoder;
+    private final Coder<V> valueCoder;
+
+    public CatchUpGate(
+            SerializableBiFunction<V, V, V> combiner,
+            Duration driftThreshold,
+            Duration flushInterval,
+            Coder<K> keyCoder,
+            Coder<V> valueCoder
+    ) {
+        super("catchUpGate");
+        this.combiner = combiner;
+        this.driftThreshold = driftThreshold;
+        this.flushInterval = flushInterval;
+        this.keyCoder = keyCoder;
+        this.valueCoder = valueCoder;
+    }
+
+    @Override
+    public PCollectionTuple expand(PCollection<KV<K, V>> input) {
+        PCollectionTuple res = input.apply(ParDo.of(new CatchUpGateFn()).withOutputTags(normal, TupleTagList.of(catchingUp)));
+        res.get(normal).setCoder(KvCoder.of(keyCoder, valueCoder));
+        res.get(catchingUp).setCoder(KvCoder.of(keyCoder, valueCoder));
+        return res;
+    }
+
+    private class CatchUpGateFn extends DoFn<KV<K, V>, KV<K, V>> {
+
+        private static final String VALUE_STATE_NAME = "value";
+        private static final String FLUSH_TIMER_NAME = "flush";
+
+        private final Gauge catchUpMode = Metrics.gauge("flows", "catch_up_mode");
+
+        @StateId(VALUE_STATE_NAME)
+        private final StateSpec<ValueState<V>> valueStateSpec = StateSpecs.value(valueCoder);
+
+        @TimerId(FLUSH_TIMER_NAME)
+        private final TimerSpec flushTimerSpec = TimerSpecs.timer(TimeDomain.PROCESSING_TIME);
+
+        private transient boolean catchUp;
+
+        private void updateMode(PaneInfo pane, BoundedWindow window) {
+            if (pane.getTiming() != PaneInfo.Timing.EARLY && pane.getTiming() != PaneInfo.Timing.ON_TIME) {
+                return;
+            }
+            long drift = System.currentTimeMillis() - window.maxTimestamp().getMillis();
+            boolean mode = drift > driftThreshold.getMillis();
+            if (mode != catchUp) {
+                LOG.info("switch catch-up mode - catchUp: {}; drift: {}", mode, Duration.millis(drift));
+                catchUp = mode;
+            }
+            catchUpMode.set(catchUp ? 1 : 0);
+        }
+
+        private TupleTag<KV<K, V>> outputTag() {
+            return catchUp ? catchingUp : normal;
+        }
+
+        @ProcessElement
+        public void process(
+                ProcessContext ctx,
+                BoundedWindow window,
+                @AlwaysFetched @StateId(VALUE_STATE_NAME) ValueState<V> valueState,
+                @TimerId(FLUSH_TIMER_NAME) Timer timer
+        ) {
+            PaneInfo.Timing timing = ctx.pane().getTiming();
+            updateMode(ctx.pane(), window);
+            var oldValue = valueState.read();
+            var value = oldValue == null ? ctx.element().getValue() : combiner.apply(oldValue, ctx.element().getValue());
+            if (catchUp && (timing == PaneInfo.Timing.EARLY || timing == PaneInfo.Timing.LATE)) {
+                valueState.write(value);
+                if (oldValue == null) {
+                    timer.withOutputTimestamp(window.maxTimestamp()).offset(flushInterval).setRelative();
+                }
+            } else {
+                ctx.output(outputTag(), KV.of(ctx.element().getKey(), value));
+                if (oldValue != null) {
+                    valueState.clear();
+                }
+            }
+        }
+
+        @OnTimer(FLUSH_TIMER_NAME)
+        public void onFlush(
+                OnTimerContext ctx,
+                BoundedWindow window,
+                @Key K key,
+                @AlwaysFetched @StateId(VALUE_STATE_NAME) ValueState<V> valueState,
+                @TimerId(FLUSH_TIMER_NAME) Timer timer
+        ) {
+            var value = valueState.read();
+            if (value == null) {
+                // the value was already output together with a later pane
+                return;
+            }
+            if (catchUp) {
+                // keep holding back the value until the worker returns to normal mode or the window expires
+                timer.withOutputTimestamp(window.maxTimestamp()).offset(flushInterval).setRelative();
+            } else {
+                ctx.outputWithTimestamp(normal, KV.of(key, value), window.maxTimestamp());
+                valueState.clear();
+            }
+        }
+
+        @OnWindowExpiration
+        public void onExpiration(
+                MultiOutputReceiver out,
+                BoundedWindow window,
+                @Key K key,
+                @AlwaysFetched @StateId(VALUE_STATE_NAME) ValueState<V> valueState
+        ) {
+            var value = valueState.read();
+            if (value != null) {
+                out.get(outputTag()).outputWithTimestamp(KV.of(key, value), window.maxTimestamp());
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE;
+import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE_APPLICATION;
+import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE_HOST;
+import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE_TOS;
+import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE_TOS_APPLICATION;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.beam.sdk.runners.TransformHierarchy;
+import org.apache.beam.sdk.transforms.Create;
+import org.junit.Test;
+
+public class AggregationPlanTest {
+
+    @Test
+    public void parsesTypesPerSink() {
+        Map<AggregationPlan.Sink, Set<CompoundKeyType>> parsed = AggregationPlan.parse(
+                "cortex=EXPORTER_INTERFACE,EXPORTER_INTERFACE_APPLICATION; elastic = EXPORTER_INTERFACE_TOS");
+        assertThat(parsed, is(Map.of(
+                AggregationPlan.Sink.CORTEX, EnumSet.of(EXPORTER_INTERFACE, EXPORTER_INTERFACE_APPLICATION),
+                AggregationPlan.Sink.ELASTIC, EnumSet.of(EXPORTER_INTERFACE_TOS)
+        )));
+        assertThat(AggregationPlan.parse(null).isEmpty(), is(true));
+    }
+
+    @Test
+    public void calculatesTheTypesOfEnabledSinks() {
+        AggregationPlan plan = new AggregationPlan(
+                AggregationPlan.parse("cortex=EXPORTER_INTERFACE,EXPORTER_INTERFACE_APPLICATION;kafka=EXPORTER_INTERFACE_TOS;elastic=EXPORTER_INTERFACE,EXPORTER_INTERFACE_HOST"),
+                EnumSet.of(AggregationPlan.Sink.CORTEX, AggregationPlan.Sink.KAFKA)
+        );
+        assertThat(plan.getCalculatedTypes(), is(EnumSet.of(EXPORTER_INTERFACE, EXPORTER_INTERFACE_APPLICATION, EXPORTER_INTERFACE_TOS)));
+        assertThat(plan.isSelective(AggregationPlan.Sink.CORTEX), is(true));
+        assertThat(plan.isSelective(AggregationPlan.Sink.KAFKA), is(true));
+        assertThat(plan.getTypes(AggregationPlan.Sink.KAFKA), is(EnumSet.of(EXPORTER_INTERFACE_TOS)));
+    }
+
+    @Test
+    public void calculatesAllTypesIfAnEnabledSinkIsNotListed() {
+        AggregationPlan plan = new AggregationPlan(
+                AggregationPlan.parse("cortex=EXPORTER_INTERFACE"),
+                EnumSet.of(AggregationPlan.Sink.CORTEX, AggregationPlan.Sink.ELASTIC)
+        );
+        assertThat(plan.getCalculatedTypes(), is(AggregationPlan.ALL_TYPES));
+        assertThat(plan.isSelective(AggregationPlan.Sink.CORTEX), is(true));
+        assertThat(plan.isSelective(AggregationPlan.Sink.ELASTIC), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTopKWithoutParentTotal() {
+        new AggregationPlan(AggregationPlan.parse("cortex=EXPORTER_INTERFACE,EXPORTER_INTERFACE_TOS_APPLICATION"), EnumSet.allOf(AggregationPlan.Sink.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsExporterType() {
+        new AggregationPlan(AggregationPlan.parse("cortex=EXPORTER"), EnumSet.allOf(AggregationPlan.Sink.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyTypeList() {
+        new AggregationPlan(AggregationPlan.parse("cortex="), EnumSet.allOf(AggregationPlan.Sink.class));
+    }
+
+    @Test
+    public void prunesStagesOfTypesThatAreNotCalculated() {
+        org.apache.beam.sdk.Pipeline pipeline = org.apache.beam.sdk.Pipeline.create();
+        Pipeline.registerCoders(pipeline);
+        pipeline.apply(Create.empty(new Flow.FlowCoder()))
+                .apply(new Pipeline.CalculateFlowStatistics(10, FlowAnalyzerTest.WINDOWED_FLOWS)
+                        .withTypes(EnumSet.of(EXPORTER_INTERFACE_TOS, EXPORTER_INTERFACE_TOS_APPLICATION)));
+
+        List<String> names = new ArrayList<>();
+        pipeline.traverseTopologically(new org.apache.beam.sdk.Pipeline.PipelineVisitor.Defaults() {
+            @Override
+            public CompositeBehavior enterCompositeTransform(TransformHierarchy.Node node) {
+                names.add(node.getFullName());
+                return CompositeBehavior.ENTER_TRANSFORM;
+            }
+
+            @Override
+            public void visitPrimitiveTransform(TransformHierarchy.Node node) {
+                names.add(node.getFullName());
+            }
+        });
+
+        // applications and their parent totals are calculated; conversations, hosts, and interface totals are not
+        assertThat(names.stream().anyMatch(name -> name.contains("/app_")), is(true));
+        assertThat(names.stream().anyMatch(name -> name.contains("/tos_")), is(true));
+        assertThat(names.stream().anyMatch(name -> name.contains("/conv_")), is(false));
+        assertThat(names.stream().anyMatch(name -> name.contains("/host_")), is(false));
+        assertThat(names.stream().anyMatch(name -> name.contains("/itf_")), is(false));
+    }
+}
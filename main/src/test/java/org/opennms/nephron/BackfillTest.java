@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.beam.sdk.values.KV;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+public class BackfillTest {
+
+    private static final TopicPartition TP = new TopicPartition("flows", 0);
+
+    private static KV<Integer, KV<Long, Long>> range(int partition, long start, long end) {
+        return KV.of(partition, KV.of(start, end));
+    }
+
+    /**
+     * Returns a consumer whose partition contains the given number of records. The values of the records are dead
+     * letters whose reasons are their offsets. The end of the log is truncated after the first poll if requested.
+     */
+    private static MockConsumer<byte[], Flow> consumer(long logEnd, long records, long truncatedLogEnd) {
+        var consumer = new MockConsumer<byte[], Flow>(OffsetResetStrategy.EARLIEST);
+        consumer.updateBeginningOffsets(Map.of(TP, 0L));
+        consumer.updateEndOffsets(Map.of(TP, logEnd));
+        consumer.schedulePollTask(() -> {
+            for (long offset = 0; offset < records; offset++) {
+                var flow = Flow.deadLetter(String.valueOf(offset), new byte[0]);
+                consumer.addRecord(new ConsumerRecord<>(TP.topic(), TP.partition(), offset, null, flow));
+            }
+            consumer.updateEndOffsets(Map.of(TP, truncatedLogEnd));
+        });
+        return consumer;
+    }
+
+    private static MockConsumer<byte[], Flow> consumer(long logEnd) {
+        return consumer(logEnd, logEnd, logEnd);
+    }
+
+    private static List<String> read(MockConsumer<byte[], Flow> consumer, long start, long end) {
+        List<String> res = new ArrayList<>();
+        Backfill.readRange(consumer, TP, start, end, Duration.ZERO, flow -> res.add(flow.getDeadLetterReason()));
+        return res;
+    }
+
+    @Test
+    public void canParseOffsetRanges() {
+        assertThat(Backfill.parseOffsetRanges("0:100-200, 3 : 0 - 5,"), contains(range(0, 100, 200), range(3, 0, 5)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidOffsetRanges() {
+        Backfill.parseOffsetRanges("0:100");
+    }
+
+    @Test
+    public void splitsOffsetRangesIntoChunks() {
+        assertThat(
+                Backfill.split(List.of(range(0, 100, 350), range(1, 5, 5), range(2, 0, 100)), 100),
+                contains(range(0, 100, 200), range(0, 200, 300), range(0, 300, 350), range(2, 0, 100))
+        );
+    }
+
+    @Test
+    public void readsOffsetRange() {
+        assertThat(read(consumer(10), 3, 6), contains("3", "4", "5"));
+    }
+
+    @Test
+    public void stopsReadingAtTheEndOfTheLog() {
+        // the range extends beyond the end of the log -> reading must not wait for offsets that never materialize
+        assertThat(read(consumer(5), 2, 100), contains("2", "3", "4"));
+        assertThat(read(consumer(5), 7, 100).isEmpty(), is(true));
+    }
+
+    @Test
+    public void stopsReadingIfTheLogIsTruncated() {
+        // offsets 8 and 9 vanish after the end of the log was determined
+        assertThat(read(consumer(10, 8, 8), 5, 10), contains("5", "6", "7"));
+    }
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.nephron;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
+import org.apache.beam.sdk.values.KV;
+import org.joda.time.Instant;
+import org.junit.Test;
+import org.opennms.nephron.network.IpAddr;
+
+public class CardinalityGuardTest {
+
+    private static final long WINDOW_SIZE_MS = 60_000;
+
+    private static CompoundKey conversation(int nodeId, int conversation) {
+        CompoundKeyData.Builder builder = new CompoundKeyData.Builder();
+        builder.nodeId = nodeId;
+        builder.foreignSource = "fs";
+        builder.foreignId = "fid" + nodeId;
+        builder.ifIndex = 2;
+        builder.dscp = 0;
+        builder.location = "loc";
+        builder.protocol = 6;
+        builder.address = IpAddr.parse("10.0.0." + conversation);
+        builder.largerAddress = IpAddr.parse("10.0.1." + conversation);
+        builder.application = "app";
+        return new CompoundKey(CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION, builder.build());
+    }
+
+    // windows are unaligned per node
+    private static IntervalWindow window(int nodeId, int number) {
+        long start = number * WINDOW_SIZE_MS + nodeId * 1000L;
+        return new IntervalWindow(new Instant(start), new Instant(start + WINDOW_SIZE_MS));
+    }
+
+    /**
+     * Processes the given conversations and returns the number of elements that were folded into overflow keys.
+     */
+    private static int overflows(CardinalityGuard guard, int nodeId, int window, int... conversations) {
+        List<KV<CompoundKey, Aggregate>> output = new ArrayList<>();
+        DoFn.OutputReceiver<KV<CompoundKey, Aggregate>> receiver = new DoFn.OutputReceiver<>() {
+            @Override
+            public void output(KV<CompoundKey, Aggregate> kv) {
+                output.add(kv);
+            }
+
+            @Override
+            public void outputWithTimestamp(KV<CompoundKey, Aggregate> kv, Instant timestamp) {
+                output.add(kv);
+            }
+        };
+        BoundedWindow w = window(nodeId, window);
+        for (int conversation : conversations) {
+            guard.processElement(KV.of(conversation(nodeId, conversation), new Aggregate(1, 0, null, null, 0)), w, receiver);
+        }
+        return (int) output.stream().filter(kv -> CardinalityGuard.isOverflowKey(kv.getKey())).count();
+    }
+
+    @Test
+    public void tracksKeysOfManyExportersAndWindows() {
+        CardinalityGuard guard = new CardinalityGuard(2, "test");
+        guard.setup();
+        // interleave the elements of 50 exporters in their own windows
+        for (int conversation = 0; conversation < 2; conversation++) {
+            for (int nodeId = 0; nodeId < 50; nodeId++) {
+                assertThat(overflows(guard, nodeId, 0, conversation), is(0));
+            }
+        }
+        for (int nodeId = 0; nodeId < 50; nodeId++) {
+            assertThat(overflows(guard, nodeId, 0, 2, 3, 0, 1), is(2));
+            // the keys of other windows are tracked separately
+            assertThat(overflows(guard, nodeId, 1, 2, 3, 0), is(1));
+        }
+    }
+
+    @Test
+    public void evictsWindowsThatEndFirst() {
+        CardinalityGuard guard = new CardinalityGuard(2, "test", 4);
+        guard.setup();
+        assertThat(overflows(guard, 1, 1, 0, 1), is(0));
+        assertThat(overflows(guard, 1, 0, 0, 1), is(0));
+        // the tracked keys exceed the bound -> the window that ends first is evicted
+        assertThat(overflows(guard, 1, 2, 0), is(0));
+        assertThat(overflows(guard, 1, 1, 2), is(1));
+        // the evicted window is tracked again from scratch
+        assertThat(overflows(guard, 1, 0, 2), is(0));
+    }
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+
+import java.util.Arrays;
+
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.testing.CoderProperties;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.junit.Test;
+import org.opennms.nephron.coders.StringDictionary;
+import org.opennms.nephron.network.IpAddr;
+
+import com.google.gson.Gson;
+
+public class CompoundKeyTest {
+
+    private static final Coder<CompoundKey> CODER = new CompoundKey.CompoundKeyCoder();
+
+    private static CompoundKey conversation(String address, String largerAddress) {
+        CompoundKeyData.Builder builder = new CompoundKeyData.Builder();
+        builder.nodeId = 1;
+        builder.foreignSource = "fs";
+        builder.foreignId = "fid";
+        builder.ifIndex = 2;
+        builder.dscp = 3;
+        builder.location = "loc";
+        builder.protocol = 6;
+        builder.address = IpAddr.parse(address);
+        builder.largerAddress = IpAddr.parse(largerAddress);
+        builder.application = "app";
+        return new CompoundKey(CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION, builder.build());
+    }
+
+    @Test
+    public void keysWithEqualPartsAreEqual() {
+        CompoundKey k1 = conversation("10.0.0.1", "10.0.0.2");
+        CompoundKey k2 = conversation("10.0.0.1", "10.0.0.3");
+        assertThat(k1.equals(k2), is(false));
+        // only the parts of the key type are considered
+        assertThat(k1.getOuterKey(), is(k2.getOuterKey()));
+        assertThat(k1.getOuterKey().hashCode(), is(k2.getOuterKey().hashCode()));
+        assertThat(k1.getOuterKey(), not(is(k1.getOuterKey().getOuterKey())));
+    }
+
+    @Test
+    public void decodedKeysAreEqual() throws Exception {
+        CompoundKey key = conversation("10.0.0.1", "10.0.0.2");
+        CoderProperties.coderDecodeEncodeEqual(CODER, key);
+        CoderProperties.coderConsistentWithEquals(CODER, key, conversation("10.0.0.1", "10.0.0.3"));
+
+        CompoundKey decoded = CoderUtils.clone(CODER, key);
+        assertThat(decoded.hash64(), is(key.hash64()));
+        assertThat(decoded.asString(), is(key.asString()));
+        assertThat(decoded.getData().largerAddress, is(IpAddr.parse("10.0.0.2")));
+        assertThat(decoded.getOuterKey(), is(key.getOuterKey()));
+    }
+
+    @Test
+    public void keysEncodedByDictionaryEqualPackedKeys() throws Exception {
+        Coder<CompoundKey> coder = new CompoundKey.CompoundKeyCoder(StringDictionary.of(Arrays.asList("fs", "loc", "app")));
+        CompoundKey key = conversation("10.0.0.1", "10.0.0.2");
+        CoderProperties.coderDecodeEncodeEqual(coder, key);
+        CoderProperties.coderConsistentWithEquals(coder, key, conversation("10.0.0.1", "10.0.0.3"));
+        assertThat(CoderUtils.encodeToByteArray(coder, key).length, lessThan(CoderUtils.encodeToByteArray(CODER, key).length));
+
+        // packed representations do not depend on the dictionary
+        CompoundKey decoded = CoderUtils.clone(coder, key);
+        assertThat(decoded.packed(), is(key.packed()));
+        assertThat(decoded.hash64(), is(key.hash64()));
+        assertThat(coder, not(is(CODER)));
+    }
+
+    @Test
+    public void comparesKeysWithoutRendering() throws Exception {
+        CompoundKey key = conversation("10.0.0.9", "10.0.0.10");
+        assertThat(key.compareTo(conversation("10.0.0.9", "10.0.0.10")), is(0));
+        assertThat(key.compareTo(CoderUtils.clone(CODER, key)), is(0));
+        // addresses are compared numerically
+        assertThat(key.compareTo(conversation("10.0.0.10", "10.0.0.11")), lessThan(0));
+        assertThat(key.compareTo(conversation("10.0.0.9", "10.0.0.9")), greaterThan(0));
+        // only the parts of the key type are considered
+        assertThat(key.getOuterKey().compareTo(conversation("10.0.0.10", "10.0.0.11").getOuterKey()), is(0));
+        assertThat(key.getOuterKey().compareTo(key), lessThan(0));
+    }
+
+    @Test
+    public void rendersConversationKeysLikeGson() {
+        Gson gson = new Gson();
+        for (String s : new String[] { "", "app", "a\"b\\c", "<tag attr='x'>&amp;=", "tab\tnew\nline\u0001", "\u00e4\u2028\u2029\ud83d\ude00" }) {
+            CompoundKeyData.Builder builder = new CompoundKeyData.Builder();
+            builder.location = s;
+            builder.protocol = 17;
+            builder.address = IpAddr.parse("10.0.0.1");
+            builder.largerAddress = IpAddr.parse("2001:db8::1");
+            builder.application = s;
+            CompoundKeyData data = builder.build();
+            String expected = "[" + gson.toJson(s) + ",17,\"10.0.0.1\",\"2001:db8::1\"," + gson.toJson(s) + "]";
+            assertThat(data.getConversationKey(), is(expected));
+        }
+        CompoundKeyData empty = new CompoundKeyData.Builder().build();
+        assertThat(empty.getConversationKey(), is("[null,null,null,null,null]"));
+    }
+
+    @Test
+    public void rendersGroupedByKeys() {
+        CompoundKey key = conversation("10.0.0.1", "10.0.0.2");
+        assertThat(key.groupedByKey(), is("fs:fid-2-3-[\"loc\",6,\"10.0.0.1\",\"10.0.0.2\",\"app\"]"));
+        assertThat(key.getOuterKey().groupedByKey(), is("fs:fid-2-3"));
+    }
+
+    @Test
+    public void foldsKeysIntoOverflowKeys() {
+        CompoundKey overflow = CardinalityGuard.overflowKey(conversation("10.0.0.1", "10.0.0.2"));
+        assertThat(overflow, is(CardinalityGuard.overflowKey(conversation("10.0.0.3", "10.0.0.4"))));
+        assertThat(overflow.groupedByKey(), is("fs:fid-2-3-[\"__overflow\",null,\"__overflow\",\"__overflow\",\"__overflow\"]"));
+        assertThat(overflow.isCompleteConversationKey(), is(true));
+        assertThat(CardinalityGuard.isOverflowKey(overflow), is(true));
+        CompoundKey host = CardinalityGuard.overflowKey(conversation("10.0.0.1", "10.0.0.2").cast(CompoundKeyType.EXPORTER_INTERFACE_TOS_HOST));
+        assertThat(host.groupedByKey(), is("fs:fid-2-3-__overflow"));
+    }
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.nephron;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.anEmptyMap;
+import static org.hamcrest.Matchers.is;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.beam.sdk.options.PipelineOptions;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.GlobalWindow;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.TupleTag;
+import org.joda.time.Instant;
+import org.junit.Test;
+import org.opennms.nephron.network.IpAddr;
+
+public class ConversationPrefilterTest {
+
+    private static CompoundKey conversation(String address, String largerAddress) {
+        CompoundKeyData.Builder builder = new CompoundKeyData.Builder();
+        builder.nodeId = 1;
+        builder.foreignSource = "fs";
+        builder.foreignId = "fid";
+        builder.ifIndex = 2;
+        builder.dscp = 3;
+        builder.location = "loc";
+        builder.protocol = 6;
+        builder.address = IpAddr.parse(address);
+        builder.largerAddress = IpAddr.parse(largerAddress);
+        builder.application = "app";
+        return new CompoundKey(CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION, builder.build());
+    }
+
+    private static Aggregate aggregate(long bytes) {
+        return new Aggregate(bytes, 0, null, null, 0);
+    }
+
+    /**
+     * Processes the given conversations in a single bundle and collects the bytes of the output by tag and grouped-by key.
+     */
+    private static Map<TupleTag<?>, Map<String, Long>> bundle(ConversationPrefilter prefilter, Map<CompoundKey, Long> conversations) {
+        Map<TupleTag<?>, Map<String, Long>> output = new HashMap<>();
+        output.put(ConversationPrefilter.CANDIDATES, new HashMap<>());
+        output.put(ConversationPrefilter.BY_APP, new HashMap<>());
+        output.put(ConversationPrefilter.BY_HOST, new HashMap<>());
+        prefilter.startBundle();
+        conversations.forEach((key, bytes) -> prefilter.processElement(KV.of(key, aggregate(bytes)), new Instant(0), GlobalWindow.INSTANCE));
+        prefilter.finishBundle(prefilter.new FinishBundleContext() {
+            @Override
+            public PipelineOptions getPipelineOptions() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void output(KV<CompoundKey, Aggregate> kv, Instant timestamp, BoundedWindow window) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public <T> void output(TupleTag<T> tag, T element, Instant timestamp, BoundedWindow window) {
+                KV<CompoundKey, Aggregate> kv = (KV<CompoundKey, Aggregate>) element;
+                output.get(tag).merge(kv.getKey().groupedByKey(), kv.getValue().getBytes(), Long::sum);
+            }
+        });
+        return output;
+    }
+
+    @Test
+    public void forwardsLargestConversationsAndRollsUpOthers() {
+        ConversationPrefilter prefilter = new ConversationPrefilter(1);
+        prefilter.setup();
+
+        Map<CompoundKey, Long> conversations = new HashMap<>();
+        conversations.put(conversation("10.0.0.1", "10.0.0.2"), 100L);
+        conversations.put(conversation("10.0.0.2", "10.0.0.3"), 10L);
+        conversations.put(conversation("10.0.0.2", "10.0.0.4"), 1L);
+        Map<TupleTag<?>, Map<String, Long>> output = bundle(prefilter, conversations);
+
+        Map<String, Long> candidates = new HashMap<>();
+        candidates.put(conversation("10.0.0.1", "10.0.0.2").groupedByKey(), 100L);
+        assertThat(output.get(ConversationPrefilter.CANDIDATES), is(candidates));
+
+        // conversations below the threshold are rolled up into the application and both hosts
+        Map<String, Long> byApp = new HashMap<>();
+        byApp.put("fs:fid-2-3-app", 11L);
+        assertThat(output.get(ConversationPrefilter.BY_APP), is(byApp));
+
+        Map<String, Long> byHost = new HashMap<>();
+        byHost.put("fs:fid-2-3-10.0.0.2", 11L);
+        byHost.put("fs:fid-2-3-10.0.0.3", 10L);
+        byHost.put("fs:fid-2-3-10.0.0.4", 1L);
+        assertThat(output.get(ConversationPrefilter.BY_HOST), is(byHost));
+    }
+
+    @Test
+    public void forwardsRecentCandidates() {
+        ConversationPrefilter prefilter = new ConversationPrefilter(1);
+        prefilter.setup();
+
+        Map<CompoundKey, Long> first = new HashMap<>();
+        first.put(conversation("10.0.0.1", "10.0.0.2"), 100L);
+        first.put(conversation("10.0.0.2", "10.0.0.3"), 10L);
+        bundle(prefilter, first);
+
+        // the conversation of the first bundle is still forwarded although it is below the threshold of the second bundle
+        Map<CompoundKey, Long> second = new HashMap<>();
+        second.put(conversation("10.0.0.1", "10.0.0.2"), 1L);
+        second.put(conversation("10.0.0.2", "10.0.0.3"), 50L);
+        Map<TupleTag<?>, Map<String, Long>> output = bundle(prefilter, second);
+
+        Map<String, Long> candidates = new HashMap<>();
+        candidates.put(conversation("10.0.0.1", "10.0.0.2").groupedByKey(), 1L);
+        candidates.put(conversation("10.0.0.2", "10.0.0.3").groupedByKey(), 50L);
+        assertThat(output.get(ConversationPrefilter.CANDIDATES), is(candidates));
+        assertThat(output.get(ConversationPrefilter.BY_APP), is(anEmptyMap()));
+        assertThat(output.get(ConversationPrefilter.BY_HOST), is(anEmptyMap()));
+    }
+}
@@ -28,7 +28,10 @@
 
 package org.opennms.nephron;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
 import static org.joda.time.Instant.ofEpochMilli;
+import static org.junit.Assert.assertThrows;
 import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE;
 import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE_APPLICATION;
 import static org.opennms.nephron.CompoundKeyType.EXPORTER_INTERFACE_CONVERSATION;
@@ -44,7 +47,10 @@ import static org.opennms.nephron.flowgen.FlowGenerator.GIGABYTE;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.function.LongFunction;
 
@@ -53,18 +59,27 @@ import org.apache.beam.sdk.options.PipelineOptionsFactory;
 import org.apache.beam.sdk.testing.PAssert;
 import org.apache.beam.sdk.testing.TestPipeline;
 import org.apache.beam.sdk.testing.TestStream;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.transforms.Count;
 import org.apache.beam.sdk.transforms.Filter;
+import org.apache.beam.sdk.transforms.Flatten;
+import org.apache.beam.sdk.transforms.MapElements;
 import org.apache.beam.sdk.transforms.PTransform;
 import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.Sum;
 import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
 import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionList;
 import org.apache.beam.sdk.values.TimestampedValue;
+import org.apache.beam.sdk.values.TypeDescriptors;
 import org.joda.time.Duration;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 import org.opennms.nephron.coders.FlowDocumentProtobufCoder;
 import org.opennms.nephron.elastic.AggregationType;
 import org.opennms.nephron.elastic.ExporterNode;
@@ -77,8 +92,21 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableList;
 
+/**
+ * The flow statistics are calculated by the DAG of combine and topK transforms and by the cube aggregation engine.
+ * Both engines must yield the same results.
+ */
+@RunWith(Parameterized.class)
 public class FlowAnalyzerTest {
 
+    @Parameterized.Parameters(name = "cubeAggregation: {0}")
+    public static Object[] cubeAggregation() {
+        return new Object[] { false, true };
+    }
+
+    @Parameterized.Parameter
+    public boolean cubeAggregation;
+
     static final ExporterNode EXPORTER_NODE = new ExporterNode();
 
     static {
@@ -140,7 +168,8 @@ public class FlowAnalyzerTest {
         TestStream<FlowDocument> flowStream = flowStreamBuilder.advanceWatermarkToInfinity();
 
         PCollection<FlowSummary> output = p.apply(flowStream)
-                .apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS))
+                .apply(Pipeline.toFlows())
+                .apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS, cubeAggregation))
                 .apply(Filter.by(fs -> fs.getKey().getType() == CompoundKeyType.EXPORTER_INTERFACE))
                 .apply(TO_FLOW_SUMMARY);
 
@@ -221,7 +250,8 @@ public class FlowAnalyzerTest {
 
         // Build the pipeline
         PCollection<FlowSummary> output = p.apply(flowStream)
-                .apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS))
+                .apply(Pipeline.toFlows())
+                .apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS, cubeAggregation))
                 .apply(Filter.by(fs -> fs.getKey().getType() == CompoundKeyType.EXPORTER_INTERFACE))
                 .apply(TO_FLOW_SUMMARY);
 
@@ -305,11 +335,12 @@ public class FlowAnalyzerTest {
 
         final TestStream<FlowDocument> flowStream = flowStreamBuilder.advanceWatermarkToInfinity();
         final PCollection<FlowSummary> output = p.apply(flowStream)
+                .apply(Pipeline.toFlows())
                 // disable early firings
                 // -> early panes prevent on-time panes if no new data arrives
                 // -> early panes seem to be somewhat indeterministic: aggregation is distributed over different nodes;
                 //    all of them seem to trigger (partial) early panes;
-                .apply(new Pipeline.CalculateFlowStatistics(10, new Pipeline.WindowedFlows(WND.windowSize, Duration.standardMinutes(15), Duration.ZERO, Duration.standardMinutes(2), Duration.standardHours(2))))
+                .apply(new Pipeline.CalculateFlowStatistics(10, new Pipeline.WindowedFlows(WND.windowSize, Duration.standardMinutes(15), Duration.ZERO, Duration.standardMinutes(2), Duration.standardHours(2)), cubeAggregation))
                 .apply(TO_FLOW_SUMMARY);
 
         final FlowSummary[] summaries = new FlowSummary[]{
@@ -589,7 +620,247 @@ public class FlowAnalyzerTest {
     }
 
     private CompoundKey exporterInterfaceTosConvKey(FlowDocument flow) throws Exception {
-        return EXPORTER_INTERFACE_TOS_CONVERSATION.create(flow);
+        return EXPORTER_INTERFACE_TOS_CONVERSATION.create(Flow.of(flow));
+    }
+
+    @Test
+    public void prefilteredConversationsKeepTotalsExact() {
+        if (cubeAggregation) {
+            // the test pipeline rule can not validate a pipeline whose construction failed -> use a separate pipeline
+            org.apache.beam.sdk.Pipeline pipeline = org.apache.beam.sdk.Pipeline.create();
+            Pipeline.registerCoders(pipeline);
+            PCollection<Flow> flows = pipeline.apply(threeConversations(0, 1000)).apply(Pipeline.toFlows());
+            assertThrows(IllegalArgumentException.class, () ->
+                    flows.apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS, true).withConversationPrefilter(1)));
+            return;
+        }
+
+        // add all flows in a single bundle -> the prefilter forwards the largest conversation only
+        final PCollection<KV<CompoundKey, Aggregate>> summaries = p.apply(threeConversations(0, 1000))
+                .apply(Pipeline.toFlows())
+                .apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS, cubeAggregation).withConversationPrefilter(1));
+
+        // the topK of 10 would include all three conversations if they were not prefiltered
+        final PCollection<KV<String, Long>> conversations = summaries
+                .apply(Filter.by(kv -> kv.getKey().getType() == EXPORTER_INTERFACE_CONVERSATION || kv.getKey().getType() == EXPORTER_INTERFACE_TOS_CONVERSATION))
+                .apply(MapElements.into(TypeDescriptors.kvs(TypeDescriptors.strings(), TypeDescriptors.longs()))
+                        .via(kv -> KV.of(kv.getKey().getType().name(), kv.getValue().getBytes())));
+        PAssert.that(conversations).containsInAnyOrder(
+                KV.of(EXPORTER_INTERFACE_CONVERSATION.name(), 1337L),
+                KV.of(EXPORTER_INTERFACE_TOS_CONVERSATION.name(), 1337L)
+        );
+
+        // the conversations that were rolled up by the prefilter are still contained in all other aggregates
+        PAssert.that(bytesByKey("totals", summaries)).containsInAnyOrder(THREE_CONVERSATIONS_BY_KEY);
+
+        p.run();
+    }
+
+    @Test
+    public void cardinalityGuardKeepsTotalsExact() {
+        if (cubeAggregation) {
+            // the test pipeline rule can not validate a pipeline whose construction failed -> use a separate pipeline
+            org.apache.beam.sdk.Pipeline pipeline = org.apache.beam.sdk.Pipeline.create();
+            Pipeline.registerCoders(pipeline);
+            PCollection<Flow> flows = pipeline.apply(threeConversations(0, 1000)).apply(Pipeline.toFlows());
+            assertThrows(IllegalArgumentException.class, () ->
+                    flows.apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS, true).withCardinalityLimit(1)));
+            return;
+        }
+
+        // three conversations between three hosts in a single window -> all but the first conversation and host exceed the limit
+        final PCollection<KV<CompoundKey, Aggregate>> summaries = p.apply(threeConversations(0, 1000))
+                .apply(Pipeline.toFlows())
+                .apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS, false).withCardinalityLimit(1));
+
+        final PCollection<KV<String, Long>> bytesByType = summaries
+                .apply(MapElements.into(TypeDescriptors.kvs(TypeDescriptors.strings(), TypeDescriptors.longs()))
+                        .via(kv -> KV.of(kv.getKey().getType().name(), kv.getValue().getBytes())))
+                .apply(Sum.longsPerKey());
+
+        // each conversation is counted for both of its hosts
+        PAssert.that(bytesByType).containsInAnyOrder(
+                KV.of(EXPORTER_INTERFACE.name(), 1402L),
+                KV.of(EXPORTER_INTERFACE_TOS.name(), 1402L),
+                KV.of(EXPORTER_INTERFACE_APPLICATION.name(), 1402L),
+                KV.of(EXPORTER_INTERFACE_TOS_APPLICATION.name(), 1402L),
+                KV.of(EXPORTER_INTERFACE_CONVERSATION.name(), 1402L),
+                KV.of(EXPORTER_INTERFACE_TOS_CONVERSATION.name(), 1402L),
+                KV.of(EXPORTER_INTERFACE_HOST.name(), 2804L),
+                KV.of(EXPORTER_INTERFACE_TOS_HOST.name(), 2804L)
+        );
+
+        final PCollection<String> overflowTypes = summaries
+                .apply(Filter.by(kv -> CardinalityGuard.isOverflowKey(kv.getKey())))
+                .apply(MapElements.into(TypeDescriptors.strings()).via(kv -> kv.getKey().getType().name()));
+
+        PAssert.that(overflowTypes).containsInAnyOrder(
+                EXPORTER_INTERFACE_CONVERSATION.name(),
+                EXPORTER_INTERFACE_TOS_CONVERSATION.name(),
+                EXPORTER_INTERFACE_HOST.name(),
+                EXPORTER_INTERFACE_TOS_HOST.name()
+        );
+
+        p.run();
+    }
+
+    @Test
+    public void rollupTierSumsWindowsOfTier() {
+        // place conversations in three consecutive windows of the same rollup window
+        Duration tierSize = Duration.standardMinutes(5);
+        long tierStartMs = UnalignedFixedWindows.windowStartForTimestamp(99, tierSize.getMillis(), WND.startMs);
+        long offset = tierStartMs - WND.startMs;
+
+        final PCollection<KV<CompoundKey, Aggregate>> tier = p.apply(threeConversations(offset, 60_000))
+                .apply(Pipeline.toFlows())
+                .apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS, cubeAggregation))
+                .apply(new Rollup(tierSize, Duration.standardMinutes(1), 10, Duration.ZERO, Duration.standardMinutes(2), Duration.standardHours(2)));
+
+        // the tier contains a single aggregate per key that sums the aggregates of all three windows
+        PAssert.that(bytesByKey("tier", tier))
+                .inWindow(new IntervalWindow(ofEpochMilli(tierStartMs), ofEpochMilli(tierStartMs + tierSize.getMillis())))
+                .containsInAnyOrder(THREE_CONVERSATIONS_BY_KEY);
+
+        p.run();
+    }
+
+    @Test
+    public void calculatesSummariesInWindowsOfTheirType() {
+        // application summaries are calculated in windows of 5 minutes; all other types in windows of 1 minute
+        Duration appWindowSize = Duration.standardMinutes(5);
+        long appStartMs = UnalignedFixedWindows.windowStartForTimestamp(99, appWindowSize.getMillis(), WND.startMs);
+        long offset = appStartMs - WND.startMs;
+        final TestStream<FlowDocument> flowStream = TestStream.create(new FlowDocumentProtobufCoder())
+                .addElements(
+                        timestampedValue(conversation(offset, "10.0.0.1", "10.0.0.2", 42)),
+                        timestampedValue(conversation(offset + 60_000, "10.0.0.2", "10.0.0.3", 23))
+                )
+                .advanceWatermarkToInfinity();
+
+        Map<CompoundKeyType, Duration> windowSizes = new EnumMap<>(CompoundKeyType.class);
+        windowSizes.put(EXPORTER_INTERFACE_APPLICATION, appWindowSize);
+        windowSizes.put(EXPORTER_INTERFACE_TOS_APPLICATION, appWindowSize);
+
+        final PCollectionList<KV<CompoundKey, Aggregate>> summaries = p.apply(flowStream)
+                .apply(Pipeline.toFlows())
+                .apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS, cubeAggregation).withWindowSizes(windowSizes).perWindowSize());
+
+        // the summaries of both window sizes are kept in separate collections because their windows are incompatible
+        assertThat(summaries.size(), is(2));
+        final PCollection<KV<String, Long>> output = bytesByKey("1m", summaries.get(0));
+        final PCollection<KV<String, Long>> appOutput = bytesByKey("5m", summaries.get(1));
+
+        PAssert.that(appOutput)
+                .inWindow(new IntervalWindow(ofEpochMilli(appStartMs), ofEpochMilli(appStartMs + appWindowSize.getMillis())))
+                .containsInAnyOrder(
+                        KV.of("SomeFs:SomeFid-98-SomeApplication", 65L),
+                        KV.of("SomeFs:SomeFid-98-0-SomeApplication", 65L)
+                );
+        PAssert.that(output)
+                .inWindow(new IntervalWindow(ofEpochMilli(appStartMs), ofEpochMilli(appStartMs + 60_000)))
+                .containsInAnyOrder(
+                        KV.of("SomeFs:SomeFid-98", 42L),
+                        KV.of("SomeFs:SomeFid-98-0", 42L),
+                        KV.of("SomeFs:SomeFid-98-10.0.0.1", 42L),
+                        KV.of("SomeFs:SomeFid-98-10.0.0.2", 42L),
+                        KV.of("SomeFs:SomeFid-98-0-10.0.0.1", 42L),
+                        KV.of("SomeFs:SomeFid-98-0-10.0.0.2", 42L)
+                );
+        PAssert.that(output)
+                .inWindow(new IntervalWindow(ofEpochMilli(appStartMs + 60_000), ofEpochMilli(appStartMs + 120_000)))
+                .containsInAnyOrder(
+                        KV.of("SomeFs:SomeFid-98", 23L),
+                        KV.of("SomeFs:SomeFid-98-0", 23L),
+                        KV.of("SomeFs:SomeFid-98-10.0.0.2", 23L),
+                        KV.of("SomeFs:SomeFid-98-10.0.0.3", 23L),
+                        KV.of("SomeFs:SomeFid-98-0-10.0.0.2", 23L),
+                        KV.of("SomeFs:SomeFid-98-0-10.0.0.3", 23L)
+                );
+
+        // rollup tiers are derived from the summaries of both window sizes
+        Duration tierSize = Duration.standardMinutes(10);
+        long tierStartMs = UnalignedFixedWindows.windowStartForTimestamp(99, tierSize.getMillis(), appStartMs);
+        PCollection<KV<CompoundKey, Aggregate>> tier = summaries
+                .apply(new Rollup(tierSize, appWindowSize, 10, Duration.ZERO, Duration.standardMinutes(2), Duration.standardHours(2)).ofWindowSizes());
+        PAssert.that(bytesByKey("10m", tier))
+                .inWindow(new IntervalWindow(ofEpochMilli(tierStartMs), ofEpochMilli(tierStartMs + tierSize.getMillis())))
+                .containsInAnyOrder(
+                        KV.of("SomeFs:SomeFid-98", 65L),
+                        KV.of("SomeFs:SomeFid-98-0", 65L),
+                        KV.of("SomeFs:SomeFid-98-SomeApplication", 65L),
+                        KV.of("SomeFs:SomeFid-98-0-SomeApplication", 65L),
+                        KV.of("SomeFs:SomeFid-98-10.0.0.1", 42L),
+                        KV.of("SomeFs:SomeFid-98-10.0.0.2", 65L),
+                        KV.of("SomeFs:SomeFid-98-10.0.0.3", 23L),
+                        KV.of("SomeFs:SomeFid-98-0-10.0.0.1", 42L),
+                        KV.of("SomeFs:SomeFid-98-0-10.0.0.2", 65L),
+                        KV.of("SomeFs:SomeFid-98-0-10.0.0.3", 23L)
+                );
+
+        p.run();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsFlatteningDifferentWindowSizes() {
+        Map<CompoundKeyType, Duration> windowSizes = new EnumMap<>(CompoundKeyType.class);
+        windowSizes.put(EXPORTER_INTERFACE_APPLICATION, Duration.standardMinutes(5));
+        // the test pipeline rule can not validate a pipeline whose construction failed -> use a separate pipeline
+        org.apache.beam.sdk.Pipeline.create()
+                .apply(TestStream.create(new FlowDocumentProtobufCoder()).advanceWatermarkToInfinity())
+                .apply(Pipeline.toFlows())
+                .apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS, cubeAggregation).withWindowSizes(windowSizes));
+    }
+
+    /**
+     * Maps the given summaries except conversations to pairs of their grouped-by keys and bytes.
+     */
+    private static PCollection<KV<String, Long>> bytesByKey(String name, PCollection<KV<CompoundKey, Aggregate>> summaries) {
+        return summaries
+                .apply(name + "_without_conversations", Filter.by(kv -> kv.getKey().getType() != EXPORTER_INTERFACE_CONVERSATION && kv.getKey().getType() != EXPORTER_INTERFACE_TOS_CONVERSATION))
+                .apply(name + "_bytes_by_key", MapElements.into(TypeDescriptors.kvs(TypeDescriptors.strings(), TypeDescriptors.longs()))
+                        .via(kv -> KV.of(kv.getKey().asString(), kv.getValue().getBytes())));
+    }
+
+    /**
+     * Bytes by key except conversations of the flows that are streamed by {@link #threeConversations(long, long)}.
+     */
+    private static final List<KV<String, Long>> THREE_CONVERSATIONS_BY_KEY = Arrays.asList(
+            KV.of("SomeFs:SomeFid-98", 1402L),
+            KV.of("SomeFs:SomeFid-98-0", 1402L),
+            KV.of("SomeFs:SomeFid-98-SomeApplication", 1402L),
+            KV.of("SomeFs:SomeFid-98-0-SomeApplication", 1402L),
+            KV.of("SomeFs:SomeFid-98-10.0.0.1", 1379L),
+            KV.of("SomeFs:SomeFid-98-10.0.0.2", 65L),
+            KV.of("SomeFs:SomeFid-98-10.0.0.3", 1360L),
+            KV.of("SomeFs:SomeFid-98-0-10.0.0.1", 1379L),
+            KV.of("SomeFs:SomeFid-98-0-10.0.0.2", 65L),
+            KV.of("SomeFs:SomeFid-98-0-10.0.0.3", 1360L)
+    );
+
+    /**
+     * Streams three conversations between three hosts in a single bundle. The conversations start at the given offset
+     * and are separated by the given spacing.
+     */
+    private TestStream<FlowDocument> threeConversations(long offset, long spacing) {
+        return TestStream.create(new FlowDocumentProtobufCoder())
+                .addElements(
+                        timestampedValue(conversation(offset, "10.0.0.1", "10.0.0.2", 42)),
+                        timestampedValue(conversation(offset + spacing, "10.0.0.2", "10.0.0.3", 23)),
+                        timestampedValue(conversation(offset + 2 * spacing, "10.0.0.1", "10.0.0.3", 1337))
+                )
+                .advanceWatermarkToInfinity();
+    }
+
+    private static FlowDocument conversation(long offset, String srcAddress, String dstAddress, long bytes) {
+        return new SyntheticFlowBuilder()
+                .withExporter("SomeFs", "SomeFid", 99)
+                .withSnmpInterfaceId(98)
+                .withApplication("SomeApplication")
+                .withFlow(Instant.ofEpochMilli(WND.startMs + offset), Instant.ofEpochMilli(WND.startMs + offset + 100),
+                        srcAddress, 88,
+                        dstAddress, 99,
+                        bytes)
+                .build().get(0);
     }
 
     @Test
@@ -603,7 +874,7 @@ public class FlowAnalyzerTest {
                 ofEpochMilli(wnd.startMs + wnd.windowSize.getMillis() * (n + 1))
         );
 
-        final PTransform<PCollection<FlowDocument>, PCollection<FlowDocument>> windowed =
+        final PTransform<PCollection<Flow>, PCollection<Flow>> windowed =
                 new Pipeline.WindowedFlows(wnd.windowSize, Duration.standardMinutes(15), Duration.ZERO, Duration.standardMinutes(5), Duration.standardMinutes(5));
 
         // Does not align with window
@@ -687,37 +958,50 @@ public class FlowAnalyzerTest {
                 )
                 .advanceWatermarkToInfinity();
 
-        final PCollection<FlowDocument> output = p.apply(flows)
-                                                  .apply(windowed);
+        final PCollection<Flow> input = p.apply(flows)
+                                         .apply(Pipeline.toFlows());
+        final PCollection<Flow> output = input.apply(windowed);
 
         PAssert.that("Bucket 0", output).inWindow(window.apply(0)).containsInAnyOrder();
-        PAssert.that("Bucket 1", output).inWindow(window.apply(1)).containsInAnyOrder(flow1, flow2, flow3, flow4);
-        PAssert.that("Bucket 2", output).inWindow(window.apply(2)).containsInAnyOrder(flow1, flow2, flow3, flow4, flow5);
-        PAssert.that("Bucket 3", output).inWindow(window.apply(3)).containsInAnyOrder(flow1, flow2, flow3, flow4);
+        PAssert.that("Bucket 1", output).inWindow(window.apply(1)).containsInAnyOrder(Flow.of(flow1), Flow.of(flow2), Flow.of(flow3), Flow.of(flow4));
+        PAssert.that("Bucket 2", output).inWindow(window.apply(2)).containsInAnyOrder(Flow.of(flow1), Flow.of(flow2), Flow.of(flow3), Flow.of(flow4), Flow.of(flow5));
+        PAssert.that("Bucket 3", output).inWindow(window.apply(3)).containsInAnyOrder(Flow.of(flow1), Flow.of(flow2), Flow.of(flow3), Flow.of(flow4));
         PAssert.that("Bucket 4", output).inWindow(window.apply(4)).containsInAnyOrder();
 
         final PCollection<KV<CompoundKey, Aggregate>> aggregates = output.apply(ParDo.of(new Pipeline.KeyByConvWithTos()));
+        assertAttachedTimestampAggregates("", aggregates, window, key1, key2, key3, key4, key5);
+
+        // the fused stage must yield the same aggregates
+        final PCollection<KV<CompoundKey, Aggregate>> fused = input.apply(new Pipeline.WindowedAggregates(wnd.windowSize, Duration.standardMinutes(15), Duration.ZERO, Duration.standardMinutes(5), Duration.standardMinutes(5)));
+        assertAttachedTimestampAggregates("Fused ", fused, window, key1, key2, key3, key4, key5);
+
+        p.run();
+    }
 
-        PAssert.that("Bytes 0", aggregates).inWindow(window.apply(0)).containsInAnyOrder();
-        PAssert.that("Bytes 1", aggregates).inWindow(window.apply(1)).containsInAnyOrder(
+    private static void assertAttachedTimestampAggregates(
+            String prefix,
+            PCollection<KV<CompoundKey, Aggregate>> aggregates,
+            LongFunction<IntervalWindow> window,
+            CompoundKey key1, CompoundKey key2, CompoundKey key3, CompoundKey key4, CompoundKey key5
+    ) {
+        PAssert.that(prefix + "Bytes 0", aggregates).inWindow(window.apply(0)).containsInAnyOrder();
+        PAssert.that(prefix + "Bytes 1", aggregates).inWindow(window.apply(1)).containsInAnyOrder(
                 KV.of(key1, aggregate(300)), // 100/s * 3s
                 KV.of(key2, aggregate(2000)), // 200/s * 10s
                 KV.of(key3, aggregate(3000)), // 300/s * 10s
                 KV.of(key4, aggregate(3200))); // 400/s * 8s
-        PAssert.that("Bytes 2", aggregates).inWindow(window.apply(2)).containsInAnyOrder(
+        PAssert.that(prefix + "Bytes 2", aggregates).inWindow(window.apply(2)).containsInAnyOrder(
                 KV.of(key1, aggregate(1000)), // 100/s * 10s
                 KV.of(key2, aggregate(2000)), // 200/s * 10s
                 KV.of(key3, aggregate(3000)), // 300/s * 10s
                 KV.of(key4, aggregate(4000)), // 400/s * 10s
                 KV.of(key5, aggregate(2000))); // 500/s * 4s
-        PAssert.that("Bytes 3", aggregates).inWindow(window.apply(3)).containsInAnyOrder(
+        PAssert.that(prefix + "Bytes 3", aggregates).inWindow(window.apply(3)).containsInAnyOrder(
                 KV.of(key1, aggregate(200)), // 100/s * 2s
                 KV.of(key2, aggregate(400)), // 200/s * 2s
                 KV.of(key3, aggregate(3000)), // 300/s * 10s
                 KV.of(key4, aggregate(2800))); // 400/s * 7s
-        PAssert.that("Bytes 4", aggregates).inWindow(window.apply(4)).containsInAnyOrder();
-
-        p.run();
+        PAssert.that(prefix + "Bytes 4", aggregates).inWindow(window.apply(4)).containsInAnyOrder();
     }
 
     private static Aggregate aggregate(long bytes) {
@@ -782,7 +1066,8 @@ public class FlowAnalyzerTest {
     public void groupsByDscp() {
         final TestStream<FlowDocument> flowStream = testStream(0, 12);
         final PCollection<FlowSummary> output = p.apply(flowStream)
-                .apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS))
+                .apply(Pipeline.toFlows())
+                .apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS, cubeAggregation))
                 .apply(TO_FLOW_SUMMARY);
 
         // expect 15 flow summaries:
@@ -841,6 +1126,75 @@ public class FlowAnalyzerTest {
 
     }
 
+    @Test
+    public void approximateTopKIsRejectedByCubeAggregation() {
+        // the test pipeline rule can not validate a pipeline whose construction failed -> use a separate pipeline
+        org.apache.beam.sdk.Pipeline pipeline = org.apache.beam.sdk.Pipeline.create();
+        Pipeline.registerCoders(pipeline);
+        PCollection<Flow> flows = pipeline.apply(threeConversations(0, 1000)).apply(Pipeline.toFlows());
+        Pipeline.CalculateFlowStatistics calculate = new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS, cubeAggregation)
+                .withApproximateTopK(Collections.singletonMap(EXPORTER_INTERFACE_CONVERSATION, 100));
+        if (cubeAggregation) {
+            assertThrows(IllegalArgumentException.class, () -> flows.apply(calculate));
+        } else {
+            flows.apply(calculate);
+        }
+    }
+
+    @Test
+    public void perInterfaceTopKEqualsThreeStageTopK() {
+        if (cubeAggregation) {
+            // the cube aggregation engine calculates its topKs on its own and rejects the per interface topK
+            // the test pipeline rule can not validate a pipeline whose construction failed -> use a separate pipeline
+            org.apache.beam.sdk.Pipeline pipeline = org.apache.beam.sdk.Pipeline.create();
+            Pipeline.registerCoders(pipeline);
+            PCollection<Flow> flows = pipeline.apply(threeConversations(0, 1000)).apply(Pipeline.toFlows());
+            assertThrows(IllegalArgumentException.class, () ->
+                    flows.apply(new Pipeline.CalculateFlowStatistics(10, WINDOWED_FLOWS, true).withPerInterfaceTopK(true)));
+            return;
+        }
+        // 30 conversations with distinct byte counts, 4 applications, and 3 tos values -> topK of 5 drops entries of all types
+        SyntheticFlowBuilder builder = new SyntheticFlowBuilder()
+                .withExporter(EXPORTER_NODE.getForeignSource(), EXPORTER_NODE.getForeignId(), EXPORTER_NODE.getNodeId())
+                .withSnmpInterfaceId(98);
+        for (int i = 0; i < 30; i++) {
+            builder.withApplication("app" + i % 4)
+                    .withTos(i % 3 << 2)
+                    .withFlow(Instant.ofEpochMilli(WND.startMs + i * 100), Instant.ofEpochMilli(WND.startMs + i * 100 + 50),
+                            "10.0.0." + i, 88,
+                            "10.0.1." + i, 99,
+                            1000 + i * 7);
+        }
+        TestStream.Builder<FlowDocument> flowStream = TestStream.create(new FlowDocumentProtobufCoder());
+        for (FlowDocument flow : builder.build()) {
+            flowStream = flowStream.addElements(timestampedValue(flow));
+        }
+
+        final PCollection<Flow> flows = p.apply(flowStream.advanceWatermarkToInfinity()).apply(Pipeline.toFlows());
+        final PCollection<FlowSummary> threeStage = flows
+                .apply("three_stage", new Pipeline.CalculateFlowStatistics(5, WINDOWED_FLOWS))
+                .apply("three_stage_summaries", TO_FLOW_SUMMARY);
+        final PCollection<FlowSummary> perInterface = flows
+                .apply("per_interface", new Pipeline.CalculateFlowStatistics(5, WINDOWED_FLOWS).withPerInterfaceTopK(true))
+                .apply("per_interface_summaries", TO_FLOW_SUMMARY);
+
+        // count the summaries of the three stage path positively and those of the per interface path negatively
+        final PCollection<KV<String, Integer>> differences = PCollectionList
+                .of(threeStage.apply("count_three_stage", MapElements.into(TypeDescriptors.kvs(TypeDescriptors.strings(), TypeDescriptors.integers()))
+                        .via(summary -> KV.of(summary.toString(), 1))))
+                .and(perInterface.apply("count_per_interface", MapElements.into(TypeDescriptors.kvs(TypeDescriptors.strings(), TypeDescriptors.integers()))
+                        .via(summary -> KV.of(summary.toString(), -1))))
+                .apply(Flatten.pCollections())
+                .apply(Sum.integersPerKey())
+                .apply(Filter.by(kv -> kv.getValue() != 0));
+
+        PAssert.that(differences).empty();
+        // 1 interface total, 3 tos totals, 5 + 3 * 5 conversations, 4 + 3 * 4 applications, and 5 + 3 * 5 hosts
+        PAssert.thatSingleton(threeStage.apply(Combine.globally(Count.<FlowSummary>combineFn()).withoutDefaults())).isEqualTo(60L);
+
+        p.run();
+    }
+
     private static org.joda.time.Instant toJoda(Instant instant) {
         return org.joda.time.Instant.ofEpochMilli(instant.toEpochMilli());
     }
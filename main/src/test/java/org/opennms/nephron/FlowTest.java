@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.time.Instant;
+
+import org.apache.beam.sdk.testing.CoderProperties;
+import org.junit.Test;
+import org.opennms.nephron.coders.ProjectingFlowDecoder;
+import org.opennms.nephron.flowgen.SyntheticFlowBuilder;
+import org.opennms.netmgt.flows.persistence.model.Direction;
+import org.opennms.netmgt.flows.persistence.model.FlowDocument;
+
+import com.google.protobuf.UInt32Value;
+
+public class FlowTest {
+
+    private static FlowDocument flowDocument(Direction direction, String srcAddress, String dstAddress) {
+        return new SyntheticFlowBuilder()
+                .withExporter("SomeFs", "SomeFid", 99)
+                .withSnmpInterfaceId(98)
+                .withApplication("SomeApplication")
+                .withDirection(direction)
+                .withHostnames("src.example.com", "dst.example.com")
+                .withFlow(Instant.ofEpochMilli(1500000000000L), Instant.ofEpochMilli(1500000000100L),
+                        srcAddress, 88,
+                        dstAddress, 99,
+                        1234)
+                .build()
+                .get(0);
+    }
+
+    @Test
+    public void ordersAddressesAndHostnames() {
+        Flow flow = Flow.of(flowDocument(Direction.INGRESS, "10.0.0.2", "10.0.0.1"));
+        assertThat(flow.getAddress(), is("10.0.0.1"));
+        assertThat(flow.getLargerAddress(), is("10.0.0.2"));
+        assertThat(flow.getHostname(), is("dst.example.com"));
+        assertThat(flow.getHostname2(), is("src.example.com"));
+        assertThat(flow.getSrcAddress(), is("10.0.0.2"));
+        assertThat(flow.getDstAddress(), is("10.0.0.1"));
+    }
+
+    @Test
+    public void ordersAddressesNumerically() {
+        Flow flow = Flow.of(flowDocument(Direction.INGRESS, "10.0.0.10", "10.0.0.9"));
+        assertThat(flow.getAddress(), is("10.0.0.9"));
+        assertThat(flow.getLargerAddress(), is("10.0.0.10"));
+        assertThat(flow.srcIsLarger, is(true));
+
+        // IPv4 addresses come before IPv6 addresses
+        flow = Flow.of(flowDocument(Direction.INGRESS, "2001:db8::1", "192.168.0.1"));
+        assertThat(flow.getAddress(), is("192.168.0.1"));
+        assertThat(flow.getLargerAddress(), is("2001:db8::1"));
+    }
+
+    @Test
+    public void selectsIfIndexByDirection() {
+        FlowDocument ingress = FlowDocument.newBuilder(flowDocument(Direction.INGRESS, "10.0.0.1", "10.0.0.2"))
+                .setInputSnmpIfindex(UInt32Value.of(1))
+                .setOutputSnmpIfindex(UInt32Value.of(2))
+                .build();
+        FlowDocument egress = FlowDocument.newBuilder(ingress).setDirection(Direction.EGRESS).build();
+        assertThat(Flow.of(ingress).ifIndex, is(1));
+        assertThat(Flow.of(egress).ifIndex, is(2));
+    }
+
+    @Test
+    public void defaultsMissingDeltaSwitched() throws Exception {
+        FlowDocument withDeltaSwitched = flowDocument(Direction.INGRESS, "10.0.0.1", "10.0.0.2");
+        FlowDocument withoutDeltaSwitched = FlowDocument.newBuilder(withDeltaSwitched).clearDeltaSwitched().build();
+
+        Flow flow = Flow.of(withDeltaSwitched);
+        assertThat(flow.deltaSwitched, is(withDeltaSwitched.getDeltaSwitched().getValue()));
+        assertThat(flow.deltaSwitchedDefaulted, is(false));
+
+        for (Flow defaulted : new Flow[] { Flow.of(withoutDeltaSwitched), ProjectingFlowDecoder.decode(withoutDeltaSwitched.toByteArray()) }) {
+            assertThat(defaulted.deltaSwitched, is(withoutDeltaSwitched.getFirstSwitched().getValue()));
+            assertThat(defaulted.deltaSwitchedDefaulted, is(true));
+        }
+    }
+
+    @Test
+    public void canEncodeAndDecode() throws Exception {
+        Flow.FlowCoder coder = new Flow.FlowCoder();
+        CoderProperties.coderDecodeEncodeEqual(coder, Flow.of(flowDocument(Direction.EGRESS, "10.0.0.1", "10.0.0.2")));
+        CoderProperties.coderDecodeEncodeEqual(coder, Flow.of(flowDocument(Direction.EGRESS, "2001:db8::1", "10.0.0.2")));
+        CoderProperties.coderDecodeEncodeEqual(coder, Flow.of(FlowDocument.getDefaultInstance()));
+        CoderProperties.coderDecodeEncodeEqual(coder, Flow.deadLetter("reason", new byte[] { 1, 2, 3 }));
+        CoderProperties.coderDecodeEncodeEqual(coder, Flow.of(flowDocument(Direction.INGRESS, "10.0.0.1", "10.0.0.2")).withSheddingRate(8));
+    }
+}
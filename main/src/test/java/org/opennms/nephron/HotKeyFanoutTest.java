@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Collections;
+import java.io.Closeable;
+import java.util.Map;
+
+import org.apache.beam.runners.core.metrics.MetricsContainerImpl;
+import org.apache.beam.sdk.metrics.MetricName;
+import org.apache.beam.sdk.metrics.MetricsEnvironment;
+import org.junit.Test;
+
+public class HotKeyFanoutTest {
+
+    private static CompoundKey key(CompoundKeyType type, int ifIndex) {
+        CompoundKeyData.Builder builder = new CompoundKeyData.Builder();
+        builder.nodeId = 1;
+        builder.ifIndex = ifIndex;
+        return new CompoundKey(type, builder.build());
+    }
+
+    @Test
+    public void canParseFanouts() {
+        Map<CompoundKeyType, Integer> fanouts = CompoundKeyType.parseIntegers(" EXPORTER_INTERFACE:8, EXPORTER_INTERFACE_TOS : 4 ");
+        assertThat(fanouts.size(), is(2));
+        assertThat(fanouts.get(CompoundKeyType.EXPORTER_INTERFACE), is(8));
+        assertThat(fanouts.get(CompoundKeyType.EXPORTER_INTERFACE_TOS), is(4));
+        assertThat(CompoundKeyType.parseIntegers("").isEmpty(), is(true));
+        assertThat(CompoundKeyType.parseIntegers(null).isEmpty(), is(true));
+    }
+
+    @Test
+    public void configuredFanoutTakesPrecedence() {
+        HotKeyFanout fanout = new HotKeyFanout(CompoundKeyType.parseIntegers("EXPORTER_INTERFACE:8"), 0, 16, "test");
+        assertThat(fanout.apply(key(CompoundKeyType.EXPORTER_INTERFACE, 1)), is(8));
+        assertThat(fanout.apply(key(CompoundKeyType.EXPORTER_INTERFACE_TOS, 1)), is(1));
+    }
+
+    @Test
+    public void adaptsFanoutToObservedRate() {
+        HotKeyFanout fanout = new HotKeyFanout(Collections.emptyMap(), 100, 16, "test");
+        CompoundKey hot = key(CompoundKeyType.EXPORTER_INTERFACE, 1);
+        CompoundKey warm = key(CompoundKeyType.EXPORTER_INTERFACE, 2);
+        CompoundKey cold = key(CompoundKeyType.EXPORTER_INTERFACE, 3);
+        long now = 0;
+        // 10 seconds: 1_000_000 elements of the hot key, 2_500 of the warm key, 10 of the cold key
+        for (int i = 0; i < 1_000_000; i++) {
+            assertThat(fanout.observe(hot, now), is(1));
+            if (i % 400 == 0) {
+                fanout.observe(warm, now);
+            }
+            if (i % 100_000 == 0) {
+                fanout.observe(cold, now);
+            }
+            now = i / 100;
+        }
+        now = HotKeyFanout.SLICE_MS;
+        // 100_000 per second are capped by the maximum fanout
+        assertThat(fanout.observe(hot, now), is(16));
+        // 250 per second need 3 shards of 100 elements per second
+        assertThat(fanout.observe(warm, now), is(3));
+        assertThat(fanout.observe(cold, now), is(1));
+    }
+
+    @Test
+    public void countsHotKeysPerInterface() throws Exception {
+        MetricsContainerImpl container = new MetricsContainerImpl("test");
+        try (Closeable ignored = MetricsEnvironment.scopedMetricsContainer(container)) {
+            HotKeyFanout fanout = new HotKeyFanout(Collections.emptyMap(), 100, 16, "test");
+            CompoundKey hot = key(CompoundKeyType.EXPORTER_INTERFACE, 1);
+            CompoundKey cold = key(CompoundKeyType.EXPORTER_INTERFACE, 2);
+            // two slices in which the hot key is observed with 1_000 elements per second
+            for (long slice = 0; slice < 2; slice++) {
+                for (int i = 0; i < 10_000; i++) {
+                    fanout.observe(hot, slice * HotKeyFanout.SLICE_MS + i);
+                }
+                fanout.observe(cold, slice * HotKeyFanout.SLICE_MS);
+            }
+            fanout.observe(cold, 2 * HotKeyFanout.SLICE_MS);
+
+            assertThat(counter(container, "combine_hot_keys_test"), is(2L));
+            assertThat(counter(container, "combine_hot_keys_test_exporter_interface_1_1"), is(2L));
+            assertThat(counter(container, "combine_hot_keys_test_exporter_interface_1_2"), is(0L));
+        }
+    }
+
+    private static long counter(MetricsContainerImpl container, String name) {
+        return container.getCounter(MetricName.named("flows", name)).getCumulative();
+    }
+}
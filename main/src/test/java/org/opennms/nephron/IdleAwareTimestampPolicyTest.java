@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.beam.sdk.io.kafka.TimestampPolicy;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.kafka.common.TopicPartition;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class IdleAwareTimestampPolicyTest {
+
+    private static final long START = 1_500_000_000_000L;
+    private static final Duration MAX_DELAY = Duration.standardMinutes(2);
+    private static final Duration IDLE_TIMEOUT = Duration.standardMinutes(1);
+
+    private static class Context extends TimestampPolicy.PartitionContext {
+        private long backlog;
+
+        @Override
+        public long getMessageBacklog() {
+            return backlog;
+        }
+
+        @Override
+        public Instant getBacklogCheckTime() {
+            return Instant.now();
+        }
+    }
+
+    private final AtomicLong clock = new AtomicLong(START);
+    private final AtomicLong eventTime = new AtomicLong();
+    private final Context ctx = new Context();
+
+    private IdleAwareTimestampPolicy<byte[], Flow> policy(Optional<Instant> previousWatermark) {
+        return new IdleAwareTimestampPolicy<>(
+                new TopicPartition("flows", 0),
+                r -> new Instant(eventTime.get()),
+                MAX_DELAY,
+                IDLE_TIMEOUT,
+                previousWatermark,
+                clock::get
+        );
+    }
+
+    private Instant record(IdleAwareTimestampPolicy<byte[], Flow> policy, long timestamp) {
+        eventTime.set(timestamp);
+        return policy.getTimestampForRecord(ctx, null);
+    }
+
+    @Test
+    public void trailsMaxEventTimestampWhileActive() {
+        var policy = policy(Optional.empty());
+        record(policy, START - 10_000);
+        record(policy, START - 20_000);
+        assertThat(policy.getWatermark(ctx), is(new Instant(START - 10_000).minus(MAX_DELAY)));
+
+        clock.addAndGet(30_000);
+        record(policy, START + 10_000);
+        assertThat(policy.getWatermark(ctx), is(new Instant(START + 10_000).minus(MAX_DELAY)));
+    }
+
+    @Test
+    public void advancesIdlePartitionsByProcessingTime() {
+        var policy = policy(Optional.empty());
+        record(policy, START - 600_000);
+        assertThat(policy.getWatermark(ctx), is(new Instant(START - 600_000).minus(MAX_DELAY)));
+
+        // not yet idle
+        clock.addAndGet(IDLE_TIMEOUT.getMillis() - 1);
+        assertThat(policy.getWatermark(ctx), is(new Instant(START - 600_000).minus(MAX_DELAY)));
+
+        // a backlog prevents advancing
+        clock.addAndGet(1);
+        ctx.backlog = 10;
+        assertThat(policy.getWatermark(ctx), is(new Instant(START - 600_000).minus(MAX_DELAY)));
+
+        ctx.backlog = 0;
+        assertThat(policy.getWatermark(ctx), is(new Instant(clock.get()).minus(MAX_DELAY)));
+
+        // the watermark does not move backwards when old records arrive
+        record(policy, START - 300_000);
+        assertThat(policy.getWatermark(ctx), is(new Instant(clock.get()).minus(MAX_DELAY)));
+    }
+
+    @Test
+    public void advancesPartitionsWithoutRecords() {
+        var policy = policy(Optional.of(new Instant(START - 3_600_000)));
+        assertThat(policy.getWatermark(ctx), is(new Instant(START - 3_600_000)));
+
+        clock.addAndGet(IDLE_TIMEOUT.getMillis());
+        assertThat(policy.getWatermark(ctx), is(new Instant(clock.get()).minus(MAX_DELAY)));
+    }
+
+    @Test
+    public void recordsWithoutEventTimeDoNotAdvanceTheWatermark() {
+        var policy = policy(Optional.empty());
+        record(policy, START - 10_000);
+        assertThat(policy.getWatermark(ctx), is(new Instant(START - 10_000).minus(MAX_DELAY)));
+
+        clock.addAndGet(30_000);
+        Instant ts = record(policy, BoundedWindow.TIMESTAMP_MIN_VALUE.getMillis());
+        assertThat(ts, is(new Instant(START - 10_000).minus(MAX_DELAY)));
+        assertThat(policy.getWatermark(ctx), is(new Instant(START - 10_000).minus(MAX_DELAY)));
+    }
+
+    @Test
+    public void recordsWithoutEventTimeDoNotCountAsActivity() {
+        var policy = policy(Optional.empty());
+        record(policy, START - 600_000);
+        assertThat(policy.getWatermark(ctx), is(new Instant(START - 600_000).minus(MAX_DELAY)));
+
+        // a partition that only carries filtered records becomes idle
+        for (int i = 0; i < 6; i++) {
+            clock.addAndGet(IDLE_TIMEOUT.getMillis() / 6);
+            record(policy, BoundedWindow.TIMESTAMP_MIN_VALUE.getMillis());
+            policy.getWatermark(ctx);
+        }
+        assertThat(policy.getWatermark(ctx), is(new Instant(clock.get()).minus(MAX_DELAY)));
+    }
+}
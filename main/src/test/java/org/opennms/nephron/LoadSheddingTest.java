@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+public class LoadSheddingTest {
+
+    private static final long START = 1_500_000_000_000L;
+
+    private static List<Flow> flows(int count) {
+        List<Flow> flows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Flow.Builder builder = new Flow.Builder();
+            builder.hasExporterNode = true;
+            builder.nodeId = i % 3;
+            builder.numBytes = 1000 + i % 100;
+            builder.firstSwitched = START + i;
+            builder.hasDeltaSwitched = true;
+            builder.deltaSwitched = START + i;
+            builder.lastSwitched = START + i + 100;
+            builder.srcAddress = ByteString.copyFromUtf8("10.0.0." + i % 250);
+            builder.dstAddress = ByteString.copyFromUtf8("10.0.1." + i % 7);
+            flows.add(builder.build());
+        }
+        return flows;
+    }
+
+    @Test
+    public void sheddingRateDoublesWithDrift() {
+        assertThat(LoadShedding.sheddingRate(0, 1000, 16), is(1));
+        assertThat(LoadShedding.sheddingRate(1000, 1000, 16), is(1));
+        assertThat(LoadShedding.sheddingRate(1001, 1000, 16), is(2));
+        assertThat(LoadShedding.sheddingRate(2000, 1000, 16), is(4));
+        assertThat(LoadShedding.sheddingRate(3999, 1000, 16), is(4));
+        assertThat(LoadShedding.sheddingRate(4000, 1000, 16), is(8));
+        assertThat(LoadShedding.sheddingRate(100_000, 1000, 16), is(16));
+        assertThat(LoadShedding.sheddingRate(Long.MAX_VALUE, 1000, 16), is(16));
+    }
+
+    @Test
+    public void samplesOfHigherRatesAreSubsets() {
+        for (Flow flow : flows(10_000)) {
+            for (int rate = 2; rate <= 64; rate <<= 1) {
+                if (LoadShedding.keep(flow, rate)) {
+                    assertThat(LoadShedding.keep(flow, rate >> 1), is(true));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void extrapolatedBytesAreUnbiased() {
+        IntervalWindow window = new IntervalWindow(new Instant(START), new Instant(START + 1_000_000));
+        int rate = 8;
+        long total = 0;
+        long estimated = 0;
+        for (Flow flow : flows(100_000)) {
+            total += Pipeline.aggregatize(window, flow, null, null).getBytes();
+            if (LoadShedding.keep(flow, rate)) {
+                Aggregate aggregate = Pipeline.aggregatize(window, flow.withSheddingRate(rate), null, null);
+                assertThat(aggregate.isEstimated(), is(true));
+                estimated += aggregate.getBytes();
+            }
+        }
+        assertThat((double) estimated / total, closeTo(1.0, 0.02));
+    }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
+import org.apache.beam.sdk.transforms.windowing.Window;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.TimestampedValue;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opennms.nephron.network.IpAddr;
+
+public class MapSideCombineTest {
+
+    private static final Duration WINDOW_SIZE = Duration.standardMinutes(1);
+    private static final int NODE_ID = 1;
+
+    @Rule
+    public TestPipeline p = TestPipeline.create();
+
+    private static CompoundKey conversation(int conversation, int dscp) {
+        CompoundKeyData.Builder builder = new CompoundKeyData.Builder();
+        builder.foreignSource = "SomeFs";
+        builder.foreignId = "SomeFid";
+        builder.nodeId = NODE_ID;
+        builder.ifIndex = 2;
+        builder.dscp = dscp;
+        builder.application = "SomeApplication";
+        builder.location = "Default";
+        builder.protocol = 6;
+        builder.address = IpAddr.parse("10.0.0." + conversation);
+        builder.largerAddress = IpAddr.parse("10.0.1." + conversation);
+        return new CompoundKey(CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION, builder.build());
+    }
+
+    @Test
+    public void yieldsSameSumsAsWithoutCombining() {
+        Pipeline.registerCoders(p);
+        long start = UnalignedFixedWindows.windowStartForTimestamp(NODE_ID, WINDOW_SIZE.getMillis(), 1_500_000_000_000L);
+
+        List<TimestampedValue<KV<CompoundKey, Aggregate>>> input = new ArrayList<>();
+        Map<String, Long> expected = new HashMap<>();
+        // 2_000 elements of 200 keys in 2 windows
+        for (int i = 0; i < 2_000; i++) {
+            CompoundKey key = conversation(i % 100, i % 2);
+            Aggregate aggregate = new Aggregate(i, 2 * i, "host" + i % 100, null, i % 3 == 0, true, false);
+            long timestamp = start + (i % 7 < 4 ? 0 : WINDOW_SIZE.getMillis()) + (i * 13) % WINDOW_SIZE.getMillis();
+            input.add(TimestampedValue.of(KV.of(key, aggregate), new Instant(timestamp)));
+            long windowStart = UnalignedFixedWindows.windowStartForTimestamp(NODE_ID, WINDOW_SIZE.getMillis(), timestamp);
+            expected.merge(windowStart + " " + key + " " + aggregate.getHostname(), aggregate.getBytes(), Long::sum);
+        }
+
+        // a budget of 4 KB holds 16 entries -> forces flushes while processing elements
+        PCollection<String> output = p.apply(Create.timestamped(input))
+                .apply(ParDo.of(new MapSideCombine(WINDOW_SIZE, 4096)))
+                .apply(Window.into(UnalignedFixedWindows.<KV<CompoundKey, Aggregate>>of(WINDOW_SIZE, kv -> kv.getKey().getData().nodeId)))
+                .apply(Combine.perKey(new SumAggregates()))
+                .apply(ParDo.of(new FormatSums()));
+
+        PAssert.that(output).containsInAnyOrder(expected.entrySet().stream()
+                .map(e -> e.getKey() + " " + e.getValue())
+                .collect(Collectors.toList()));
+
+        p.run();
+    }
+
+    @Test
+    public void capsCapacityOfLargeBudgets() {
+        assertThat(MapSideCombine.capacity(4096), is(32));
+        // the slots of 8 GB would exceed the size of a buffer
+        int capacity = MapSideCombine.capacity(8L * 1024 * 1024 * 1024);
+        assertThat(capacity, is(MapSideCombine.MAX_CAPACITY));
+        assertThat((long) capacity * MapSideCombine.SLOT_BYTES, lessThanOrEqualTo((long) Integer.MAX_VALUE));
+    }
+
+    private static class FormatSums extends DoFn<KV<CompoundKey, Aggregate>, String> {
+        @ProcessElement
+        public void processElement(@Element KV<CompoundKey, Aggregate> kv, BoundedWindow window, OutputReceiver<String> out) {
+            out.output(((IntervalWindow) window).start().getMillis() + " " + kv.getKey() + " " + kv.getValue().getHostname() + " " + kv.getValue().getBytes());
+        }
+    }
+}
@@ -91,7 +91,6 @@ import org.opennms.nephron.catheter.Exporter;
 import org.opennms.nephron.catheter.Simulation;
 import org.opennms.nephron.elastic.FlowSummary;
 import org.opennms.nephron.generator.Handler;
-import org.opennms.netmgt.flows.persistence.model.FlowDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testcontainers.containers.KafkaContainer;
@@ -541,7 +540,7 @@ public class RandomFlowIT {
      */
     public static org.apache.beam.sdk.Pipeline createPipeline(NephronOptions options) {
         // use a timestamp policy that finishes processing when the input is idle for some time
-        TimestampPolicyFactory<byte[], FlowDocument> tpf = timestampPolicyFactory(
+        TimestampPolicyFactory<byte[], Flow> tpf = timestampPolicyFactory(
                 org.joda.time.Duration.millis(options.getDefaultMaxInputDelayMs()),
                 org.joda.time.Duration.standardSeconds(5)
         );
@@ -554,7 +553,7 @@ public class RandomFlowIT {
      * <p>
      * After the watermark is advanced to TIMESTAMP_MAX_VALUE the pipeline run finishes.
      */
-    private static TimestampPolicyFactory<byte[], FlowDocument> timestampPolicyFactory(org.joda.time.Duration maxInputDelay, org.joda.time.Duration maxInputIdleDuration) {
+    private static TimestampPolicyFactory<byte[], Flow> timestampPolicyFactory(org.joda.time.Duration maxInputDelay, org.joda.time.Duration maxInputIdleDuration) {
         return (tp, previousWatermark) -> new CustomTimestampPolicyWithLimitedDelay<>(
                 Pipeline.ReadFromKafka::getTimestamp,
                 maxInputDelay,
@@ -564,7 +563,7 @@ public class RandomFlowIT {
             private boolean closed = false;
 
             @Override
-            public org.joda.time.Instant getTimestampForRecord(PartitionContext ctx, KafkaRecord<byte[], FlowDocument> record) {
+            public org.joda.time.Instant getTimestampForRecord(PartitionContext ctx, KafkaRecord<byte[], Flow> record) {
                 idleSince = org.joda.time.Instant.now();
                 return super.getTimestampForRecord(ctx, record);
             }
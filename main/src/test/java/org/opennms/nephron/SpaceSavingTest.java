@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.apache.beam.sdk.util.CoderUtils;
+import org.apache.beam.sdk.values.KV;
+import org.junit.Test;
+import org.opennms.nephron.flowgen.SyntheticFlowBuilder;
+import org.opennms.netmgt.flows.persistence.model.Direction;
+import org.opennms.netmgt.flows.persistence.model.FlowDocument;
+
+public class SpaceSavingTest {
+
+    private static final long START = 1_500_000_000_000L;
+    private static final int K = 10;
+    private static final int CAPACITY = 100;
+    private static final int PARTITIONS = 4;
+
+    private static final Map<CompoundKey, Aggregate> EXACT = new HashMap<>();
+    private static final List<List<KV<CompoundKey, Aggregate>>> PARTITIONED = new ArrayList<>();
+
+    static {
+        // 50_000 flows of 2_000 conversations on a single interface
+        // -> the number of flows of the conversation with rank r is proportional to 1 / r
+        int numConversations = 2_000;
+        double[] cumulativeWeights = new double[numConversations];
+        double sum = 0;
+        for (int i = 0; i < numConversations; i++) {
+            sum += 1.0 / (i + 1);
+            cumulativeWeights[i] = sum;
+        }
+        for (int i = 0; i < PARTITIONS; i++) {
+            PARTITIONED.add(new ArrayList<>());
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 50_000; i++) {
+            int idx = Arrays.binarySearch(cumulativeWeights, random.nextDouble() * sum);
+            int conversation = idx >= 0 ? idx : -idx - 1;
+            FlowDocument flowDocument = new SyntheticFlowBuilder()
+                    .withExporter("SomeFs", "SomeFid", 99)
+                    .withSnmpInterfaceId(98)
+                    .withApplication("SomeApplication")
+                    .withDirection(i % 2 == 0 ? Direction.INGRESS : Direction.EGRESS)
+                    .withFlow(Instant.ofEpochMilli(START), Instant.ofEpochMilli(START + 100),
+                            "10.0." + conversation / 250 + "." + conversation % 250, 5000,
+                            "192.168.0.1", 80,
+                            1000 + random.nextInt(1000))
+                    .build()
+                    .get(0);
+            Flow flow = Flow.of(flowDocument);
+            CompoundKey key;
+            try {
+                key = CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION.create(flow);
+            } catch (MissingFieldsException e) {
+                throw new RuntimeException(e);
+            }
+            Aggregate aggregate = Pipeline.aggregatize(START, START + 59_999, flow, flow.getHostname(), flow.getHostname2());
+            EXACT.merge(key, aggregate, Aggregate::merge);
+            PARTITIONED.get(i % PARTITIONS).add(KV.of(key, aggregate));
+        }
+    }
+
+    private static SpaceSaving summary(List<KV<CompoundKey, Aggregate>> input) {
+        SpaceSaving summary = new SpaceSaving(CAPACITY);
+        for (KV<CompoundKey, Aggregate> kv : input) {
+            summary.add(kv.getKey(), kv.getValue());
+        }
+        return summary;
+    }
+
+    private static SpaceSaving mergedSummary() {
+        SpaceSaving merged = summary(PARTITIONED.get(0));
+        for (int i = 1; i < PARTITIONS; i++) {
+            merged.merge(summary(PARTITIONED.get(i)));
+        }
+        return merged;
+    }
+
+    @Test
+    public void boundsContainExactBytes() {
+        SpaceSaving summary = mergedSummary();
+        assertThat(summary.size(), is(CAPACITY));
+        for (KV<CompoundKey, Aggregate> kv : summary.topK(CAPACITY)) {
+            long exact = EXACT.get(kv.getKey()).getBytes();
+            long observed = kv.getValue().getBytes();
+            assertThat(observed, lessThanOrEqualTo(exact));
+            assertThat(observed + summary.getError(kv.getKey()), greaterThanOrEqualTo(exact));
+            assertThat(kv.getValue().isEstimated(), is(summary.getError(kv.getKey()) > 0));
+        }
+    }
+
+    @Test
+    public void findsExactTopK() {
+        List<CompoundKey> exact = EXACT.entrySet().stream()
+                .sorted(Map.Entry.<CompoundKey, Aggregate>comparingByValue((a, b) -> Long.compare(b.getBytes(), a.getBytes())))
+                .limit(K)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        List<CompoundKey> approximated = mergedSummary().topK(K).stream()
+                .map(KV::getKey)
+                .collect(Collectors.toList());
+        assertThat(approximated, is(exact));
+    }
+
+    @Test
+    public void combinesEncodedAccumulators() throws Exception {
+        ApproximateTopK fn = new ApproximateTopK(CAPACITY, K, "test_");
+        SpaceSaving.SpaceSavingCoder coder = new SpaceSaving.SpaceSavingCoder();
+        List<SpaceSaving> accumulators = new ArrayList<>();
+        for (List<KV<CompoundKey, Aggregate>> partition : PARTITIONED) {
+            SpaceSaving acc = fn.createAccumulator();
+            for (KV<CompoundKey, Aggregate> kv : partition) {
+                acc = fn.addInput(acc, kv);
+            }
+            accumulators.add(CoderUtils.clone(coder, acc));
+        }
+        assertThat(fn.extractOutput(fn.mergeAccumulators(accumulators)), is(mergedSummary().topK(K)));
+    }
+}
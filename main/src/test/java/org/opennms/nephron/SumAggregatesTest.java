@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SumAggregatesTest {
+
+    private static final List<Aggregate> AGGREGATES = Arrays.asList(
+            new Aggregate(10, 0, "b.example.com", "", false, false),
+            new Aggregate(0, 20, "a.example.com", "c.example.com", true, false),
+            new Aggregate(30, 5, null, "d.example.com", false, true),
+            new Aggregate(1, 2, "", "b.example.com", false, false, true)
+    );
+
+    private static Aggregate fold(List<Aggregate> aggregates) {
+        return aggregates.stream().reduce(Aggregate::merge).get();
+    }
+
+    @Test
+    public void sumsLikeMerge() {
+        SumAggregates fn = new SumAggregates();
+        SumAggregates.Accumulator acc = fn.createAccumulator();
+        for (Aggregate aggregate : AGGREGATES) {
+            acc = fn.addInput(acc, aggregate);
+        }
+        assertThat(fn.extractOutput(acc), is(fold(AGGREGATES)));
+    }
+
+    @Test
+    public void mergesAccumulators() throws Exception {
+        SumAggregates fn = new SumAggregates();
+        SumAggregates.Accumulator first = fn.addInput(fn.addInput(fn.createAccumulator(), AGGREGATES.get(0)), AGGREGATES.get(1));
+        SumAggregates.Accumulator second = fn.addInput(fn.addInput(fn.createAccumulator(), AGGREGATES.get(2)), AGGREGATES.get(3));
+
+        // accumulators are transferred between workers
+        SumAggregates.AccumulatorCoder coder = new SumAggregates.AccumulatorCoder();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        coder.encode(second, baos);
+        second = coder.decode(new ByteArrayInputStream(baos.toByteArray()));
+
+        SumAggregates.Accumulator merged = fn.mergeAccumulators(Arrays.asList(fn.createAccumulator(), first, second));
+        assertThat(fn.extractOutput(merged), is(fold(AGGREGATES)));
+    }
+}
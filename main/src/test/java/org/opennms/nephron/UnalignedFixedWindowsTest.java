@@ -77,4 +77,18 @@ public class UnalignedFixedWindowsTest {
         return startForTimestamp == startForWindowNumber;
     }
 
+    @Property
+    public boolean windowsNestInWindowsOfMultipleSize(
+            @ForAll("nodeId") int nodeId,
+            @ForAll("windowSize") long windowSize,
+            @ForAll("windowSize") long multiple,
+            @ForAll("timestamp") long timestamp
+    ) {
+        long coarseWindowSize = windowSize * multiple;
+        long start = UnalignedFixedWindows.windowStartForTimestamp(nodeId, windowSize, timestamp);
+        long coarseStart = UnalignedFixedWindows.windowStartForTimestamp(nodeId, coarseWindowSize, timestamp);
+        // the window that includes the timestamp is contained in the coarse window that includes the timestamp
+        return coarseStart <= start && start + windowSize <= coarseStart + coarseWindowSize;
+    }
+
 }
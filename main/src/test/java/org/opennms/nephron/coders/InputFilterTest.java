@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.coders;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Test;
+import org.opennms.nephron.Flow;
+import org.opennms.netmgt.flows.persistence.model.Direction;
+import org.opennms.netmgt.flows.persistence.model.FlowDocument;
+import org.opennms.netmgt.flows.persistence.model.NodeInfo;
+
+import com.google.protobuf.UInt32Value;
+
+public class InputFilterTest {
+
+    private static byte[] flow(int nodeId, String foreignSource, String location, Direction direction) {
+        return FlowDocument.newBuilder()
+                .setExporterNode(NodeInfo.newBuilder().setNodeId(nodeId).setForeignSource(foreignSource).setForeginId("fid"))
+                .setLocation(location)
+                .setDirection(direction)
+                .setInputSnmpIfindex(UInt32Value.of(1))
+                .setOutputSnmpIfindex(UInt32Value.of(2))
+                .setSrcNode(NodeInfo.newBuilder().setNodeId(99).setForeignSource("other"))
+                .build()
+                .toByteArray();
+    }
+
+    @Test
+    public void isNullIfNotConfigured() {
+        assertThat(InputFilter.of(Map.of()), nullValue());
+        assertThat(InputFilter.of(Map.of(InputFilter.ALLOWED_NODE_IDS_CONFIG, " ")), nullValue());
+    }
+
+    @Test
+    public void filtersByAllowAndDenyLists() throws IOException {
+        InputFilter filter = InputFilter.of(Map.of(
+                InputFilter.ALLOWED_NODE_IDS_CONFIG, "1, 2,3",
+                InputFilter.DENIED_NODE_IDS_CONFIG, "3",
+                InputFilter.DENIED_FOREIGN_SOURCES_CONFIG, "blocked",
+                InputFilter.ALLOWED_LOCATIONS_CONFIG, "Default,Remote",
+                InputFilter.DENIED_IF_INDEXES_CONFIG, "2"
+        ));
+
+        assertThat(filter.accepts(flow(1, "fs", "Default", Direction.INGRESS)), is(true));
+        assertThat(filter.accepts(flow(2, "fs", "Remote", Direction.INGRESS)), is(true));
+        // node id not allowed / denied
+        assertThat(filter.accepts(flow(4, "fs", "Default", Direction.INGRESS)), is(false));
+        assertThat(filter.accepts(flow(3, "fs", "Default", Direction.INGRESS)), is(false));
+        // the node id and foreign source of the src node are not considered
+        assertThat(filter.accepts(flow(1, "blocked", "Default", Direction.INGRESS)), is(false));
+        assertThat(filter.accepts(flow(1, "fs", "Other", Direction.INGRESS)), is(false));
+        // the output ifIndex of egress flows is denied
+        assertThat(filter.accepts(flow(1, "fs", "Default", Direction.EGRESS)), is(false));
+    }
+
+    @Test
+    public void deserializerReturnsFilteredSentinel() {
+        KafkaInputFlowDeserializer deserializer = new KafkaInputFlowDeserializer();
+        deserializer.configure(Map.of(InputFilter.DENIED_NODE_IDS_CONFIG, "2"), false);
+
+        assertThat(deserializer.deserialize("topic", flow(1, "fs", "Default", Direction.INGRESS)).isDeadLetter(), is(false));
+        Flow filtered = deserializer.deserialize("topic", flow(2, "fs", "Default", Direction.INGRESS));
+        assertThat(filtered.isFiltered(), is(true));
+    }
+}
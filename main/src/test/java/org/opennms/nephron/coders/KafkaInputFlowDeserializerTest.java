@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.coders;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.opennms.nephron.Flow;
+import org.opennms.netmgt.flows.persistence.model.FlowDocument;
+import org.opennms.netmgt.flows.persistence.model.NodeInfo;
+
+import com.google.protobuf.UInt64Value;
+
+public class KafkaInputFlowDeserializerTest {
+
+    private static void assertDeadLetter(Flow flow, String reason, byte[] record) {
+        assertThat(flow.isDeadLetter(), is(true));
+        assertThat(flow.getDeadLetterReason(), is(reason));
+        assertThat(flow.getDeadLetterRecord(), is(record));
+    }
+
+    @Test
+    public void returnsDeadLettersForRejectedRecords() {
+        byte[] complete = FlowDocument.newBuilder()
+                .setLastSwitched(UInt64Value.of(1_500_000_000_000L))
+                .setExporterNode(NodeInfo.newBuilder().setNodeId(1))
+                .build()
+                .toByteArray();
+        byte[] withoutExporter = FlowDocument.newBuilder()
+                .setLastSwitched(UInt64Value.of(1_500_000_000_000L))
+                .build()
+                .toByteArray();
+        byte[] withInvalidAddress = FlowDocument.newBuilder()
+                .setLastSwitched(UInt64Value.of(1_500_000_000_000L))
+                .setExporterNode(NodeInfo.newBuilder().setNodeId(1))
+                .setSrcAddress("10.0.0.256")
+                .build()
+                .toByteArray();
+        // a length delimited field whose length exceeds the record
+        byte[] truncated = new byte[] { (byte)(FlowDocument.DST_ADDRESS_FIELD_NUMBER << 3 | 2), 10, '1' };
+
+        for (boolean projected : new boolean[] { false, true }) {
+            KafkaInputFlowDeserializer deserializer = new KafkaInputFlowDeserializer();
+            deserializer.configure(Map.of(KafkaInputFlowDeserializer.PROJECTED_DECODING_CONFIG, projected), false);
+
+            Flow flow = deserializer.deserialize("topic", complete);
+            assertThat(flow.isDeadLetter(), is(false));
+            assertThat(flow.getDeadLetterReason(), nullValue());
+            assertThat(flow.nodeId, is(1));
+
+            assertDeadLetter(deserializer.deserialize("topic", withoutExporter), KafkaInputFlowDeserializer.MISSING_EXPORTER_NODE, withoutExporter);
+            assertDeadLetter(deserializer.deserialize("topic", withInvalidAddress), KafkaInputFlowDeserializer.INVALID_ADDRESS, withInvalidAddress);
+            assertDeadLetter(deserializer.deserialize("topic", truncated), KafkaInputFlowDeserializer.UNDECODABLE, truncated);
+            assertDeadLetter(deserializer.deserialize("topic", null), KafkaInputFlowDeserializer.EMPTY_RECORD, new byte[0]);
+        }
+    }
+}
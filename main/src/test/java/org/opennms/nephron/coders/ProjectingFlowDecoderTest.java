@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.coders;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.opennms.nephron.Flow;
+import org.opennms.nephron.flowgen.FlowGenerator;
+import org.opennms.netmgt.flows.persistence.model.Direction;
+import org.opennms.netmgt.flows.persistence.model.FlowDocument;
+import org.opennms.netmgt.flows.persistence.model.Locality;
+import org.opennms.netmgt.flows.persistence.model.NetflowVersion;
+import org.opennms.netmgt.flows.persistence.model.NodeInfo;
+import org.opennms.netmgt.flows.persistence.model.SamplingAlgorithm;
+
+import com.google.protobuf.DoubleValue;
+import com.google.protobuf.UInt32Value;
+import com.google.protobuf.UInt64Value;
+
+public class ProjectingFlowDecoderTest {
+
+    private static void assertProjectedDecodingMatchesFullParse(FlowDocument flow) throws IOException {
+        byte[] bytes = flow.toByteArray();
+        Flow expected = Flow.of(FlowDocument.parseFrom(bytes));
+        assertThat(ProjectingFlowDecoder.decode(bytes), equalTo(expected));
+    }
+
+    private static NodeInfo node(String foreignSource, String foreignId, int nodeId, String... categories) {
+        NodeInfo.Builder builder = NodeInfo.newBuilder()
+                .setForeignSource(foreignSource)
+                .setForeginId(foreignId)
+                .setNodeId(nodeId);
+        for (String category : categories) {
+            builder.addCategories(category);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void canDecodeCompletelyPopulatedFlow() throws IOException {
+        FlowDocument flow = FlowDocument.newBuilder()
+                .setTimestamp(1_500_000_001_000L)
+                .setNumBytes(UInt64Value.of(1234567890123L))
+                .setDirection(Direction.EGRESS)
+                .setDstAddress("2001:db8::1")
+                .setDstHostname("dst.example.org")
+                .setDstAs(UInt64Value.of(64512))
+                .setDstMaskLen(UInt32Value.of(64))
+                .setDstPort(UInt32Value.of(443))
+                .setEngineId(UInt32Value.of(1))
+                .setEngineType(UInt32Value.of(2))
+                .setDeltaSwitched(UInt64Value.of(1_500_000_000_000L))
+                .setFirstSwitched(UInt64Value.of(1_499_999_990_000L))
+                .setLastSwitched(UInt64Value.of(1_500_000_001_000L))
+                .setNumFlowRecords(UInt32Value.of(7))
+                .setNumPackets(UInt64Value.of(1000))
+                .setFlowSeqNum(UInt64Value.of(42))
+                .setInputSnmpIfindex(UInt32Value.of(98))
+                .setOutputSnmpIfindex(UInt32Value.of(99))
+                .setIpProtocolVersion(UInt32Value.of(6))
+                .setNextHopAddress("2001:db8::fe")
+                .setNextHopHostname("gw.example.org")
+                .setProtocol(UInt32Value.of(17))
+                .setSamplingAlgorithm(SamplingAlgorithm.RANDOM_N_OUT_OF_N_SAMPLING)
+                .setSamplingInterval(DoubleValue.of(2.5))
+                .setSrcAddress("2001:db8::2")
+                .setSrcHostname("src.example.org")
+                .setSrcAs(UInt64Value.of(64513))
+                .setSrcMaskLen(UInt32Value.of(48))
+                .setSrcPort(UInt32Value.of(51234))
+                .setTcpFlags(UInt32Value.of(0x12))
+                .setTos(UInt32Value.of(0xb9))
+                .setNetflowVersion(NetflowVersion.IPFIX)
+                .setVlan("100")
+                .setSrcNode(node("src-fs", "src-fid", 1, "Servers", "Production"))
+                .setExporterNode(node("exp-fs", "exp-fid", 2, "Routers"))
+                .setDestNode(node("dst-fs", "dst-fid", 3, "Clients"))
+                .setApplication("https")
+                .setHost("host")
+                .setLocation("Default")
+                .setSrcLocality(Locality.PRIVATE)
+                .setDstLocality(Locality.PUBLIC)
+                .setFlowLocality(Locality.PUBLIC)
+                .setClockCorrection(17)
+                .setDscp(UInt32Value.of(46))
+                .setEcn(UInt32Value.of(1))
+                .build();
+
+        assertProjectedDecodingMatchesFullParse(flow);
+
+        Flow decoded = ProjectingFlowDecoder.decode(flow.toByteArray());
+        assertThat(decoded.nodeId, is(2));
+        assertThat(decoded.ifIndex, is(99));
+        assertThat(decoded.getAddress(), is("2001:db8::1"));
+        assertThat(decoded.getLargerAddress(), is("2001:db8::2"));
+        assertThat(decoded.getHostname(), is("dst.example.org"));
+        assertThat(decoded.protocol, is(17));
+    }
+
+    @Test
+    public void canDecodeSparseFlows() throws IOException {
+        assertProjectedDecodingMatchesFullParse(FlowDocument.getDefaultInstance());
+        // wrapped values that hold a default value are still present
+        assertProjectedDecodingMatchesFullParse(FlowDocument.newBuilder()
+                .setNumBytes(UInt64Value.of(0))
+                .setDscp(UInt32Value.of(0))
+                .setSamplingInterval(DoubleValue.of(0))
+                .setExporterNode(NodeInfo.getDefaultInstance())
+                .build());
+        assertProjectedDecodingMatchesFullParse(FlowDocument.newBuilder()
+                .setLastSwitched(UInt64Value.of(Long.MAX_VALUE))
+                .setInputSnmpIfindex(UInt32Value.of(Integer.MAX_VALUE))
+                .setDirection(Direction.INGRESS)
+                .setSrcNode(node("fs", "fid", 7, "a", "b", "c"))
+                .build());
+    }
+
+    @Test
+    public void canDecodeGeneratedFlows() throws IOException {
+        List<FlowDocument> flows = FlowGenerator.builder()
+                .withNumConversations(10)
+                .withNumFlowsPerConversation(5)
+                .withConversationDuration(2, TimeUnit.MINUTES)
+                .withStartTime(Instant.ofEpochMilli(1546318800000L))
+                .withApplications("http", "https", "ssh")
+                .allFlows();
+        for (FlowDocument flow : flows) {
+            assertProjectedDecodingMatchesFullParse(flow);
+        }
+    }
+
+    @Test
+    public void canDecodeFromByteBuffers() throws IOException {
+        FlowDocument flow = FlowGenerator.builder()
+                .withNumConversations(1)
+                .withNumFlowsPerConversation(1)
+                .withConversationDuration(2, TimeUnit.MINUTES)
+                .withStartTime(Instant.ofEpochMilli(1546318800000L))
+                .withApplications("http")
+                .allFlows()
+                .get(0);
+        byte[] bytes = flow.toByteArray();
+        Flow expected = Flow.of(flow);
+
+        assertThat(ProjectingFlowDecoder.decode(ByteBuffer.wrap(bytes)), equalTo(expected));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        Flow decoded = ProjectingFlowDecoder.decode(direct);
+        assertThat(decoded, equalTo(expected));
+        assertThat(decoded.getApplication(), is("http"));
+        assertThat(decoded.getSrcAddress(), is(flow.getSrcAddress()));
+        assertThat(decoded.getDstAddress(), is(flow.getDstAddress()));
+    }
+
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.coders;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.Arrays;
+
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.testing.CoderProperties;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.apache.beam.sdk.util.SerializableUtils;
+import org.junit.Test;
+
+public class StringDictionaryTest {
+
+    private static final StringDictionary DICTIONARY = StringDictionary.of(Arrays.asList("Default", "https", "NODES"));
+
+    @Test
+    public void dictionaryEntriesAreEncodedByIndex() throws Exception {
+        int inlineSize = CoderUtils.encodeToByteArray(DictionaryStringCoder.of(), "https").length;
+
+        DictionaryStringCoder coder = DictionaryStringCoder.of(DICTIONARY);
+        assertThat(CoderUtils.encodeToByteArray(coder, "https").length, lessThan(inlineSize));
+        assertThat(CoderUtils.clone(coder, "https"), sameInstance(DICTIONARY.get(1)));
+
+        CoderProperties.coderDecodeEncodeEqual(coder, "https");
+        CoderProperties.coderDecodeEncodeEqual(coder, "ssh");
+        CoderProperties.coderDecodeEncodeEqual(coder, "");
+        assertThat(CoderUtils.clone(coder, null), is(nullValue()));
+    }
+
+    @Test
+    public void dictionaryIsShippedWithCoders() {
+        DictionaryStringCoder coder = DictionaryStringCoder.of(DICTIONARY);
+        DictionaryStringCoder deserialized = SerializableUtils.clone(coder);
+        assertThat(deserialized, is(coder));
+        assertThat(deserialized.getDictionary().getVersion(), is(DICTIONARY.getVersion()));
+        assertThat(deserialized.getDictionary().indexOf("NODES"), is(2));
+    }
+
+    @Test
+    public void codersOfDifferentDictionariesAreNotEqual() {
+        assertThat(DictionaryStringCoder.of(DICTIONARY), not(is(DictionaryStringCoder.of(StringDictionary.of(Arrays.asList("Default"))))));
+        assertThat(DictionaryStringCoder.of(DICTIONARY), not(is(DictionaryStringCoder.of())));
+        assertThat(DictionaryStringCoder.of(StringDictionary.of(Arrays.asList("Default", "https", "NODES"))), is(DictionaryStringCoder.of(DICTIONARY)));
+    }
+
+    @Test(expected = CoderException.class)
+    public void entriesOfDifferentDictionariesCanNotBeDecoded() throws Exception {
+        byte[] encoded = CoderUtils.encodeToByteArray(DictionaryStringCoder.of(DICTIONARY), "NODES");
+        CoderUtils.decodeFromByteArray(DictionaryStringCoder.of(StringDictionary.of(Arrays.asList("Default"))), encoded);
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.network;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThrows;
+
+import org.apache.beam.sdk.testing.CoderProperties;
+import org.junit.Test;
+import org.opennms.nephron.coders.IpAddrCoder;
+
+import com.google.protobuf.ByteString;
+
+public class IpAddrTest {
+
+    @Test
+    public void parsesAndRendersAddresses() {
+        for (String address : new String[] { "0.0.0.0", "10.0.0.1", "192.168.255.254", "255.255.255.255", "::", "::1", "2001:db8::1", "fe80::1:2:3:4" }) {
+            assertThat(IpAddr.parse(address).toString(), is(address));
+        }
+        assertThat(IpAddr.parse("10.0.0.1").getVersion(), is(IpAddr.V4));
+        assertThat(IpAddr.parse("::ffff:10.0.0.1"), is(IpAddr.parse("10.0.0.1")));
+        assertThat(IpAddr.parse("2001:DB8:0:0::1").toString(), is("2001:db8::1"));
+    }
+
+    @Test
+    public void unparsableAddressesAreAbsent() {
+        for (String address : new String[] { "", "10.0.0", "10.0.0.256", "10.0.0.1.", "1.2.3.4.5", "host", ":::" }) {
+            assertThat(address, IpAddr.parse(address).isAbsent(), is(true));
+        }
+        assertThat(IpAddr.ABSENT.toString(), is(""));
+    }
+
+    @Test
+    public void strictParsingRejectsUnparsableAddresses() {
+        for (String address : new String[] { "10.0.0", "10.0.0.256", "host", ":::" }) {
+            assertThrows(address, InvalidAddressException.class, () -> IpAddr.parseStrict(ByteString.copyFromUtf8(address)));
+        }
+        assertThat(IpAddr.parseStrict(ByteString.EMPTY).isAbsent(), is(true));
+    }
+
+    @Test
+    public void ordersNumerically() {
+        assertThat(IpAddr.parse("10.0.0.9").compareTo(IpAddr.parse("10.0.0.10")), lessThan(0));
+        assertThat(IpAddr.parse("128.0.0.1").compareTo(IpAddr.parse("127.255.255.255")), greaterThan(0));
+        assertThat(IpAddr.parse("::2").compareTo(IpAddr.parse("::10")), lessThan(0));
+        assertThat(IpAddr.parse("8000::").compareTo(IpAddr.parse("7fff::")), greaterThan(0));
+        assertThat(IpAddr.parse("255.255.255.255").compareTo(IpAddr.parse("::")), lessThan(0));
+        assertThat(IpAddr.ABSENT.compareTo(IpAddr.parse("0.0.0.0")), lessThan(0));
+    }
+
+    @Test
+    public void canEncodeAndDecode() throws Exception {
+        IpAddrCoder coder = IpAddrCoder.of();
+        for (String address : new String[] { "10.0.0.1", "255.255.255.255", "2001:db8::1", "ffff::ffff", "" }) {
+            CoderProperties.coderDecodeEncodeEqual(coder, IpAddr.parse(address));
+        }
+        CoderProperties.coderDecodeEncodeEqual(coder, null);
+        CoderProperties.coderDecodeEncodeEqual(coder, IpAddr.OVERFLOW);
+    }
+
+    @Test
+    public void checksRangesWithoutParsing() {
+        IpValue value = IpValue.of("10.0.0.0/24,192.168.0.10-192.168.0.20,2001:db8::/32");
+        for (String address : new String[] { "10.0.0.0", "10.0.0.255", "10.0.1.0", "192.168.0.9", "192.168.0.10", "192.168.0.20", "192.168.0.100", "2001:db8::1", "2001:db9::1", "9.255.255.255" }) {
+            assertThat(address, value.isInRange(IpAddr.parse(address)), is(value.isInRange(address)));
+        }
+        assertThat(value.isInRange(IpAddr.ABSENT), is(false));
+        assertThat(value.isInRange(IpAddr.OVERFLOW), is(false));
+    }
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarLongCoder;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.testing.TestStream;
+import org.apache.beam.sdk.transforms.Flatten;
+import org.apache.beam.sdk.transforms.Sum;
+import org.apache.beam.sdk.transforms.windowing.AfterPane;
+import org.apache.beam.sdk.transforms.windowing.AfterWatermark;
+import org.apache.beam.sdk.transforms.windowing.FixedWindows;
+import org.apache.beam.sdk.transforms.windowing.Window;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollectionList;
+import org.apache.beam.sdk.values.PCollectionTuple;
+import org.apache.beam.sdk.values.TimestampedValue;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CatchUpGateTest {
+
+    private static final Duration WINDOW_SIZE = Duration.standardMinutes(1);
+    private static final Duration ALLOWED_LATENESS = Duration.standardHours(1);
+
+    @Rule
+    public TestPipeline p = TestPipeline.create();
+
+    /**
+     * Fires two early panes (1 and 2), an empty on-time pane, and a late pane (4) of a single key and window.
+     */
+    private PCollectionTuple gatePanes(Instant windowStart, CatchUpGate<String, Long> gate) {
+        TestStream<KV<String, Long>> stream = TestStream.create(KvCoder.of(StringUtf8Coder.of(), VarLongCoder.of()))
+                .advanceWatermarkTo(windowStart)
+                .addElements(TimestampedValue.of(KV.of("a", 1L), windowStart))
+                .addElements(TimestampedValue.of(KV.of("a", 2L), windowStart.plus(1000)))
+                .advanceWatermarkTo(windowStart.plus(WINDOW_SIZE))
+                .addElements(TimestampedValue.of(KV.of("a", 4L), windowStart.plus(2000)))
+                // let the window expire before the input ends
+                .advanceWatermarkTo(windowStart.plus(WINDOW_SIZE).plus(ALLOWED_LATENESS).plus(WINDOW_SIZE))
+                .advanceWatermarkToInfinity();
+        return p.apply(stream)
+                .apply(Window.<KV<String, Long>>into(FixedWindows.of(WINDOW_SIZE))
+                        .triggering(AfterWatermark.pastEndOfWindow()
+                                .withEarlyFirings(AfterPane.elementCountAtLeast(1))
+                                .withLateFirings(AfterPane.elementCountAtLeast(1)))
+                        .withAllowedLateness(ALLOWED_LATENESS)
+                        .discardingFiredPanes())
+                .apply(Sum.longsPerKey())
+                .apply(gate);
+    }
+
+    private static CatchUpGate<String, Long> gate() {
+        return new CatchUpGate<>(Long::sum, Duration.standardMinutes(15), Duration.standardSeconds(10), StringUtf8Coder.of(), VarLongCoder.of());
+    }
+
+    @Test
+    public void suppressesEarlyAndLatePanesWhileCatchingUp() {
+        // windows that ended long ago indicate a large drift
+        var gate = gate();
+        PCollectionTuple gated = gatePanes(new Instant(1_500_000_000_000L), gate);
+        // the early panes are output together with the on-time pane; the late pane is output when the window expires
+        // -> the mode is tracked per DoFn instance; the instance that handles the expiration may not have seen any pane
+        PAssert.that(gated.get(gate.catchingUp)).satisfies(values -> {
+            assertThat(values, hasItem(KV.of("a", 3L)));
+            return null;
+        });
+        PAssert.that(PCollectionList.of(gated.get(gate.normal)).and(gated.get(gate.catchingUp)).apply(Flatten.pCollections()))
+                .containsInAnyOrder(KV.of("a", 3L), KV.of("a", 4L));
+        p.run();
+    }
+
+    @Test
+    public void passesPanesThroughWhenCaughtUp() {
+        var gate = gate();
+        Instant windowStart = new Instant(System.currentTimeMillis()).plus(Duration.standardHours(1));
+        PCollectionTuple gated = gatePanes(new Instant(windowStart.getMillis() / WINDOW_SIZE.getMillis() * WINDOW_SIZE.getMillis()), gate);
+        PAssert.that(gated.get(gate.normal)).containsInAnyOrder(KV.of("a", 1L), KV.of("a", 2L), KV.of("a", 0L), KV.of("a", 4L));
+        PAssert.that(gated.get(gate.catchingUp)).empty();
+        p.run();
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.testing.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.opennms.nephron.Flow;
+import org.opennms.nephron.coders.FlowDocumentProtobufCoder;
+import org.opennms.nephron.coders.ProjectingFlowDecoder;
+import org.opennms.nephron.testing.flowgen.FlowDocuments;
+import org.opennms.nephron.testing.flowgen.FlowGenOptions;
+import org.opennms.nephron.testing.flowgen.SourceConfig;
+import org.opennms.netmgt.flows.persistence.model.FlowDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the number of bytes that are allocated per flow when flows are deserialized from Kafka records and
+ * transferred between pipeline stages.
+ *
+ * "Before" denotes full parsing into flow documents that are encoded by the {@link FlowDocumentProtobufCoder}. "After"
+ * denotes projected decoding into {@link Flow} records that are encoded by the {@link Flow.FlowCoder}. The projected
+ * variant is measured twice: with string fields left untouched and with all string fields being accessed.
+ *
+ * The number of generated flows is controlled by the {@link FlowGenOptions#getNumWindows()} and
+ * {@link FlowGenOptions#getFlowsPerWindow()} arguments.
+ */
+public class AllocationBenchmark {
+
+    private static Logger LOG = LoggerFactory.getLogger(AllocationBenchmark.class);
+
+    private static final int ROUNDS = 5;
+
+    private interface Step {
+        Object apply(byte[] bytes) throws IOException;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocatedBytes() {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static <T> T roundTrip(Coder<T> coder, T value) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        coder.encode(value, baos);
+        return coder.decode(new ByteArrayInputStream(baos.toByteArray()));
+    }
+
+    /**
+     * Applies the given step to all records and returns the number of allocated bytes per record.
+     *
+     * The step is applied several times; the first rounds warm up the JIT and only the last round is measured.
+     */
+    private static double measure(List<byte[]> records, Step step) throws IOException {
+        long blackhole = 0;
+        double perRecord = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = allocatedBytes();
+            for (byte[] record : records) {
+                blackhole += step.apply(record).hashCode();
+            }
+            perRecord = (allocatedBytes() - start) / (double) records.size();
+        }
+        LOG.trace("blackhole: " + blackhole);
+        return perRecord;
+    }
+
+    public static void main(String[] args) throws IOException {
+        FlowGenOptions options = PipelineOptionsFactory.fromArgs(args).withValidation().as(FlowGenOptions.class);
+        if (!THREAD_MX_BEAN.isThreadAllocatedMemorySupported()) {
+            throw new RuntimeException("thread allocated memory measurement is not supported by this JVM");
+        }
+        THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+
+        List<byte[]> records = FlowDocuments.stream(SourceConfig.of(options, null))
+                .map(FlowDocument::toByteArray)
+                .collect(Collectors.toList());
+
+        FlowDocumentProtobufCoder flowDocumentCoder = new FlowDocumentProtobufCoder();
+        Flow.FlowCoder flowCoder = new Flow.FlowCoder();
+
+        double fullParse = measure(records, FlowDocument::parseFrom);
+        double fullParseAndTransfer = measure(records, bytes -> roundTrip(flowDocumentCoder, FlowDocument.parseFrom(bytes)));
+        double projected = measure(records, ProjectingFlowDecoder::decode);
+        double projectedAndTransfer = measure(records, bytes -> roundTrip(flowCoder, ProjectingFlowDecoder.decode(bytes)));
+        double projectedAndStrings = measure(records, bytes -> {
+            Flow flow = ProjectingFlowDecoder.decode(bytes);
+            return flow.getForeignSource().length() + flow.getForeignId().length() + flow.getLocation().length() +
+                   flow.getApplication().length() + flow.getHostname().length() + flow.getHostname2().length() +
+                   // addresses are binary; they are only rendered as text on output
+                   flow.address.hashCode() + flow.largerAddress.hashCode();
+        });
+
+        LOG.info(String.format("allocated bytes per flow (%d flows)", records.size()));
+        LOG.info(String.format("before - full parse: %.1f", fullParse));
+        LOG.info(String.format("before - full parse + transfer: %.1f", fullParseAndTransfer));
+        LOG.info(String.format("after - projected decoding: %.1f", projected));
+        LOG.info(String.format("after - projected decoding + transfer: %.1f", projectedAndTransfer));
+        LOG.info(String.format("after - projected decoding + string access: %.1f", projectedAndStrings));
+    }
+}
@@ -57,9 +57,9 @@ import org.joda.time.Duration;
 import org.joda.time.Instant;
 import org.opennms.nephron.Aggregate;
 import org.opennms.nephron.CompoundKey;
+import org.opennms.nephron.Flow;
 import org.opennms.nephron.Pipeline;
 import org.opennms.nephron.cortex.CortexIo;
-import org.opennms.netmgt.flows.persistence.model.FlowDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -210,7 +210,7 @@ public class Benchmark {
 
     private final BenchmarkOptions options;
     private final Consumer<String> resultConsumer;
-    private final TestingProbe<FlowDocument> inTestingProbe = new TestingProbe<>("benchmark", "in");
+    private final TestingProbe<Flow> inTestingProbe = new TestingProbe<>("benchmark", "in");
     private final TestingProbe<KV<CompoundKey, Aggregate>> outTestingProbe = new TestingProbe<>("benchmark", "out");
     private final Instant start = Instant.now();
 
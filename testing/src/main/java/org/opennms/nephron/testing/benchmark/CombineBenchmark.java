@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.testing.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
+import org.joda.time.Instant;
+import org.opennms.nephron.Aggregate;
+import org.opennms.nephron.CompoundKey;
+import org.opennms.nephron.CompoundKeyType;
+import org.opennms.nephron.Flow;
+import org.opennms.nephron.MissingFieldsException;
+import org.opennms.nephron.Pipeline;
+import org.opennms.nephron.SumAggregates;
+import org.opennms.nephron.testing.flowgen.FlowDocuments;
+import org.opennms.nephron.testing.flowgen.FlowGenOptions;
+import org.opennms.nephron.testing.flowgen.SourceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the garbage that is produced when aggregates are summed per key.
+ *
+ * "Before" denotes folding aggregates by {@link Aggregate#merge(Aggregate, Aggregate)} as the former binary combine
+ * function did. "After" denotes the {@link SumAggregates} combine function with its mutable accumulator. Aggregates are
+ * summed by conversation (many small groups) and by exporter interface (few large groups). For each variant the number
+ * of allocated bytes per input and the number and duration of garbage collections are reported.
+ *
+ * The number of generated flows is controlled by the {@link FlowGenOptions#getNumWindows()} and
+ * {@link FlowGenOptions#getFlowsPerWindow()} arguments.
+ */
+public class CombineBenchmark {
+
+    private static Logger LOG = LoggerFactory.getLogger(CombineBenchmark.class);
+
+    private static final int ROUNDS = 20;
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocatedBytes() {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private static long gcTimeMs() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    private static Aggregate fold(List<Aggregate> aggregates) {
+        Aggregate res = null;
+        for (Aggregate aggregate : aggregates) {
+            res = res == null ? aggregate : Aggregate.merge(res, aggregate);
+        }
+        return res;
+    }
+
+    private static Aggregate sum(SumAggregates fn, List<Aggregate> aggregates) {
+        SumAggregates.Accumulator acc = fn.createAccumulator();
+        for (Aggregate aggregate : aggregates) {
+            acc = fn.addInput(acc, aggregate);
+        }
+        return fn.extractOutput(acc);
+    }
+
+    /**
+     * Sums the aggregates of all groups in several rounds. The first half of the rounds warm up the JIT.
+     */
+    private static void measure(String name, Map<CompoundKey, List<Aggregate>> groups, Function<List<Aggregate>, Aggregate> sum) {
+        long inputs = groups.values().stream().mapToLong(List::size).sum();
+        long blackhole = 0;
+        long allocated = 0, gcCount = 0, gcTime = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long startAllocated = allocatedBytes(), startGcCount = gcCount(), startGcTime = gcTimeMs();
+            for (List<Aggregate> group : groups.values()) {
+                blackhole += sum.apply(group).getBytes();
+            }
+            if (round >= ROUNDS / 2) {
+                allocated += allocatedBytes() - startAllocated;
+                gcCount += gcCount() - startGcCount;
+                gcTime += gcTimeMs() - startGcTime;
+            }
+        }
+        int measured = ROUNDS - ROUNDS / 2;
+        LOG.info(String.format("%s - allocated bytes per input: %.1f; collections per round: %.1f; gc time per round: %.1fms",
+                name, allocated / (double) measured / inputs, gcCount / (double) measured, gcTime / (double) measured));
+        LOG.trace("blackhole: " + blackhole);
+    }
+
+    public static void main(String[] args) {
+        FlowGenOptions options = PipelineOptionsFactory.fromArgs(args).withValidation().as(FlowGenOptions.class);
+        if (!THREAD_MX_BEAN.isThreadAllocatedMemorySupported()) {
+            throw new RuntimeException("thread allocated memory measurement is not supported by this JVM");
+        }
+        THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+
+        // the conversation aggregates of all flows
+        List<CompoundKey> keys = new ArrayList<>();
+        List<Aggregate> values = new ArrayList<>();
+        FlowDocuments.stream(SourceConfig.of(options, null)).map(Flow::of).forEach(flow -> {
+            try {
+                IntervalWindow window = new IntervalWindow(new Instant(flow.deltaSwitched), new Instant(flow.lastSwitched + 1));
+                keys.add(CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION.create(flow));
+                values.add(Pipeline.aggregatize(window, flow, flow.getHostname(), flow.getHostname2()));
+            } catch (MissingFieldsException e) {
+                // skip
+            }
+        });
+
+        Map<CompoundKey, List<Aggregate>> byConversation = new HashMap<>();
+        Map<CompoundKey, List<Aggregate>> byInterface = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            byConversation.computeIfAbsent(keys.get(i), x -> new ArrayList<>()).add(values.get(i));
+            byInterface.computeIfAbsent(keys.get(i).getOuterKey(), x -> new ArrayList<>()).add(values.get(i));
+        }
+
+        SumAggregates fn = new SumAggregates();
+
+        LOG.info(String.format("summing %d aggregates - conversations: %d; interfaces: %d", values.size(), byConversation.size(), byInterface.size()));
+        measure("before - by conversation", byConversation, CombineBenchmark::fold);
+        measure("after - by conversation", byConversation, group -> sum(fn, group));
+        measure("before - by interface", byInterface, CombineBenchmark::fold);
+        measure("after - by interface", byInterface, group -> sum(fn, group));
+    }
+}
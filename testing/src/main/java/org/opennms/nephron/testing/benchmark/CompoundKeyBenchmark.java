@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.testing.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
+import org.joda.time.Instant;
+import org.opennms.nephron.Aggregate;
+import org.opennms.nephron.CompoundKey;
+import org.opennms.nephron.CompoundKeyData;
+import org.opennms.nephron.CompoundKeyType;
+import org.opennms.nephron.Flow;
+import org.opennms.nephron.MissingFieldsException;
+import org.opennms.nephron.Pipeline;
+import org.opennms.nephron.RefType;
+import org.opennms.nephron.SumAggregates;
+import org.opennms.nephron.testing.flowgen.FlowDocuments;
+import org.opennms.nephron.testing.flowgen.FlowGenOptions;
+import org.opennms.nephron.testing.flowgen.SourceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the combine hot path for compound keys.
+ *
+ * Encoded keys and aggregates are decoded as after a shuffle, summed per key in a hash map as done by the accumulating
+ * tables of combine stages, and the keys of the resulting sums are encoded again. "Before" denotes keys whose equality
+ * check and hash code loop over the {@link RefType}s of their type and whose data is decoded eagerly field by field.
+ * "After" denotes {@link CompoundKey}s with their packed representation. For each variant the time and the number of
+ * allocated bytes per input are reported.
+ *
+ * The number of generated flows is controlled by the {@link FlowGenOptions#getNumWindows()} and
+ * {@link FlowGenOptions#getFlowsPerWindow()} arguments.
+ */
+public class CompoundKeyBenchmark {
+
+    private static Logger LOG = LoggerFactory.getLogger(CompoundKeyBenchmark.class);
+
+    private static final int ROUNDS = 20;
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final Coder<CompoundKey> KEY_CODER = new CompoundKey.CompoundKeyCoder();
+
+    private static long allocatedBytes() {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * A compound key as it was before keys were packed.
+     */
+    private static class LegacyKey {
+        private final CompoundKeyType type;
+        private final CompoundKeyData data;
+
+        private LegacyKey(CompoundKeyType type, CompoundKeyData data) {
+            this.type = type;
+            this.data = data;
+        }
+
+        private static LegacyKey decode(InputStream is) throws IOException {
+            CompoundKeyType type = CompoundKeyType.values()[is.read()];
+            CompoundKeyData.Builder builder = new CompoundKeyData.Builder();
+            for (RefType refType : type.getParts()) {
+                refType.decode(builder, is);
+            }
+            return new LegacyKey(type, builder.build());
+        }
+
+        private void encode(OutputStream os) throws IOException {
+            os.write(type.ordinal());
+            for (RefType refType : type.getParts()) {
+                refType.encode(data, os);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            LegacyKey that = (LegacyKey) o;
+            if (type != that.type) {
+                return false;
+            }
+            for (RefType refType : type.getParts()) {
+                if (!refType.equals(data, that.data)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 17;
+            hash = hash * 31 + type.hashCode();
+            for (RefType refType : type.getParts()) {
+                hash = hash * 31 + refType.hashCode(data);
+            }
+            return hash;
+        }
+    }
+
+    @FunctionalInterface
+    private interface KeyDecoder<K> {
+        K decode(InputStream is) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface KeyEncoder<K> {
+        void encode(K key, OutputStream os) throws IOException;
+    }
+
+    /**
+     * Decodes, sums, and encodes the given inputs in several rounds. The first half of the rounds warm up the JIT.
+     */
+    private static <K> void measure(String name, List<byte[]> encodedKeys, List<Aggregate> values, KeyDecoder<K> decoder, KeyEncoder<K> encoder) {
+        SumAggregates fn = new SumAggregates();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        long blackhole = 0;
+        long allocated = 0, nanos = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long startAllocated = allocatedBytes(), startNanos = System.nanoTime();
+            Map<K, SumAggregates.Accumulator> sums = new HashMap<>();
+            try {
+                for (int i = 0; i < encodedKeys.size(); i++) {
+                    K key = decoder.decode(new ByteArrayInputStream(encodedKeys.get(i)));
+                    SumAggregates.Accumulator acc = sums.computeIfAbsent(key, k -> fn.createAccumulator());
+                    fn.addInput(acc, values.get(i));
+                }
+                os.reset();
+                for (K key : sums.keySet()) {
+                    encoder.encode(key, os);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            blackhole += sums.size() + os.size();
+            if (round >= ROUNDS / 2) {
+                nanos += System.nanoTime() - startNanos;
+                allocated += allocatedBytes() - startAllocated;
+            }
+        }
+        int measured = ROUNDS - ROUNDS / 2;
+        LOG.info(String.format("%s - time per input: %.1fns; allocated bytes per input: %.1f",
+                name, nanos / (double) measured / encodedKeys.size(), allocated / (double) measured / encodedKeys.size()));
+        LOG.trace("blackhole: " + blackhole);
+    }
+
+    private static List<byte[]> encode(List<CompoundKey> keys, Function<CompoundKey, LegacyKey> legacy) {
+        List<byte[]> res = new ArrayList<>(keys.size());
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            for (CompoundKey key : keys) {
+                os.reset();
+                if (legacy != null) {
+                    legacy.apply(key).encode(os);
+                } else {
+                    KEY_CODER.encode(key, os);
+                }
+                res.add(os.toByteArray());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return res;
+    }
+
+    public static void main(String[] args) {
+        FlowGenOptions options = PipelineOptionsFactory.fromArgs(args).withValidation().as(FlowGenOptions.class);
+        if (!THREAD_MX_BEAN.isThreadAllocatedMemorySupported()) {
+            throw new RuntimeException("thread allocated memory measurement is not supported by this JVM");
+        }
+        THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+
+        // the conversation aggregates of all flows
+        List<CompoundKey> keys = new ArrayList<>();
+        List<Aggregate> values = new ArrayList<>();
+        FlowDocuments.stream(SourceConfig.of(options, null)).map(Flow::of).forEach(flow -> {
+            try {
+                IntervalWindow window = new IntervalWindow(new Instant(flow.deltaSwitched), new Instant(flow.lastSwitched + 1));
+                keys.add(CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION.create(flow));
+                values.add(Pipeline.aggregatize(window, flow, flow.getHostname(), flow.getHostname2()));
+            } catch (MissingFieldsException e) {
+                // skip
+            }
+        });
+        List<CompoundKey> interfaceKeys = new ArrayList<>(keys.size());
+        keys.forEach(key -> interfaceKeys.add(key.cast(CompoundKeyType.EXPORTER_INTERFACE)));
+
+        Function<CompoundKey, LegacyKey> legacy = key -> new LegacyKey(key.type, key.getData());
+        KeyDecoder<CompoundKey> decoder = KEY_CODER::decode;
+        KeyEncoder<CompoundKey> encoder = KEY_CODER::encode;
+
+        LOG.info(String.format("summing %d aggregates", values.size()));
+        measure("before - by conversation", encode(keys, legacy), values, LegacyKey::decode, LegacyKey::encode);
+        measure("after - by conversation", encode(keys, null), values, decoder, encoder);
+        measure("before - by interface", encode(interfaceKeys, legacy), values, LegacyKey::decode, LegacyKey::encode);
+        measure("after - by interface", encode(interfaceKeys, null), values, decoder, encoder);
+    }
+}
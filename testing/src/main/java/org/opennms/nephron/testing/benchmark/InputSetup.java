@@ -44,6 +44,7 @@ import org.apache.beam.sdk.values.PCollection;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.joda.time.Duration;
 import org.joda.time.Instant;
+import org.opennms.nephron.Flow;
 import org.opennms.nephron.Pipeline;
 import org.opennms.nephron.testing.flowgen.FlowConfig;
 import org.opennms.nephron.testing.flowgen.FlowDocuments;
@@ -51,7 +52,6 @@ import org.opennms.nephron.testing.flowgen.FlowGenOptions;
 import org.opennms.nephron.testing.flowgen.SourceConfig;
 import org.opennms.nephron.testing.flowgen.SyntheticFlowSource;
 import org.opennms.nephron.testing.flowgen.SyntheticFlowTimestampPolicyFactory;
-import org.opennms.netmgt.flows.persistence.model.FlowDocument;
 
 public abstract class InputSetup {
 
@@ -81,17 +81,17 @@ public abstract class InputSetup {
         this.sourceConfig = SourceConfig.of(options, SyntheticFlowTimestampPolicyFactory.withLimitedDelay(options, Pipeline.ReadFromKafka::getTimestamp));
     }
 
-    abstract PTransform<PBegin, PCollection<FlowDocument>> source();
+    abstract PTransform<PBegin, PCollection<Flow>> source();
 
     abstract void generate() throws Exception;
 
-    private static TimestampPolicyFactory<byte[], FlowDocument> createTimestampPolicyFactory(
+    private static TimestampPolicyFactory<byte[], Flow> createTimestampPolicyFactory(
             long maxIdx,
             Duration maxInputDelay,
             Duration maxInputIdleDuration,
             Duration maxRunDuration
     ) {
-        return (tp, previousWatermark) -> new CustomTimestampPolicyWithLimitedDelay<byte[], FlowDocument>(
+        return (tp, previousWatermark) -> new CustomTimestampPolicyWithLimitedDelay<byte[], Flow>(
                 Pipeline.ReadFromKafka::getTimestamp,
                 maxInputDelay,
                 previousWatermark
@@ -102,7 +102,7 @@ public abstract class InputSetup {
             private boolean closed = false;
 
             @Override
-            public Instant getTimestampForRecord(PartitionContext ctx, KafkaRecord<byte[], FlowDocument> record) {
+            public Instant getTimestampForRecord(PartitionContext ctx, KafkaRecord<byte[], Flow> record) {
                 counter++;
                 idleSince = Instant.now();
                 return super.getTimestampForRecord(ctx, record);
@@ -132,13 +132,13 @@ public abstract class InputSetup {
         }
 
         @Override
-        public PTransform<PBegin, PCollection<FlowDocument>> source() {
+        public PTransform<PBegin, PCollection<Flow>> source() {
             Map<String, Object> kafkaConsumerConfig = new HashMap<>();
             kafkaConsumerConfig.put(ConsumerConfig.GROUP_ID_CONFIG, options.getGroupId());
             // Auto-commit should be disabled when checkpointing is on:
             // the state in the checkpoints are used to derive the offsets instead
             kafkaConsumerConfig.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, options.getAutoCommit());
-            TimestampPolicyFactory<byte[], FlowDocument> tpf = InputSetup.createTimestampPolicyFactory(
+            TimestampPolicyFactory<byte[], Flow> tpf = InputSetup.createTimestampPolicyFactory(
                     sourceConfig.maxIdx,
                     Duration.millis(options.getDefaultMaxInputDelayMs()),
                     Duration.standardSeconds(options.getMaxInputIdleSecs()),
@@ -166,7 +166,7 @@ public abstract class InputSetup {
         }
 
         @Override
-        public PTransform<PBegin, PCollection<FlowDocument>> source() {
+        public PTransform<PBegin, PCollection<Flow>> source() {
             return SyntheticFlowSource.readFromSyntheticSource(sourceConfig);
         }
 
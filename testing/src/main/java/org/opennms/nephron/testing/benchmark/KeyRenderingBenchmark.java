@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.nephron.testing.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.opennms.nephron.CompoundKey;
+import org.opennms.nephron.CompoundKeyData;
+import org.opennms.nephron.CompoundKeyType;
+import org.opennms.nephron.Flow;
+import org.opennms.nephron.KeyRenderer;
+import org.opennms.nephron.MissingFieldsException;
+import org.opennms.nephron.RefType;
+import org.opennms.nephron.testing.flowgen.FlowDocuments;
+import org.opennms.nephron.testing.flowgen.FlowGenOptions;
+import org.opennms.nephron.testing.flowgen.SourceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+
+/**
+ * Measures the comparison and the rendering of compound keys.
+ *
+ * The comparison benchmark compares neighbouring keys as done when topK rankings break ties of equal byte counts.
+ * "Before" compares the rendered grouped-by strings of keys; "after" compares keys field by field. The rendering
+ * benchmark renders grouped-by strings and conversation keys as done at output time. "Before" renders into a fresh
+ * string builder and escapes strings by Gson; "after" renders by the {@link KeyRenderer}. For each variant the time and
+ * the number of allocated bytes per key are reported.
+ *
+ * The number of generated flows is controlled by the {@link FlowGenOptions#getNumWindows()} and
+ * {@link FlowGenOptions#getFlowsPerWindow()} arguments.
+ */
+public class KeyRenderingBenchmark {
+
+    private static Logger LOG = LoggerFactory.getLogger(KeyRenderingBenchmark.class);
+
+    private static final int ROUNDS = 20;
+
+    private static final Gson GSON = new Gson();
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocatedBytes() {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The conversation key as it was rendered before the key renderer was introduced.
+     */
+    private static String legacyConversationKey(CompoundKeyData data) {
+        return new StringBuilder()
+                .append('[')
+                .append(GSON.toJson(data.location))
+                .append(',')
+                .append(data.protocol)
+                .append(',')
+                .append(GSON.toJson(data.address.toString()))
+                .append(',')
+                .append(GSON.toJson(data.largerAddress.toString()))
+                .append(',')
+                .append(GSON.toJson(data.application))
+                .append(']')
+                .toString();
+    }
+
+    /**
+     * The grouped-by string as it was rendered before the key renderer was introduced.
+     */
+    private static String legacyGroupedByKey(CompoundKey key) {
+        CompoundKeyData data = key.getData();
+        StringBuilder sb = new StringBuilder();
+        for (RefType refType : key.type.getParts()) {
+            if (sb.length() > 0) sb.append('-');
+            if (refType == RefType.CONVERSATION_PART) {
+                sb.append(legacyConversationKey(data));
+            } else {
+                refType.groupedByKey(data, sb);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void measureComparison(String name, List<CompoundKey> keys, Comparator<CompoundKey> comparator) {
+        measure(name, keys, new ToIntFunction<>() {
+            private CompoundKey previous = keys.get(keys.size() - 1);
+
+            @Override
+            public int applyAsInt(CompoundKey key) {
+                int c = comparator.compare(previous, key);
+                previous = key;
+                return c;
+            }
+        });
+    }
+
+    /**
+     * Applies the given operation to all keys in several rounds. The first half of the rounds warm up the JIT.
+     */
+    private static void measure(String name, List<CompoundKey> keys, ToIntFunction<CompoundKey> op) {
+        long blackhole = 0;
+        long allocated = 0, nanos = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long startAllocated = allocatedBytes(), startNanos = System.nanoTime();
+            for (CompoundKey key : keys) {
+                blackhole += op.applyAsInt(key);
+            }
+            if (round >= ROUNDS / 2) {
+                nanos += System.nanoTime() - startNanos;
+                allocated += allocatedBytes() - startAllocated;
+            }
+        }
+        int measured = ROUNDS - ROUNDS / 2;
+        LOG.info(String.format("%s - time per key: %.1fns; allocated bytes per key: %.1f",
+                name, nanos / (double) measured / keys.size(), allocated / (double) measured / keys.size()));
+        LOG.trace("blackhole: " + blackhole);
+    }
+
+    public static void main(String[] args) {
+        FlowGenOptions options = PipelineOptionsFactory.fromArgs(args).withValidation().as(FlowGenOptions.class);
+        if (!THREAD_MX_BEAN.isThreadAllocatedMemorySupported()) {
+            throw new RuntimeException("thread allocated memory measurement is not supported by this JVM");
+        }
+        THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+
+        List<CompoundKey> keys = new ArrayList<>();
+        FlowDocuments.stream(SourceConfig.of(options, null)).map(Flow::of).forEach(flow -> {
+            try {
+                keys.add(CompoundKeyType.EXPORTER_INTERFACE_TOS_CONVERSATION.create(flow));
+            } catch (MissingFieldsException e) {
+                // skip
+            }
+        });
+        List<CompoundKey> hostKeys = new ArrayList<>(keys.size());
+        keys.forEach(key -> hostKeys.add(key.cast(CompoundKeyType.EXPORTER_INTERFACE_TOS_HOST)));
+
+        LOG.info(String.format("%d keys", keys.size()));
+        measureComparison("before - compare conversations", keys, Comparator.comparing(KeyRenderingBenchmark::legacyGroupedByKey));
+        measureComparison("after - compare conversations", keys, Comparator.naturalOrder());
+        measureComparison("before - compare hosts", hostKeys, Comparator.comparing(KeyRenderingBenchmark::legacyGroupedByKey));
+        measureComparison("after - compare hosts", hostKeys, Comparator.naturalOrder());
+
+        measure("before - render conversation keys", keys, key -> legacyConversationKey(key.getData()).length());
+        measure("after - render conversation keys", keys, key -> key.getData().getConversationKey().length());
+        measure("before - render grouped-by strings", keys, key -> legacyGroupedByKey(key).length());
+        measure("after - render grouped-by strings", keys, key -> key.groupedByKey().length());
+    }
+}
@@ -47,6 +47,7 @@ import org.apache.beam.sdk.values.PBegin;
 import org.apache.beam.sdk.values.PCollection;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.joda.time.Instant;
+import org.opennms.nephron.Flow;
 import org.opennms.nephron.coders.FlowDocumentProtobufCoder;
 import org.opennms.netmgt.flows.persistence.model.FlowDocument;
 import org.slf4j.Logger;
@@ -65,23 +66,23 @@ public class SyntheticFlowSource extends UnboundedSource<FlowDocument, FlowReade
     private static final Logger LOG = LoggerFactory.getLogger(SyntheticFlowSource.class);
 
     /**
-     * Creates a transformation that reads from a synthetic flow source.
+     * Creates a transformation that reads from a synthetic flow source and converts the flow documents into flows.
      */
-    public static PTransform<PBegin, PCollection<FlowDocument>> readFromSyntheticSource(SourceConfig sourceConfig) {
+    public static PTransform<PBegin, PCollection<Flow>> readFromSyntheticSource(SourceConfig sourceConfig) {
         return new PTransform<>() {
             private final Gauge inputDrift = Metrics.gauge("flows", "input_lag");
 
             @Override
-            public PCollection<FlowDocument> expand(PBegin input) {
+            public PCollection<Flow> expand(PBegin input) {
                 return input
                         .apply(Read.from(new SyntheticFlowSource(sourceConfig)))
                         .apply(ParDo.of(
-                                new DoFn<FlowDocument, FlowDocument>() {
+                                new DoFn<FlowDocument, Flow>() {
                                     @ProcessElement
                                     public void processElement(ProcessContext c) {
                                         FlowDocument flow = c.element();
                                         inputDrift.set(System.currentTimeMillis() - flow.getLastSwitched().getValue());
-                                        c.output(flow);
+                                        c.output(Flow.of(flow));
                                     }
                                 }
                         ));
@@ -147,7 +147,7 @@ public class CortexPaneIT {
                     .append(key.key.type.name())
                     .append('{');
 
-            var data = key.key.data;
+            var data = key.key.getData();
 
             qry.append("nodeId=\"").append(data.nodeId).append('"');
 
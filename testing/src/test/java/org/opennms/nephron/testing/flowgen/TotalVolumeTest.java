@@ -57,6 +57,7 @@ import org.junit.Test;
 import org.opennms.nephron.Aggregate;
 import org.opennms.nephron.CompoundKey;
 import org.opennms.nephron.CompoundKeyType;
+import org.opennms.nephron.Flow;
 import org.opennms.nephron.MissingFieldsException;
 import org.opennms.nephron.NephronOptions;
 import org.opennms.nephron.Pipeline;
@@ -266,12 +267,12 @@ public class TotalVolumeTest {
 
         // calculate the in-memory result
 
-        flowDocumentStream.forEach(flow -> {
+        flowDocumentStream.map(Flow::of).forEach(flow -> {
 
             // logic copied from attachTimestamps
-            long deltaSwitched = flow.getDeltaSwitched().getValue();
-            long lastSwitched = flow.getLastSwitched().getValue();
-            int nodeId = flow.getExporterNode().getNodeId();
+            long deltaSwitched = flow.deltaSwitched;
+            long lastSwitched = flow.lastSwitched;
+            int nodeId = flow.nodeId;
 
             long shift = UnalignedFixedWindows.perNodeShift(nodeId, windowSizeMs);
             if (deltaSwitched < shift) {
@@ -287,7 +288,7 @@ public class TotalVolumeTest {
                 if (timestamp > lastSwitched - maxFlowDurationMs) {
 
                     long windowStart = UnalignedFixedWindows.windowStartForTimestamp(
-                            flow.getExporterNode().getNodeId(),
+                            flow.nodeId,
                             options.getFixedWindowSizeMs(),
                             timestamp
                     );